@@ -1,6 +1,7 @@
 package a3;
 
 import net.java.games.input.Event;
+import tage.Engine;
 import tage.FullObject;
 import tage.GameObject;
 import tage.input.InputManager;
@@ -49,7 +50,7 @@ public class AvatarMovementV3 {
     im = inputM;
     protClient = p;
 
-    lastFrameTime = System.currentTimeMillis();
+    lastFrameTime = Engine.getEngine().currentTimeMillis();
     curFrameTime = lastFrameTime;
     elapsedTime = 0.0;
 
@@ -69,9 +70,9 @@ public class AvatarMovementV3 {
   //===========================================================================UPDATE METHOD======================================================
   /** update the avatars movement EVERY FRAME */
   public void updateMovement() {
-    curFrameTime = System.currentTimeMillis();
+    curFrameTime = Engine.getEngine().currentTimeMillis();
     elapsedTime = (curFrameTime - lastFrameTime) / 1000;
-    lastFrameTime = System.currentTimeMillis();
+    lastFrameTime = Engine.getEngine().currentTimeMillis();
 
     momentumController.updateMomentum(elapsedTime);
 
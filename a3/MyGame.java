@@ -235,8 +235,10 @@ public class MyGame extends VariableFrameRateGame {
 
 	@Override
 	public void initializeGame() {
-		lastFrameTime = System.currentTimeMillis();
-		currFrameTime = System.currentTimeMillis();
+		// the avatar selection screen doesn't need more than 30 fps
+		engine.getRenderSystem().getFrameScheduler().setTargetFrameRate(30);
+		lastFrameTime = engine.currentTimeMillis();
+		currFrameTime = engine.currentTimeMillis();
 
 		engine.getRenderSystem().setWindowDimensions(1900, 1000);
 
@@ -299,7 +301,7 @@ public class MyGame extends VariableFrameRateGame {
 	@Override
 	public void update() {
 		lastFrameTime = currFrameTime;
-		currFrameTime = System.currentTimeMillis();
+		currFrameTime = engine.currentTimeMillis();
 		double deltaTime = (double) (currFrameTime - lastFrameTime) / 1000;
 
 		frames++;
@@ -367,6 +369,7 @@ public class MyGame extends VariableFrameRateGame {
 		avMovement.setTerrain(terr, terrainOffset); //enables terrain to affect avatar
 
 		avatarChosen = true;
+		engine.getRenderSystem().getFrameScheduler().setTargetFrameRate(0);
 
 		tars.toggleStop();
 		tars.setObjectToFollow(avatar);
@@ -461,7 +464,7 @@ public class MyGame extends VariableFrameRateGame {
 					if(fullSpheres[i].getCollidingWith() == avatar.getPhysicsObject().getUID()) {
 						//sphere collided with this clients avatar
 						//check if this collision has not happened within the past 500 milliseconds
-						if(System.currentTimeMillis() - fullSpheres[i].getProcessTime() > 500) {
+						if(engine.currentTimeMillis() - fullSpheres[i].getProcessTime() > 500) {
 							//collision hasnt happened within the past 500 millis
 							//bump the avatar
 							if (!ignoreNPC) {
@@ -579,6 +582,8 @@ public class MyGame extends VariableFrameRateGame {
 			} else {
 				engine.disablePhysicsWorldRender();
 			}
+		} else if (key == KeyEvent.VK_F3) {
+			engine.getRenderSystem().getProfiler().toggleOverlay();
 		} else if (!avatarChosen && (key == KeyEvent.VK_5 || key == KeyEvent.VK_6)) {
 			initAvatarSelected((char) key);
 		}
@@ -0,0 +1,8 @@
+#version 430
+
+// Fragment shader for the depth pre-pass.
+// Only the depth buffer is written (color writes are off), so there is nothing to compute here.
+
+void main(void)
+{
+}
@@ -0,0 +1,121 @@
+#version 430
+
+// Compute shader for clustered lighting.
+// The view frustum is divided into a grid of clusters -- tiles across the screen, and slices in depth
+// (spaced exponentially, so clusters far from the camera are deeper).  Each invocation handles one cluster:
+// it finds the cluster's bounding box in view space, and lists the lights whose volume of influence reaches it.
+// StandardFrag.glsl then only considers the lights listed for the cluster containing the fragment.
+
+layout (local_size_x = 64) in;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+layout (std430, binding=0) buffer lightBuffer { float lightArray[]; };
+layout (std430, binding=2) buffer clusterBuffer { vec4 maxLightAmbient; uint clusterCount[]; };
+layout (std430, binding=3) buffer clusterLightBuffer { uint clusterLights[]; };
+
+const int maxLightsPerCluster = 128;	// must match LightClusters.MAX_LIGHTS_PER_CLUSTER
+
+// lights are considered to have no effect once their attenuated intensity falls below this
+const float CUTOFF = 1.0 / 256.0;
+
+vec3 boxMin, boxMax, sphereCenter;
+float sphereRadius;
+
+// returns the distance at which the light's contribution becomes negligible, limited by its range
+float lightRadius(int i, int f)
+{	float kc = lightArray[i*f+12];
+	float kl = lightArray[i*f+13];
+	float kq = lightArray[i*f+14];
+	float range = lightArray[i*f+15];
+	float brightest = max(max(lightArray[i*f+6], lightArray[i*f+7]), lightArray[i*f+8]);
+	brightest = max(brightest, max(max(lightArray[i*f+9], lightArray[i*f+10]), lightArray[i*f+11]));
+	float k = brightest / CUTOFF - kc;	// solve kc + kl*d + kq*d*d = brightest / CUTOFF
+	float d = range;
+	if (k <= 0.0) d = 0.0;
+	else if (kq > 0.0) d = (-kl + sqrt(kl*kl + 4.0*kq*k)) / (2.0*kq);
+	else if (kl > 0.0) d = k / kl;
+	return min(d, range);
+}
+
+bool sphereTouchesBox(vec3 center, float radius)
+{	vec3 closest = clamp(center, boxMin, boxMax);
+	vec3 d = closest - center;
+	return dot(d,d) <= radius*radius;
+}
+
+// tests the cluster's bounding sphere against one side of a spotlight cone
+bool coneTouchesCluster(vec3 apex, vec3 dir, float cosA, float sinA, float radius)
+{	vec3 v = sphereCenter - apex;
+	float vLenSq = dot(v,v);
+	float along = dot(v, dir);
+	float closest = cosA * sqrt(max(vLenSq - along*along, 0.0)) - along * sinA;
+	if (closest > sphereRadius) return false;
+	if (along > sphereRadius + radius) return false;
+	if (along < -sphereRadius) return false;
+	return true;
+}
+
+void main(void)
+{	uint numClusters = uint(clusterGrid.x * clusterGrid.y * clusterGrid.z);
+	uint c = gl_GlobalInvocationID.x;
+	int f = fields_per_light;
+
+	// one invocation also finds the brightest ambient contribution, which applies everywhere
+	if (c == 0)
+	{	vec3 amb = vec3(0.0);
+		for (int i=0; i<num_lights; i++)
+			amb = max(amb, vec3(lightArray[i*f+3], lightArray[i*f+4], lightArray[i*f+5]));
+		maxLightAmbient = vec4(amb, 1.0);
+	}
+	if (c >= numClusters) return;
+
+	// find the cluster's bounding box in view space
+	int cx = int(c) % clusterGrid.x;
+	int cy = (int(c) / clusterGrid.x) % clusterGrid.y;
+	int cz = int(c) / (clusterGrid.x * clusterGrid.y);
+	float near = clusterDepth.x, far = clusterDepth.y;
+	float d0 = near * pow(far/near, float(cz) / float(clusterGrid.z));
+	float d1 = near * pow(far/near, float(cz+1) / float(clusterGrid.z));
+	vec2 ndc0 = vec2(cx, cy) / vec2(clusterGrid.xy) * 2.0 - 1.0;
+	vec2 ndc1 = vec2(cx+1, cy+1) / vec2(clusterGrid.xy) * 2.0 - 1.0;
+	vec2 scale = vec2(1.0 / p_matrix[0][0], 1.0 / p_matrix[1][1]);
+	vec2 a = ndc0 * scale, b = ndc1 * scale;
+	boxMin = vec3(min(min(a*d0, a*d1), min(b*d0, b*d1)), -d1);
+	boxMax = vec3(max(max(a*d0, a*d1), max(b*d0, b*d1)), -d0);
+	sphereCenter = (boxMin + boxMax) * 0.5;
+	sphereRadius = length(boxMax - sphereCenter);
+
+	uint count = 0;
+	uint base = c * uint(maxLightsPerCluster);
+	for (int i=0; i<num_lights; i++)
+	{	vec3 pos = (v_matrix * vec4(lightArray[i*f+0], lightArray[i*f+1], lightArray[i*f+2], 1.0)).xyz;
+		float radius = lightRadius(i, f);
+		if (!sphereTouchesBox(pos, radius)) continue;
+
+		if (lightArray[i*f+21] != 0.0)
+		{	// spotlight -- the shader lights both sides of the cone, so test both
+			vec3 dir = normalize(mat3(v_matrix) * vec3(lightArray[i*f+16], lightArray[i*f+17], lightArray[i*f+18]));
+			float angle = radians(min(lightArray[i*f+19], 90.0));
+			float cosA = cos(angle), sinA = sin(angle);
+			if (!coneTouchesCluster(pos, dir, cosA, sinA, radius) && !coneTouchesCluster(pos, -dir, cosA, sinA, radius))
+				continue;
+		}
+
+		if (count < uint(maxLightsPerCluster))
+		{	clusterLights[base + count] = uint(i);
+			count++;
+		}
+	}
+	clusterCount[c] = count;
+}
@@ -10,15 +10,48 @@ out vec2 tc;
 out vec3 varyingNormal;
 out vec3 varyingVertPos;
 out vec3 vVertPos;
+flat out vec3 varyingColor;
+flat out vec4 varyingMatAmbient;
+flat out vec4 varyingMatDiffuse;
+flat out vec4 varyingMatSpecular;
+flat out float varyingMatShininess;
+flat out int varyingFlags;
 
 uniform mat4 m_matrix;
-uniform mat4 v_matrix;
-uniform mat4 p_matrix;
 uniform mat4 norm_matrix;
+uniform vec3 color;
+uniform int envMapped;
+uniform int has_texture;
+uniform int heightMapped;
+uniform int hasLighting;
+uniform int solidColor;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+struct Material
+{	vec4 ambient;
+	vec4 diffuse;
+	vec4 specular;
+	float shininess;
+};
+uniform Material material;
 
 uniform mat4 skin_matrices[128];     // Skinning Matrices (supports up to 128 bones)
 uniform mat3 skin_matrices_IT[128];  // IT of Skinning Matrices (used for transforming vertex normals)
 
+// the depth pre-pass pairs this shader with DepthFrag.glsl, and depths must match the shading pass exactly
+invariant gl_Position;
+
 void main()
 {	// Calculating the model-space skinning transformation matrix for the vertex
 	vec4 bone1_vert_pos;
@@ -74,6 +107,12 @@ void main()
 	vert_nor = normalize(vert_nor);
 	
 	tc  = vertex_texcoord;
+	varyingColor = color;
+	varyingMatAmbient = material.ambient;
+	varyingMatDiffuse = material.diffuse;
+	varyingMatSpecular = material.specular;
+	varyingMatShininess = material.shininess;
+	varyingFlags = has_texture | (envMapped << 1) | (hasLighting << 2) | (solidColor << 3) | (heightMapped << 4);
 	varyingNormal   = (norm_matrix * vec4(vert_nor,1.0)).xyz;
 	varyingVertPos  = (m_matrix * vert_pos).xyz;
 	vVertPos = (v_matrix * m_matrix * vert_pos).xyz;
@@ -4,6 +4,12 @@ in vec2 tc;
 in vec3 varyingNormal;
 in vec3 vVertPos;
 in vec3 varyingVertPos;
+flat in vec3 varyingColor;
+flat in vec4 varyingMatAmbient;
+flat in vec4 varyingMatDiffuse;
+flat in vec4 varyingMatSpecular;
+flat in float varyingMatShininess;
+flat in int varyingFlags;
 
 out vec4 fragColor;
 
@@ -30,24 +36,24 @@ struct Material
 };
 
 Light light;
-
-uniform vec4 globalAmbient;
-uniform Material material;
-uniform mat4 m_matrix;
-uniform mat4 v_matrix;
-uniform mat4 p_matrix;
-uniform mat4 norm_matrix;
-uniform int envMapped;
-uniform int has_texture;
-uniform int tileCount;
-uniform int heightMapped;
-uniform int hasLighting;
-uniform int solidColor;
-uniform vec3 color;
-uniform int num_lights;
-uniform int fields_per_light;
+Material material;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
 
 layout (std430, binding=0) buffer lightBuffer { float lightArray[]; };
+layout (std430, binding=2) buffer clusterBuffer { vec4 maxLightAmbient; uint clusterCount[]; };
+layout (std430, binding=3) buffer clusterLightBuffer { uint clusterLights[]; };
+const int maxLightsPerCluster = 128;	// must match LightClusters.MAX_LIGHTS_PER_CLUSTER
 layout (binding = 0) uniform sampler2D samp;
 layout (binding = 1) uniform samplerCube t;
 layout (binding = 2) uniform sampler2D height;
@@ -55,6 +61,16 @@ layout (binding = 2) uniform sampler2D height;
 vec3 lightDir, L, N, V, R, ambient, diffuse, specular, thisAmbient, thisDiffuse, thisSpecular;
 float cosTheta, cosPhi, intensity, attenuationFactor, dist;
 int i,f;
+#ifdef FEATURES
+// a specialized variant -- the flags are constants, so the branches that can't be taken are compiled out
+const int has_texture = FEATURES & 1;
+const int envMapped = (FEATURES >> 1) & 1;
+const int hasLighting = (FEATURES >> 2) & 1;
+const int solidColor = (FEATURES >> 3) & 1;
+const int heightMapped = (FEATURES >> 4) & 1;
+#else
+int has_texture, envMapped, hasLighting, solidColor, heightMapped;
+#endif
 vec4 tcolor;
 
 
@@ -92,61 +108,91 @@ void calcSpotLight()
 	thisSpecular = intensity * light.specular.xyz * material.specular.xyz * pow(max(cosPhi,0.0), material.shininess);
 }
 
-void main(void)
-{	f = fields_per_light;
-	for (i=0; i<num_lights; i++)
-	{	light.position = vec3(lightArray[i*f+0], lightArray[i*f+1], lightArray[i*f+2]);
-		lightDir = light.position - varyingVertPos;
-
-		// normalize the light, normal, and view vectors:
-		L = normalize(lightDir);
-		V = normalize(-v_matrix[3].xyz - varyingVertPos);
+// adds the diffuse and specular contributions of the ith light in lightArray
+void addLight(int i)
+{	light.position = vec3(lightArray[i*f+0], lightArray[i*f+1], lightArray[i*f+2]);
+	lightDir = light.position - varyingVertPos;
+	L = normalize(lightDir);
+
+	// compute light reflection vector, with respect N:
+	R = normalize(reflect(-L, N));
+
+	// get the angle between the light and surface normal:
+	cosTheta = dot(L,N);
+
+	// angle between the view vector and reflected light:
+	cosPhi = dot(V,R);
+
+	light.ambient = vec4(lightArray[i*f+3], lightArray[i*f+4], lightArray[i*f+5], 1.0);
+	light.diffuse = vec4(lightArray[i*f+6], lightArray[i*f+7], lightArray[i*f+8], 1.0);
+	light.specular = vec4(lightArray[i*f+9], lightArray[i*f+10], lightArray[i*f+11], 1.0);
+	light.constantAttenuation = lightArray[i*f+12];
+	light.linearAttenuation = lightArray[i*f+13];
+	light.quadraticAttenuation = lightArray[i*f+14];
+	light.range = lightArray[i*f+15];
+	light.direction = vec3(lightArray[i*f+16], lightArray[i*f+17], lightArray[i*f+18]);
+	light.cutoffAngle = lightArray[i*f+19];
+	light.offAxisExponent = lightArray[i*f+20];
+	light.type = lightArray[i*f+21];
+
+	if (light.type == 0.0)
+		calcPositionalLight();
+	else
+		calcSpotLight();
 
-		if (heightMapped == 1)
-			N = estimateNormal(.005, 5.0);
-		else
-			N = normalize(varyingNormal);
-	
-		// compute light reflection vector, with respect N:
-		R = normalize(reflect(-L, N));
-	
-		// get the angle between the light and surface normal:
-		cosTheta = dot(L,N);
-	
-		// angle between the view vector and reflected light:
-		cosPhi = dot(V,R);
-
-		light.ambient = vec4(lightArray[i*f+3], lightArray[i*f+4], lightArray[i*f+5], 1.0);
-		light.diffuse = vec4(lightArray[i*f+6], lightArray[i*f+7], lightArray[i*f+8], 1.0);
-		light.specular = vec4(lightArray[i*f+9], lightArray[i*f+10], lightArray[i*f+11], 1.0);
-		light.constantAttenuation = lightArray[i*f+12];
-		light.linearAttenuation = lightArray[i*f+13];
-		light.quadraticAttenuation = lightArray[i*f+14];
-		light.range = lightArray[i*f+15];
-		light.direction = vec3(lightArray[i*f+16], lightArray[i*f+17], lightArray[i*f+18]);
-		light.cutoffAngle = lightArray[i*f+19];
-		light.offAxisExponent = lightArray[i*f+20];
-		light.type = lightArray[i*f+21];
-
-		// compute ADS contributions (per pixel):
-		thisAmbient = (globalAmbient + (light.ambient * material.ambient)).xyz;
-		ambient = max(ambient, thisAmbient);
-
-		if (light.type == 0.0)
-			calcPositionalLight();
-		else
-			calcSpotLight();
+	dist = distance(varyingVertPos, light.position);
+	attenuationFactor = 1.0 / (light.constantAttenuation + light.linearAttenuation*dist + light.quadraticAttenuation*dist*dist);
 
-		dist = distance(varyingVertPos, light.position);
-		attenuationFactor = 1.0 / (light.constantAttenuation + light.linearAttenuation*dist + light.quadraticAttenuation*dist*dist);
+	diffuse = min(vec3(1,1,1), diffuse + attenuationFactor * thisDiffuse);
+	specular = min(vec3(1,1,1), specular + attenuationFactor * thisSpecular);
+}
 
-		diffuse = min(vec3(1,1,1), diffuse + attenuationFactor * thisDiffuse);
-		specular = min(vec3(1,1,1), specular + attenuationFactor * thisSpecular);
+void main(void)
+{	// the material comes from the vertex shader, which takes it from a uniform or from per-object data
+	material = Material(varyingMatAmbient, varyingMatDiffuse, varyingMatSpecular, varyingMatShininess);
+
+#ifndef FEATURES
+	// so are the per-object flags, packed one bit each
+	has_texture = varyingFlags & 1;
+	envMapped = (varyingFlags >> 1) & 1;
+	hasLighting = (varyingFlags >> 2) & 1;
+	solidColor = (varyingFlags >> 3) & 1;
+	heightMapped = (varyingFlags >> 4) & 1;
+#endif
+
+	// normalize the normal and view vectors:
+	V = normalize(-v_matrix[3].xyz - varyingVertPos);
+	if (heightMapped == 1)
+		N = estimateNormal(.005, 5.0);
+	else
+		N = normalize(varyingNormal);
+
+	f = fields_per_light;
+	if (clusterGrid.w == 1)
+	{	// clustered lighting -- only consider the lights listed for the cluster containing this fragment
+		vec2 tile = (gl_FragCoord.xy - viewport.xy) / viewport.zw * vec2(clusterGrid.xy);
+		int slice = int(log(max(-vVertPos.z, clusterDepth.x)) * clusterDepth.z - clusterDepth.w);
+		ivec3 cell = clamp(ivec3(int(tile.x), int(tile.y), slice), ivec3(0), clusterGrid.xyz - 1);
+		int c = (cell.z * clusterGrid.y + cell.y) * clusterGrid.x + cell.x;
+		int count = int(clusterCount[c]);
+		for (int k=0; k<count; k++)
+			addLight(int(clusterLights[c * maxLightsPerCluster + k]));
+
+		// ambient light is not limited by distance, so it comes from the brightest light anywhere
+		if (num_lights > 0)
+			ambient = (globalAmbient + (maxLightAmbient * material.ambient)).xyz;
+	}
+	else
+	{	for (i=0; i<num_lights; i++)
+		{	addLight(i);
+			thisAmbient = (globalAmbient + (light.ambient * material.ambient)).xyz;
+			ambient = max(ambient, thisAmbient);
+		}
 	}
 
 	if (hasLighting == 0)
 	{	if (solidColor == 1)
-		{	fragColor = vec4(color, 1.0);
+		{	fragColor = vec4(varyingColor, 1.0);
 		}
 		else if (envMapped == 1)
 		{	vec3 r = -reflect(normalize(-vVertPos), normalize(varyingNormal));
@@ -158,7 +204,7 @@ void main(void)
 	}
 	else // has lighting
 	{	if (solidColor == 1)
-		{	tcolor = vec4(color, 1.0);
+		{	tcolor = vec4(varyingColor, 1.0);
 			fragColor = min((tcolor * vec4((ambient + diffuse),1.0) + vec4(specular,0.0)), vec4(1,1,1,1));
 		}
 		else if (envMapped == 1)
@@ -0,0 +1,79 @@
+#version 430
+
+// Vertex shader for static objects drawn with glMultiDrawElementsIndirect.
+// The vertices of every static shape are in one shared buffer.  Each draw command's base instance
+// is the index of its object's record, which arrives through the instanced drawIndex attribute.
+
+layout (location = 0) in vec3 vertPos;
+layout (location = 1) in vec2 texCoord;
+layout (location = 2) in vec3 vertNormal;
+layout (location = 3) in uint drawIndex;
+
+out vec2 tc;
+out vec3 varyingNormal;
+out vec3 varyingVertPos;
+out vec3 vVertPos;
+flat out vec3 varyingColor;
+flat out vec4 varyingMatAmbient;
+flat out vec4 varyingMatDiffuse;
+flat out vec4 varyingMatSpecular;
+flat out float varyingMatShininess;
+flat out int varyingFlags;
+
+uniform int tileCount;
+uniform int envMapped;
+uniform int has_texture;
+uniform int heightMapped;
+uniform int hasLighting;
+uniform int solidColor;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+// per-object data, written by the indirect object renderer - one record per static GameObject
+struct DrawObject
+{	mat4 m_matrix;
+	mat4 norm_matrix;
+	vec4 color;
+	vec4 ambient;
+	vec4 diffuse;
+	vec4 specular;
+	vec4 shininess;
+};
+
+layout (std430, binding=0) buffer lightBuffer { float lightArray[]; };
+layout (std430, binding=1) buffer objectBuffer { DrawObject objects[]; };
+
+// the depth pre-pass pairs this shader with DepthFrag.glsl, and depths must match the shading pass exactly
+invariant gl_Position;
+
+void main(void)
+{	mat4 m_matrix = objects[drawIndex].m_matrix;
+	mat4 norm_matrix = objects[drawIndex].norm_matrix;
+
+	vVertPos = (v_matrix * m_matrix * vec4(vertPos,1.0)).xyz;
+	varyingVertPos = (m_matrix * vec4(vertPos,1.0)).xyz;
+	varyingNormal = (norm_matrix * vec4(vertNormal,1.0)).xyz;
+
+	// Compute the texture coordinates depending on the specified tileFactor
+	tc = texCoord;
+	tc = tc * tileCount;
+
+	varyingColor = objects[drawIndex].color.rgb;
+	varyingMatAmbient = objects[drawIndex].ambient;
+	varyingMatDiffuse = objects[drawIndex].diffuse;
+	varyingMatSpecular = objects[drawIndex].specular;
+	varyingMatShininess = objects[drawIndex].shininess.x;
+	varyingFlags = has_texture | (envMapped << 1) | (hasLighting << 2) | (solidColor << 3) | (heightMapped << 4);
+
+	gl_Position = p_matrix * v_matrix * m_matrix * vec4(vertPos,1.0);
+}
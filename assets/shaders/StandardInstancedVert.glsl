@@ -0,0 +1,102 @@
+#version 430
+
+layout (location = 0) in vec3 vertPos;
+layout (location = 1) in vec2 texCoord;
+layout (location = 2) in vec3 vertNormal;
+
+out vec2 tc;
+out vec3 varyingNormal;
+out vec3 varyingVertPos;
+out vec3 vVertPos;
+flat out vec3 varyingColor;
+flat out vec4 varyingMatAmbient;
+flat out vec4 varyingMatDiffuse;
+flat out vec4 varyingMatSpecular;
+flat out float varyingMatShininess;
+flat out int varyingFlags;
+
+struct Light
+{	vec4 ambient;
+	vec4 diffuse;
+	vec4 specular;
+	vec3 position;
+	float constantAttenuation;
+	float linearAttenuation;
+	float quadraticAttenuation;
+	float range;
+	vec3 direction;
+	float cutoffAngle;
+	float offAxisExponent;
+	float type;
+};
+struct Material
+{	vec4 ambient;
+	vec4 diffuse;
+	vec4 specular;
+	float shininess;
+};
+
+Light light;
+
+uniform Material material;
+uniform int envMapped;
+uniform int has_texture;
+uniform int tileCount;
+uniform int heightMapped;
+uniform int hasLighting;
+uniform int solidColor;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+// per-instance data, written by the instanced object renderer - one entry per GameObject in the batch
+struct Instance
+{	mat4 m_matrix;
+	mat4 norm_matrix;
+	vec4 color;
+};
+
+layout (std430, binding=0) buffer lightBuffer { float lightArray[]; };
+layout (std430, binding=1) buffer instanceBuffer { Instance instances[]; };
+layout (binding = 0) uniform sampler2D samp;
+layout (binding = 1) uniform samplerCube t;
+layout (binding = 2) uniform sampler2D height;
+
+// the depth pre-pass pairs this shader with DepthFrag.glsl, and depths must match the shading pass exactly
+invariant gl_Position;
+
+void main(void)
+{	mat4 m_matrix = instances[gl_InstanceID].m_matrix;
+	mat4 norm_matrix = instances[gl_InstanceID].norm_matrix;
+
+	vVertPos = (v_matrix * m_matrix * vec4(vertPos,1.0)).xyz;
+	varyingVertPos = (m_matrix * vec4(vertPos,1.0)).xyz;
+	varyingNormal = (norm_matrix * vec4(vertNormal,1.0)).xyz;
+
+	// Most of the time this height offset is 0.
+	// If this is a terrain plane, and has a height map, then this will do the height mapping.
+	vec4 p = vec4(vertPos.x, vertPos.y + (texture(height,texCoord)).r, vertPos.z, 1.0);
+
+	// Compute the texture coordinates depending on the specified tileFactor
+	tc = texCoord;
+	tc = tc * tileCount;
+
+	// each instance has its own solid color
+	varyingColor = instances[gl_InstanceID].color.rgb;
+	varyingMatAmbient = material.ambient;
+	varyingMatDiffuse = material.diffuse;
+	varyingMatSpecular = material.specular;
+	varyingMatShininess = material.shininess;
+	varyingFlags = has_texture | (envMapped << 1) | (hasLighting << 2) | (solidColor << 3) | (heightMapped << 4);
+	
+	gl_Position = p_matrix * v_matrix * m_matrix * p;
+}
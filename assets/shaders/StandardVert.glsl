@@ -8,6 +8,12 @@ out vec2 tc;
 out vec3 varyingNormal;
 out vec3 varyingVertPos;
 out vec3 vVertPos;
+flat out vec3 varyingColor;
+flat out vec4 varyingMatAmbient;
+flat out vec4 varyingMatDiffuse;
+flat out vec4 varyingMatSpecular;
+flat out float varyingMatShininess;
+flat out int varyingFlags;
 
 struct Light
 {	vec4 ambient;
@@ -32,27 +38,35 @@ struct Material
 
 Light light;
 
-uniform vec4 globalAmbient;
-uniform Material material;
-uniform mat4 m_matrix;
-uniform mat4 v_matrix;
-uniform mat4 p_matrix;
-uniform mat4 norm_matrix;
-uniform int envMapped;
-uniform int has_texture;
-uniform int tileCount;
-uniform int heightMapped;
-uniform int hasLighting;
-uniform int solidColor;
-uniform vec3 color;
-uniform int num_lights;
-uniform int fields_per_light;
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+// per-object data, written for each draw into the frame ring buffer by the standard object renderer
+layout (std140, binding = 1) uniform ObjectBlock
+{	mat4 m_matrix;
+	mat4 norm_matrix;
+	vec4 color;
+	Material material;
+	ivec4 flags;	// x = has_texture, envMapped, hasLighting, solidColor, heightMapped (one bit each), y = tileCount
+};
 
 layout (std430, binding=0) buffer lightBuffer { float lightArray[]; };
 layout (binding = 0) uniform sampler2D samp;
 layout (binding = 1) uniform samplerCube t;
 layout (binding = 2) uniform sampler2D height;
 
+// the depth pre-pass pairs this shader with DepthFrag.glsl, and depths must match the shading pass exactly
+invariant gl_Position;
+
 void main(void)
 {	vVertPos = (v_matrix * m_matrix * vec4(vertPos,1.0)).xyz;
 	varyingVertPos = (m_matrix * vec4(vertPos,1.0)).xyz;
@@ -64,7 +78,15 @@ void main(void)
 
 	// Compute the texture coordinates depending on the specified tileFactor
 	tc = texCoord;
-	tc = tc * tileCount;
+	tc = tc * flags.y;
+
+	// the solid color is passed through, so the fragment shader can also be used for instanced objects
+	varyingColor = color.rgb;
+	varyingMatAmbient = material.ambient;
+	varyingMatDiffuse = material.diffuse;
+	varyingMatSpecular = material.specular;
+	varyingMatShininess = material.shininess;
+	varyingFlags = flags.x;
 	
 	gl_Position = p_matrix * v_matrix * m_matrix * p;
 }
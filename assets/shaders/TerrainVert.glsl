@@ -0,0 +1,95 @@
+#version 430
+
+// Vertex shader for quadtree (CDLOD) terrain.
+// Every chunk is drawn with the same grid patch, whose vertices are in [0..1] x [0..1].
+// The patch is placed over the chunk's area of the terrain plane ([-1..1] in X and Z, in model space),
+// height mapped, and morphed toward the next coarser grid as its distance from the camera approaches
+// the end of the chunk's level of detail range, so that neighboring levels meet without cracks.
+
+layout (location = 0) in vec2 gridPos;
+
+out vec2 tc;
+out vec3 varyingNormal;
+out vec3 varyingVertPos;
+out vec3 vVertPos;
+flat out vec3 varyingColor;
+flat out vec4 varyingMatAmbient;
+flat out vec4 varyingMatDiffuse;
+flat out vec4 varyingMatSpecular;
+flat out float varyingMatShininess;
+flat out int varyingFlags;
+
+uniform mat4 m_matrix;
+uniform mat4 norm_matrix;
+uniform int tileCount;
+uniform vec3 color;
+uniform int envMapped;
+uniform int has_texture;
+uniform int heightMapped;
+uniform int hasLighting;
+uniform int solidColor;
+
+// per-view data, written once per viewport into the frame ring buffer by the renderer
+layout (std140, binding = 0) uniform ViewBlock
+{	mat4 v_matrix;
+	mat4 p_matrix;
+	vec4 globalAmbient;
+	int num_lights;
+	int fields_per_light;
+	ivec4 clusterGrid;	// clusters across, up, and deep, and w = 1 when clustered lighting is on
+	vec4 clusterDepth;	// near and far clip distances, then the scale and bias from log(depth) to depth slice
+	vec4 viewport;		// left, bottom, width, and height of the viewport, in pixels
+};
+
+struct Material
+{	vec4 ambient;
+	vec4 diffuse;
+	vec4 specular;
+	float shininess;
+};
+uniform Material material;
+
+uniform vec2 nodeOffset;    // model-space X,Z of the chunk's minimum corner
+uniform float nodeSize;     // model-space width of the chunk
+uniform vec2 morphRange;    // world-space distances at which morphing starts and ends
+uniform vec3 cameraPos;     // world-space camera location
+uniform float gridDim;      // number of quads along each side of the patch
+
+layout (binding = 2) uniform sampler2D height;
+
+// texture coordinates matching those of TerrainPlane
+vec2 terrainTexCoord(vec2 xz) { return vec2((xz.x + 1.0) * 0.5, 1.0 - (xz.y + 1.0) * 0.5); }
+
+vec3 terrainPoint(vec2 grid)
+{	vec2 xz = nodeOffset + grid * nodeSize;
+	return vec3(xz.x, texture(height, terrainTexCoord(xz)).r, xz.y);
+}
+
+// the depth pre-pass pairs this shader with DepthFrag.glsl, and depths must match the shading pass exactly
+invariant gl_Position;
+
+void main(void)
+{	// morph factor from the unmorphed vertex's distance to the camera
+	vec3 p = terrainPoint(gridPos);
+	float dist = distance((m_matrix * vec4(p,1.0)).xyz, cameraPos);
+	float k = clamp((dist - morphRange.x) / (morphRange.y - morphRange.x), 0.0, 1.0);
+
+	// odd grid vertices slide onto the midpoint of their coarser-grid edge
+	vec2 odd = fract(gridPos * gridDim * 0.5) * 2.0 / gridDim;
+	vec2 grid = gridPos - odd * k;
+	p = terrainPoint(grid);
+
+	vVertPos = (v_matrix * m_matrix * vec4(p,1.0)).xyz;
+	varyingVertPos = (m_matrix * vec4(p,1.0)).xyz;
+	varyingNormal = (norm_matrix * vec4(0.0,1.0,0.0,1.0)).xyz;
+
+	tc = terrainTexCoord(p.xz) * tileCount;
+	varyingColor = color;
+	varyingMatAmbient = material.ambient;
+	varyingMatDiffuse = material.diffuse;
+	varyingMatSpecular = material.specular;
+	varyingMatShininess = material.shininess;
+	varyingFlags = has_texture | (envMapped << 1) | (hasLighting << 2) | (solidColor << 3) | (heightMapped << 4);
+
+	gl_Position = p_matrix * v_matrix * m_matrix * vec4(p,1.0);
+}
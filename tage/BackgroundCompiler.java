@@ -0,0 +1,88 @@
+package tage;
+import java.util.concurrent.*;
+import com.jogamp.opengl.*;
+
+/**
+* Compiles shader programs on a background thread while the renderer carries on with the rest of its initialization.
+* <p>
+* The background thread has its own offscreen OpenGL context, which shares objects with the canvas's context,
+* so the programs it builds can be used directly by the renderer.  Each request returns a Future, and the renderer
+* collects the program names once it has finished loading textures and shapes.
+* Programs built in the background also go through the program binary cache (see ProgramCache).
+* <p>
+* If the offscreen context can't be created, each request is simply compiled immediately, on the calling thread.
+* <p>
+* Used by the renderer, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class BackgroundCompiler
+{	private GLOffscreenAutoDrawable drawable;
+	private ExecutorService executor;
+
+	// Creates the offscreen context, sharing with the specified drawable, whose context must be current.
+	protected BackgroundCompiler(GLAutoDrawable shareWith)
+	{	try
+		{	GLProfile profile = shareWith.getGLProfile();
+			GLCapabilities caps = new GLCapabilities(profile);
+			caps.setOnscreen(false);
+			drawable = GLDrawableFactory.getFactory(profile).createOffscreenAutoDrawable(null, caps, null, 1, 1);
+			drawable.setSharedContext(shareWith.getContext());
+			drawable.display();		// creates the context -- the caller's context is made current again afterwards
+		}
+		catch (GLException e)
+		{	System.out.println("shaders will be compiled in the foreground: " + e.getMessage());
+			drawable = null;
+			return;
+		}
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{	public Thread newThread(Runnable r)
+			{	Thread t = new Thread(r, "TAGE shader compiler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.submit(new Runnable()
+		{	public void run() { drawable.getContext().makeCurrent(); }
+		});
+	}
+
+	/** requests a program built from the specified vertex and fragment shaders - for engine use only. */
+	public Future<Integer> submit(final String vS, final String fS)
+	{	Callable<Integer> task = new Callable<Integer>()
+		{	public Integer call()
+			{	int program = Utils.createShaderProgram(vS, fS);
+				if (executor != null) ((GL4) GLContext.getCurrentGL()).glFinish();	// complete before the renderer uses it
+				return program;
+			}
+		};
+		if (executor != null) return executor.submit(task);
+		FutureTask<Integer> now = new FutureTask<Integer>(task);
+		now.run();
+		return now;
+	}
+
+	/** waits for a requested program, and returns it (or 0 if it could not be built) - for engine use only. */
+	public int get(Future<Integer> program)
+	{	try
+		{	return program.get();
+		}
+		catch (InterruptedException | ExecutionException e)
+		{	System.out.println("background shader compilation failed: " + e);
+			return 0;
+		}
+	}
+
+	// Releases the background thread and its context, once all of the requested programs have been collected.
+	protected void dispose()
+	{	if (executor == null) return;
+		executor.submit(new Runnable()
+		{	public void run() { drawable.getContext().release(); }
+		});
+		executor.shutdown();
+		try { executor.awaitTermination(10, TimeUnit.SECONDS); }
+		catch (InterruptedException e) { }
+		drawable.destroy();
+		executor = null;
+	}
+}
@@ -0,0 +1,442 @@
+package tage;
+import java.util.*;
+import org.joml.*;
+
+/**
+* A dynamic bounding volume hierarchy -- a balanced binary tree of axis-aligned bounding boxes --
+* over the GameObjects in the scenegraph that have world-space bounds.
+* It is owned and kept up to date by the SceneGraph, and used by the RenderQueue for frustum culling
+* and by the SceneGraph for ray and box queries.
+* <p>
+* Each GameObject is a leaf, whose box is its world bounding box enlarged by a margin ("fat" box).
+* When an object moves, its leaf is only re-inserted if its new bounding box is no longer contained
+* in the fat box, so small movements from frame to frame usually cost nothing.
+* New leaves are inserted next to the sibling that minimizes the increase in total surface area,
+* and the tree is rebalanced with rotations on the way back up, so its height stays logarithmic.
+* <p>
+* Queries descend only into the boxes that pass their test, so their cost grows with the log of the
+* number of objects plus the number of objects reported, rather than with the number of objects.
+* A frustum query reports an entire subtree without further tests once its box is completely inside.
+* Leaves are tested against the object's exact world bounding box before being reported.
+* <p>
+* Nodes are stored in parallel arrays and recycled through a free list, so updating and querying
+* the tree does not allocate.
+* <p>
+* Used by the engine, should not be used directly by the game application.
+* @author Scott Gordon
+*/
+public class BoundingVolumeTree
+{
+	private static final int NULL = -1;
+
+	// leaves are enlarged by this fraction of their size on each side, plus a small fixed amount
+	private static final float FAT_FRACTION = 0.1f, FAT_MIN = 0.05f;
+
+	private int capacity = 0;
+	private float[] box = new float[0];      // minX, minY, minZ, maxX, maxY, maxZ for each node
+	private int[] parent = new int[0];       // also links the free list
+	private int[] child1 = new int[0], child2 = new int[0];
+	private int[] height = new int[0];      // leaves are 0, free nodes are -1
+	private GameObject[] object = new GameObject[0];
+
+	private int root = NULL;
+	private int freeList = NULL;
+	private int numLeaves = 0;
+	private int numTested = 0;
+
+	private int[] stack = new int[64];
+
+	// ray state for the ray query, set once per query
+	private float[] rayOrigin = new float[3], rayDir = new float[3];
+
+	protected BoundingVolumeTree() { }
+
+	// ------------------ PROXIES ---------------------
+
+	// Adds a leaf for the specified object with the specified world bounds, and returns its node index.
+
+	protected int createProxy(GameObject go, float[] b)
+	{	int leaf = allocateNode();
+		setFatBox(leaf, b);
+		object[leaf] = go;
+		insertLeaf(leaf);
+		numLeaves++;
+		return leaf;
+	}
+
+	// Removes the specified leaf.
+
+	protected void destroyProxy(int leaf)
+	{	removeLeaf(leaf);
+		freeNode(leaf);
+		numLeaves--;
+	}
+
+	// Updates the specified leaf for new world bounds.  The leaf is left in place if its fat box still
+	// contains the new bounds and is not much larger than needed.  Returns true if it was re-inserted.
+
+	protected boolean moveProxy(int leaf, float[] b)
+	{	int o = leaf*6;
+		if ((box[o] <= b[0]) && (box[o+1] <= b[1]) && (box[o+2] <= b[2])
+			&& (box[o+3] >= b[3]) && (box[o+4] >= b[4]) && (box[o+5] >= b[5]))
+		{	// still contained -- unless the object shrank, such as after a scale change
+			float ex = (b[3]-b[0])*(1f+2f*FAT_FRACTION) + 2f*FAT_MIN;
+			float ey = (b[4]-b[1])*(1f+2f*FAT_FRACTION) + 2f*FAT_MIN;
+			float ez = (b[5]-b[2])*(1f+2f*FAT_FRACTION) + 2f*FAT_MIN;
+			float fatArea = 2f*(ex*ey + ey*ez + ez*ex);
+			if (area(leaf) <= 4f*fatArea) return false;
+		}
+		removeLeaf(leaf);
+		setFatBox(leaf, b);
+		insertLeaf(leaf);
+		return true;
+	}
+
+	/** returns the number of objects in the tree */
+	protected int getNumLeaves() { return numLeaves; }
+
+	/** returns the height of the tree, 0 if it is empty or has a single leaf */
+	protected int getHeight() { return (root == NULL) ? 0 : height[root]; }
+
+	/** returns the number of boxes tested by the most recent query */
+	protected int getNumTested() { return numTested; }
+
+	// ------------------ QUERIES ---------------------
+
+	// Appends to result the objects whose world bounds are at least partly inside the frustum.
+
+	protected void queryFrustum(FrustumIntersection f, ArrayList<GameObject> result)
+	{	numTested = 0;
+		if (root == NULL) return;
+		int sp = 0;
+		stack[sp++] = root;
+		while (sp > 0)
+		{	int n = stack[--sp];
+			int o = n*6;
+			numTested++;
+			int r = f.intersectAab(box[o], box[o+1], box[o+2], box[o+3], box[o+4], box[o+5]);
+			if (r == FrustumIntersection.INSIDE)
+			{	addSubtree(n, result);
+			}
+			else if (r == FrustumIntersection.INTERSECT)
+			{	if (child1[n] == NULL)
+				{	float[] b = object[n].getWorldBounds();
+					numTested++;
+					if (f.testAab(b[0], b[1], b[2], b[3], b[4], b[5])) result.add(object[n]);
+				}
+				else
+				{	sp = push(sp, child1[n]);
+					sp = push(sp, child2[n]);
+				}
+			}
+		}
+	}
+
+	// Appends to result the objects whose world bounds overlap the specified box.
+
+	protected void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, ArrayList<GameObject> result)
+	{	numTested = 0;
+		if (root == NULL) return;
+		int sp = 0;
+		stack[sp++] = root;
+		while (sp > 0)
+		{	int n = stack[--sp];
+			int o = n*6;
+			numTested++;
+			if ((box[o] > maxX) || (box[o+1] > maxY) || (box[o+2] > maxZ)
+				|| (box[o+3] < minX) || (box[o+4] < minY) || (box[o+5] < minZ)) continue;
+			if (child1[n] == NULL)
+			{	float[] b = object[n].getWorldBounds();
+				if ((b[0] <= maxX) && (b[1] <= maxY) && (b[2] <= maxZ)
+					&& (b[3] >= minX) && (b[4] >= minY) && (b[5] >= minZ)) result.add(object[n]);
+			}
+			else
+			{	sp = push(sp, child1[n]);
+				sp = push(sp, child2[n]);
+			}
+		}
+	}
+
+	// Returns the object whose world bounds are hit first by the ray from the origin along the direction,
+	// within maxT (measured in lengths of the direction vector), or null if there is none.
+	// Subtrees that can only be entered beyond the closest hit found so far are skipped.
+
+	protected GameObject rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT)
+	{	numTested = 0;
+		if (root == NULL) return null;
+		rayOrigin[0] = ox; rayOrigin[1] = oy; rayOrigin[2] = oz;
+		rayDir[0] = dx; rayDir[1] = dy; rayDir[2] = dz;
+		GameObject hit = null;
+		float best = maxT;
+		int sp = 0;
+		stack[sp++] = root;
+		while (sp > 0)
+		{	int n = stack[--sp];
+			numTested++;
+			float t = rayEntry(box, n*6, best);
+			if (t < 0f) continue;
+			if (child1[n] == NULL)
+			{	t = rayEntry(object[n].getWorldBounds(), 0, best);
+				if (t >= 0f) { best = t; hit = object[n]; }
+			}
+			else
+			{	sp = push(sp, child1[n]);
+				sp = push(sp, child2[n]);
+			}
+		}
+		return hit;
+	}
+
+	// Returns the distance (in direction lengths) at which the current ray enters the box at b[o..o+6),
+	// 0 if it starts inside, or -1 if it misses the box or enters it beyond maxT.
+
+	private float rayEntry(float[] b, int o, float maxT)
+	{	float tmin = 0f, tmax = maxT;
+		float[] org = rayOrigin, dir = rayDir;
+		for (int a = 0; a < 3; a++)
+		{	float lo = b[o+a], hi = b[o+3+a];
+			if (dir[a] == 0f)
+			{	if ((org[a] < lo) || (org[a] > hi)) return -1f;
+				continue;
+			}
+			float inv = 1f / dir[a];
+			float t1 = (lo - org[a]) * inv, t2 = (hi - org[a]) * inv;
+			if (t1 > t2) { float tt = t1; t1 = t2; t2 = tt; }
+			if (t1 > tmin) tmin = t1;
+			if (t2 < tmax) tmax = t2;
+			if (tmin > tmax) return -1f;
+		}
+		return tmin;
+	}
+
+	private void addSubtree(int n, ArrayList<GameObject> result)
+	{	if (child1[n] == NULL) { result.add(object[n]); return; }
+		addSubtree(child1[n], result);
+		addSubtree(child2[n], result);
+	}
+
+	private int push(int sp, int n)
+	{	if (sp == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[sp] = n;
+		return sp + 1;
+	}
+
+	// ------------------ TREE MAINTENANCE ---------------------
+
+	private void insertLeaf(int leaf)
+	{	if (root == NULL)
+		{	root = leaf;
+			parent[leaf] = NULL;
+			return;
+		}
+
+		// descend to the sibling whose pairing with the leaf adds the least surface area to the tree
+		int index = root;
+		while (child1[index] != NULL)
+		{	int c1 = child1[index], c2 = child2[index];
+			float area = area(index);
+			float combinedArea = combinedArea(index, leaf);
+			float cost = 2f * combinedArea;
+			float inheritanceCost = 2f * (combinedArea - area);
+			float cost1 = combinedArea(c1, leaf) + inheritanceCost;
+			if (child1[c1] != NULL) cost1 -= area(c1);
+			float cost2 = combinedArea(c2, leaf) + inheritanceCost;
+			if (child1[c2] != NULL) cost2 -= area(c2);
+			if ((cost < cost1) && (cost < cost2)) break;
+			index = (cost1 < cost2) ? c1 : c2;
+		}
+		int sibling = index;
+
+		// replace the sibling with a new parent of the sibling and the leaf
+		int oldParent = parent[sibling];
+		int newParent = allocateNode();
+		parent[newParent] = oldParent;
+		height[newParent] = height[sibling] + 1;
+		union(newParent, sibling, leaf);
+		if (oldParent != NULL)
+		{	if (child1[oldParent] == sibling) child1[oldParent] = newParent;
+			else child2[oldParent] = newParent;
+		}
+		else root = newParent;
+		child1[newParent] = sibling;
+		child2[newParent] = leaf;
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+
+		refitAncestors(parent[leaf]);
+	}
+
+	private void removeLeaf(int leaf)
+	{	if (leaf == root)
+		{	root = NULL;
+			return;
+		}
+		int p = parent[leaf];
+		int grandParent = parent[p];
+		int sibling = (child1[p] == leaf) ? child2[p] : child1[p];
+		if (grandParent != NULL)
+		{	if (child1[grandParent] == p) child1[grandParent] = sibling;
+			else child2[grandParent] = sibling;
+			parent[sibling] = grandParent;
+			freeNode(p);
+			refitAncestors(grandParent);
+		}
+		else
+		{	root = sibling;
+			parent[sibling] = NULL;
+			freeNode(p);
+		}
+	}
+
+	// Walks up from the specified node to the root, rebalancing and recomputing the boxes and heights.
+
+	private void refitAncestors(int index)
+	{	while (index != NULL)
+		{	index = balance(index);
+			int c1 = child1[index], c2 = child2[index];
+			height[index] = 1 + java.lang.Math.max(height[c1], height[c2]);
+			union(index, c1, c2);
+			index = parent[index];
+		}
+	}
+
+	// If one child of node A is more than one level taller than the other, rotates it up to replace A.
+	// Returns the index of the node now at A's position.
+
+	private int balance(int iA)
+	{	if ((child1[iA] == NULL) || (height[iA] < 2)) return iA;
+		int iB = child1[iA], iC = child2[iA];
+		int bal = height[iC] - height[iB];
+
+		if (bal > 1)
+		{	// rotate C up
+			int iF = child1[iC], iG = child2[iC];
+			child1[iC] = iA;
+			parent[iC] = parent[iA];
+			parent[iA] = iC;
+			replaceChild(parent[iC], iA, iC);
+			if (height[iF] > height[iG])
+			{	child2[iC] = iF;
+				child2[iA] = iG;
+				parent[iG] = iA;
+				union(iA, iB, iG);
+				union(iC, iA, iF);
+				height[iA] = 1 + java.lang.Math.max(height[iB], height[iG]);
+				height[iC] = 1 + java.lang.Math.max(height[iA], height[iF]);
+			}
+			else
+			{	child2[iC] = iG;
+				child2[iA] = iF;
+				parent[iF] = iA;
+				union(iA, iB, iF);
+				union(iC, iA, iG);
+				height[iA] = 1 + java.lang.Math.max(height[iB], height[iF]);
+				height[iC] = 1 + java.lang.Math.max(height[iA], height[iG]);
+			}
+			return iC;
+		}
+
+		if (bal < -1)
+		{	// rotate B up
+			int iD = child1[iB], iE = child2[iB];
+			child1[iB] = iA;
+			parent[iB] = parent[iA];
+			parent[iA] = iB;
+			replaceChild(parent[iB], iA, iB);
+			if (height[iD] > height[iE])
+			{	child2[iB] = iD;
+				child1[iA] = iE;
+				parent[iE] = iA;
+				union(iA, iC, iE);
+				union(iB, iA, iD);
+				height[iA] = 1 + java.lang.Math.max(height[iC], height[iE]);
+				height[iB] = 1 + java.lang.Math.max(height[iA], height[iD]);
+			}
+			else
+			{	child2[iB] = iE;
+				child1[iA] = iD;
+				parent[iD] = iA;
+				union(iA, iC, iD);
+				union(iB, iA, iE);
+				height[iA] = 1 + java.lang.Math.max(height[iC], height[iD]);
+				height[iB] = 1 + java.lang.Math.max(height[iA], height[iE]);
+			}
+			return iB;
+		}
+		return iA;
+	}
+
+	private void replaceChild(int p, int oldChild, int newChild)
+	{	if (p == NULL) { root = newChild; return; }
+		if (child1[p] == oldChild) child1[p] = newChild;
+		else child2[p] = newChild;
+	}
+
+	// ------------------ BOXES ---------------------
+
+	private void setFatBox(int n, float[] b)
+	{	int o = n*6;
+		float mx = (b[3]-b[0])*FAT_FRACTION + FAT_MIN;
+		float my = (b[4]-b[1])*FAT_FRACTION + FAT_MIN;
+		float mz = (b[5]-b[2])*FAT_FRACTION + FAT_MIN;
+		box[o] = b[0]-mx; box[o+1] = b[1]-my; box[o+2] = b[2]-mz;
+		box[o+3] = b[3]+mx; box[o+4] = b[4]+my; box[o+5] = b[5]+mz;
+	}
+
+	private void union(int dest, int a, int b)
+	{	int d = dest*6, oa = a*6, ob = b*6;
+		for (int i = 0; i < 3; i++)
+		{	box[d+i] = java.lang.Math.min(box[oa+i], box[ob+i]);
+			box[d+3+i] = java.lang.Math.max(box[oa+3+i], box[ob+3+i]);
+		}
+	}
+
+	private float area(int n)
+	{	int o = n*6;
+		float ex = box[o+3]-box[o], ey = box[o+4]-box[o+1], ez = box[o+5]-box[o+2];
+		return 2f*(ex*ey + ey*ez + ez*ex);
+	}
+
+	private float combinedArea(int a, int b)
+	{	int oa = a*6, ob = b*6;
+		float ex = java.lang.Math.max(box[oa+3], box[ob+3]) - java.lang.Math.min(box[oa], box[ob]);
+		float ey = java.lang.Math.max(box[oa+4], box[ob+4]) - java.lang.Math.min(box[oa+1], box[ob+1]);
+		float ez = java.lang.Math.max(box[oa+5], box[ob+5]) - java.lang.Math.min(box[oa+2], box[ob+2]);
+		return 2f*(ex*ey + ey*ez + ez*ex);
+	}
+
+	// ------------------ NODE ALLOCATION ---------------------
+
+	private int allocateNode()
+	{	if (freeList == NULL)
+		{	int newCapacity = java.lang.Math.max(16, capacity * 2);
+			box = Arrays.copyOf(box, newCapacity * 6);
+			parent = Arrays.copyOf(parent, newCapacity);
+			child1 = Arrays.copyOf(child1, newCapacity);
+			child2 = Arrays.copyOf(child2, newCapacity);
+			height = Arrays.copyOf(height, newCapacity);
+			object = Arrays.copyOf(object, newCapacity);
+			for (int i = newCapacity - 1; i >= capacity; i--)
+			{	parent[i] = freeList;
+				height[i] = -1;
+				freeList = i;
+			}
+			capacity = newCapacity;
+		}
+		int n = freeList;
+		freeList = parent[n];
+		parent[n] = NULL;
+		child1[n] = NULL;
+		child2[n] = NULL;
+		height[n] = 0;
+		object[n] = null;
+		return n;
+	}
+
+	private void freeNode(int n)
+	{	parent[n] = freeList;
+		height[n] = -1;
+		object[n] = null;
+		freeList = n;
+	}
+}
@@ -0,0 +1,207 @@
+package tage;
+import java.util.*;
+import org.joml.*;
+import tage.shapes.*;
+
+/**
+* The objects to draw in one viewport, in draw order, as they were when the frame was published.
+* <p>
+* Each viewport has a draw list, which the renderer fills from the sorted render queue when it takes its snapshot
+* of the frame, and then draws from.  Each draw holds the GameObject, its shader variant feature mask,
+* its render version at the time (see GameObject.getRenderVersion()), and a copy of its model matrix followed
+* by its normal matrix (inverse-transpose of the model matrix).  Lines have no orientation correction,
+* and their normal matrix is unused.
+* <p>
+* Each draw also holds a copy of everything else the renderers read about the object: the shape,
+* the level of detail selected for this viewport, the renderer type, the render state flags, the texture
+* and height map, tiling, color, and for animated shapes, the skin matrices of the current pose.
+* <p>
+* Because these are copies, the simulation can go on moving and changing objects while the list is drawn,
+* without the frame showing some objects where they were and others where they have moved to.
+* <p>
+* Used by the renderer, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class DrawList
+{
+	private static final int TRANSFORM_FLOATS = 32;		// model matrix, then normal matrix
+
+	// render state flags of each draw
+	private static final int TRANSPARENT = 1, HIDDEN_FACES = 2, WIREFRAME = 4, STATIC = 8, TERRAIN = 16;
+
+	private GameObject[] objects = new GameObject[64];
+	private ObjShape[] shapes = new ObjShape[64], renderShapes = new ObjShape[64];
+	private int[] types = new int[64];
+	private int[] states = new int[64];
+	private int[] features = new int[64];
+	private int[] versions = new int[64];
+	private int[] textures = new int[64], heightMaps = new int[64];
+	private int[] tilings = new int[64], tileFactors = new int[64];
+	private float[] colors = new float[64 * 3];
+	private int[] skinOffsets = new int[64], boneCounts = new int[64];
+	private float[] skins = new float[0];
+	private int skinFloats;
+	private float[] transforms = new float[64 * TRANSFORM_FLOATS];
+	private int size;
+
+	private Matrix4f model = new Matrix4f(), normal = new Matrix4f();
+	private float[] composed = new float[TRANSFORM_FLOATS];
+
+	protected DrawList() { }
+
+	// Empties the list.  The references are dropped, so removed objects aren't kept alive by old lists.
+	protected void clear()
+	{	Arrays.fill(objects, 0, size, null);
+		Arrays.fill(shapes, 0, size, null);
+		Arrays.fill(renderShapes, 0, size, null);
+		size = 0;
+		skinFloats = 0;
+	}
+
+	// Appends a draw of the specified level of detail, of the specified renderer type (see RenderQueue),
+	// copying its matrices from the specified offset in src, and the rest of its state from the object.
+	protected void add(GameObject go, ObjShape renderShape, int type, int f, int version, float[] src, int srcOffset)
+	{	if (size == objects.length) grow();
+		RenderStates rs = go.getRenderStates();
+		objects[size] = go;
+		shapes[size] = go.getShape();
+		renderShapes[size] = renderShape;
+		types[size] = type;
+		states[size] = (rs.isTransparent() ? TRANSPARENT : 0) | (rs.willRenderHiddenFaces() ? HIDDEN_FACES : 0)
+			| (rs.isWireframe() ? WIREFRAME : 0) | (rs.isStatic() ? STATIC : 0) | (go.isTerrain() ? TERRAIN : 0);
+		features[size] = f;
+		versions[size] = version;
+		textures[size] = (go.getTextureImage() == null) ? 0 : go.getTextureImage().getTexture();
+		heightMaps[size] = go.getHeightMap().getTexture();
+		tilings[size] = rs.getTiling();
+		tileFactors[size] = rs.getTileFactor();
+		Vector3f c = rs.getColor();
+		colors[size*3] = c.x(); colors[size*3+1] = c.y(); colors[size*3+2] = c.z();
+		System.arraycopy(src, srcOffset, transforms, size * TRANSFORM_FLOATS, TRANSFORM_FLOATS);
+		if (type == RenderQueue.ANIMATION) copyPose((AnimatedShape) go.getShape());
+		else boneCounts[size] = 0;
+		size++;
+	}
+
+	// Appends a draw of the object as it is now, with its full shape and matrices composed here.
+	protected void add(GameObject go)
+	{	ObjShape shape = go.getShape();
+		int type;
+		if (shape.getPrimitiveType() < 3) type = RenderQueue.LINE;
+		else if (shape instanceof AnimatedShape) type = RenderQueue.ANIMATION;
+		else type = RenderQueue.STANDARD;
+		if (type == RenderQueue.LINE) go.getLineModelMatrix(model);
+		else go.getModelMatrix(model);
+		model.invert(normal).transpose();
+		model.get(composed, 0);
+		normal.get(composed, 16);
+		add(go, shape, type, ShaderVariants.getFeatures(go), go.getRenderVersion(), composed, 0);
+	}
+
+	// Copies the skin matrices of the shape's current pose, followed by their inverse-transposes, for the draw being added.
+	private void copyPose(AnimatedShape shape)
+	{	int bones = shape.getBoneCount();
+		tage.rml.Matrix4[] skinMats = shape.getPoseSkinMatrices();
+		tage.rml.Matrix3[] skinMatsIT = shape.getPoseSkinMatricesIT();
+		if (skinFloats + bones * 25 > skins.length)
+			skins = Arrays.copyOf(skins, java.lang.Math.max(skinFloats + bones * 25, skins.length * 2));
+		skinOffsets[size] = skinFloats;
+		boneCounts[size] = bones;
+		for (int b = 0; b < bones; b++)
+		{	System.arraycopy(skinMats[b].toFloatArray(), 0, skins, skinFloats + b*16, 16);
+			System.arraycopy(skinMatsIT[b].toFloatArray(), 0, skins, skinFloats + bones*16 + b*9, 9);
+		}
+		skinFloats += bones * 25;
+	}
+
+	private void grow()
+	{	int c = size * 2;
+		objects = Arrays.copyOf(objects, c);
+		shapes = Arrays.copyOf(shapes, c);
+		renderShapes = Arrays.copyOf(renderShapes, c);
+		types = Arrays.copyOf(types, c);
+		states = Arrays.copyOf(states, c);
+		features = Arrays.copyOf(features, c);
+		versions = Arrays.copyOf(versions, c);
+		textures = Arrays.copyOf(textures, c);
+		heightMaps = Arrays.copyOf(heightMaps, c);
+		tilings = Arrays.copyOf(tilings, c);
+		tileFactors = Arrays.copyOf(tileFactors, c);
+		colors = Arrays.copyOf(colors, c * 3);
+		skinOffsets = Arrays.copyOf(skinOffsets, c);
+		boneCounts = Arrays.copyOf(boneCounts, c);
+		transforms = Arrays.copyOf(transforms, c * TRANSFORM_FLOATS);
+	}
+
+	/** returns the number of objects in the list - for engine use only. */
+	public int size() { return size; }
+
+	/** returns the i-th object in draw order - for engine use only. */
+	public GameObject get(int i) { return objects[i]; }
+
+	/** returns the shape of the i-th object, which holds its material - for engine use only. */
+	public ObjShape getShape(int i) { return shapes[i]; }
+
+	/** returns the level of detail of the i-th object's shape that was selected for this viewport - for engine use only. */
+	public ObjShape getRenderShape(int i) { return renderShapes[i]; }
+
+	/** returns true if the i-th object is drawn by the line renderer - for engine use only. */
+	public boolean isLine(int i) { return types[i] == RenderQueue.LINE; }
+
+	/** returns true if the i-th object is drawn by the animation renderer - for engine use only. */
+	public boolean isAnimated(int i) { return types[i] == RenderQueue.ANIMATION; }
+
+	/** returns true if the i-th object is transparent - for engine use only. */
+	public boolean isTransparent(int i) { return (states[i] & TRANSPARENT) != 0; }
+
+	/** returns true if the i-th object renders its hidden faces - for engine use only. */
+	public boolean willRenderHiddenFaces(int i) { return (states[i] & HIDDEN_FACES) != 0; }
+
+	/** returns true if the i-th object is drawn in wireframe - for engine use only. */
+	public boolean isWireframe(int i) { return (states[i] & WIREFRAME) != 0; }
+
+	/** returns true if the i-th object is static - for engine use only. */
+	public boolean isStatic(int i) { return (states[i] & STATIC) != 0; }
+
+	/** returns true if the i-th object is terrain - for engine use only. */
+	public boolean isTerrain(int i) { return (states[i] & TERRAIN) != 0; }
+
+	/** returns the shader variant feature mask of the i-th object - for engine use only. */
+	public int getFeatures(int i) { return features[i]; }
+
+	/** returns the render version of the i-th object when its state was copied - for engine use only. */
+	public int getVersion(int i) { return versions[i]; }
+
+	/** returns the OpenGL texture name of the i-th object's texture, or 0 if it has none - for engine use only. */
+	public int getTexture(int i) { return textures[i]; }
+
+	/** returns the OpenGL texture name of the i-th object's height map - for engine use only. */
+	public int getHeightMap(int i) { return heightMaps[i]; }
+
+	/** returns the tiling mode of the i-th object - for engine use only. */
+	public int getTiling(int i) { return tilings[i]; }
+
+	/** returns the tile factor of the i-th object - for engine use only. */
+	public int getTileFactor(int i) { return tileFactors[i]; }
+
+	/** copies the color of the i-th object into dest, and returns dest - for engine use only. */
+	public Vector3f getColor(int i, Vector3f dest) { return dest.set(colors[i*3], colors[i*3+1], colors[i*3+2]); }
+
+	/** returns the number of skin matrices copied for the i-th object, which is 0 unless it is animated - for engine use only. */
+	public int getBoneCount(int i) { return boneCounts[i]; }
+
+	/** returns the array holding the copied skin matrices - for engine use only. */
+	public float[] getSkinMatrices() { return skins; }
+
+	/**
+	* returns the offset in getSkinMatrices() of the i-th object's skin matrices (16 floats each), which are followed
+	* by their inverse-transposes (9 floats each) - for engine use only.
+	*/
+	public int getSkinOffset(int i) { return skinOffsets[i]; }
+
+	/** returns the array holding the copied model and normal matrices - for engine use only. */
+	public float[] getTransforms() { return transforms; }
+
+	/** returns the offset in getTransforms() of the i-th object's model matrix, which is followed by its normal matrix - for engine use only. */
+	public int getTransformOffset(int i) { return i * TRANSFORM_FLOATS; }
+}
@@ -0,0 +1,163 @@
+package tage;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+* Renders the scene at a reduced resolution when the GPU can't keep up, and upscales it to the canvas.
+* <p>
+* When dynamic resolution is enabled in the RenderSystem, every viewport is rendered into an offscreen
+* framebuffer (FBO) at a fraction of the canvas resolution -- the resolution scale -- and the result is then
+* stretched to the canvas with glBlitFramebuffer(), using linear filtering.  HUDs are drawn afterwards,
+* directly to the canvas, so text stays sharp.
+* <p>
+* The time the GPU spends rendering the scene is measured every frame with a GL_TIME_ELAPSED timer query.
+* Query results are read a few frames later, once they are available, so the CPU never waits for them.
+* Each new measurement nudges the resolution scale toward the value that would just meet the target frame time,
+* assuming GPU time is proportional to the number of pixels.  Changes are limited per measurement, so the scale
+* adjusts smoothly rather than jumping, and it always stays between the minimum scale and 1.
+* <p>
+* The game application may adjust the target frame time and minimum scale, obtained through
+* getDynamicResolution() in the RenderSystem.
+* @author Scott Gordon
+*/
+public class DynamicResolution
+{
+	private static final int QUERIES = 4;			// timer queries in flight
+	private static final float HEADROOM = 0.9f;		// aim for this fraction of the target, to leave room for the rest of the frame
+	private static final float MAX_DECREASE = 0.85f, MAX_INCREASE = 1.05f;
+	private static final float SMOOTHING = 0.25f;	// weight of each new measurement in the averaged GPU time
+
+	private int[] fbo = new int[1];
+	private int[] colorTex = new int[1];
+	private int[] depthBuffer = new int[1];
+	private int fboWidth, fboHeight;
+	private int[] queries = new int[QUERIES];
+	private boolean[] pending = new boolean[QUERIES];
+	private long[] result = new long[1];
+	private int[] available = new int[1];
+	private int nextQuery;
+
+	private float scale = 1.0f;
+	private float minScale = 0.5f;
+	private float targetMillis = 1000.0f / 60.0f;
+	private float gpuMillis = 0.0f;
+	private int width, height;
+
+	protected DynamicResolution() { }
+
+	// Creates the framebuffer and timer queries.  The framebuffer's attachments are created at the first frame.
+	// Called once, from init() in the renderer.
+	protected void init()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		gl.glGenFramebuffers(1, fbo, 0);
+		gl.glGenTextures(1, colorTex, 0);
+		gl.glGenRenderbuffers(1, depthBuffer, 0);
+		gl.glGenQueries(QUERIES, queries, 0);
+	}
+
+	// Starts a frame: reads any timer results that have arrived, adjusts the resolution scale, and binds the
+	// framebuffer, sized for the specified canvas.  The scene should then be rendered at getWidth() x getHeight().
+	protected void begin(GL4 gl, int canvasWidth, int canvasHeight)
+	{	readQueries(gl);
+		if ((canvasWidth != fboWidth) || (canvasHeight != fboHeight)) resize(gl, canvasWidth, canvasHeight);
+
+		width = java.lang.Math.max(1, java.lang.Math.round(canvasWidth * scale));
+		height = java.lang.Math.max(1, java.lang.Math.round(canvasHeight * scale));
+
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, fbo[0]);
+		gl.glDisable(GL_SCISSOR_TEST);
+		gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+		if (!pending[nextQuery])
+		{	gl.glBeginQuery(GL_TIME_ELAPSED, queries[nextQuery]);
+			pending[nextQuery] = true;
+		}
+		else nextQuery = -1;	// every query is still in flight, so this frame isn't measured
+	}
+
+	// Ends the frame: stops the timer, and stretches the rendered region of the framebuffer to the canvas.
+	protected void end(GL4 gl, int canvasWidth, int canvasHeight)
+	{	if (nextQuery >= 0)
+		{	gl.glEndQuery(GL_TIME_ELAPSED);
+			nextQuery = (nextQuery + 1) % QUERIES;
+		}
+		else nextQuery = 0;
+
+		int defaultFramebuffer = GLContext.getCurrent().getDefaultDrawFramebuffer();
+		gl.glDisable(GL_SCISSOR_TEST);
+		gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, fbo[0]);
+		gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, defaultFramebuffer);
+		gl.glViewport(0, 0, canvasWidth, canvasHeight);
+		gl.glBlitFramebuffer(0, 0, width, height, 0, 0, canvasWidth, canvasHeight, GL_COLOR_BUFFER_BIT, GL_LINEAR);
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, defaultFramebuffer);
+	}
+
+	// Collects the results of finished timer queries, and adjusts the scale after each one.
+	private void readQueries(GL4 gl)
+	{	for (int i = 0; i < QUERIES; i++)
+		{	if (!pending[i]) continue;
+			gl.glGetQueryObjectiv(queries[i], GL_QUERY_RESULT_AVAILABLE, available, 0);
+			if (available[0] == 0) continue;
+			gl.glGetQueryObjectui64v(queries[i], GL_QUERY_RESULT, result, 0);
+			pending[i] = false;
+
+			float millis = result[0] / 1000000.0f;
+			gpuMillis = (gpuMillis == 0.0f) ? millis : gpuMillis + (millis - gpuMillis) * SMOOTHING;
+			adjustScale();
+		}
+	}
+
+	// GPU time is taken to be proportional to the number of pixels, which is proportional to the square of the scale.
+	private void adjustScale()
+	{	if (gpuMillis <= 0.0f) return;
+		float change = (float) java.lang.Math.sqrt(targetMillis * HEADROOM / gpuMillis);
+		change = java.lang.Math.min(java.lang.Math.max(change, MAX_DECREASE), MAX_INCREASE);
+		scale = java.lang.Math.min(java.lang.Math.max(scale * change, minScale), 1.0f);
+	}
+
+	// (Re)creates the framebuffer's attachments at the canvas resolution -- lower scales use part of them.
+	private void resize(GL4 gl, int w, int h)
+	{	fboWidth = w;
+		fboHeight = h;
+		gl.glBindTexture(GL_TEXTURE_2D, colorTex[0]);
+		gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		gl.glBindRenderbuffer(GL_RENDERBUFFER, depthBuffer[0]);
+		gl.glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, w, h);
+
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, fbo[0]);
+		gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, colorTex[0], 0);
+		gl.glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthBuffer[0]);
+		if (gl.glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
+			System.out.println("dynamic resolution framebuffer is incomplete");
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, GLContext.getCurrent().getDefaultDrawFramebuffer());
+	}
+
+	/** returns the width, in pixels, at which the current frame is rendered */
+	public int getWidth() { return width; }
+
+	/** returns the height, in pixels, at which the current frame is rendered */
+	public int getHeight() { return height; }
+
+	/** returns the current resolution scale, between the minimum scale and 1 */
+	public float getScale() { return scale; }
+
+	/** returns the recent GPU time for rendering the scene, in milliseconds, averaged over the last few frames */
+	public float getGPUFrameTime() { return gpuMillis; }
+
+	/** sets the GPU frame time that the resolution scale is adjusted to meet, in milliseconds (the default is 1/60 second) */
+	public void setTargetFrameTime(float millis) { targetMillis = millis; }
+
+	/** returns the target GPU frame time, in milliseconds */
+	public float getTargetFrameTime() { return targetMillis; }
+
+	/** sets the lowest resolution scale allowed, between 0 and 1 (the default is 0.5) */
+	public void setMinScale(float s)
+	{	minScale = java.lang.Math.min(java.lang.Math.max(s, 0.1f), 1.0f);
+		scale = java.lang.Math.max(scale, minScale);
+	}
+
+	/** returns the lowest resolution scale allowed */
+	public float getMinScale() { return minScale; }
+}
@@ -109,6 +109,15 @@ public class Engine
 	/** disables rendering of the physics objects */
 	public void disablePhysicsWorldRender() { renderPhysicsObjects = false; }
 	
+	/**
+	* returns the engine clock, in milliseconds.  This is the system clock, except in headless mode,
+	* where it advances by a fixed time step each frame.  Timing game logic with it keeps headless runs reproducible.
+	*/
+	public long currentTimeMillis()
+	{	if (HeadlessMode.isEnabled()) return HeadlessMode.getSimulatedTime();
+		return System.currentTimeMillis();
+	}
+
 	protected boolean willRenderGraphicsObjects() { return renderGraphicsObjects; }
 	protected boolean willRenderPhysicsObjects() { return renderPhysicsObjects; }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package tage;
+import java.util.concurrent.Semaphore;
+
+/**
+* Runs the game's simulation -- its update() and the node controllers -- on a thread of its own,
+* one frame ahead of the renderer.
+* <p>
+* Each frame, the renderer waits for the simulation step that is in flight, takes a snapshot of the scene
+* (see RenderSystem.setPipelined()), and starts the next step, which then runs while the renderer draws
+* the snapshot.  The renderer and the simulation never touch the scene at the same time, except for the
+* few things the renderer reads while drawing that aren't part of the snapshot, such as shape materials.
+* Only one step is ever in flight, so the simulation is never more than one frame ahead.
+* <p>
+* If a step throws an exception, it is rethrown on the game loop thread when the renderer waits for the step,
+* so it ends the game loop as it would have without pipelining.
+* <p>
+* Used by the renderer, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class FramePipeline implements Runnable
+{	private Runnable step;
+	private Thread thread;
+	private volatile boolean running;
+	private boolean inFlight;
+	private Semaphore go = new Semaphore(0);
+	private Semaphore done = new Semaphore(0);
+	private Throwable failure;	// handed over through done, like the rest of the step's results
+	private volatile long stepNanos;
+
+	// The step is run once per frame.
+	protected FramePipeline(Runnable simulationStep) { step = simulationStep; }
+
+	// Starts a simulation step, starting the simulation thread first if it isn't running.
+	protected void startStep()
+	{	if (thread == null)
+		{	running = true;
+			thread = new Thread(this, "TAGE simulation");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		inFlight = true;
+		go.release();
+	}
+
+	// Runs a step on the calling thread, for frames where no step was started in advance.
+	protected void runStep()
+	{	long start = System.nanoTime();
+		step.run();
+		stepNanos = System.nanoTime() - start;
+	}
+
+	// Waits for the step in flight, if any, and rethrows anything it threw.
+	protected void awaitStep()
+	{	if (!inFlight) return;
+		done.acquireUninterruptibly();
+		inFlight = false;
+		if (failure != null)
+		{	Throwable e = failure;
+			failure = null;
+			if (e instanceof Error) throw (Error) e;
+			throw (RuntimeException) e;
+		}
+	}
+
+	// Waits for the step in flight, if any, and stops the simulation thread.
+	protected void stop()
+	{	if (thread == null) return;
+		try { awaitStep(); }
+		finally
+		{	running = false;
+			go.release();
+			try { thread.join(); }
+			catch (InterruptedException e) { }
+			thread = null;
+		}
+	}
+
+	/** returns true if a simulation step is running alongside the renderer */
+	public boolean isStepInFlight() { return inFlight; }
+
+	/** returns how long the most recent simulation step took, in milliseconds */
+	public float getStepTime() { return stepNanos / 1000000.0f; }
+
+	/** for engine use only. */
+	public void run()
+	{	while (true)
+		{	go.acquireUninterruptibly();
+			if (!running) return;
+			try { runStep(); }
+			catch (RuntimeException | Error e) { failure = e; }
+			done.release();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package tage;
+import java.nio.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.*;
+
+/**
+* Allocates the per-frame data blocks (uniform blocks) that renderers write for each view and each object.
+* <br>
+* The blocks live in one buffer object divided into three slots, one per frame in flight:
+* <ul>
+* <li> each frame, blocks are allocated one after another from the current slot, and the renderer writes
+* its data directly into the buffer and binds the block's range with glBindBufferRange()
+* <li> at the end of the frame a fence is inserted, and the next frame moves on to the next slot
+* <li> before a slot is reused, its fence (from three frames earlier) is waited on, so the CPU never
+* overwrites data the GPU may still be reading -- normally the fence has long since been signaled
+* </ul>
+* <p>
+* When OpenGL 4.4 (or ARB_buffer_storage) is available, the buffer is created with glBufferStorage() and
+* mapped once, persistently and coherently, so writes go straight to memory the GPU reads.
+* Otherwise the blocks are written to a copy in main memory, and each bind first uploads whatever has been
+* written since the previous bind with one glBufferSubData() call.
+* <p>
+* If a frame needs more space than a slot holds, a larger buffer replaces the current one.  The old buffer is
+* kept until the next frame begins, so blocks that are still bound, such as the view block, stay valid.
+* Because the buffer object may change, each block should be written and bound before the next one is allocated.
+* <p>
+* Used by the engine and the object renderers, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class FrameRingBuffer
+{
+	private static final int SLOTS = 3;
+
+	private int[] buffer = new int[1];
+	private int slotSize;
+	private int alignment = 256;
+	private boolean persistent;
+	private ByteBuffer data;
+	private FloatBuffer floats;
+	private IntBuffer ints;
+	private long[] fences = new long[SLOTS];
+	private int slot = 0;
+	private int offset, slotEnd, uploaded;
+	private int waits;
+	private int[] retired = new int[4];	// buffers replaced this frame, deleted when the next frame begins
+	private int numRetired;
+
+	protected FrameRingBuffer(int bytesPerFrame) { slotSize = bytesPerFrame; }
+
+	// Creates the buffer object.  Called once, from init() in the renderer.
+	protected void init()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		int[] align = new int[1];
+		gl.glGetIntegerv(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, align, 0);
+		if (align[0] > 0) alignment = align[0];
+		slotSize = align(slotSize);
+		persistent = gl.isFunctionAvailable("glBufferStorage");
+		createBuffer(gl);
+	}
+
+	private void createBuffer(GL4 gl)
+	{	long size = (long) slotSize * SLOTS;
+		gl.glGenBuffers(1, buffer, 0);
+		gl.glBindBuffer(GL_COPY_WRITE_BUFFER, buffer[0]);
+		if (persistent)
+		{	int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+			gl.glBufferStorage(GL_COPY_WRITE_BUFFER, size, null, flags);
+			data = gl.glMapBufferRange(GL_COPY_WRITE_BUFFER, 0, size, flags);
+		}
+		else
+		{	gl.glBufferData(GL_COPY_WRITE_BUFFER, size, null, GL_STREAM_DRAW);
+			data = Buffers.newDirectByteBuffer((int) size);
+		}
+		data.order(ByteOrder.nativeOrder());
+		floats = data.asFloatBuffer();
+		ints = data.asIntBuffer();
+		for (int i = 0; i < SLOTS; i++) deleteFence(gl, i);
+		offset = slot * slotSize;
+		uploaded = offset;
+		slotEnd = offset + slotSize;
+	}
+
+	// Moves to the next slot, waiting for the GPU to finish with it if necessary.  Called at the start of each frame.
+	protected void beginFrame()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		waits = 0;
+		if (numRetired > 0)
+		{	gl.glDeleteBuffers(numRetired, retired, 0);
+			numRetired = 0;
+		}
+		slot = (slot + 1) % SLOTS;
+		if (fences[slot] != 0)
+		{	int result = gl.glClientWaitSync(fences[slot], 0, 0);
+			while (result == GL_TIMEOUT_EXPIRED)
+			{	waits++;
+				result = gl.glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, 1000000L);
+			}
+			deleteFence(gl, slot);
+		}
+		offset = slot * slotSize;
+		uploaded = offset;
+		slotEnd = offset + slotSize;
+	}
+
+	// Marks the point after which the GPU is done with this frame's slot.  Called at the end of each frame.
+	protected void endFrame()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		deleteFence(gl, slot);
+		fences[slot] = gl.glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+	}
+
+	private void deleteFence(GL4 gl, int i)
+	{	if (fences[i] != 0) gl.glDeleteSync(fences[i]);
+		fences[i] = 0;
+	}
+
+	private int align(int n) { return (n + alignment - 1) / alignment * alignment; }
+
+	/**
+	* Reserves a block of the specified size in the current frame's slot, and returns its byte offset in the buffer.
+	* The offset is suitably aligned for glBindBufferRange().  For engine use only.
+	*/
+	public int allocate(int bytes)
+	{	if (offset + bytes > slotEnd) grow(bytes);
+		int start = offset;
+		offset = align(offset + bytes);
+		return start;
+	}
+
+	// Replaces the buffer with one whose slots are at least twice as large.  Blocks already written this frame
+	// stay in the old buffer, which isn't deleted until the next frame begins -- deleting it now would also
+	// unbind it from any binding points it is still bound to, such as the view block's.
+	private void grow(int bytes)
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		if (numRetired == retired.length) retired = java.util.Arrays.copyOf(retired, numRetired * 2);
+		retired[numRetired++] = buffer[0];
+		slotSize = align(java.lang.Math.max(slotSize * 2, bytes));
+		createBuffer(gl);
+	}
+
+	/** returns the buffer's contents as floats, indexed by byte offset / 4 - for engine use only. */
+	public FloatBuffer getFloats() { return floats; }
+
+	/** returns the buffer's contents as ints, indexed by byte offset / 4 - for engine use only. */
+	public IntBuffer getInts() { return ints; }
+
+	/** writes a matrix at the specified byte offset, in column-major order - for engine use only. */
+	public void putMatrix(int byteOffset, Matrix4f m) { m.get(byteOffset / 4, floats); }
+
+	/** writes four floats at the specified byte offset - for engine use only. */
+	public void putVec4(int byteOffset, float x, float y, float z, float w)
+	{	int i = byteOffset / 4;
+		floats.put(i, x); floats.put(i+1, y); floats.put(i+2, z); floats.put(i+3, w);
+	}
+
+	/** writes four ints at the specified byte offset - for engine use only. */
+	public void putIVec4(int byteOffset, int x, int y, int z, int w)
+	{	int i = byteOffset / 4;
+		ints.put(i, x); ints.put(i+1, y); ints.put(i+2, z); ints.put(i+3, w);
+	}
+
+	/** binds a block previously returned by allocate() to an indexed uniform buffer binding point - for engine use only. */
+	public void bindUniformBlock(GL4 gl, int index, int byteOffset, int bytes)
+	{	if (!persistent && (offset > uploaded))
+		{	// upload everything written since the previous bind
+			data.limit(offset);
+			data.position(uploaded);
+			gl.glBindBuffer(GL_COPY_WRITE_BUFFER, buffer[0]);
+			gl.glBufferSubData(GL_COPY_WRITE_BUFFER, uploaded, offset - uploaded, data);
+			data.clear();
+			uploaded = offset;
+		}
+		gl.glBindBufferRange(GL_UNIFORM_BUFFER, index, buffer[0], byteOffset, bytes);
+	}
+
+	/** returns true if the buffer is persistently mapped, rather than uploaded with glBufferSubData() */
+	public boolean isPersistent() { return persistent; }
+
+	/** returns the number of times the CPU had to wait for the GPU to release this frame's slot */
+	public int getWaits() { return waits; }
+}
@@ -0,0 +1,179 @@
+package tage;
+import java.awt.*;
+import java.util.concurrent.locks.LockSupport;
+import com.jogamp.opengl.*;
+
+/**
+* Runs the game loop, calling display() on the canvas once per frame, at a steady rate.
+* <p>
+* This replaces the JOGL Animator, which renders frames back to back as fast as it can.  With vsync off,
+* that keeps a CPU core busy even when nothing much is happening -- in a menu, say, or when the window is in
+* the background.  The scheduler instead starts each frame at a fixed interval, given by the target frame rate.
+* It waits for the next frame with a high-resolution sleep, which ends shortly before the frame is due,
+* and then yields the processor in a short loop until it is due, so that frames start within a fraction of a
+* millisecond of their deadlines.  If a frame takes longer than its interval, the next one starts straight away,
+* and the schedule restarts from there, rather than trying to catch up with a burst of frames.
+* <p>
+* A target frame rate of 0 means no limit, as with the Animator (vsync, if on, still limits the rate).
+* <p>
+* When the window is not focused, or is minimized, or the game application has paused the scheduler,
+* frames are rendered at the low-power frame rate instead -- 10 frames per second by default.
+* Set the low-power frame rate to 0 to render at the usual rate regardless.
+* <p>
+* The scheduler measures the interval between the starts of recent frames, and reports the average,
+* the jitter (standard deviation), and the largest deviation from the average, all in milliseconds.
+* <p>
+* The game application may obtain the scheduler with getFrameScheduler() in the RenderSystem,
+* and change its settings at any time, including before the game loop starts.
+* @author Scott Gordon
+*/
+public class FrameScheduler implements Runnable
+{
+	private static final long SPIN_NANOS = 2000000L;	// the sleep ends this long before the frame is due
+	private static final int SAMPLES = 120;			// number of recent frame intervals measured
+
+	private GLAutoDrawable drawable;
+	private Window window;
+	private Thread thread;
+	private volatile boolean running;
+
+	private volatile float targetFPS = 0.0f;
+	private volatile float lowPowerFPS = 10.0f;
+	private volatile boolean paused = false;
+
+	private long[] intervals = new long[SAMPLES];
+	private int numSamples, nextSample;
+	private long lastStart;
+	private long frameCount;
+
+	protected FrameScheduler() { }
+
+	// Starts the game loop on its own thread, rendering the specified drawable.
+	// Low-power mode follows the focus of the specified window.  Called once, from startGameLoop() in the renderer.
+	protected void start(GLAutoDrawable d, Window w)
+	{	drawable = d;
+		window = w;
+		running = true;
+		thread = new Thread(this, "TAGE game loop");
+		thread.start();
+	}
+
+	/** stops the game loop after the current frame */
+	public void stop() { running = false; }
+
+	/** for engine use only. */
+	public void run()
+	{	long next = System.nanoTime();
+		while (running)
+		{	long interval = getFrameInterval();
+			if (interval > 0) waitUntil(next);
+
+			long start = System.nanoTime();
+			recordFrame(start);
+			try
+			{	drawable.display();
+			}
+			catch (GLException e)
+			{	System.out.println("game loop stopped: " + e.getMessage());
+				running = false;
+			}
+
+			// schedule the next frame one interval after this one was due, unless this one ran late
+			next = (interval > 0) ? next + interval : start;
+			long now = System.nanoTime();
+			if (now - next > interval) next = now;
+		}
+	}
+
+	// Returns the interval at which frames should currently start, in nanoseconds, or 0 for no limit.
+	private long getFrameInterval()
+	{	float fps = targetFPS;
+		if ((lowPowerFPS > 0.0f) && isLowPower() && ((fps <= 0.0f) || (lowPowerFPS < fps))) fps = lowPowerFPS;
+		return (fps > 0.0f) ? (long) (1000000000.0 / fps) : 0L;
+	}
+
+	// Sleeps until shortly before the specified time, then yields until the time arrives.
+	private void waitUntil(long deadline)
+	{	long remaining = deadline - System.nanoTime();
+		while (remaining > SPIN_NANOS)
+		{	LockSupport.parkNanos(remaining - SPIN_NANOS);
+			remaining = deadline - System.nanoTime();
+		}
+		while (System.nanoTime() - deadline < 0) Thread.yield();
+	}
+
+	private synchronized void recordFrame(long start)
+	{	if (frameCount > 0)
+		{	intervals[nextSample] = start - lastStart;
+			nextSample = (nextSample + 1) % SAMPLES;
+			if (numSamples < SAMPLES) numSamples++;
+		}
+		lastStart = start;
+		frameCount++;
+	}
+
+	/**
+	* sets the rate at which frames are rendered, in frames per second.
+	* The default is 0, which means no limit other than vsync.
+	*/
+	public void setTargetFrameRate(float fps) { targetFPS = java.lang.Math.max(fps, 0.0f); }
+
+	/** returns the target frame rate, in frames per second, or 0 if there is no limit */
+	public float getTargetFrameRate() { return targetFPS; }
+
+	/**
+	* sets the rate at which frames are rendered while the window is in the background, or the scheduler is paused.
+	* The default is 10 frames per second.  A rate of 0 turns low-power mode off.
+	*/
+	public void setLowPowerFrameRate(float fps) { lowPowerFPS = java.lang.Math.max(fps, 0.0f); }
+
+	/** returns the low-power frame rate, in frames per second */
+	public float getLowPowerFrameRate() { return lowPowerFPS; }
+
+	/** the game application can pause the scheduler (in a pause menu, for instance) to render at the low-power frame rate */
+	public void setPaused(boolean p) { paused = p; }
+
+	/** returns true if the game application has paused the scheduler */
+	public boolean isPaused() { return paused; }
+
+	/** returns true if frames are currently being rendered at the low-power frame rate */
+	public boolean isLowPower()
+	{	if (paused) return true;
+		if (window == null) return false;
+		if (!window.isFocused()) return true;
+		return (window instanceof Frame) && ((((Frame) window).getExtendedState() & Frame.ICONIFIED) != 0);
+	}
+
+	/** returns the number of frames rendered since the game loop started */
+	public synchronized long getFrameCount() { return frameCount; }
+
+	/** returns the average interval between recent frames, in milliseconds */
+	public synchronized float getAverageFrameTime()
+	{	if (numSamples == 0) return 0.0f;
+		long total = 0;
+		for (int i = 0; i < numSamples; i++) total += intervals[i];
+		return (float) (total / (double) numSamples / 1000000.0);
+	}
+
+	/** returns the frame-time jitter -- the standard deviation of the interval between recent frames, in milliseconds */
+	public synchronized float getFrameTimeJitter()
+	{	if (numSamples == 0) return 0.0f;
+		double mean = getAverageFrameTime();
+		double sum = 0.0;
+		for (int i = 0; i < numSamples; i++)
+		{	double d = intervals[i] / 1000000.0 - mean;
+			sum += d * d;
+		}
+		return (float) java.lang.Math.sqrt(sum / numSamples);
+	}
+
+	/** returns the largest difference between a recent frame interval and the average, in milliseconds */
+	public synchronized float getMaxFrameTimeDeviation()
+	{	if (numSamples == 0) return 0.0f;
+		double mean = getAverageFrameTime();
+		double max = 0.0;
+		for (int i = 0; i < numSamples; i++)
+			max = java.lang.Math.max(max, java.lang.Math.abs(intervals[i] / 1000000.0 - mean));
+		return (float) max;
+	}
+}
@@ -106,7 +106,7 @@ public class FullObject {
 
     /** updates processTime to time at which this is called */
     public void updateProcessTime() {
-        processTime = System.currentTimeMillis();
+        processTime = engine.currentTimeMillis();
     }
 
     /** applies a force to the PhysicsObject at its center */
@@ -175,7 +175,7 @@ public class FullObject {
         isColliding = true;
         collidingWith = collidedUID;
         collisionType = collidedType;
-        collisionTime = System.currentTimeMillis();
+        collisionTime = engine.currentTimeMillis();
     }
 
     /** checks if a collision occured with this object
@@ -0,0 +1,279 @@
+package tage;
+import java.util.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.gl2.GLUT;
+import org.joml.*;
+
+/**
+* Measures how long the GPU spends on each part of a frame, and counts the work submitted to it.
+* <p>
+* The renderer marks the start and end of each pass -- the skybox, the HUDs, standard objects, animated objects,
+* lines, and the physics debug objects -- and of each viewport and the whole frame.  Each mark records a GL_TIMESTAMP
+* with glQueryCounter(), and the time of a pass is the difference between its start and end timestamps.
+* Timestamps are used rather than GL_TIME_ELAPSED queries, because elapsed-time queries can't be nested
+* (viewports contain passes, and dynamic resolution times the whole scene with one), while timestamps can be
+* recorded anywhere.  Animated and line objects are drawn in the middle of the render queue, so the standard pass
+* is paused around them, and its time only covers the other objects in the queue.
+* <p>
+* Each frame's timestamps are kept in their own set of queries, and there are several sets, used in turn.
+* At the start of each frame, the results of earlier frames are read if the GPU has finished with them --
+* otherwise they are simply read at a later frame, so the CPU never waits.  If a set is needed again before its
+* results are ready, that frame's results are dropped.  The times reported are those of the most recent
+* frame whose results have arrived, which is usually a frame or two behind.
+* <p>
+* Alongside the times, the profiler reports the number of draw calls, triangles, program switches, and texture
+* binds in the most recent frame, as counted by the RenderStateTracker.
+* <p>
+* Profiling is off by default.  The game application can obtain the profiler with getProfiler() in the RenderSystem,
+* enable it, and either query the results or turn on the overlay, which shows them as HUDs in the top right
+* corner of the window.
+* @author Scott Gordon
+*/
+public class GPUProfiler
+{
+	/** section - the whole frame */
+	public static final int FRAME = 0;
+	/** section - the skybox, in every viewport */
+	public static final int SKYBOX = 1;
+	/** section - the HUDs */
+	public static final int HUD = 2;
+	/** section - the objects in the render queue, other than animated objects and lines, in every viewport */
+	public static final int STANDARD = 3;
+	/** section - animated objects, in every viewport */
+	public static final int ANIMATED = 4;
+	/** section - line objects, in every viewport */
+	public static final int LINE = 5;
+	/** section - the physics debug objects, in every viewport */
+	public static final int PHYSICS = 6;
+
+	private static final String[] PASS_NAMES = { "frame", "skybox", "HUD", "standard", "animated", "line", "physics" };
+	private static final int FRAMES = 3;				// sets of queries in flight
+	private static final long OVERLAY_INTERVAL = 500;	// milliseconds between overlay updates
+
+	private boolean enabled = false;
+	private boolean overlay = false;
+
+	private ArrayList<String> names = new ArrayList<String>(Arrays.asList(PASS_NAMES));
+	private HashMap<String, Integer> viewportSections = new HashMap<String, Integer>();
+	private int[] open = new int[16];			// record currently open for each section, or -1
+	private float[] times = new float[16];		// milliseconds, from the most recent frame with results
+
+	private QuerySet[] sets = new QuerySet[FRAMES];
+	private int current;
+	private long[] stamp = new long[1];
+	private long[] values = new long[64];
+	private int[] available = new int[1];
+
+	private long drawCalls, triangles, programSwitches, textureBinds;
+	private long lastOverlayUpdate;
+	private int overlayLines;
+	private Vector3f overlayColor = new Vector3f(1.0f, 1.0f, 0.0f);
+
+	// the timestamps of one frame, and the section each pair of them belongs to
+	private static class QuerySet
+	{	int[] queries = new int[0];
+		int numQueries;
+		int[] section = new int[32], start = new int[32], end = new int[32];
+		int numRecords;
+		boolean pending;
+	}
+
+	protected GPUProfiler()
+	{	for (int i = 0; i < FRAMES; i++) sets[i] = new QuerySet();
+		Arrays.fill(open, -1);
+	}
+
+	// Starts a frame: collects the results of earlier frames that have arrived, and the counts from the state tracker.
+	// Called by the renderer at the start of display(), after the state tracker's beginFrame().
+	protected void beginFrame(GL4 gl, RenderStateTracker state)
+	{	drawCalls = state.getDrawCallsLastFrame();
+		triangles = state.getTrianglesLastFrame();
+		programSwitches = state.getProgramSwitchesLastFrame();
+		textureBinds = state.getTextureBindsLastFrame();
+
+		for (int i = 0; i < FRAMES; i++)
+		{	QuerySet s = sets[(current + i) % FRAMES];	// oldest first
+			if (s.pending && resultsAvailable(gl, s)) readResults(gl, s);
+		}
+		QuerySet s = sets[current];
+		s.pending = false;		// if its results still haven't arrived, they are dropped
+		s.numQueries = 0;
+		s.numRecords = 0;
+		Arrays.fill(open, -1);
+	}
+
+	// Ends the frame, and moves on to the next set of queries.
+	protected void endFrame()
+	{	QuerySet s = sets[current];
+		s.pending = enabled && (s.numRecords > 0);
+		current = (current + 1) % FRAMES;
+	}
+
+	/** records the start of a section of the frame - for engine use only. */
+	public void begin(GL4 gl, int section)
+	{	if (!enabled) return;
+		openRecord(section, timestamp(gl));
+	}
+
+	/** records the end of a section of the frame - for engine use only. */
+	public void end(GL4 gl, int section)
+	{	if (!enabled || (open[section] < 0)) return;
+		closeRecord(section, timestamp(gl));
+	}
+
+	/** ends one section and starts another at the same point, with a single timestamp - for engine use only. */
+	public void switchTo(GL4 gl, int from, int to)
+	{	if (!enabled) return;
+		int q = timestamp(gl);
+		if (open[from] >= 0) closeRecord(from, q);
+		openRecord(to, q);
+	}
+
+	/** records the start of the specified viewport - for engine use only. */
+	public void beginViewport(GL4 gl, String name)
+	{	if (enabled) begin(gl, getViewportSection(name));
+	}
+
+	/** records the end of the specified viewport - for engine use only. */
+	public void endViewport(GL4 gl, String name)
+	{	if (enabled) end(gl, getViewportSection(name));
+	}
+
+	private int getViewportSection(String name)
+	{	Integer section = viewportSections.get(name);
+		if (section == null)
+		{	section = names.size();
+			names.add("viewport " + name);
+			viewportSections.put(name, section);
+			if (section >= open.length)
+			{	int old = open.length;
+				open = Arrays.copyOf(open, old * 2);
+				Arrays.fill(open, old, open.length, -1);
+				times = Arrays.copyOf(times, old * 2);
+			}
+		}
+		return section;
+	}
+
+	// Records a timestamp in the current set of queries, and returns its index in the set.
+	private int timestamp(GL4 gl)
+	{	QuerySet s = sets[current];
+		if (s.numQueries == s.queries.length)
+		{	int old = s.queries.length;
+			s.queries = Arrays.copyOf(s.queries, java.lang.Math.max(32, old * 2));
+			gl.glGenQueries(s.queries.length - old, s.queries, old);
+		}
+		gl.glQueryCounter(s.queries[s.numQueries], GL_TIMESTAMP);
+		return s.numQueries++;
+	}
+
+	private void openRecord(int section, int query)
+	{	QuerySet s = sets[current];
+		if (s.numRecords == s.section.length)
+		{	int n = s.numRecords * 2;
+			s.section = Arrays.copyOf(s.section, n);
+			s.start = Arrays.copyOf(s.start, n);
+			s.end = Arrays.copyOf(s.end, n);
+		}
+		s.section[s.numRecords] = section;
+		s.start[s.numRecords] = query;
+		s.end[s.numRecords] = -1;
+		open[section] = s.numRecords++;
+	}
+
+	private void closeRecord(int section, int query)
+	{	sets[current].end[open[section]] = query;
+		open[section] = -1;
+	}
+
+	// Timestamps complete in order, so the whole set is ready once its last query is.
+	private boolean resultsAvailable(GL4 gl, QuerySet s)
+	{	gl.glGetQueryObjectiv(s.queries[s.numQueries - 1], GL_QUERY_RESULT_AVAILABLE, available, 0);
+		return available[0] != 0;
+	}
+
+	private void readResults(GL4 gl, QuerySet s)
+	{	if (values.length < s.numQueries) values = new long[s.queries.length];
+		for (int i = 0; i < s.numQueries; i++)
+		{	gl.glGetQueryObjectui64v(s.queries[i], GL_QUERY_RESULT, stamp, 0);
+			values[i] = stamp[0];
+		}
+		Arrays.fill(times, 0.0f);
+		for (int r = 0; r < s.numRecords; r++)
+		{	if (s.end[r] < 0) continue;
+			times[s.section[r]] += (values[s.end[r]] - values[s.start[r]]) / 1000000.0f;
+		}
+		s.pending = false;
+	}
+
+	// Shows the results as HUDs, refreshed twice a second.  Called by the renderer before the HUDs are drawn.
+	protected void updateOverlay(HUDmanager hud, int canvasWidth, int canvasHeight)
+	{	if (!overlay || !enabled)
+		{	removeOverlay(hud);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastOverlayUpdate < OVERLAY_INTERVAL) return;
+		lastOverlayUpdate = now;
+
+		ArrayList<String> lines = new ArrayList<String>();
+		for (int i = 0; i < names.size(); i++)
+			lines.add(String.format("%-16s %6.2f ms", names.get(i), times[i]));
+		lines.add(String.format("draws %d  triangles %d", drawCalls, triangles));
+		lines.add(String.format("programs %d  textures %d", programSwitches, textureBinds));
+
+		removeOverlay(hud);
+		int x = canvasWidth - 240;
+		for (int i = 0; i < lines.size(); i++)
+		{	String name = "profiler" + i;
+			hud.setHUD(name, lines.get(i), overlayColor, x, canvasHeight - 20 - i * 15);
+			hud.setHUDFont(name, GLUT.BITMAP_8_BY_13);
+		}
+		overlayLines = lines.size();
+	}
+
+	private void removeOverlay(HUDmanager hud)
+	{	for (int i = 0; i < overlayLines; i++) hud.removeHUD("profiler" + i);
+		overlayLines = 0;
+	}
+
+	/** enables or disables profiling -- while disabled, no timestamps are recorded, but the counts are still kept */
+	public void setEnabled(boolean e) { enabled = e; }
+
+	/** returns true if profiling is enabled */
+	public boolean isEnabled() { return enabled; }
+
+	/** shows or hides the overlay of profiling results -- profiling must also be enabled */
+	public void setOverlay(boolean o) { overlay = o; lastOverlayUpdate = 0; }
+
+	/** toggles the overlay of profiling results, enabling profiling if it is being shown */
+	public void toggleOverlay()
+	{	setOverlay(!overlay);
+		if (overlay) enabled = true;
+	}
+
+	/** returns true if the overlay of profiling results is shown */
+	public boolean isOverlay() { return overlay; }
+
+	/** returns the GPU time of the specified section (such as GPUProfiler.SKYBOX), in milliseconds */
+	public float getTime(int section) { return times[section]; }
+
+	/** returns the GPU time of the viewport with the specified name, in milliseconds */
+	public float getViewportTime(String name)
+	{	Integer section = viewportSections.get(name);
+		return (section == null) ? 0.0f : times[section];
+	}
+
+	/** returns the number of draw calls in the most recent frame */
+	public long getDrawCalls() { return drawCalls; }
+
+	/** returns the number of triangles drawn in the most recent frame */
+	public long getTriangles() { return triangles; }
+
+	/** returns the number of times the program was changed in the most recent frame */
+	public long getProgramSwitches() { return programSwitches; }
+
+	/** returns the number of textures bound in the most recent frame */
+	public long getTextureBinds() { return textureBinds; }
+}
@@ -86,6 +86,24 @@ public class GameObject
 	private PhysicsObject physicsObject;
 	private boolean isTerrain = false;
 
+	// world-space bounding box, recomputed lazily after the transform, shape, or render states change
+	private float[] worldBounds = new float[6];
+	private boolean worldBoundsDirty = true;
+	private int worldBoundsVersion = -1;
+	private Matrix4f modelMat = new Matrix4f();
+	private Matrix4f correctionMat = new Matrix4f();
+	private Vector3f boundsMin = new Vector3f(), boundsMax = new Vector3f();
+
+	// bookkeeping for the SceneGraph's bounding volume tree and render queue
+	private boolean inScene = false, boundsMoved = false;
+	private int bvhLeaf = -1;
+	private int queueIndex = -1;
+	private int unboundedIndex = -1;	// position in the SceneGraph's list of objects without bounds, or -1
+	private int shapeUserIndex = -1;	// position in its shape's list of users, or -1
+
+	// counts changes to the transforms and shape, so renderers that cache per-object data can detect them
+	private int transformVersion = 0;
+
 	//------------------ CONSTRUCTORS -----------------
 
 	// only applicable for creating the root node
@@ -146,6 +164,7 @@ public class GameObject
 		propagateScale = true;
 		applyParentRotationToPosition = false;
 		applyParentScaleToPosition = false;
+		renderStates.setOwner(this);
 	}
 
 	// ---------------------------------------------------
@@ -154,19 +173,28 @@ public class GameObject
 	public ObjShape getShape() { return shape; }
 
 	/** assigns an ObjShape to this GameObject */
-	public void setShape(ObjShape sh) { shape = sh; }
+	public void setShape(ObjShape sh)
+	{	if (inScene && (shape != null)) shape.removeUser(this);
+		shape = sh;
+		if (inScene && (shape != null)) shape.addUser(this);
+		renderStates.markChanged();
+		boundsChanged();
+	}
+
+	/** returns a number that changes whenever this object's transforms, shape, or render states change - for engine use only. */
+	public int getRenderVersion() { return transformVersion + renderStates.getVersion(); }
 
 	/** returns the TextureImage associated with this GameObject */
 	public TextureImage getTextureImage() { return texture; }
 
 	/** assigns a TextureImage to this GameObject */
-	public void setTextureImage(TextureImage tex) { texture = tex; }
+	public void setTextureImage(TextureImage tex) { texture = tex; renderStates.markChanged(); }
 
 	/** returns a reference to the TextureImage height map associated with this GameObject - applicable to terrain planes */
 	public TextureImage getHeightMap() { return heightMap; }
 
 	/** assigns a TextureImage height map to this GameObject - applicable to terrain planes */
-	public void setHeightMap(TextureImage tex) { heightMap = tex; isTerrain = true; }
+	public void setHeightMap(TextureImage tex) { heightMap = tex; tex.loadHeightField(); isTerrain = true; renderStates.markChanged(); boundsChanged(); }
 
 	/** returns a reference to the RenderStates associated with this GameObject */
 	public RenderStates getRenderStates() { return renderStates; }
@@ -175,7 +203,7 @@ public class GameObject
 	public boolean isTerrain() { return isTerrain; }
 
 	/** sets this GameObject to be a terrain plane */
-	public void setIsTerrain(boolean t) { isTerrain = t; }
+	public void setIsTerrain(boolean t) { isTerrain = t; renderStates.markChanged(); boundsChanged(); }
 
 	/** returns a reference to this GameObject's parent GameObject */
 	public GameObject getParent() { return parent; }
@@ -268,10 +296,86 @@ public class GameObject
 			{	worldScale = new Matrix4f(localScale);
 			}
 		}
+		boundsChanged();
 		Iterator<GameObject> i = children.iterator();
 		while (i.hasNext()) (i.next()).update();
 	}
 
+	// ---------------- WORLD BOUNDING BOX ---------------------
+
+	// Builds the full model matrix used for rendering into dest, without allocating - for engine use.
+	// This is world translation * world rotation * model orientation correction * world scale.
+
+	protected Matrix4f getModelMatrix(Matrix4f dest)
+	{	dest.set(worldTranslation);
+		dest.mul(worldRotation);
+		dest.mul(renderStates.getModelOrientationCorrection(correctionMat));
+		dest.mul(worldScale);
+		return dest;
+	}
+
+	// Builds the model matrix used for rendering lines into dest, without allocating - for engine use.
+	// Lines have no model orientation correction, so this is world translation * world rotation * world scale.
+
+	protected Matrix4f getLineModelMatrix(Matrix4f dest)
+	{	dest.set(worldTranslation);
+		dest.mul(worldRotation);
+		dest.mul(worldScale);
+		return dest;
+	}
+
+	// Marks the world bounds as out of date, and the first time after each update of the bounding volume tree,
+	// reports the object to the SceneGraph as moved.  Objects that aren't in the scenegraph are not reported.
+
+	protected void boundsChanged()
+	{	worldBoundsDirty = true;
+		transformVersion++;
+		if (inScene && !boundsMoved)
+		{	boundsMoved = true;
+			Engine.getEngine().getSceneGraph().objectMoved(this);
+		}
+	}
+
+	// Accessors for the SceneGraph's and RenderQueue's bookkeeping - for engine use only.
+
+	protected boolean isInScene() { return inScene; }
+	protected void setInScene(boolean s) { inScene = s; }
+	protected void clearBoundsMoved() { boundsMoved = false; }
+	protected int getBVHLeaf() { return bvhLeaf; }
+	protected void setBVHLeaf(int leaf) { bvhLeaf = leaf; }
+	protected int getQueueIndex() { return queueIndex; }
+	protected void setQueueIndex(int i) { queueIndex = i; }
+	protected int getUnboundedIndex() { return unboundedIndex; }
+	protected void setUnboundedIndex(int i) { unboundedIndex = i; }
+	protected int getShapeUserIndex() { return shapeUserIndex; }
+	protected void setShapeUserIndex(int i) { shapeUserIndex = i; }
+
+	// Returns true if this object's shape has bounds, so that getWorldBounds() is meaningful.
+	protected boolean hasWorldBounds() { return (shape != null) && shape.hasBounds(); }
+
+	// Returns a reference to the world-space axis-aligned bounding box, as minX, minY, minZ, maxX, maxY, maxZ.
+	// It is the shape's model-space box transformed by the model matrix, and is only recomputed after a change.
+	// Terrain is raised by up to 1 unit in model space by the height map, so its box is extended upward by 1.
+	// Animated shapes can be posed outside their bind-pose box, so their box is enlarged around its center.
+
+	protected float[] getWorldBounds()
+	{	if (worldBoundsDirty || (worldBoundsVersion != renderStates.getVersion()))
+		{	float[] b = shape.getBounds();
+			float minX = b[0], minY = b[1], minZ = b[2], maxX = b[3], maxY = b[4], maxZ = b[5];
+			if (isTerrain) maxY += 1.0f;
+			if (shape instanceof AnimatedShape)
+			{	float ex = (maxX-minX)*0.25f, ey = (maxY-minY)*0.25f, ez = (maxZ-minZ)*0.25f;
+				minX -= ex; minY -= ey; minZ -= ez; maxX += ex; maxY += ey; maxZ += ez;
+			}
+			getModelMatrix(modelMat).transformAab(minX, minY, minZ, maxX, maxY, maxZ, boundsMin, boundsMax);
+			worldBounds[0] = boundsMin.x; worldBounds[1] = boundsMin.y; worldBounds[2] = boundsMin.z;
+			worldBounds[3] = boundsMax.x; worldBounds[4] = boundsMax.y; worldBounds[5] = boundsMax.z;
+			worldBoundsDirty = false;
+			worldBoundsVersion = renderStates.getVersion();
+		}
+		return worldBounds;
+	}
+
 	// ---------------- ACCESSORS FOR MATRICES ---------------------
 
 	/** copies a specified Matrix4f into this GameObject's local translation matrix */
@@ -325,6 +429,9 @@ public class GameObject
 	/** returns the location of this object in world space */
 	public Vector3f getWorldLocation() { return new Vector3f(worldTranslation.getTranslation(v)); }
 
+	// Stores the world location in the specified vector, without allocating - for engine use.
+	protected Vector3f getWorldLocation(Vector3f dest) { return worldTranslation.getTranslation(dest); }
+
 	/** sets the location of this object relative to its parent node */
 	public void setLocalLocation(Vector3f location) { localTranslation.setTranslation(location); update(); }
 
@@ -375,18 +482,59 @@ public class GameObject
 
 	/** gets the height at (x,z) if this is a terrain plane -- returns 0 if not terrain, only works if flat on y=0 plane. */
 	public float getHeight(float x, float z)
-	{	x = x - getLocalLocation().x;
-		z = z - getLocalLocation().z;
-
-		Matrix4f rot = getLocalRotation().transpose();
-		Vector4f vec = new Vector4f(x,0,z,1f);
-		vec.mul(rot);
-		x = vec.x; z = vec.z;
-
-		x = (x / localScale.m00() + 1.0f) / 2.0f;
-		z = 1.0f - (z / localScale.m00() + 1.0f) / 2.0f;
-		
-		return localScale.m11() * Engine.getEngine().getRenderSystem().getHeightAt(heightMap.getTexture(), x, z);
+	{	float[] st = new float[2];
+		toHeightMapCoords(x, z, st);
+		return localScale.m11() * heightMap.getHeightField().getHeight(st[0], st[1]);
+	}
+
+	/**
+	* Gets the terrain heights at many (x,z) positions in one call.
+	* The positions are stored as x,z pairs, and dest must hold one float per pair.
+	*/
+	public void getHeights(float[] xz, float[] dest)
+	{	HeightField h = heightMap.getHeightField();
+		float[] st = new float[2];
+		float sy = localScale.m11();
+		for (int k = 0; k < dest.length; k++)
+		{	toHeightMapCoords(xz[k*2], xz[k*2+1], st);
+			dest[k] = sy * h.getHeight(st[0], st[1]);
+		}
+	}
+
+	/** gets the terrain surface normal at (x,z), in world space, if this is a terrain plane. */
+	public Vector3f getTerrainNormal(float x, float z)
+	{	HeightField h = heightMap.getHeightField();
+		float[] st = new float[2];
+		toHeightMapCoords(x, z, st);
+
+		// s increases with x and t decreases with z, each by 1/(2*scale) per unit
+		float sxz = localScale.m00();
+		float dhdx = localScale.m11() * h.getSlopeS(st[0], st[1]) / (2.0f * sxz);
+		float dhdz = -localScale.m11() * h.getSlopeT(st[0], st[1]) / (2.0f * sxz);
+
+		Vector3f n = new Vector3f(-dhdx, 1.0f, -dhdz).normalize();
+		return n.mulDirection(localRotation);
+	}
+
+	/** gets the steepness of the terrain at (x,z), as the angle in radians between the surface and horizontal. */
+	public float getTerrainSlope(float x, float z)
+	{	Vector3f n = getTerrainNormal(x, z);
+		return (float) java.lang.Math.acos(java.lang.Math.min(1.0f, java.lang.Math.abs(n.y)));
+	}
+
+	// Converts a world (x,z) position to height map texture coordinates, stored in dest.
+	// Only local variables are used, so that height queries can be made from any thread.
+	private void toHeightMapCoords(float x, float z, float[] dest)
+	{	x = x - localTranslation.m30();
+		z = z - localTranslation.m32();
+
+		// apply the inverse (transpose) of the local rotation
+		Matrix4f r = localRotation;
+		float rx = r.m00() * x + r.m02() * z;
+		float rz = r.m20() * x + r.m22() * z;
+
+		dest[0] = (rx / localScale.m00() + 1.0f) / 2.0f;
+		dest[1] = 1.0f - (rz / localScale.m00() + 1.0f) / 2.0f;
 	}
 
 	/** add angle to current yaw */
@@ -5,6 +5,7 @@ import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.util.gl2.GLUT;
 import org.joml.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -27,6 +28,9 @@ import java.util.HashMap;
 * setting and uses the most recent color rendered.  Therefore, this HUD
 * renderer first renders a single pixel at the desired HUD color at a
 * distant location, before drawing the HUD.
+* <p>
+* The HUDs drawn are copies, taken when the renderer takes its snapshot of the frame,
+* so the game application may change them while a frame is being drawn.
 * @author Scott Gordon
 */
 
@@ -36,6 +40,8 @@ public class HUDmanager {
 	private Engine engine;
 
 	private HashMap<String, HUD> huds = new HashMap<>();
+	private ArrayList<HUD> snapshot = new ArrayList<>();	// reused from frame to frame
+	private int snapshotSize;
 
 	// The constructor is called by the engine, and should not be called by the game application.
 	protected HUDmanager(Engine e) {
@@ -44,12 +50,20 @@ public class HUDmanager {
 
 	protected void setGLcanvas(GLCanvas g) { myCanvas = g; }
 
+	// Copies the current HUDs, to be drawn by drawHUDs().  Called by the renderer when it takes its snapshot of the frame.
+	protected void takeSnapshot() {
+		snapshotSize = 0;
+		for (HUD hud : huds.values()) {
+			if (snapshotSize == snapshot.size()) snapshot.add(new HUD("", new Vector3f(), 0, 0));
+			snapshot.get(snapshotSize++).copy(hud);
+		}
+	}
+
 	protected void drawHUDs(int hcp) {
-		GL4 gl4 = myCanvas.getGL().getGL4();
-		GL4bc gl4bc = (GL4bc) gl4;
+		GL4bc gl4bc = (GL4bc) GLContext.getCurrentGL();
 
-		for (String key : huds.keySet()) {
-			HUD hud = huds.get(key);
+		for (int i = 0; i < snapshotSize; i++) {
+			HUD hud = snapshot.get(i);
 			gl4bc.glWindowPos2d(hud.getX(), hud.getY());
 			prepHUDcolor(hud.getColor(), hcp);
 			glut.glutBitmapString(hud.getFont(), hud.getDisplayString());
@@ -94,10 +108,11 @@ public class HUDmanager {
 
 	private void prepHUDcolor(float[] color, int hcp)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		gl.glUseProgram(hcp);
-		int hudCLoc = gl.glGetUniformLocation(hcp, "hudc");
+		(engine.getRenderSystem()).getStateTracker().useProgram(gl, hcp);
+		int hudCLoc = ProgramReflection.get(hcp).getUniformLocation("hudc");
 		gl.glProgramUniform3fv(hcp, hudCLoc, 1, color, 0);
 		gl.glDrawArrays(GL_POINTS,0,1);
+		(engine.getRenderSystem()).getStateTracker().countDraw(0);
 	}
 
 	private static class HUD {
@@ -112,6 +127,13 @@ public class HUDmanager {
 			setLocation(x, y);
 		}
 
+		public void copy(HUD other) {
+			displayString = other.displayString;
+			setColor(other.color[0], other.color[1], other.color[2]);
+			setLocation(other.location[0], other.location[1]);
+			font = other.font;
+		}
+
 		public void setColor(float r, float g, float b) {
 			color[0] = r;
 			color[1] = g;
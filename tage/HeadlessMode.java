@@ -0,0 +1,193 @@
+package tage;
+import java.io.*;
+import java.util.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.GLReadBufferUtil;
+
+/**
+* Runs the game without a window, for a fixed number of frames, and reports how long each frame took.
+* <p>
+* In headless mode the RenderSystem skips the display settings dialog, and instead of a window with a GLCanvas,
+* renders into an offscreen drawable (a framebuffer object or pbuffer) at a fixed resolution.  When the game loop
+* starts, the frames are rendered back to back on the calling thread -- first a few warm-up frames, which include
+* compiling the shaders, and then the measured frames.  Each measured frame is timed from the start of display()
+* until the GPU has finished it (display() calls glFinish() in headless mode), so GPU work is included.
+* <p>
+* The engine clock, returned by currentTimeMillis() in the Engine, advances by a fixed step each frame rather than
+* following the system clock, so the game simulates exactly the same thing on every run, however fast the machine is.
+* The clock advances at the start of each simulation step, rather than each display(), so it stays in step with the
+* game's update() when the simulation runs on its own thread (see RenderSystem.setPipelined()).
+* <p>
+* When the frames are done, the frame-time statistics (average, median, percentiles, and so on) followed by the time
+* of every frame are written to a text file, and printed.  Optionally the final frame is saved as an image --
+* the format follows the file extension, such as .png.  The game's shutdown() is then called, and the program exits.
+* <p>
+* Headless mode is configured before the Engine is created, either with the setters below, or with system properties
+* on the command line, so the same game can be benchmarked without changing it:
+* <ul>
+* <li> tage.headless -- true to enable headless mode
+* <li> tage.headless.width, tage.headless.height -- the resolution (default 1280 x 720)
+* <li> tage.headless.frames -- the number of measured frames (default 600)
+* <li> tage.headless.warmup -- the number of unmeasured frames first (default 10)
+* <li> tage.headless.step -- the simulated time step, in milliseconds (default 1/60 second)
+* <li> tage.headless.stats -- the statistics file (default headless-stats.txt)
+* <li> tage.headless.image -- the file for the final frame (default none)
+* </ul>
+* <p>
+* On Linux, JOGL creates offscreen drawables through the X server, so a machine without a display should run
+* the game under a virtual X server, such as "xvfb-run -a java -Dtage.headless=true ...".  With no GPU, Mesa
+* renders in software with llvmpipe (LIBGL_ALWAYS_SOFTWARE=1 forces this).  No window is ever shown.
+* @author Scott Gordon
+*/
+public class HeadlessMode
+{
+	private static boolean enabled = Boolean.getBoolean("tage.headless");
+	private static int width = Integer.getInteger("tage.headless.width", 1280);
+	private static int height = Integer.getInteger("tage.headless.height", 720);
+	private static int frames = Integer.getInteger("tage.headless.frames", 600);
+	private static int warmup = Integer.getInteger("tage.headless.warmup", 10);
+	private static double stepMillis = getDoubleProperty("tage.headless.step", 1000.0 / 60.0);
+	private static String statsFile = System.getProperty("tage.headless.stats", "headless-stats.txt");
+	private static String imageFile = System.getProperty("tage.headless.image");
+
+	private static long frame;		// frames started so far
+	private static long steps;		// simulation steps started so far
+	private static long[] frameNanos;
+
+	/** enables or disables headless mode -- must be called before the Engine is created */
+	public static void setEnabled(boolean e) { enabled = e; }
+
+	/** returns true if the engine runs headless */
+	public static boolean isEnabled() { return enabled; }
+
+	/** sets the resolution of the offscreen drawable, in pixels */
+	public static void setResolution(int w, int h) { width = w; height = h; }
+
+	/** returns the width of the offscreen drawable, in pixels */
+	public static int getWidth() { return width; }
+
+	/** returns the height of the offscreen drawable, in pixels */
+	public static int getHeight() { return height; }
+
+	/** sets the number of frames that are measured, and the number of unmeasured warm-up frames rendered before them */
+	public static void setFrames(int measured, int warmupFrames)
+	{	frames = java.lang.Math.max(measured, 1);
+		warmup = java.lang.Math.max(warmupFrames, 0);
+	}
+
+	/** sets the simulated time between frames, in milliseconds */
+	public static void setTimeStep(double millis) { stepMillis = millis; }
+
+	/** returns the simulated time between frames, in milliseconds */
+	public static double getTimeStep() { return stepMillis; }
+
+	/** sets the file the frame-time statistics are written to, or null for none */
+	public static void setStatsFile(String f) { statsFile = f; }
+
+	/** sets the file the final frame is saved to, or null for none */
+	public static void setImageFile(String f) { imageFile = f; }
+
+	/** returns the simulated time, in milliseconds -- a fixed step for every simulation step started so far */
+	public static long getSimulatedTime() { return java.lang.Math.round(steps * stepMillis); }
+
+	// Advances the simulated time by one step.  Called by the renderer before each simulation step.
+	protected static void advanceClock() { steps++; }
+
+	// Creates the offscreen drawable that replaces the GLCanvas.
+	protected static GLOffscreenAutoDrawable createDrawable()
+	{	GLProfile profile = GLProfile.getDefault();
+		GLCapabilities caps = new GLCapabilities(profile);
+		caps.setOnscreen(false);
+		caps.setDepthBits(24);
+		return GLDrawableFactory.getFactory(profile).createOffscreenAutoDrawable(null, caps, null, width, height);
+	}
+
+	// Renders the warm-up and measured frames, reports the results, and exits.
+	// Called from startGameLoop() in the renderer, in place of starting the frame scheduler.
+	protected static void run(GLAutoDrawable drawable, Engine engine)
+	{	int total = warmup + frames;
+		frameNanos = new long[frames];
+		System.out.println("rendering " + total + " headless frames at " + width + "x" + height);
+		for (frame = 1; frame <= total; frame++)
+		{	long start = System.nanoTime();
+			drawable.display();
+			long elapsed = System.nanoTime() - start;
+			if (frame > warmup) frameNanos[(int) (frame - warmup - 1)] = elapsed;
+		}
+		frame = total;
+		(engine.getRenderSystem()).getFramePipeline().stop();
+
+		writeStats(drawable);
+		(engine.getGame()).shutdown();
+		drawable.destroy();
+		System.exit(0);
+	}
+
+	// Called at the end of display() in headless mode.
+	// Waits for the GPU to finish the frame, and saves the final frame if an image file was given.
+	protected static void endFrame(GL4 gl)
+	{	gl.glFinish();
+		if ((imageFile == null) || (frame != warmup + frames)) return;
+		GLReadBufferUtil reader = new GLReadBufferUtil(false, false);
+		if (reader.readPixels(gl, false)) reader.write(new File(imageFile));
+		else System.out.println("could not read the final frame");
+		reader.dispose(gl);
+	}
+
+	private static void writeStats(GLAutoDrawable drawable)
+	{	double[] ms = new double[frames];
+		double sum = 0.0;
+		for (int i = 0; i < frames; i++)
+		{	ms[i] = frameNanos[i] / 1000000.0;
+			sum += ms[i];
+		}
+		double mean = sum / frames;
+		double var = 0.0;
+		for (int i = 0; i < frames; i++) var += (ms[i] - mean) * (ms[i] - mean);
+		double[] sorted = Arrays.copyOf(ms, frames);
+		Arrays.sort(sorted);
+
+		StringBuilder sb = new StringBuilder();
+		GL gl = drawable.getGL();
+		drawable.getContext().makeCurrent();
+		sb.append(String.format("renderer %s%n", gl.glGetString(GL.GL_RENDERER)));
+		sb.append(String.format("version %s%n", gl.glGetString(GL.GL_VERSION)));
+		drawable.getContext().release();
+		sb.append(String.format("resolution %dx%d%n", width, height));
+		sb.append(String.format("frames %d (after %d warm-up frames)%n", frames, warmup));
+		sb.append(String.format("time step %.3f ms%n", stepMillis));
+		sb.append(String.format("average %.3f ms (%.1f fps)%n", mean, 1000.0 / mean));
+		sb.append(String.format("std dev %.3f ms%n", java.lang.Math.sqrt(var / frames)));
+		sb.append(String.format("min %.3f ms%n", sorted[0]));
+		sb.append(String.format("median %.3f ms%n", percentile(sorted, 0.5)));
+		sb.append(String.format("95th percentile %.3f ms%n", percentile(sorted, 0.95)));
+		sb.append(String.format("99th percentile %.3f ms%n", percentile(sorted, 0.99)));
+		sb.append(String.format("max %.3f ms%n", sorted[frames - 1]));
+		System.out.print(sb);
+
+		if (statsFile == null) return;
+		sb.append(String.format("%nframe times (ms)%n"));
+		for (int i = 0; i < frames; i++) sb.append(String.format("%.3f%n", ms[i]));
+		try (Writer out = new BufferedWriter(new FileWriter(statsFile)))
+		{	out.write(sb.toString());
+		}
+		catch (IOException e)
+		{	System.out.println("could not write frame statistics to " + statsFile);
+		}
+	}
+
+	private static double percentile(double[] sorted, double p)
+	{	int i = (int) java.lang.Math.ceil(p * sorted.length) - 1;
+		return sorted[java.lang.Math.min(java.lang.Math.max(i, 0), sorted.length - 1)];
+	}
+
+	private static double getDoubleProperty(String name, double def)
+	{	String value = System.getProperty(name);
+		if (value == null) return def;
+		try { return Double.parseDouble(value); }
+		catch (NumberFormatException e)
+		{	System.out.println("ignoring invalid " + name + ": " + value);
+			return def;
+		}
+	}
+}
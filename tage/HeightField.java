@@ -0,0 +1,103 @@
+package tage;
+import java.awt.image.*;
+
+/**
+* HeightField holds a copy of a height map image in main memory, as a grid of floats,
+* so that terrain heights can be looked up without a round trip to the GPU.
+* <p>
+* The grid is decoded from the red channel of the image (or the gray level of a grayscale image),
+* and each height is in the range 0 to 1, just as the shaders see it when they sample the height map texture.
+* Lookups use texture coordinates, and follow the same conventions as the OpenGL texture:
+* <ul>
+* <li> (0,0) is the bottom left corner of the image, and (1,1) is the top right corner
+* <li> texel centers are at (i+0.5)/width and (j+0.5)/height
+* <li> heights between texel centers are interpolated bilinearly
+* <li> coordinates outside 0 to 1 wrap around (repeat)
+* </ul>
+* <p>
+* A HeightField never changes once it has been built, so it can be queried from any thread.
+* HeightFields are built by TextureImage.getHeightField(), rather than by the game application.
+* @author Scott Gordon
+*/
+public class HeightField
+{
+	private final int width, height;
+	private final float[] heights;	// row 0 is the bottom row of the image
+
+	/** builds a HeightField from the specified image - for engine use only. */
+	protected HeightField(BufferedImage img)
+	{	width = img.getWidth();
+		height = img.getHeight();
+		heights = new float[width * height];
+
+		Raster raster = img.getRaster();
+		ColorModel cm = img.getColorModel();
+		boolean indexed = (cm instanceof IndexColorModel);
+		float max = (float) ((1 << cm.getComponentSize(0)) - 1);
+
+		for (int j = 0; j < height; j++)
+		{	int y = height - 1 - j;	// images are stored top row first
+			for (int i = 0; i < width; i++)
+			{	if (indexed)
+					heights[j*width + i] = ((img.getRGB(i, y) >> 16) & 0xFF) / 255f;
+				else
+					heights[j*width + i] = raster.getSample(i, y, 0) / max;
+			}
+		}
+	}
+
+	/** returns the width of the height map, in texels */
+	public int getWidth() { return width; }
+
+	/** returns the height of the height map, in texels */
+	public int getHeight() { return height; }
+
+	/** returns the height (0 to 1) at the specified texture coordinate */
+	public float getHeight(float s, float t)
+	{	float x = s * width - 0.5f;
+		float y = t * height - 0.5f;
+		float fx = (float) java.lang.Math.floor(x);
+		float fy = (float) java.lang.Math.floor(y);
+		int i0 = wrap((int) fx, width), i1 = wrap((int) fx + 1, width);
+		int j0 = wrap((int) fy, height), j1 = wrap((int) fy + 1, height);
+		float ax = x - fx, ay = y - fy;
+
+		float h00 = heights[j0*width + i0], h10 = heights[j0*width + i1];
+		float h01 = heights[j1*width + i0], h11 = heights[j1*width + i1];
+		float h0 = h00 + (h10 - h00) * ax;
+		float h1 = h01 + (h11 - h01) * ax;
+		return h0 + (h1 - h0) * ay;
+	}
+
+	/**
+	* Fills dest with the heights at many texture coordinates.
+	* The coordinates are stored as s,t pairs, and dest must hold one float per pair.
+	*/
+	public void getHeights(float[] st, float[] dest)
+	{	for (int k = 0; k < dest.length; k++)
+			dest[k] = getHeight(st[k*2], st[k*2+1]);
+	}
+
+	/**
+	* Returns the rate of change of height with respect to s, at the specified texture coordinate.
+	* It is measured by central differences one texel to either side.
+	*/
+	public float getSlopeS(float s, float t)
+	{	float d = 1.0f / width;
+		return (getHeight(s + d, t) - getHeight(s - d, t)) / (2.0f * d);
+	}
+
+	/**
+	* Returns the rate of change of height with respect to t, at the specified texture coordinate.
+	* It is measured by central differences one texel to either side.
+	*/
+	public float getSlopeT(float s, float t)
+	{	float d = 1.0f / height;
+		return (getHeight(s, t + d) - getHeight(s, t - d)) / (2.0f * d);
+	}
+
+	private static int wrap(int i, int n)
+	{	i = i % n;
+		return (i < 0) ? i + n : i;
+	}
+}
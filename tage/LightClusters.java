@@ -0,0 +1,79 @@
+package tage;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+* Supports clustered lighting, for scenes with hundreds of lights.
+* <p>
+* Without clustering, every fragment considers every light.  With clustering, the view frustum is divided into
+* a grid of clusters -- tiles across the viewport, and slices in depth, spaced exponentially so that they get
+* deeper farther from the camera.  Once per viewport, a compute shader (LightClusterCompute.glsl) lists the lights
+* that reach each cluster, and StandardFrag.glsl then only considers the lights listed for the fragment's cluster.
+* <p>
+* A light reaches as far as its range, or as far as its attenuation leaves it contributing at least 1/256 of its
+* full brightness, whichever is nearer.  So lights should be given attenuation factors or a range -- lights that
+* shine forever reach every cluster.  Spotlights are also limited to their cone.
+* At most MAX_LIGHTS_PER_CLUSTER lights are listed for any cluster.
+* Ambient contributions are not limited by distance, and still come from the brightest light in the scene.
+* <p>
+* Clustered lighting is turned on and off with setClusteredLighting() in the RenderSystem.
+* Used by the renderer, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class LightClusters
+{
+	/** number of clusters across the viewport */
+	public static final int GRID_X = 16;
+	/** number of clusters up the viewport */
+	public static final int GRID_Y = 9;
+	/** number of depth slices, from the near clip plane to the far clip plane */
+	public static final int GRID_Z = 24;
+	/** maximum number of lights listed for one cluster - must match the shaders */
+	public static final int MAX_LIGHTS_PER_CLUSTER = 128;
+
+	private static final int NUM_CLUSTERS = GRID_X * GRID_Y * GRID_Z;
+	private static final int GROUP_SIZE = 64;	// must match local_size_x in the compute shader
+
+	private int program;
+	private int[] buffers = new int[2];
+
+	protected LightClusters() { }
+
+	// Compiles the compute shader and creates the buffers holding the light lists.
+	// Called once, from init() in the renderer.
+	protected void init()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		program = Utils.createShaderProgram("assets/shaders/LightClusterCompute.glsl");
+
+		gl.glGenBuffers(2, buffers, 0);
+
+		// a vec4 holding the brightest ambient contribution, then the number of lights in each cluster
+		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[0]);
+		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, 16 + NUM_CLUSTERS * 4L, null, GL_DYNAMIC_COPY);
+
+		// the light indices for each cluster, in fixed-size runs of MAX_LIGHTS_PER_CLUSTER
+		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[1]);
+		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (long) NUM_CLUSTERS * MAX_LIGHTS_PER_CLUSTER * 4, null, GL_DYNAMIC_COPY);
+	}
+
+	// Lists the lights reaching each cluster of the current view.  Called once per viewport, after the view block
+	// has been written.  The lists stay bound to SSBO binding points 2 and 3, where StandardFrag.glsl reads them.
+	protected void build(GL4 gl, RenderStateTracker state, int lightSSBO)
+	{	state.useProgram(gl, program);
+		state.bindStorageBufferBase(gl, 0, lightSSBO);
+		state.bindStorageBufferBase(gl, 2, buffers[0]);
+		state.bindStorageBufferBase(gl, 3, buffers[1]);
+		gl.glDispatchCompute((NUM_CLUSTERS + GROUP_SIZE - 1) / GROUP_SIZE, 1, 1);
+		gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT);
+	}
+
+	/** returns the scale from log(view depth) to depth slice, for the specified clip distances - for engine use only. */
+	public static float getSliceScale(float near, float far)
+	{	return GRID_Z / (float) java.lang.Math.log(far / near);
+	}
+
+	/** returns the bias subtracted from log(view depth) * scale to give the depth slice - for engine use only. */
+	public static float getSliceBias(float near, float far)
+	{	return (float) java.lang.Math.log(near) * getSliceScale(near, far);
+	}
+}
@@ -17,8 +17,13 @@ import com.jogamp.common.nio.Buffers;
 * and then finally to an SSBO.
 * <p>
 * This class manages all four of those storages.
-* Each time a light is modified, the FloatBuffer needs to be updated.
-* At each frame, the FloatBuffer is reloaded into the SSBO.
+* Each time a light is modified, the FloatBuffer is updated and the light is marked as changed.
+* At each frame, only the changed lights are sent to the SSBO, with one glBufferSubData() call
+* for each run of consecutive changed lights -- if no light has changed, nothing is sent.
+* <p>
+* Lights can be added and removed while the game is running.  The storages are allocated with room
+* to spare, and double in size when they fill up, so adding a light rarely requires re-allocating the SSBO.
+* Removing a light moves the last light into its place, so the lights in the SSBO stay contiguous.
 * <p>
 * Although a few accessors have been made public, there shouldn't be any reason for a game
 * application to interact with the LightManager.  A game application should instatiate and
@@ -35,14 +40,40 @@ public class LightManager
 	private int[] lightSSBO = new int[1];
 
 	private int fieldsPerLight = 22;
+	private static final int MIN_CAPACITY = 8;
+	private int capacity = 0;		// number of lights the FloatArray and FloatBuffer can hold
+	private int ssboCapacity = 0;	// number of lights the SSBO can hold
+	private boolean[] dirty = new boolean[0];
+	private int dirtyFirst = Integer.MAX_VALUE, dirtyLast = -1;
+	private int uploads;
 
 	protected LightManager(Engine e)
 	{	engine = e;
 	}
 
 	protected void addLight(Light light)
-	{	lights.add(light);
+	{	if (lights.contains(light)) return;
+		lights.add(light);
 		light.setIndex(lights.size()-1);
+		if (lightArray != null)
+		{	ensureCapacity(lights.size());
+			loadLight(lights.size()-1);
+		}
+	}
+
+	// Removes the specified light.  The last light is moved into its place, so it changes index.
+	protected void removeLight(Light light)
+	{	int i = lights.indexOf(light);
+		if (i < 0) return;
+		int last = lights.size()-1;
+		Light moved = lights.remove(last);
+		if (i != last)
+		{	lights.set(i, moved);
+			moved.setIndex(i);
+			if (lightArray != null) loadLight(i);
+		}
+		light.setIndex(-1);
+		if (lightArray != null) dirty[last] = false;
 	}
 
 	/** returns a reference to the ith Light - not likely to be useful in the game application. */
@@ -57,82 +88,137 @@ public class LightManager
 	protected FloatBuffer getLightBuffer() { return lightBuf; }
 	protected float[] getLightArray() { return lightArray; }
 
+	/** returns the number of glBufferSubData() calls made to update the SSBO since the game started */
+	public int getNumUploads() { return uploads; }
+
 	/** for engine use only, returns a reference to the SSBO containing the data for all of the lights  */
 	public int getLightSSBO() { return lightSSBO[0]; }
 
-	// These functions update the light information in both the FloatArray and the FloatBuffer
+	// These functions update the light information in both the FloatArray and the FloatBuffer,
+	// and mark the light as needing to be re-sent to the SSBO.
 	protected void updateLightLocation(int which, float x, float y, float z)
-	{	lightArray[which * fieldsPerLight + 0] = x;
-		lightArray[which * fieldsPerLight + 1] = y;
-		lightArray[which * fieldsPerLight + 2] = z;
-		lightBuf.put(which * fieldsPerLight + 0, x);
-		lightBuf.put(which * fieldsPerLight + 1, y);
-		lightBuf.put(which * fieldsPerLight + 2, z);
+	{	put(which, 0, x); put(which, 1, y); put(which, 2, z);
 	}
 	protected void updateLightAmbient(int which, float r, float g, float b)
-	{	lightArray[which * fieldsPerLight + 3] = r;
-		lightArray[which * fieldsPerLight + 4] = g;
-		lightArray[which * fieldsPerLight + 5] = b;
-		lightBuf.put(which * fieldsPerLight + 3, r);
-		lightBuf.put(which * fieldsPerLight + 4, g);
-		lightBuf.put(which * fieldsPerLight + 5, b);
+	{	put(which, 3, r); put(which, 4, g); put(which, 5, b);
 	}
 	protected void updateLightDiffuse(int which, float r, float g, float b)
-	{	lightArray[which * fieldsPerLight + 6] = r;
-		lightArray[which * fieldsPerLight + 7] = g;
-		lightArray[which * fieldsPerLight + 8] = b;
-		lightBuf.put(which * fieldsPerLight + 6, r);
-		lightBuf.put(which * fieldsPerLight + 7, g);
-		lightBuf.put(which * fieldsPerLight + 8, b);
+	{	put(which, 6, r); put(which, 7, g); put(which, 8, b);
 	}
 	protected void updateLightSpecular(int which, float r, float g, float b)
-	{	lightArray[which * fieldsPerLight + 9] = r;
-		lightArray[which * fieldsPerLight + 10] = g;
-		lightArray[which * fieldsPerLight + 11] = b;
-		lightBuf.put(which * fieldsPerLight + 9, r);
-		lightBuf.put(which * fieldsPerLight + 10, g);
-		lightBuf.put(which * fieldsPerLight + 11, b);
-	}
-	protected void updateConstantAttenuation(int which, float ca)
-	{	lightArray[which * fieldsPerLight + 12] = ca;
-		lightBuf.put(which * fieldsPerLight + 12, ca);
-	}
-	protected void updateLinearAttenuation(int which, float la)
-	{	lightArray[which * fieldsPerLight + 13] = la;
-		lightBuf.put(which * fieldsPerLight + 13, la);
-	}
-	protected void updateQuadraticAttenuation(int which, float qa)
-	{	lightArray[which * fieldsPerLight + 14] = qa;
-		lightBuf.put(which * fieldsPerLight + 14, qa);
-	}
-	protected void updateRange(int which, float r)
-	{	lightArray[which * fieldsPerLight + 15] = r;
-		lightBuf.put(which * fieldsPerLight + 15, r);
+	{	put(which, 9, r); put(which, 10, g); put(which, 11, b);
 	}
+	protected void updateConstantAttenuation(int which, float ca) { put(which, 12, ca); }
+	protected void updateLinearAttenuation(int which, float la) { put(which, 13, la); }
+	protected void updateQuadraticAttenuation(int which, float qa) { put(which, 14, qa); }
+	protected void updateRange(int which, float r) { put(which, 15, r); }
 	protected void updateDirection(int which, float x, float y, float z)
-	{	lightArray[which * fieldsPerLight + 16] = x;
-		lightArray[which * fieldsPerLight + 17] = y;
-		lightArray[which * fieldsPerLight + 18] = z;
-		lightBuf.put(which * fieldsPerLight + 16, x);
-		lightBuf.put(which * fieldsPerLight + 17, y);
-		lightBuf.put(which * fieldsPerLight + 18, z);
-	}
-	protected void updateCutoffAngle(int which, float coa)
-	{	lightArray[which * fieldsPerLight + 19] = coa;
-		lightBuf.put(which * fieldsPerLight + 19, coa);
+	{	put(which, 16, x); put(which, 17, y); put(which, 18, z);
 	}
-	protected void updateOffAxisExponent(int which, float oae)
-	{	lightArray[which * fieldsPerLight + 20] = oae;
-		lightBuf.put(which * fieldsPerLight + 20, oae);
+	protected void updateCutoffAngle(int which, float coa) { put(which, 19, coa); }
+	protected void updateOffAxisExponent(int which, float oae) { put(which, 20, oae); }
+	protected void updateType(int which, float t) { put(which, 21, t); }
+
+	private void put(int which, int field, float value)
+	{	if ((which < 0) || (which >= lights.size())) return;	// the light has been removed
+		int i = which * fieldsPerLight + field;
+		if (lightArray[i] == value) return;
+		lightArray[i] = value;
+		lightBuf.put(i, value);
+		markDirty(which);
 	}
-	protected void updateType(int which, float t)
-	{	lightArray[which * fieldsPerLight + 21] = t;
-		lightBuf.put(which * fieldsPerLight + 21, t);
+
+	private void markDirty(int which)
+	{	if (dirty[which]) return;
+		dirty[which] = true;
+		if (which < dirtyFirst) dirtyFirst = which;
+		if (which > dirtyLast) dirtyLast = which;
 	}
+
+	// This function is called once per frame, from display() in the renderer.
+	// If the SSBO is too small for the current lights, it is re-allocated (with room to spare) and refilled.
+	// Otherwise, each run of consecutive changed lights is sent with a single glBufferSubData() call.
+	// Nothing is sent if no light has changed.
 	protected void updateSSBO()
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		if (ssboCapacity < capacity)
+		{	gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, lightSSBO[0]);
+			lightBuf.clear();
+			gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (long) capacity*fieldsPerLight*4, lightBuf, GL_DYNAMIC_DRAW);
+			ssboCapacity = capacity;
+			clearDirty(0, lights.size()-1);
+			return;
+		}
+		if (dirtyFirst > dirtyLast) return;
+
 		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, lightSSBO[0]);
-		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, lightBuf.limit()*4, lightBuf, GL_STATIC_DRAW);
+		int last = java.lang.Math.min(dirtyLast, lights.size()-1);
+		int i = dirtyFirst;
+		while (i <= last)
+		{	if (!dirty[i]) { i++; continue; }
+			int j = i;
+			while ((j+1 <= last) && dirty[j+1]) j++;
+			lightBuf.limit((j+1) * fieldsPerLight);
+			lightBuf.position(i * fieldsPerLight);
+			gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, (long) i*fieldsPerLight*4,
+				(long) (j-i+1)*fieldsPerLight*4, lightBuf);
+			uploads++;
+			i = j + 1;
+		}
+		lightBuf.clear();
+		clearDirty(dirtyFirst, dirtyLast);
+	}
+
+	private void clearDirty(int first, int last)
+	{	for (int i = java.lang.Math.max(first, 0); i <= last; i++) dirty[i] = false;
+		dirtyFirst = Integer.MAX_VALUE;
+		dirtyLast = -1;
+	}
+
+	// Makes sure the FloatArray and FloatBuffer have room for at least n lights, doubling their size when they don't.
+	// The SSBO itself is re-allocated at the next updateSSBO().
+	private void ensureCapacity(int n)
+	{	if (n <= capacity) return;
+		int newCapacity = java.lang.Math.max(java.lang.Math.max(capacity * 2, n), MIN_CAPACITY);
+		float[] newArray = new float[newCapacity * fieldsPerLight];
+		if (lightArray != null) System.arraycopy(lightArray, 0, newArray, 0, lights.size() * fieldsPerLight);
+		lightArray = newArray;
+		lightBuf = Buffers.newDirectFloatBuffer(lightArray);
+		dirty = java.util.Arrays.copyOf(dirty, newCapacity);
+		capacity = newCapacity;
+	}
+
+	// Copies the fields of the ith Light into the FloatArray and FloatBuffer.
+	private void loadLight(int i)
+	{	Light l = getLight(i);
+		int b = i*fieldsPerLight;
+		lightArray[b + 0] = (l.getLocation())[0];
+		lightArray[b + 1] = (l.getLocation())[1];
+		lightArray[b + 2] = (l.getLocation())[2];
+		lightArray[b + 3] = (l.getAmbient())[0];
+		lightArray[b + 4] = (l.getAmbient())[1];
+		lightArray[b + 5] = (l.getAmbient())[2];
+		lightArray[b + 6] = (l.getDiffuse())[0];
+		lightArray[b + 7] = (l.getDiffuse())[1];
+		lightArray[b + 8] = (l.getDiffuse())[2];
+		lightArray[b + 9] = (l.getSpecular())[0];
+		lightArray[b + 10] = (l.getSpecular())[1];
+		lightArray[b + 11] = (l.getSpecular())[2];
+		lightArray[b + 12] = (l.getConstantAttenuation());
+		lightArray[b + 13] = (l.getLinearAttenuation());
+		lightArray[b + 14] = (l.getQuadraticAttenuation());
+		lightArray[b + 15] = (l.getRange());
+		lightArray[b + 16] = (l.getDirection())[0];
+		lightArray[b + 17] = (l.getDirection())[1];
+		lightArray[b + 18] = (l.getDirection())[2];
+		lightArray[b + 19] = (l.getCutoffAngle());
+		lightArray[b + 20] = (l.getOffAxisExponent());
+		float type;
+		LightType lightType = l.getLightType();
+		if (lightType == LightType.POSITIONAL) type = 0.0f; else type = 1.0f;
+		lightArray[b + 21] = type;
+		for (int k = b; k < b + fieldsPerLight; k++) lightBuf.put(k, lightArray[k]);
+		markDirty(i);
 	}
 
 	// This function is called once, from init() in the renderer.
@@ -143,37 +229,9 @@ public class LightManager
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 
 		int numLights = getNumLights();
-		lightArray = new float[numLights*fieldsPerLight];
-		for (int i=0; i < numLights; i++)
-		{	lightArray[i*fieldsPerLight + 0] = (getLight(i).getLocation())[0];
-			lightArray[i*fieldsPerLight + 1] = (getLight(i).getLocation())[1];
-			lightArray[i*fieldsPerLight + 2] = (getLight(i).getLocation())[2];
-			lightArray[i*fieldsPerLight + 3] = (getLight(i).getAmbient())[0];
-			lightArray[i*fieldsPerLight + 4] = (getLight(i).getAmbient())[1];
-			lightArray[i*fieldsPerLight + 5] = (getLight(i).getAmbient())[2];
-			lightArray[i*fieldsPerLight + 6] = (getLight(i).getDiffuse())[0];
-			lightArray[i*fieldsPerLight + 7] = (getLight(i).getDiffuse())[1];
-			lightArray[i*fieldsPerLight + 8] = (getLight(i).getDiffuse())[2];
-			lightArray[i*fieldsPerLight + 9] = (getLight(i).getSpecular())[0];
-			lightArray[i*fieldsPerLight + 10] = (getLight(i).getSpecular())[1];
-			lightArray[i*fieldsPerLight + 11] = (getLight(i).getSpecular())[2];
-			lightArray[i*fieldsPerLight + 12] = (getLight(i).getConstantAttenuation());
-			lightArray[i*fieldsPerLight + 13] = (getLight(i).getLinearAttenuation());
-			lightArray[i*fieldsPerLight + 14] = (getLight(i).getQuadraticAttenuation());
-			lightArray[i*fieldsPerLight + 15] = (getLight(i).getRange());
-			lightArray[i*fieldsPerLight + 16] = (getLight(i).getDirection())[0];
-			lightArray[i*fieldsPerLight + 17] = (getLight(i).getDirection())[1];
-			lightArray[i*fieldsPerLight + 18] = (getLight(i).getDirection())[2];
-			lightArray[i*fieldsPerLight + 19] = (getLight(i).getCutoffAngle());
-			lightArray[i*fieldsPerLight + 20] = (getLight(i).getOffAxisExponent());
-			float type;
-			LightType lightType = getLight(i).getLightType();
-			if (lightType == LightType.POSITIONAL) type = 0.0f; else type = 1.0f;
-			lightArray[i*fieldsPerLight + 21] = type;
-		}
+		ensureCapacity(java.lang.Math.max(numLights, 1));
+		for (int i=0; i < numLights; i++) loadLight(i);
 		gl.glGenBuffers(1, lightSSBO, 0);
-		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, lightSSBO[0]);
-		lightBuf = Buffers.newDirectFloatBuffer(lightArray);
-		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, lightBuf.limit()*4, lightBuf, GL_STATIC_DRAW);
+		updateSSBO();
 	}
-}
\ No newline at end of file
+}
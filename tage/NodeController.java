@@ -21,7 +21,7 @@ public abstract class NodeController
 	/** Causes the controller to start functioning (starts calling "apply" at each frame). */
 	public void enable()
 	{	enabled = true;
-		startTime = System.currentTimeMillis();
+		startTime = Engine.getEngine().currentTimeMillis();
 		prevTime = startTime;
 		curTime = startTime;
 		elapsedTimeTotal = 0;
@@ -57,9 +57,9 @@ public abstract class NodeController
 	// Note that this funtion calls the concrete apply() for each object.
 
 	protected void applyController()
-	{	elapsedTimeTick = System.currentTimeMillis() - prevTime;
-		elapsedTimeTotal = System.currentTimeMillis() - startTime;
-		prevTime = System.currentTimeMillis();
+	{	elapsedTimeTick = Engine.getEngine().currentTimeMillis() - prevTime;
+		elapsedTimeTotal = Engine.getEngine().currentTimeMillis() - startTime;
+		prevTime = Engine.getEngine().currentTimeMillis();
 		for (int i = 0; i < targets.size(); i++) { apply(targets.get(i)); }
 	}
 
@@ -9,30 +9,70 @@ import tage.shapes.*;
 * Specifically, it includes the following:
 * <ul>
 * <li> vertices, texture coordinates, and normals as float arrays
-* <li> integer references to the OpenGL VBOs for vertices, texture coordinates, and normals
+* <li> for indexed models, an int array of triangle indices into the (unique) vertices
+* <li> integer references to the OpenGL VAO for this shape, its interleaved VBO, and its index buffer if indexed
 * <li> a boolean indicating whether the vertices are oriented in the standard CCW configuration
 * <li> a boolean indicating whether this is an animated model
 * <li> a primitive type, usually 3=triangle (1=point, 2=line, 3=triangle)
 * <li> material ambient, diffuse, specular, and shininess properties as float arrays
+* <li> an axis-aligned bounding box and a bounding sphere in model space, computed when the shape is loaded
+* <li> an optional chain of lower levels of detail, each with the screen size below which it is used
 * </ul>
 * <p>
+* A level of detail (LOD) chain lets distant objects be drawn with fewer triangles.  Level 0 is the shape itself.
+* Lower levels can be supplied explicitly with addLOD() -- such as a hand-made low-poly version of a model --
+* or generated from an indexed triangle shape with generateLODs(), which reduces it by quadric edge collapse.
+* Either must be done before the shapes are loaded into OpenGL, i.e., in the game application's loadShapes().
+* The renderer picks a level for each object every frame, from the fraction of the viewport height
+* covered by the object's bounding sphere.
+* <p>
 * Each GameObject as one associated ObjShape object.
 * Several specific types of shapes extend ObjShape, such as Cube, Sphere, Imported Models, etc.
 * The Game Application can also define Manual Objects that also extend ObjShape.
 * All ObjShapes are loaded into VBOs during init().
 * However, the building of GameObjects and assignments of ObjShapes to GameObjects can be done later.
+* ObjShapes created after the game loop has started are queued, and loaded by the renderer over the next few frames
+* (see RenderSystem.setUploadBudget()).  Objects with a shape that isn't loaded yet are simply not drawn until it is,
+* and lower levels of detail that aren't loaded yet are skipped in favor of the finer levels.
+* <p>
+* The vertex data of a shape can also be changed after it is loaded, with updateVertices(), updateNormals(),
+* updateTexCoords(), and updateIndices(), which make the shape dynamic.  The new data is held aside until the
+* next frame is published, when it replaces the shape's data and is uploaded, so a frame being drawn never sees
+* vertex or index counts that don't match its buffers.  Shapes that are known to change should be marked with
+* setDynamic() before they are loaded, so that their buffers are created for frequent updates.
+* Levels of detail are not regenerated.
 * @author Scott Gordon
 */
 public abstract class ObjShape
 {
 	private int numVertices;
 	private float[] vertices, texCoords, normals, boneWeights, boneIndices;
-	private int vertexBuffer, texCoordBuffer, normalBuffer, boneWeightBuffer, boneIndicesBuffer;
+	private int vao, vertexBuffer;
+	private int[] indices, indexSource;
+	private int numIndices, indexBuffer;
+	private boolean shortIndices = false;
+	private float[] bounds = new float[6];   // minX, minY, minZ, maxX, maxY, maxZ
+	private Vector3f boundsCenter = new Vector3f();
+	private float boundsRadius;
+	private boolean hasBounds = false;
 	private boolean hasWindingOrderCCW;
 	private boolean isAnimated = false;
 	private int primitiveType = 3; // 1=point, 2=line, 3=triangle(default)
 	private float[] matAmb, matDif, matSpe;
 	private float matShi;
+	private static int nextShapeID = 0;
+	private int shapeID = nextShapeID++;
+	private ArrayList<ObjShape> lods = new ArrayList<ObjShape>();
+	private ArrayList<Float> lodScreenSizes = new ArrayList<Float>();
+	private boolean dynamic = false;
+	private volatile boolean updatePending = false;
+	private float[] pendingVertices, pendingTexCoords, pendingNormals;	// replacements not yet applied, or null
+	private int[] pendingIndices;
+	private long vertexBufferBytes, indexBufferBytes;
+	private ArrayList<GameObject> users = new ArrayList<GameObject>();	// the objects in the scene with this shape
+
+	// screen size below which the first generated level is used; each further level halves it
+	private static final float LOD_SCREEN_SIZE = 0.25f;
 
 	/** Instantiates an ObjShape and automatically adds it to the render system's list of shapes. */
 	public ObjShape()
@@ -49,6 +89,10 @@ public abstract class ObjShape
 
 	protected void setNumVertices(int n) { numVertices = n; }
 
+	// Returns a small integer that uniquely identifies this shape - used to sort the render queue.
+
+	protected int getShapeID() { return shapeID; }
+
 	//------------- SETTERS FOR NON-INDEXED MODELS--------------------
 
 	// Loads vertex data for non-indexed models.
@@ -136,44 +180,316 @@ public abstract class ObjShape
 
 	// -------------SETTERS FOR INDEXED MODELS -----------------
 
+	// Indexed models are kept indexed: the unique vertex attributes are stored along with the
+	// index array, and drawn with glDrawElements().  This requires that the vertices, texture
+	// coordinates, and normals all use the same index array.  If they are given different index
+	// arrays, the model falls back to being converted and stored as non-indexed.
+	// Either way, after the setters, numVertices is the number of vertices actually stored.
+
 	// Loads vertex data for indexed models.
 	// Data is provided in an array of Vector3f.
-	// Data is then converted and stored as non-indexed.
 
 	protected void setVerticesIndexed(int indices[], Vector3f[] v)
-	{	vertices = new float[indices.length*3];
-		for (int i=0; i<numVertices; i++)
-		{	vertices[i*3]   = (float) (v[indices[i]]).x;
-			vertices[i*3+1] = (float) (v[indices[i]]).y;
-			vertices[i*3+2] = (float) (v[indices[i]]).z;
+	{	if (keepIndexed(indices, v.length))
+		{	numVertices = v.length;
+			vertices = new float[v.length*3];
+			for (int i=0; i<v.length; i++)
+			{	vertices[i*3]   = v[i].x;
+				vertices[i*3+1] = v[i].y;
+				vertices[i*3+2] = v[i].z;
+			}
+		}
+		else
+		{	numVertices = indices.length;
+			vertices = new float[indices.length*3];
+			for (int i=0; i<numVertices; i++)
+			{	vertices[i*3]   = (float) (v[indices[i]]).x;
+				vertices[i*3+1] = (float) (v[indices[i]]).y;
+				vertices[i*3+2] = (float) (v[indices[i]]).z;
+			}
 		}
 	}
 
 	// Loads texture coordinates for indexed models.
-	// Data is provided in an array of Vector3f.
-	// Data is then converted and stored as non-indexed.
+	// Data is provided in an array of Vector2f.
 
 	protected void setTexCoordsIndexed(int indices[], Vector2f[] t)
-	{	texCoords = new float[indices.length*2];
-		for (int i=0; i<numVertices; i++)
-		{	texCoords[i*2]   = (float) (t[indices[i]]).x;
-			texCoords[i*2+1] = (float) (t[indices[i]]).y;
+	{	if (keepIndexed(indices, t.length))
+		{	texCoords = new float[t.length*2];
+			for (int i=0; i<t.length; i++)
+			{	texCoords[i*2]   = t[i].x;
+				texCoords[i*2+1] = t[i].y;
+			}
+		}
+		else
+		{	numVertices = indices.length;
+			texCoords = new float[indices.length*2];
+			for (int i=0; i<numVertices; i++)
+			{	texCoords[i*2]   = (float) (t[indices[i]]).x;
+				texCoords[i*2+1] = (float) (t[indices[i]]).y;
+			}
 		}
 	}
 
 	// Loads normal vectors for indexed models.
 	// Data is provided in an array of Vector3f.
-	// Data is then converted and stored as non-indexed.
 
 	protected void setNormalsIndexed(int indices[], Vector3f[] n)
-	{	normals = new float[indices.length*3];
-		for (int i=0; i<numVertices; i++)
-		{	normals[i*3]   = (float) (n[indices[i]]).x;
-			normals[i*3+1] = (float) (n[indices[i]]).y;
-			normals[i*3+2] = (float) (n[indices[i]]).z;
+	{	if (keepIndexed(indices, n.length))
+		{	normals = new float[n.length*3];
+			for (int i=0; i<n.length; i++)
+			{	normals[i*3]   = n[i].x;
+				normals[i*3+1] = n[i].y;
+				normals[i*3+2] = n[i].z;
+			}
+		}
+		else
+		{	numVertices = indices.length;
+			normals = new float[indices.length*3];
+			for (int i=0; i<numVertices; i++)
+			{	normals[i*3]   = (float) (n[indices[i]]).x;
+				normals[i*3+1] = (float) (n[indices[i]]).y;
+				normals[i*3+2] = (float) (n[indices[i]]).z;
+			}
+		}
+	}
+
+	// Decides whether an indexed attribute with the given index array and number of unique
+	// elements can be stored indexed.  The first indexed attribute establishes the index array.
+	// A later attribute with a different index array (or a different number of unique elements)
+	// causes the attributes already stored to be expanded, and the model becomes non-indexed.
+
+	private boolean keepIndexed(int[] ind, int uniqueCount)
+	{	if (indices == null)
+		{	if ((indexSource != null) || (vertices != null) || (texCoords != null) || (normals != null))
+				return false;
+			indexSource = ind;
+			indices = Arrays.copyOf(ind, ind.length);
+			numIndices = ind.length;
+			numVertices = uniqueCount;
+			return true;
+		}
+		if (((ind == indexSource) || Arrays.equals(ind, indices)) && (uniqueCount == numVertices))
+			return true;
+		deindex();
+		return false;
+	}
+
+	// Expands the stored indexed attributes into non-indexed arrays.
+
+	private void deindex()
+	{	if (vertices != null && vertices.length == numVertices*3)
+		{	float[] v = new float[numIndices*3];
+			for (int i=0; i<numIndices; i++) { System.arraycopy(vertices, indices[i]*3, v, i*3, 3); }
+			vertices = v;
+		}
+		if (texCoords != null && texCoords.length == numVertices*2)
+		{	float[] t = new float[numIndices*2];
+			for (int i=0; i<numIndices; i++) { System.arraycopy(texCoords, indices[i]*2, t, i*2, 2); }
+			texCoords = t;
+		}
+		if (normals != null && normals.length == numVertices*3)
+		{	float[] n = new float[numIndices*3];
+			for (int i=0; i<numIndices; i++) { System.arraycopy(normals, indices[i]*3, n, i*3, 3); }
+			normals = n;
 		}
+		numVertices = numIndices;
+		indices = null;
+		numIndices = 0;
 	}
 	
+	// ------------------  BOUNDING VOLUMES ---------------------
+
+	// Computes the model-space bounding box and bounding sphere from the vertices.
+	// Called by the renderer when the shape is loaded into OpenGL.
+	// The sphere is centered on the box, which is close to minimal for typical models.
+
+	protected void computeBounds()
+	{	hasBounds = false;
+		if ((vertices == null) || (vertices.length < 3)) return;
+		bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+		bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i+2 < vertices.length; i += 3)
+		{	for (int c = 0; c < 3; c++)
+			{	bounds[c] = java.lang.Math.min(bounds[c], vertices[i+c]);
+				bounds[c+3] = java.lang.Math.max(bounds[c+3], vertices[i+c]);
+		}	}
+		boundsCenter.set((bounds[0]+bounds[3])/2f, (bounds[1]+bounds[4])/2f, (bounds[2]+bounds[5])/2f);
+		float r2 = 0f;
+		for (int i = 0; i+2 < vertices.length; i += 3)
+		{	r2 = java.lang.Math.max(r2, boundsCenter.distanceSquared(vertices[i], vertices[i+1], vertices[i+2]));
+		}
+		boundsRadius = (float) java.lang.Math.sqrt(r2);
+		hasBounds = true;
+	}
+
+	// Returns a reference to the model-space bounding box, as minX, minY, minZ, maxX, maxY, maxZ.
+	protected float[] getBounds() { return bounds; }
+
+	/** returns true if bounding volumes have been computed for this ObjShape */
+	public boolean hasBounds() { return hasBounds; }
+
+	/** returns the minimum corner of the model-space axis-aligned bounding box */
+	public Vector3f getBoundsMin() { return new Vector3f(bounds[0], bounds[1], bounds[2]); }
+
+	/** returns the maximum corner of the model-space axis-aligned bounding box */
+	public Vector3f getBoundsMax() { return new Vector3f(bounds[3], bounds[4], bounds[5]); }
+
+	/** returns the center of the model-space bounding sphere */
+	public Vector3f getBoundingSphereCenter() { return new Vector3f(boundsCenter); }
+
+	/** returns the radius of the model-space bounding sphere */
+	public float getBoundingSphereRadius() { return boundsRadius; }
+
+	// ------------------  LEVELS OF DETAIL ---------------------
+
+	/**
+	* adds a lower level of detail to this ObjShape, to be used when an object with this shape covers less than
+	* the specified fraction of the viewport height.  Levels are kept ordered from the largest screen size down.
+	*/
+	public void addLOD(ObjShape lod, float screenSize)
+	{	int i = 0;
+		while ((i < lods.size()) && (lodScreenSizes.get(i) > screenSize)) i++;
+		lods.add(i, lod);
+		lodScreenSizes.add(i, screenSize);
+	}
+
+	/**
+	* generates up to the specified number of lower levels of detail for this ObjShape, each with about half the
+	* triangles of the one before, used below screen sizes of 0.25, 0.125, 0.0625, and so on.
+	* Only indexed triangle shapes that are not animated can be reduced.  Generation stops early if a level
+	* can't be reduced much further (see MeshSimplifier).  Must be called before the shapes are loaded.
+	*/
+	public void generateLODs(int levels)
+	{	if ((indices == null) || (primitiveType != 3) || isAnimated || (vertices == null))
+		{	System.out.println("LODs can only be generated for indexed, non-animated triangle shapes");
+			return;
+		}
+		int triangles = numIndices / 3;
+		int[] previous = indices;
+		for (int level = 1; level <= levels; level++)
+		{	int target = (int) (triangles / java.lang.Math.pow(2.0, level));
+			int[] reduced = MeshSimplifier.simplify(vertices, previous, target);
+			if ((reduced.length < 3) || (reduced.length > previous.length * 0.9f)) break;
+			addLOD(new SimplifiedShape(this, reduced), LOD_SCREEN_SIZE / (1 << (level-1)));
+			previous = reduced;
+		}
+	}
+
+	/** returns the number of levels of detail, including this ObjShape itself as level 0 */
+	public int getNumLODs() { return lods.size() + 1; }
+
+	/** returns the ObjShape for the specified level of detail -- level 0 is this ObjShape */
+	public ObjShape getLOD(int level)
+	{	if ((level <= 0) || lods.isEmpty()) return this;
+		return lods.get(java.lang.Math.min(level, lods.size()) - 1);
+	}
+
+	/** returns the screen size (fraction of viewport height) below which the specified level is used */
+	public float getLODScreenSize(int level)
+	{	if (level <= 0) return Float.MAX_VALUE;
+		return lodScreenSizes.get(java.lang.Math.min(level, lods.size()) - 1);
+	}
+
+	// ------------------  DYNAMIC SHAPES ---------------------
+
+	/**
+	* marks this ObjShape as dynamic (or not), meaning its vertex data is expected to change after it is loaded.
+	* Should be called before the shape is loaded.  Dynamic shapes are never merged into the shared buffers of
+	* static objects -- if the shape has already been merged, its space there is released at the next frame.
+	* The update methods below make a shape dynamic if it isn't already.
+	*/
+	public void setDynamic(boolean d)
+	{	if (d && !dynamic) Engine.getEngine().getRenderSystem().shapeMadeDynamic(this);
+		dynamic = d;
+	}
+
+	/** returns true if this ObjShape is dynamic */
+	public boolean isDynamic() { return dynamic; }
+
+	/**
+	* replaces the vertex positions, 3 floats per vertex.  The array is used directly rather than copied,
+	* so it can be filled again and passed again each frame.  The number of vertices may change, as long as the
+	* other attributes (and the indices, if the shape is indexed) are updated to match.
+	* Takes effect, and is uploaded, when the next frame is published.
+	*/
+	public void updateVertices(float[] v)
+	{	pendingVertices = v;
+		geometryChanged();
+	}
+
+	/** replaces the texture coordinates, 2 floats per vertex -- the array is used directly.  Takes effect at the next frame. */
+	public void updateTexCoords(float[] t)
+	{	pendingTexCoords = t;
+		geometryChanged();
+	}
+
+	/** replaces the normal vectors, 3 floats per vertex -- the array is used directly.  Takes effect at the next frame. */
+	public void updateNormals(float[] n)
+	{	pendingNormals = n;
+		geometryChanged();
+	}
+
+	/**
+	* replaces the triangle indices -- the array is used directly.  If the shape isn't indexed, it becomes indexed,
+	* and its vertex attributes (including any passed to the other update methods before the same frame) are the
+	* vertices the indices refer to.  Takes effect at the next frame.
+	*/
+	public void updateIndices(int[] ind)
+	{	pendingIndices = ind;
+		geometryChanged();
+	}
+
+	// Queues the shape for re-uploading, once per frame however many of its attributes change.
+	private void geometryChanged()
+	{	if (!dynamic) setDynamic(true);
+		if (updatePending) return;
+		updatePending = true;
+		Engine.getEngine().getRenderSystem().shapeChanged(this);
+	}
+
+	// Called by the renderer when the frame is published, just before it uploads the shape's data:
+	// the replacements passed to the update methods become the shape's data, along with their counts.
+	// Returns true if the indices have been replaced since the previous upload.
+	protected boolean applyPendingUpdate()
+	{	if (pendingVertices != null) { vertices = pendingVertices; numVertices = vertices.length / 3; }
+		if (pendingTexCoords != null) texCoords = pendingTexCoords;
+		if (pendingNormals != null) normals = pendingNormals;
+		boolean ind = (pendingIndices != null);
+		if (ind)
+		{	indices = pendingIndices;
+			indexSource = pendingIndices;
+			numIndices = indices.length;
+		}
+		pendingVertices = null; pendingTexCoords = null; pendingNormals = null; pendingIndices = null;
+		updatePending = false;
+		return ind;
+	}
+
+	// Records an object in the scene that uses this shape.  Called by the SceneGraph and GameObject.setShape().
+	protected void addUser(GameObject go)
+	{	go.setShapeUserIndex(users.size());
+		users.add(go);
+	}
+
+	// Forgets an object that no longer uses this shape, by moving the last user into its slot.
+	protected void removeUser(GameObject go)
+	{	int i = go.getShapeUserIndex();
+		if ((i < 0) || (i >= users.size()) || (users.get(i) != go)) return;
+		int last = users.size() - 1;
+		GameObject moved = users.get(last);
+		users.set(i, moved);
+		moved.setShapeUserIndex(i);
+		users.remove(last);
+		go.setShapeUserIndex(-1);
+	}
+
+	// returns the objects in the scene that use this shape - for engine use.
+	protected ArrayList<GameObject> getUsers() { return users; }
+
+	/** returns true once this ObjShape has been loaded into OpenGL */
+	public boolean isLoaded() { return vao != 0; }
+
 	// ------------------  ACCESSORS ---------------------
 
 	// Setters with 3-element float array for R, G, B.
@@ -201,28 +517,38 @@ public abstract class ObjShape
 
 	protected void setAnimated(boolean b) { isAnimated = b; }
 
+	protected void setVAO(int v) { vao = v; }
 	protected void setVertexBuffer(int b) { vertexBuffer = b; }
-	protected void setTexCoordBuffer(int b) { texCoordBuffer = b; }
-	protected void setNormalBuffer(int b) { normalBuffer = b; }
-	protected void setBoneWeightBuffer(int b) { boneWeightBuffer = b; }
-	protected void setBoneIndicesBuffer(int b) { boneIndicesBuffer = b; }
-
-	/** engine use only. */
+	protected void setIndexBuffer(int b) { indexBuffer = b; }
+	protected void setShortIndices(boolean s) { shortIndices = s; }
+	protected void setVertexBufferBytes(long b) { vertexBufferBytes = b; }
+	protected void setIndexBufferBytes(long b) { indexBufferBytes = b; }
+	protected long getVertexBufferBytes() { return vertexBufferBytes; }
+	protected long getIndexBufferBytes() { return indexBufferBytes; }
+
+	/** engine use only - the VAO that holds this shape's vertex attribute layout and index buffer. */
+	public int getVAO() { return vao; }
+	/** engine use only - the interleaved VBO holding all of this shape's vertex attributes. */
 	public int getVertexBuffer() { return vertexBuffer; }
 	/** engine use only. */
-	public int getTexCoordBuffer() { return texCoordBuffer; }
-	/** engine use only. */
-	public int getNormalBuffer() { return normalBuffer; }
-	/** engine use only. */
-	public int getBoneWeightBuffer() { return boneWeightBuffer; }
-	/** engine use only. */
-	public int getBoneIndicesBuffer() { return boneIndicesBuffer; }
+	public int getIndexBuffer() { return indexBuffer; }
+	/** engine use only - true if the index buffer holds unsigned shorts rather than unsigned ints. */
+	public boolean hasShortIndices() { return shortIndices; }
 
 	// These are available for general use (and are also used by the engine)
 
-	/** returns the number of vertices in this ObjShape */
+	/** returns the number of vertices in this ObjShape -- for indexed shapes, this is the number of unique vertices */
 	public int getNumVertices() { return numVertices; }
 
+	/** returns true if this ObjShape is drawn using an index array */
+	public boolean isIndexed() { return (indices != null); }
+
+	/** returns the number of indices in this ObjShape, or 0 if it is not indexed */
+	public int getNumIndices() { return numIndices; }
+
+	/** returns a reference to the int array containing the triangle indices of this ObjShape, or null if it is not indexed */
+	public int[] getIndices() { return indices; }
+
 	/** returns a reference to the float array containing all of the vertices of this ObjShape */
 	public float[] getVertices() { return vertices; }
 
@@ -0,0 +1,156 @@
+package tage;
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+/**
+* Keeps linked shader programs on disk, so that later runs of the game can load them instead of recompiling them.
+* <p>
+* When Utils builds a program, it first asks the cache for a binary built from the same shader sources.
+* The key is a hash of the source text of every stage, together with the OpenGL vendor, renderer, and version
+* strings -- so editing a shader, or running on a different GPU or driver, simply misses the cache.
+* On a hit, the binary is loaded with glProgramBinary().  If the driver rejects it, the file is deleted
+* and the program is compiled from source as usual.  On a miss, the newly linked program is retrieved with
+* glGetProgramBinary() and written to the cache for next time.
+* <p>
+* The binaries are stored in the directory .tagecache/programs (relative to the working directory),
+* which should not be committed.  The cache does nothing if the driver supports no program binary formats.
+* <p>
+* Used by the engine.  The game application may disable the cache, or change its directory,
+* before the engine is initialized.
+* @author Scott Gordon
+*/
+public class ProgramCache
+{
+	private static File directory = new File(".tagecache/programs");
+	private static boolean enabled = true;
+	private static int hits, misses;
+
+	/** enables or disables the program binary cache */
+	public static void setEnabled(boolean e) { enabled = e; }
+
+	/** returns true if the program binary cache is enabled */
+	public static boolean isEnabled() { return enabled; }
+
+	/** sets the directory where program binaries are stored */
+	public static void setDirectory(String dir) { directory = new File(dir); }
+
+	/** returns the number of programs loaded from the cache */
+	public static synchronized int getHits() { return hits; }
+
+	/** returns the number of programs that had to be compiled because they were not in the cache */
+	public static synchronized int getMisses() { return misses; }
+
+	// Returns the cache key for a program built from the specified shader stages, or null if the cache
+	// can't be used (because it is disabled, a source is missing, or the driver has no binary formats).
+
+	protected static String getKey(int[] types, String[][] sources)
+	{	if (!enabled) return null;
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		int[] formats = new int[1];
+		gl.glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+		if (formats[0] == 0) return null;
+		try
+		{	MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(gl.glGetString(GL_VENDOR).getBytes("UTF-8"));
+			md.update(gl.glGetString(GL_RENDERER).getBytes("UTF-8"));
+			md.update(gl.glGetString(GL_VERSION).getBytes("UTF-8"));
+			for (int i = 0; i < types.length; i++)
+			{	if (sources[i] == null) return null;
+				md.update(Integer.toString(types[i]).getBytes("UTF-8"));
+				for (String line : sources[i]) md.update(line.getBytes("UTF-8"));
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : md.digest()) key.append(String.format("%02x", b));
+			return key.toString();
+		}
+		catch (NoSuchAlgorithmException | UnsupportedEncodingException e)
+		{	return null;
+		}
+	}
+
+	// Returns a program loaded from the cached binary with the specified key, or 0 if there isn't a usable one.
+
+	protected static int load(String key)
+	{	if (key == null) return 0;
+		File f = new File(directory, key + ".bin");
+		if (!f.isFile()) { count(false); return 0; }
+
+		int format;
+		byte[] binary;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+		{	format = in.readInt();
+			binary = new byte[in.readInt()];
+			in.readFully(binary);
+		}
+		catch (IOException e)
+		{	f.delete();
+			count(false);
+			return 0;
+		}
+
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		int program = gl.glCreateProgram();
+		gl.glProgramBinary(program, format, Buffers.newDirectByteBuffer(binary), binary.length);
+		int[] linked = new int[1];
+		gl.glGetProgramiv(program, GL_LINK_STATUS, linked, 0);
+		if (linked[0] != 1)
+		{	// the driver no longer accepts this binary
+			gl.glDeleteProgram(program);
+			f.delete();
+			count(false);
+			return 0;
+		}
+		count(true);
+		return program;
+	}
+
+	// Asks the driver to keep the binary of a program that is about to be linked.
+
+	protected static void prepare(int program)
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		gl.glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+	}
+
+	// Writes the binary of a successfully linked program to the cache under the specified key.
+	// The file is written under a temporary name and then renamed, so a partly written file is never loaded.
+
+	protected static void store(int program, String key)
+	{	if (key == null) return;
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		int[] linked = new int[1];
+		int[] length = new int[1];
+		int[] format = new int[1];
+		gl.glGetProgramiv(program, GL_LINK_STATUS, linked, 0);
+		gl.glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if ((linked[0] != 1) || (length[0] == 0)) return;
+
+		ByteBuffer binary = Buffers.newDirectByteBuffer(length[0]);
+		gl.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+		byte[] bytes = new byte[length[0]];
+		binary.get(bytes);
+
+		directory.mkdirs();
+		File f = new File(directory, key + ".bin");
+		File tmp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+		{	out.writeInt(format[0]);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		catch (IOException e)
+		{	System.out.println("could not write program binary cache file " + f);
+			tmp.delete();
+			return;
+		}
+		f.delete();
+		if (!tmp.renameTo(f)) tmp.delete();
+	}
+
+	private static synchronized void count(boolean hit)
+	{	if (hit) hits++; else misses++;
+	}
+}
@@ -0,0 +1,209 @@
+package tage;
+import java.util.*;
+import java.util.concurrent.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+* Holds the reflection data for one linked shader program.
+* <br>
+* Specifically, it includes the following:
+* <ul>
+* <li> the location, array size, and type of every active uniform
+* <li> the binding point of every active uniform block
+* <li> the binding point of every active shader storage block (SSBO)
+* </ul>
+* <p>
+* The reflection data is gathered one time, when Utils.finalizeProgram() links the program,
+* using the OpenGL program interface queries.  After that, the renderers never need to
+* call glGetUniformLocation().  Instead, each renderer declares a fixed String array of the
+* uniform names it uses, and calls getLocations() with that array.  The returned int array
+* is cached per program, so subsequent lookups are a single identity-map access, and the
+* renderer reads each location by its precomputed index (handle) into the array.
+* <p>
+* Uniform arrays (such as the skin matrices in the skeletal shader) are recorded under their
+* base name without the "[0]" suffix, along with their array size, so that an entire array can be
+* uploaded with a single glUniform*v() call.  Individual element locations are also available.
+* <p>
+* Used by the engine, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class ProgramReflection
+{
+	//------------------ STATIC AREA -----------------------
+	// programs may be linked on the background compiler thread, so the registry is a concurrent map
+	private static ConcurrentHashMap<Integer, ProgramReflection> programs = new ConcurrentHashMap<Integer, ProgramReflection>();
+
+	// Called by Utils.finalizeProgram() after a successful link.
+	// Any previous reflection data for the same program name is replaced.
+
+	protected static ProgramReflection reflect(int program)
+	{	ProgramReflection r = new ProgramReflection(program);
+		programs.put(program, r);
+		return r;
+	}
+
+	/** returns the reflection data for the specified program, or null if the program was not linked through Utils */
+	public static ProgramReflection get(int program) { return programs.get(program); }
+
+	/**
+	* Returns the cached uniform locations for the specified program, in the same order as the names.
+	* If the program has no reflection data (for example, it failed to link), every location is -1,
+	* which OpenGL silently ignores when uploading uniforms.
+	*/
+	public static int[] getLocations(int program, String[] names)
+	{	ProgramReflection r = programs.get(program);
+		if (r != null) return r.getLocations(names);
+		int[] locs = new int[names.length];
+		Arrays.fill(locs, -1);
+		return locs;
+	}
+	//------------------------------------------------------
+
+	private int program;
+	private HashMap<String, Uniform> uniforms = new HashMap<String, Uniform>();
+	private HashMap<String, Integer> uniformBlocks = new HashMap<String, Integer>();
+	private HashMap<String, Integer> storageBlocks = new HashMap<String, Integer>();
+	private IdentityHashMap<String[], int[]> handleTables = new IdentityHashMap<String[], int[]>();
+
+	private ProgramReflection(int p)
+	{	program = p;
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		reflectUniforms(gl);
+		uniformBlocks = reflectBlocks(gl, GL_UNIFORM_BLOCK);
+		storageBlocks = reflectBlocks(gl, GL_SHADER_STORAGE_BLOCK);
+	}
+
+	private void reflectUniforms(GL4 gl)
+	{	int[] count = new int[1];
+		int[] maxLen = new int[1];
+		gl.glGetProgramInterfaceiv(program, GL_UNIFORM, GL_ACTIVE_RESOURCES, count, 0);
+		gl.glGetProgramInterfaceiv(program, GL_UNIFORM, GL_MAX_NAME_LENGTH, maxLen, 0);
+
+		int[] props = { GL_LOCATION, GL_ARRAY_SIZE, GL_TYPE };
+		int[] params = new int[props.length];
+		byte[] nameBytes = new byte[java.lang.Math.max(maxLen[0], 1)];
+		int[] len = new int[1];
+		int[] written = new int[1];
+
+		for (int i = 0; i < count[0]; i++)
+		{	gl.glGetProgramResourceName(program, GL_UNIFORM, i, nameBytes.length, len, 0, nameBytes, 0);
+			gl.glGetProgramResourceiv(program, GL_UNIFORM, i, props.length, props, 0, params.length, written, 0, params, 0);
+
+			// uniforms that are members of a uniform block have no location
+			if (params[0] < 0) continue;
+
+			String name = new String(nameBytes, 0, len[0]);
+			if (name.endsWith("[0]")) name = name.substring(0, name.length()-3);
+
+			Uniform u = new Uniform(params[0], params[1], params[2]);
+			if (u.arraySize > 1)
+			{	u.elementLocations = new int[u.arraySize];
+				for (int e = 0; e < u.arraySize; e++)
+				{	u.elementLocations[e] = gl.glGetProgramResourceLocation(program, GL_UNIFORM,
+						toCString(name + "[" + e + "]"), 0);
+				}
+			}
+			uniforms.put(name, u);
+		}
+	}
+
+	private HashMap<String, Integer> reflectBlocks(GL4 gl, int blockInterface)
+	{	HashMap<String, Integer> blocks = new HashMap<String, Integer>();
+		int[] count = new int[1];
+		int[] maxLen = new int[1];
+		gl.glGetProgramInterfaceiv(program, blockInterface, GL_ACTIVE_RESOURCES, count, 0);
+		gl.glGetProgramInterfaceiv(program, blockInterface, GL_MAX_NAME_LENGTH, maxLen, 0);
+
+		int[] props = { GL_BUFFER_BINDING };
+		int[] params = new int[1];
+		byte[] nameBytes = new byte[java.lang.Math.max(maxLen[0], 1)];
+		int[] len = new int[1];
+		int[] written = new int[1];
+
+		for (int i = 0; i < count[0]; i++)
+		{	gl.glGetProgramResourceName(program, blockInterface, i, nameBytes.length, len, 0, nameBytes, 0);
+			gl.glGetProgramResourceiv(program, blockInterface, i, 1, props, 0, 1, written, 0, params, 0);
+			blocks.put(new String(nameBytes, 0, len[0]), params[0]);
+		}
+		return blocks;
+	}
+
+	private static byte[] toCString(String s)
+	{	byte[] b = new byte[s.length()+1];
+		for (int i = 0; i < s.length(); i++) b[i] = (byte) s.charAt(i);
+		return b;
+	}
+
+	// ------------------  ACCESSORS ---------------------
+
+	/** returns the OpenGL program name that this reflection data describes */
+	public int getProgram() { return program; }
+
+	/** returns the location of the named uniform, or -1 if it is not active in this program */
+	public int getUniformLocation(String name)
+	{	Uniform u = uniforms.get(name);
+		return (u == null) ? -1 : u.location;
+	}
+
+	/** returns the location of element i of the named uniform array, or -1 if it is not active */
+	public int getUniformLocation(String name, int i)
+	{	Uniform u = uniforms.get(name);
+		if (u == null) return -1;
+		if (u.elementLocations == null) return (i == 0) ? u.location : -1;
+		return (i < u.elementLocations.length) ? u.elementLocations[i] : -1;
+	}
+
+	/** returns the array size of the named uniform (1 for non-arrays), or 0 if it is not active */
+	public int getUniformArraySize(String name)
+	{	Uniform u = uniforms.get(name);
+		return (u == null) ? 0 : u.arraySize;
+	}
+
+	/** returns the OpenGL type enum of the named uniform, or 0 if it is not active */
+	public int getUniformType(String name)
+	{	Uniform u = uniforms.get(name);
+		return (u == null) ? 0 : u.type;
+	}
+
+	/** returns true if the named uniform is active in this program */
+	public boolean hasUniform(String name) { return uniforms.containsKey(name); }
+
+	/** returns the binding point of the named uniform block, or -1 if it is not active */
+	public int getUniformBlockBinding(String name)
+	{	Integer b = uniformBlocks.get(name);
+		return (b == null) ? -1 : b;
+	}
+
+	/** returns the binding point of the named shader storage block, or -1 if it is not active */
+	public int getStorageBlockBinding(String name)
+	{	Integer b = storageBlocks.get(name);
+		return (b == null) ? -1 : b;
+	}
+
+	/**
+	* Returns the locations of the specified uniforms, in the same order as the names.
+	* The result is cached using the identity of the names array, so callers should
+	* pass the same (static final) array every time.
+	*/
+	public int[] getLocations(String[] names)
+	{	int[] locs = handleTables.get(names);
+		if (locs == null)
+		{	locs = new int[names.length];
+			for (int i = 0; i < names.length; i++) locs[i] = getUniformLocation(names[i]);
+			handleTables.put(names, locs);
+		}
+		return locs;
+	}
+
+	/** returns the names of all active uniforms in this program */
+	public Set<String> getUniformNames() { return Collections.unmodifiableSet(uniforms.keySet()); }
+
+	// --------------- private class for a single uniform ----------------
+
+	private static class Uniform
+	{	private int location, arraySize, type;
+		private int[] elementLocations;
+		private Uniform(int l, int s, int t) { location = l; arraySize = s; type = t; }
+	}
+}
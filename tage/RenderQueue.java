@@ -1,49 +1,389 @@
 package tage;
 import java.util.*;
+import java.util.concurrent.*;
+import org.joml.*;
+import tage.shapes.*;
 
 /**
-* Builds a render queue by traversing the GameObjects as specified in the scenegraph tree.
-* After building the queue as a Vector, it makes available an iterator for the queue.
+* Maintains a persistent, sorted render queue of the GameObjects in the scenegraph.
 * It is used by the engine before rendering each frame,
 * and none of the functions should be called directly by the game application.
 * <p>
-* Eventually, the plan is to support transparency, such that transparent objects are
-* moved to the end of the queue.  But this is not yet implemented.  As of now, all methods are protected.
+* The queue is owned by the SceneGraph, and is updated incrementally -- objects are added and
+* removed as the SceneGraph adds and removes them, rather than by traversing the tree every frame.
+* Each entry caches the part of its sort key that depends on its render states (renderer type,
+* program, texture).  That part is only recomputed when the object's RenderStates report a change.
+* <p>
+* Before each viewport is rendered, the queue is sorted by a packed 64-bit key using an
+* allocation-free LSD radix sort.  From most to least significant, the key contains:
+* <ul>
+* <li> a transparency bit, so that transparent objects are drawn after all opaque objects
+* <li> for opaque objects: renderer type, program, texture, shape, and then view depth (front-to-back)
+* (for standard objects, the program part is the object's shader variant feature mask, so that objects drawn
+* with the same specialized shader stay adjacent)
+* <li> for transparent objects: inverted view depth (back-to-front), and then renderer type, program, texture, shape
+* </ul>
+* Transparent objects are ordered primarily by depth, since back-to-front order matters more for
+* blending than state changes do.  Objects that are not renderable (rendering disabled, or no shape)
+* are left out of the sorted result, as are objects whose shape hasn't been loaded into OpenGL yet.
+* <p>
+* When frustum culling is enabled, objects whose world-space bounding box lies entirely outside
+* the view frustum are also left out.  The frustum planes are extracted from the viewport's
+* projection and view matrices.  Rather than testing every object, the queue asks the SceneGraph's
+* bounding volume tree for the objects in the frustum, and only those (plus any objects that have no
+* bounds yet) are considered, so whole groups of off-screen objects are rejected with a single test.
+* The number of boxes tested and objects culled by the most recent sort are available for verifying the culling.
+* <p>
+* For objects whose shape has a level of detail chain, the level is selected while the keys are built,
+* from the fraction of the viewport height covered by the object's world bounding sphere.
+* To keep objects near a threshold from switching back and forth, a level only changes once the screen size
+* is beyond the threshold by a margin (hysteresis).  The shape part of the key is that of the selected level,
+* so that objects drawing the same level stay adjacent.  The queue keeps the most recent selection of each object
+* in each viewport as the starting point for the hysteresis, so viewports showing an object at different sizes
+* don't reset each other's selections.  Each viewport's draw list records the level selected for it.
+* <p>
+* Building the keys is the preparation stage of each viewport, and the renderer's submission stage then only
+* walks the sorted result, issuing OpenGL calls.  Besides the key and level of detail, preparation composes the
+* model matrix and normal matrix (inverse-transpose) of each visible object into a flat array.
+* They are only recomposed when the object's transform or render states have changed since they were last composed.
+* After sorting, fill() copies the result -- the objects in draw order, with their matrices, selected levels of detail,
+* and render states -- into the viewport's DrawList, which is what the renderer draws from.  When there are enough candidate objects, preparation is
+* split across the common fork-join pool's worker threads -- each object is prepared independently, into its
+* own slots of the arrays.  The radix sort that follows is quick, and stays on the calling thread.
 * @author Scott Gordon
 */
 
 public class RenderQueue
 {
-	private Vector<GameObject> queue;
-	private GameObject root;
+	private static final int DEPTH_BITS = 24;
+	private static final long DEPTH_MAX = (1L << DEPTH_BITS) - 1;
+	private static final int SHAPE_SHIFT = 24, TEXTURE_SHIFT = 36, PROGRAM_SHIFT = 48, TYPE_SHIFT = 54;
+	private static final long TRANSPARENT_BIT = 1L << 63;
+
+	// fraction beyond an LOD threshold that the screen size must reach before the level changes
+	private static final float LOD_HYSTERESIS = 0.1f;
+
+	private static final long SKIPPED = -1L;			// key of a candidate that isn't drawn -- sorts after all others
+	private static final int TRANSFORM_FLOATS = 32;		// model matrix, then normal matrix
+	private static final int PARALLEL_THRESHOLD = 256;	// fewer candidates than this are prepared on the calling thread
+	private static final int LEAF_SIZE = 64;			// candidates prepared by each fork-join task
+
+	/** renderer types, in the order they sort within the opaque objects */
+	protected static final int STANDARD = 0, ANIMATION = 1, LINE = 2;
+
+	private SceneGraph sceneGraph;
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+	private ArrayList<GameObject> candidates = new ArrayList<GameObject>();
+	private int standardProgram, animationProgram, lineProgram, defaultTexture;
+
+	// sort arrays, reused from frame to frame and only grown when the queue outgrows them
+	private long[] keys = new long[64], tmpKeys = new long[64];
+	private int[] order = new int[64], tmpOrder = new int[64];
+	private int[] counts = new int[256];
+	private int sortedCount;
+
+	// the candidates' entry indices, and each entry's prepared matrices, indexed by entry
+	private int[] candidateIndex = new int[64];
+	private float[] transforms = new float[64 * TRANSFORM_FLOATS];
+
+	// the most recently selected level of detail of each entry, one array per viewport, indexed by entry
+	private ArrayList<int[]> lodLevels = new ArrayList<int[]>();
+	private boolean parallel = true;
+	private Vector3f loc = new Vector3f();
+	private Matrix4f tmpModel = new Matrix4f(), tmpNormal = new Matrix4f();
+
+	// the view being prepared, read by the preparation tasks
+	private Matrix4f prepView;
+	private float prepFarClip, prepDepthScale;
+	private int[] prepLevels;
+
+	private Matrix4f pvMat = new Matrix4f();
+	private FrustumIntersection frustum = new FrustumIntersection();
+	private boolean culling = true;
+	private boolean lod = true;
+	private float projScale;
+	private int numTested, numCulled;
+
+	protected RenderQueue(SceneGraph sg) { sceneGraph = sg; }
+
+	// Specifies the programs used by each renderer type, and the texture used when an object has none.
+	// Called from init() in the renderer.  All cached keys are recomputed on the next sort.
+
+	protected void setRenderResources(int standard, int animation, int line, int defTexture)
+	{	standardProgram = standard;
+		animationProgram = animation;
+		lineProgram = line;
+		defaultTexture = defTexture;
+		for (int i = 0; i < entries.size(); i++) entries.get(i).version = -1;
+	}
 
-	protected RenderQueue(GameObject r)
-	{	queue = new Vector<GameObject>();
-		root = r;
+	// Called by the SceneGraph when a GameObject is added.
+
+	protected void add(GameObject g)
+	{	g.setQueueIndex(entries.size());
+		entries.add(new Entry(g));
+		ensureCapacity(entries.size());
+		for (int v = 0; v < lodLevels.size(); v++) lodLevels.get(v)[entries.size()-1] = 0;
 	}
 
-	// A standard queue includes all of the game objects.
-	// It is built by starting at the root and traversing all of the
-	// children and their descendents, adding them to the queue.
+	// Called by the SceneGraph when a GameObject is removed.
+	// The last entry is moved into the vacated slot, since order is rebuilt by the sort anyway.
 
-	protected Vector<GameObject> createStandardQueue()
-	{	GameObject current = root;
-		queue.clear();
-		addToQueue(root.getChildrenIterator());
-		return queue;
+	protected void remove(GameObject g)
+	{	int i = g.getQueueIndex();
+		if ((i < 0) || (i >= entries.size()) || (entries.get(i).go != g)) return;
+		int last = entries.size() - 1;
+		Entry moved = entries.get(last);
+		entries.set(i, moved);
+		moved.go.setQueueIndex(i);
+		entries.remove(last);
+		moved.transformVersion = -1;	// its matrices are still in the slots of its old index
+		for (int v = 0; v < lodLevels.size(); v++) lodLevels.get(v)[i] = lodLevels.get(v)[last];
+		g.setQueueIndex(-1);
 	}
 
-	protected void addToQueue(GameObject g) { queue.add(g); }
+	/** returns the number of GameObjects in the queue, renderable or not */
+	protected int getNumObjects() { return entries.size(); }
+
+	// Sorts the visible renderable objects for a viewport with the given projection and view matrices,
+	// and far clipping distance.  Afterwards, size() and get() return the objects in draw order, and fill() copies them.
+	// The viewport number selects which of the per-viewport level of detail selections are continued.
 
-	// Recursive traversal of the game objects
+	// The SceneGraph's bounding volume tree must be up to date.
 
-	protected void addToQueue(Iterator goIterator)
-	{	while (goIterator.hasNext())
-		{	GameObject go = (GameObject) goIterator.next();
-			addToQueue(go);
-			if (go.hasChildren()) addToQueue(go.getChildrenIterator());
+	protected void sort(Matrix4f pMat, Matrix4f vMat, float farClip, int viewport)
+	{	int n = 0;
+		while (lodLevels.size() <= viewport) lodLevels.add(new int[keys.length]);
+		prepLevels = lodLevels.get(viewport);
+		numTested = 0;
+		numCulled = 0;
+		projScale = pMat.m11();
+		if (culling)
+		{	BoundingVolumeTree bvh = sceneGraph.getBoundingVolumeTree();
+			ArrayList<GameObject> unbounded = sceneGraph.getUnboundedObjects();
+			frustum.set(pMat.mul(vMat, pvMat));
+			candidates.clear();
+			bvh.queryFrustum(frustum, candidates);
+			numTested = bvh.getNumTested();
+			numCulled = bvh.getNumLeaves() - candidates.size();
+			for (int i = 0; i < unbounded.size(); i++) candidates.add(unbounded.get(i));
+			for (int i = 0; i < candidates.size(); i++) candidateIndex[n++] = candidates.get(i).getQueueIndex();
+		}
+		else
+		{	for (int i = 0; i < entries.size(); i++) candidateIndex[n++] = i;
 		}
+
+		prepView = vMat;
+		prepFarClip = farClip;
+		prepDepthScale = DEPTH_MAX / farClip;
+		if (parallel && (n >= PARALLEL_THRESHOLD)) ForkJoinPool.commonPool().invoke(new PrepareTask(0, n));
+		else prepare(0, n, loc, tmpModel, tmpNormal);
+
+		radixSort(n);
+		while ((n > 0) && (keys[n-1] == SKIPPED)) n--;
+		sortedCount = n;
 	}
 
-	protected Iterator getIterator() { return queue.iterator(); }
-}
\ No newline at end of file
+	// Prepares candidates [from..to): builds the key for each one at the same position, selects its level of detail,
+	// and composes the matrices of the objects whose transforms have changed.  Candidates that aren't renderable get the key SKIPPED.
+	// Each candidate only touches its own entry, object, and slots, so ranges can be prepared concurrently,
+	// with each thread supplying its own temporaries.
+
+	private void prepare(int from, int to, Vector3f loc, Matrix4f model, Matrix4f normal)
+	{	Matrix4f vMat = prepView;
+		for (int j = from; j < to; j++)
+		{	int i = candidateIndex[j];
+			Entry e = entries.get(i);
+			order[j] = i;
+			RenderStates rs = e.go.getRenderStates();
+			if (e.version != rs.getVersion()) updateStaticKey(e);
+			if (!e.renderable || !e.go.getShape().isLoaded()) { keys[j] = SKIPPED; continue; }
+			e.renderShape = selectLOD(e.go, i, vMat);
+			long shapeKey = ((long) (e.renderShape.getShapeID() & 0xFFF)) << SHAPE_SHIFT;
+
+			// distance in front of the camera, quantized over [0..farClip]
+			e.go.getWorldLocation(loc);
+			float z = -(vMat.m02()*loc.x + vMat.m12()*loc.y + vMat.m22()*loc.z + vMat.m32());
+			long depth = (long) (java.lang.Math.min(java.lang.Math.max(z, 0f), prepFarClip) * prepDepthScale);
+			if (depth > DEPTH_MAX) depth = DEPTH_MAX;
+
+			if (e.transparent)
+				keys[j] = TRANSPARENT_BIT | ((DEPTH_MAX - depth) << 32) | ((e.staticKey | shapeKey) >>> SHAPE_SHIFT);
+			else
+				keys[j] = e.staticKey | shapeKey | depth;
+
+			if (e.transformVersion != e.go.getRenderVersion())
+			{	e.transformVersion = e.go.getRenderVersion();
+				if (e.type == LINE) e.go.getLineModelMatrix(model);
+				else e.go.getModelMatrix(model);
+				model.invert(normal).transpose();
+				model.get(transforms, i * TRANSFORM_FLOATS);
+				normal.get(transforms, i * TRANSFORM_FLOATS + 16);
+			}
+		}
+	}
+
+	// Splits a range of candidates in half until it is small enough to prepare directly.
+	private class PrepareTask extends RecursiveAction
+	{	private static final long serialVersionUID = 1L;
+		private int from, to;
+		private PrepareTask(int f, int t) { from = f; to = t; }
+
+		protected void compute()
+		{	if (to - from <= LEAF_SIZE)
+			{	prepare(from, to, new Vector3f(), new Matrix4f(), new Matrix4f());
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new PrepareTask(from, mid), new PrepareTask(mid, to));
+		}
+	}
+
+	// Selects the level of detail for the object of entry i from its projected size, starting from the level
+	// last selected for it in the viewport being prepared, and returns the shape to draw.  The screen size is
+	// the bounding sphere's radius times the projection's y scale over its view depth, which is the fraction
+	// of the viewport height covered by the sphere's diameter.
+
+	private ObjShape selectLOD(GameObject go, int i, Matrix4f vMat)
+	{	ObjShape shape = go.getShape();
+		int levels = shape.getNumLODs();
+		if (!lod || (levels < 2) || !go.hasWorldBounds())
+		{	prepLevels[i] = 0;
+			return shape;
+		}
+		float[] b = go.getWorldBounds();
+		float cx = (b[0]+b[3])*0.5f, cy = (b[1]+b[4])*0.5f, cz = (b[2]+b[5])*0.5f;
+		float dx = b[3]-b[0], dy = b[4]-b[1], dz = b[5]-b[2];
+		float r = 0.5f * (float) java.lang.Math.sqrt(dx*dx + dy*dy + dz*dz);
+		float z = -(vMat.m02()*cx + vMat.m12()*cy + vMat.m22()*cz + vMat.m32());
+		float size = (z > r) ? (r * projScale / z) : Float.MAX_VALUE;
+
+		int level = java.lang.Math.min(prepLevels[i], levels - 1);
+		while ((level+1 < levels) && (size < shape.getLODScreenSize(level+1) * (1f - LOD_HYSTERESIS))) level++;
+		while ((level > 0) && (size > shape.getLODScreenSize(level) * (1f + LOD_HYSTERESIS))) level--;
+		while ((level > 0) && !shape.getLOD(level).isLoaded()) level--;		// still waiting to be uploaded
+		prepLevels[i] = level;
+		return shape.getLOD(level);
+	}
+
+	/** enables or disables frustum culling */
+	protected void setFrustumCulling(boolean c) { culling = c; }
+
+	/** returns true if frustum culling is enabled */
+	protected boolean isFrustumCulling() { return culling; }
+
+	/** enables or disables level of detail selection -- when disabled, every object is drawn with its full shape */
+	protected void setLevelOfDetail(boolean l) { lod = l; }
+
+	/** returns true if level of detail selection is enabled */
+	protected boolean isLevelOfDetail() { return lod; }
+
+	/** enables or disables splitting the preparation of large queues across worker threads */
+	protected void setParallelPreparation(boolean p) { parallel = p; }
+
+	/** returns true if the preparation of large queues is split across worker threads */
+	protected boolean isParallelPreparation() { return parallel; }
+
+	/** returns the number of bounding boxes tested against the frustum in the most recent sort */
+	protected int getNumTested() { return numTested; }
+
+	/** returns the number of objects with bounds that were culled by the frustum in the most recent sort */
+	protected int getNumCulled() { return numCulled; }
+
+	/** returns the number of renderable objects produced by the most recent sort */
+	protected int size() { return sortedCount; }
+
+	/** returns the i-th renderable object in draw order, from the most recent sort */
+	protected GameObject get(int i) { return entries.get(order[i]).go; }
+
+	/** returns the shader variant feature mask of the i-th renderable object, from the most recent sort */
+	protected int getFeatures(int i) { return entries.get(order[i]).features; }
+
+	// Copies the result of the most recent sort into the specified draw list, replacing its contents.
+
+	protected void fill(DrawList list)
+	{	list.clear();
+		for (int i = 0; i < sortedCount; i++)
+		{	Entry e = entries.get(order[i]);
+			list.add(e.go, e.renderShape, e.type, e.features, e.transformVersion, transforms, order[i] * TRANSFORM_FLOATS);
+		}
+	}
+
+	// Recomputes the cached part of an entry's key, from its render states, shape type, and texture.
+
+	private void updateStaticKey(Entry e)
+	{	GameObject go = e.go;
+		RenderStates rs = go.getRenderStates();
+		ObjShape shape = go.getShape();
+		e.version = rs.getVersion();
+		e.renderable = rs.renderingEnabled() && (shape != null);
+		e.transparent = rs.isTransparent();
+		if (!e.renderable) return;
+
+		e.features = ShaderVariants.getFeatures(go);
+		int type, program;
+		if (shape.getPrimitiveType() < 3) { type = LINE; program = lineProgram; }
+		else if (shape instanceof AnimatedShape) { type = ANIMATION; program = animationProgram; }
+		else { type = STANDARD; program = e.features; }
+		e.type = type;
+		int texture = (go.getTextureImage() == null) ? defaultTexture : go.getTextureImage().getTexture();
+
+		// the shape part of the key is added per sort, since it depends on the selected level of detail
+		e.staticKey = ((long) type << TYPE_SHIFT)
+			| ((long) (program & 0x3F) << PROGRAM_SHIFT)
+			| ((long) (texture & 0xFFF) << TEXTURE_SHIFT);
+	}
+
+	// LSD radix sort of keys[0..n) as unsigned 64-bit values, 8 bits per pass, carrying order[] along.
+	// Passes over bytes that are identical in every key are skipped, which is most of them in practice.
+
+	private void radixSort(int n)
+	{	if (n < 2) return;
+		long all1 = -1L, any1 = 0L;
+		for (int i = 0; i < n; i++) { all1 &= keys[i]; any1 |= keys[i]; }
+		long differing = all1 ^ any1;
+
+		long[] srcK = keys, dstK = tmpKeys;
+		int[] srcO = order, dstO = tmpOrder;
+		for (int shift = 0; shift < 64; shift += 8)
+		{	if (((differing >>> shift) & 0xFF) == 0) continue;
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) counts[(int) ((srcK[i] >>> shift) & 0xFF)]++;
+			int sum = 0;
+			for (int b = 0; b < 256; b++) { int c = counts[b]; counts[b] = sum; sum += c; }
+			for (int i = 0; i < n; i++)
+			{	int d = counts[(int) ((srcK[i] >>> shift) & 0xFF)]++;
+				dstK[d] = srcK[i];
+				dstO[d] = srcO[i];
+			}
+			long[] tk = srcK; srcK = dstK; dstK = tk;
+			int[] to = srcO; srcO = dstO; dstO = to;
+		}
+		// the result may have ended up in the temporary arrays; swap roles rather than copying
+		keys = srcK; tmpKeys = dstK;
+		order = srcO; tmpOrder = dstO;
+	}
+
+	private void ensureCapacity(int n)
+	{	if (n <= keys.length) return;
+		int c = java.lang.Math.max(n, keys.length * 2);
+		keys = new long[c]; tmpKeys = new long[c];
+		order = new int[c]; tmpOrder = new int[c];
+		candidateIndex = new int[c];
+		transforms = Arrays.copyOf(transforms, c * TRANSFORM_FLOATS);
+		for (int v = 0; v < lodLevels.size(); v++) lodLevels.set(v, Arrays.copyOf(lodLevels.get(v), c));
+	}
+
+	// --------------- private class for a single queue entry ----------------
+
+	private static class Entry
+	{	private GameObject go;
+		private int version = -1;
+		private boolean renderable, transparent;
+		private long staticKey;
+		private int features, type;
+		private ObjShape renderShape;		// the level of detail selected by the most recent sort
+		private int transformVersion = -1;	// the object's render version when its matrices were composed
+		private Entry(GameObject g) { go = g; }
+	}
+}
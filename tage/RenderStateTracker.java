@@ -0,0 +1,288 @@
+package tage;
+import java.util.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+
+/**
+* Shadows the OpenGL state that the object renderers set, and skips calls that would not change anything.
+* <br>
+* Specifically, it tracks the following:
+* <ul>
+* <li> the bound program and vertex array object
+* <li> the buffers bound to GL_ARRAY_BUFFER and GL_ELEMENT_ARRAY_BUFFER, and the indexed GL_SHADER_STORAGE_BUFFER bindings
+* <li> the active texture unit, and the 2D and cubemap textures bound to each unit
+* <li> the sampler object bound to each texture unit
+* <li> polygon mode, front face winding, face culling, and depth test / depth function / depth mask
+* </ul>
+* <p>
+* Every renderer issues its state changes through this tracker instead of calling OpenGL directly.
+* A call is only forwarded to OpenGL if the shadowed value differs from the requested value.
+* Both the forwarded and the skipped calls are counted, so that the reduction in driver calls can be observed.
+* The counts for the most recent complete frame are available through getIssuedCallsLastFrame() and getSkippedCallsLastFrame().
+* The renderers also report each draw call with countDraw(), and the tracker counts the draw calls, triangles,
+* program switches, and texture binds in each frame, for the GPUProfiler.
+* <p>
+* Texture wrapping (tiling) is applied using sampler objects, one per tiling mode, rather than by
+* modifying the texture's own parameters with glTexParameteri() at every draw.
+* <p>
+* The shadow is invalidated at the start of each frame, because other code (such as the GLUT HUD)
+* may change OpenGL state without going through the tracker.
+* Any engine code that changes tracked state directly should call invalidate() afterwards.
+* <p>
+* The depth function and depth mask can also be locked with lockDepth(), after which the renderers' own
+* depthFunc() and depthMask() calls are ignored until unlockDepth().  The depth pre-pass uses this to shade
+* opaque objects with GL_EQUAL depth testing, without each renderer needing to know about it.
+* <p>
+* Used by the engine, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class RenderStateTracker
+{
+	private static final int UNKNOWN = -1;
+	private static final int MAX_TEXTURE_UNITS = 16;
+	private static final int MAX_SSBO_BINDINGS = 16;
+
+	private int program, vao, arrayBuffer, elementBuffer, activeTexture;
+	private int[] textures2D = new int[MAX_TEXTURE_UNITS];
+	private int[] texturesCube = new int[MAX_TEXTURE_UNITS];
+	private int[] samplers = new int[MAX_TEXTURE_UNITS];
+	private int[] ssboBindings = new int[MAX_SSBO_BINDINGS];
+	private int polygonMode, frontFace, depthTest, depthFunc, depthMask, cullFace;
+	private boolean depthLocked;
+
+	private int[] tilingSamplers = new int[4];  // index by tiling mode: 0=none, 1=repeat, 2=mirroredRepeat, 3=clampToEdge
+
+	private long issuedCalls, skippedCalls;
+	private long issuedLastFrame, skippedLastFrame;
+	private long drawCalls, triangles, programSwitches, textureBinds;
+	private long drawCallsLastFrame, trianglesLastFrame, programSwitchesLastFrame, textureBindsLastFrame;
+
+	protected RenderStateTracker()
+	{	invalidate();
+	}
+
+	// Creates one sampler object for each tiling mode.  Called once, from init() in the renderer.
+	// Mode 0 (no tiling) uses sampler 0, so the texture's own parameters apply.
+
+	protected void createTilingSamplers()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		int[] wrapModes = { 0, GL_REPEAT, GL_MIRRORED_REPEAT, GL_CLAMP_TO_EDGE };
+		float anisoset[] = new float[1];
+		boolean aniso = gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic");
+		if (aniso) gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisoset, 0);
+
+		gl.glGenSamplers(3, tilingSamplers, 1);
+		for (int i = 1; i < 4; i++)
+		{	gl.glSamplerParameteri(tilingSamplers[i], GL_TEXTURE_WRAP_S, wrapModes[i]);
+			gl.glSamplerParameteri(tilingSamplers[i], GL_TEXTURE_WRAP_T, wrapModes[i]);
+			gl.glSamplerParameteri(tilingSamplers[i], GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+			gl.glSamplerParameteri(tilingSamplers[i], GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+			if (aniso) gl.glSamplerParameterf(tilingSamplers[i], GL_TEXTURE_MAX_ANISOTROPY_EXT, anisoset[0]);
+		}
+	}
+
+	/** forgets all shadowed state, so that the next call for each piece of state is always issued */
+	public void invalidate()
+	{	program = UNKNOWN;
+		vao = UNKNOWN;
+		arrayBuffer = UNKNOWN;
+		elementBuffer = UNKNOWN;
+		activeTexture = UNKNOWN;
+		Arrays.fill(textures2D, UNKNOWN);
+		Arrays.fill(texturesCube, UNKNOWN);
+		Arrays.fill(samplers, UNKNOWN);
+		Arrays.fill(ssboBindings, UNKNOWN);
+		polygonMode = UNKNOWN;
+		frontFace = UNKNOWN;
+		depthTest = UNKNOWN;
+		depthFunc = UNKNOWN;
+		depthMask = UNKNOWN;
+		cullFace = UNKNOWN;
+	}
+
+	// Called by the renderer at the start of each frame.
+	// Saves the counts for the frame just completed, and invalidates the shadow.
+
+	protected void beginFrame()
+	{	depthLocked = false;
+		issuedLastFrame = issuedCalls;
+		skippedLastFrame = skippedCalls;
+		issuedCalls = 0;
+		skippedCalls = 0;
+		drawCallsLastFrame = drawCalls;
+		trianglesLastFrame = triangles;
+		programSwitchesLastFrame = programSwitches;
+		textureBindsLastFrame = textureBinds;
+		drawCalls = 0;
+		triangles = 0;
+		programSwitches = 0;
+		textureBinds = 0;
+		invalidate();
+	}
+
+	private boolean changed(int current, int requested)
+	{	if (current == requested) { skippedCalls++; return false; }
+		issuedCalls++;
+		return true;
+	}
+
+	// ------------------ PROGRAM, VAO, AND BUFFERS ---------------------
+
+	/** binds the specified program, unless it is already bound */
+	public void useProgram(GL4 gl, int p)
+	{	if (changed(program, p)) { gl.glUseProgram(p); program = p; programSwitches++; }
+	}
+
+	/** binds the specified vertex array object, unless it is already bound */
+	public void bindVertexArray(GL4 gl, int v)
+	{	if (changed(vao, v))
+		{	gl.glBindVertexArray(v);
+			vao = v;
+			// the element buffer binding is VAO state
+			elementBuffer = UNKNOWN;
+		}
+	}
+
+	/** binds the specified buffer to GL_ARRAY_BUFFER, unless it is already bound */
+	public void bindArrayBuffer(GL4 gl, int b)
+	{	if (changed(arrayBuffer, b)) { gl.glBindBuffer(GL_ARRAY_BUFFER, b); arrayBuffer = b; }
+	}
+
+	/** binds the specified buffer to GL_ELEMENT_ARRAY_BUFFER in the current VAO, unless it is already bound */
+	public void bindElementBuffer(GL4 gl, int b)
+	{	if (changed(elementBuffer, b)) { gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, b); elementBuffer = b; }
+	}
+
+	/** binds the specified buffer to an indexed GL_SHADER_STORAGE_BUFFER binding point, unless it is already bound there */
+	public void bindStorageBufferBase(GL4 gl, int index, int b)
+	{	if (index >= MAX_SSBO_BINDINGS) { issuedCalls++; gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, index, b); return; }
+		if (changed(ssboBindings[index], b)) { gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, index, b); ssboBindings[index] = b; }
+	}
+
+	// ------------------ TEXTURES AND SAMPLERS ---------------------
+
+	private void activeTexture(GL4 gl, int unit)
+	{	if (changed(activeTexture, unit)) { gl.glActiveTexture(GL_TEXTURE0 + unit); activeTexture = unit; }
+	}
+
+	/** binds a GL_TEXTURE_2D texture to the specified texture unit, unless it is already bound there */
+	public void bindTexture2D(GL4 gl, int unit, int texture)
+	{	if (textures2D[unit] == texture) { skippedCalls++; return; }
+		activeTexture(gl, unit);
+		gl.glBindTexture(GL_TEXTURE_2D, texture);
+		issuedCalls++;
+		textureBinds++;
+		textures2D[unit] = texture;
+	}
+
+	/** binds a GL_TEXTURE_CUBE_MAP texture to the specified texture unit, unless it is already bound there */
+	public void bindTextureCubeMap(GL4 gl, int unit, int texture)
+	{	if (texturesCube[unit] == texture) { skippedCalls++; return; }
+		activeTexture(gl, unit);
+		gl.glBindTexture(GL_TEXTURE_CUBE_MAP, texture);
+		issuedCalls++;
+		textureBinds++;
+		texturesCube[unit] = texture;
+	}
+
+	/** binds the specified sampler object to a texture unit, unless it is already bound there */
+	public void bindSampler(GL4 gl, int unit, int sampler)
+	{	if (changed(samplers[unit], sampler)) { gl.glBindSampler(unit, sampler); samplers[unit] = sampler; }
+	}
+
+	/** binds the sampler for the specified tiling mode -- 0=none, 1=repeat, 2=mirroredRepeat, 3=clampToEdge */
+	public void bindTilingSampler(GL4 gl, int unit, int tiling)
+	{	if ((tiling < 0) || (tiling > 3)) tiling = 0;
+		bindSampler(gl, unit, tilingSamplers[tiling]);
+	}
+
+	// ------------------ FIXED-FUNCTION STATE ---------------------
+
+	/** sets the polygon mode for front and back faces, GL_FILL or GL_LINE */
+	public void polygonMode(GL4 gl, int mode)
+	{	if (changed(polygonMode, mode)) { gl.glPolygonMode(GL_FRONT_AND_BACK, mode); polygonMode = mode; }
+	}
+
+	/** sets the front face winding order, GL_CCW or GL_CW */
+	public void frontFace(GL4 gl, int mode)
+	{	if (changed(frontFace, mode)) { gl.glFrontFace(mode); frontFace = mode; }
+	}
+
+	/** enables or disables depth testing */
+	public void depthTest(GL4 gl, boolean enable)
+	{	int e = enable ? 1 : 0;
+		if (changed(depthTest, e))
+		{	if (enable) gl.glEnable(GL_DEPTH_TEST); else gl.glDisable(GL_DEPTH_TEST);
+			depthTest = e;
+		}
+	}
+
+	/** sets the depth comparison function */
+	public void depthFunc(GL4 gl, int func)
+	{	if (depthLocked) return;
+		if (changed(depthFunc, func)) { gl.glDepthFunc(func); depthFunc = func; }
+	}
+
+	/** enables or disables writing to the depth buffer */
+	public void depthMask(GL4 gl, boolean enable)
+	{	if (depthLocked) return;
+		int e = enable ? 1 : 0;
+		if (changed(depthMask, e)) { gl.glDepthMask(enable); depthMask = e; }
+	}
+
+	/** sets the depth function and depth mask, and ignores depthFunc() and depthMask() calls until unlockDepth() */
+	public void lockDepth(GL4 gl, int func, boolean mask)
+	{	depthLocked = false;
+		depthFunc(gl, func);
+		depthMask(gl, mask);
+		depthLocked = true;
+	}
+
+	/** ends a lockDepth(), and restores writing to the depth buffer */
+	public void unlockDepth(GL4 gl)
+	{	if (!depthLocked) return;
+		depthLocked = false;
+		depthMask(gl, true);
+	}
+
+	/** enables or disables face culling */
+	public void cullFace(GL4 gl, boolean enable)
+	{	int e = enable ? 1 : 0;
+		if (changed(cullFace, e))
+		{	if (enable) gl.glEnable(GL_CULL_FACE); else gl.glDisable(GL_CULL_FACE);
+			cullFace = e;
+		}
+	}
+
+	// ------------------ STATISTICS ---------------------
+
+	/** counts one draw call, of the specified number of triangles - for engine use only. */
+	public void countDraw(long numTriangles)
+	{	drawCalls++;
+		triangles += numTriangles;
+	}
+
+	/** returns the number of state calls forwarded to OpenGL so far in the current frame */
+	public long getIssuedCalls() { return issuedCalls; }
+
+	/** returns the number of redundant state calls skipped so far in the current frame */
+	public long getSkippedCalls() { return skippedCalls; }
+
+	/** returns the number of state calls forwarded to OpenGL during the most recent complete frame */
+	public long getIssuedCallsLastFrame() { return issuedLastFrame; }
+
+	/** returns the number of redundant state calls skipped during the most recent complete frame */
+	public long getSkippedCallsLastFrame() { return skippedLastFrame; }
+
+	/** returns the number of draw calls during the most recent complete frame */
+	public long getDrawCallsLastFrame() { return drawCallsLastFrame; }
+
+	/** returns the number of triangles drawn during the most recent complete frame */
+	public long getTrianglesLastFrame() { return trianglesLastFrame; }
+
+	/** returns the number of times the program was changed during the most recent complete frame */
+	public long getProgramSwitchesLastFrame() { return programSwitchesLastFrame; }
+
+	/** returns the number of textures bound during the most recent complete frame */
+	public long getTextureBindsLastFrame() { return textureBindsLastFrame; }
+}
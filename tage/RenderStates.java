@@ -8,7 +8,7 @@ import org.joml.*;
 * <li> enable rendering this object (or not)
 * <li> render this object with or without lighting
 * <li> render this object with or without depth testing
-* <li> render this object with transparency (not yet implemented)
+* <li> render this object with transparency (sorted back-to-front after opaque objects, blending not yet implemented)
 * <li> utilize OpenGL texture tiling - options are:  0=none, 1=repeat, 2=mirroredRepeat, 3=clampToEdge
 * <li> set tile factor -- determines the number of tiles along each dimension, if tiling is turned on
 * <li> set primitive -- 1=point, 2=line, 3=triangle (default)
@@ -17,7 +17,11 @@ import org.joml.*;
 * <li> render hidden faces (if need to view from the inside)
 * <li> enable environment mapping (to make a "chrome-like" object)
 * <li> adjust for an incorrectly-aligned OBJ or RKM model
+* <li> mark this object as static (it rarely moves), so that it can be drawn with the other static objects in a few indirect draw calls
 * </ul>
+* <p>
+* Every change to a render state increments a version number, which the engine's RenderQueue
+* uses to detect when an object's cached sort key needs to be rebuilt.
 * @author Scott Gordon
 */
 public class RenderStates
@@ -34,51 +38,62 @@ public class RenderStates
 	private boolean wireframe = false;
 	private boolean renderHiddenFaces = false;
 	private boolean isEnvironmentMapped = false;
+	private boolean isStatic = false;
 	private Matrix4f modelOrientationCorrection = new Matrix4f();
+	private int version = 0;
+	private GameObject owner;
 
 	//---------------- ACCESSORS ---------------------
 
 	/** enables rendering this object */
-	public void enableRendering() { enableRendering = true; }
+	public void enableRendering() { enableRendering = true; version++; }
 
 	/** disables rendering this object */
-	public void disableRendering() { enableRendering = false; }
+	public void disableRendering() { enableRendering = false; version++; }
 
 	/** sets whether or not this object responds to lighting */
-	public void hasLighting(boolean h) { hasLighting = h; }
+	public void hasLighting(boolean h) { hasLighting = h; version++; }
 
 	/** sets whether or not this object participates in depth testing */
-	public void hasDepthTesting(boolean h) { hasDepthTesting = h; }
+	public void hasDepthTesting(boolean h) { hasDepthTesting = h; version++; }
 
-	/** sets whether or not this object is transparent (not yet implemented) */
-	public void isTransparent(boolean i) { isTransparent = i; }
+	/** sets whether or not this object is transparent (sorted back-to-front, blending not yet implemented) */
+	public void isTransparent(boolean i) { isTransparent = i; version++; }
 
 	/** sets whether or not this object is environment mapped (simulates chrome) */
-	public void isEnvironmentMapped(boolean i) { isEnvironmentMapped = i; }
+	public void isEnvironmentMapped(boolean i) { isEnvironmentMapped = i; version++; }
+
+	/** sets whether or not this object is static -- static objects are drawn from a shared geometry buffer with multi-draw indirect */
+	public void setStatic(boolean s) { isStatic = s; version++; }
 
 	/** sets whether or not this object is rendered in wireframe mode */
-	public void setWireframe(boolean w) { wireframe = w; }
+	public void setWireframe(boolean w) { wireframe = w; version++; }
 
 	/** specifies how to texture when texcoords are outside [0 to 1] -- 0=none, 1=repeat, 2=mirroredRepeat, 3=clampToEdge */
-	public void setTiling(int t) { tiling = t; }
+	public void setTiling(int t) { tiling = t; version++; }
 
 	/** sets number of tile occurrances if tiling is turned on */
-	public void setTileFactor(int f) { tileFactor = f; }
+	public void setTileFactor(int f) { tileFactor = f; version++; }
 
 	/** 1=point, 2=line, 3=triangle (default) -- set by the engine. */
-	public void setPrimitive(int p) { primitive = p; }
+	public void setPrimitive(int p) { primitive = p; version++; }
 
 	/** most useful for lines and wireframe. */
-	public void setHasSolidColor(boolean sc) { solidColor = true; }
+	public void setHasSolidColor(boolean sc) { solidColor = true; version++; }
 
 	/** the color to use when solidColor also set. */
-	public void setColor(Vector3f c) { color = new Vector3f(c); }
+	public void setColor(Vector3f c) { color = new Vector3f(c); version++; }
 
 	/** useful if camera can go inside the object. */
-	public void setRenderHiddenFaces(boolean r) { renderHiddenFaces = r; }
+	public void setRenderHiddenFaces(boolean r) { renderHiddenFaces = r; version++; }
 
 	/** apply a rotation without including it in the local or world transforms */
-	public void setModelOrientationCorrection(Matrix4f r) { modelOrientationCorrection = new Matrix4f(r); }
+	public void setModelOrientationCorrection(Matrix4f r)
+	{	modelOrientationCorrection = new Matrix4f(r);
+		version++;
+		// the correction changes the object's world bounds
+		if (owner != null) owner.boundsChanged();
+	}
 
 	/** returns a boolean that is true if rendering is enabled for this object */
 	public boolean renderingEnabled() { return enableRendering; }
@@ -110,12 +125,31 @@ public class RenderStates
 	/** returns a reference to the Vector3f that contains RGB values for this object's color if it is solid color */
 	public Vector3f getColor() { return color; }
 
+	/** returns a boolean that is true if this object has been marked static */
+	public boolean isStatic() { return isStatic; }
+
 	/** returns a boolean that is true if the object has been specified to render in wireframe */
 	public boolean isWireframe() { return wireframe; }
 
 	/** returns a boolen that is true if the object has been specified to render hidden faces */
 	public boolean willRenderHiddenFaces() { return renderHiddenFaces; }
 
+	// Marks the render states as changed, for changes made outside of this class
+	// that affect how the object is rendered, such as assigning a new shape or texture.
+
+	protected void markChanged() { version++; }
+
+	// Returns the current version, which increases every time a render state changes.
+
+	protected int getVersion() { return version; }
+
+	// Sets the GameObject whose render states these are - called by the GameObject.
+
+	protected void setOwner(GameObject g) { owner = g; }
+
 	/** returns a copy of the matrix that contains the model orientation correction, if one has been specified */
 	public Matrix4f getModelOrientationCorrection() { return new Matrix4f(modelOrientationCorrection); }
+
+	// Copies the model orientation correction into the specified matrix, without allocating - for engine use.
+	protected Matrix4f getModelOrientationCorrection(Matrix4f dest) { return dest.set(modelOrientationCorrection); }
 }
\ No newline at end of file
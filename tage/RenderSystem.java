@@ -3,6 +3,9 @@ import java.nio.*;
 import javax.swing.*;
 import java.lang.Math;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.awt.*;
 import static com.jogamp.opengl.GL4.*;
 import com.jogamp.opengl.*;
@@ -24,53 +27,104 @@ import tage.objectRenderers.*;
 * <li> getViewport() mainly to get that viewport's camera
 * </ul>
 * <p>
-* This class includes the init() and display() methods used by the JOGL animator.
+* This class includes the init() and display() methods, which are called by JOGL.
+* The game loop itself is run by the FrameScheduler, which paces the frames.
+* Each frame is simulated (the game's update() and the node controllers), then published -- the parts of the scene
+* that are drawn are copied into a snapshot -- and then the snapshot is drawn.  Optionally, the simulation of the
+* next frame runs on its own thread while the snapshot is drawn (see setPipelined()).
+* In headless mode (see HeadlessMode), there is no window, and the frames are rendered into an offscreen drawable.
 * @author Scott Gordon
 */
 public class RenderSystem extends JFrame implements GLEventListener
 {	private GLCanvas myCanvas;
+	private GLAutoDrawable glDrawable;	// the canvas, or the offscreen drawable in headless mode
 	private Engine engine;
-	private RenderQueue rq;
 	private RenderObjectStandard objectRendererStandard;
 	private RenderObjectSkyBox objectRendererSkyBox;
 	private RenderObjectLine objectRendererLine;
 	private RenderObjectAnimation objectRendererAnimation;
+	private RenderObjectInstanced objectRendererInstanced;
+	private RenderObjectTerrain objectRendererTerrain;
+	private RenderObjectIndirect objectRendererIndirect;
+	private ArrayList<ObjShape> batchShapes = new ArrayList<ObjShape>();
+	private boolean instancing = true;
+	private boolean terrainLOD = true;
+	private boolean indirect = true;
+	private int framesTested, framesCulled, framesVisible;
+	private int lastTested, lastCulled, lastVisible;
+	private RenderStateTracker stateTracker = new RenderStateTracker();
+	private FrameRingBuffer frameRing = new FrameRingBuffer(256 * 1024);
+	private static final int VIEW_BLOCK_SIZE = 208;	// std140 size of the ViewBlock in the standard shaders
+	private LightClusters lightClusters = new LightClusters();
+	private boolean clustered = false;
+	private ShaderVariants standardVariants, instancedVariants;
+	private boolean variants = true;
+	private int[] viewportRect = new int[4];
 
 	private float fov = 60.0f;
 	private float nearClip = 0.1f;
 	private float farClip = 1000.0f;
 
 	private int renderingProgram, hudColorProgram, skyboxProgram, lineProgram;
-	private int heightProgram, skelProgram;
+	private int skelProgram, instancedProgram, terrainProgram, indirectProgram;
+	private int depthProgram, depthSkelProgram, depthInstancedProgram, depthTerrainProgram, depthIndirectProgram;
+	private boolean depthPrepass = false;
+	private DynamicResolution dynamicResolution = new DynamicResolution();
+	private boolean dynamicRes = false;
+	private FrameScheduler frameScheduler = new FrameScheduler();
+	private GPUProfiler profiler = new GPUProfiler();
+	private FramePipeline framePipeline;
+	private boolean pipelined = false;
 	private int[] vao = new int[1];
-	private int[] vbo = new int[3];
+	private int[] shapeVao = new int[1];
+	private int[] vbo = new int[1];
 
 	private int defaultSkyBox;
 	
 	// allocate variables for display() function
 	private Matrix4f pMat = new Matrix4f();  // perspective matrix
 	private Matrix4f vMat = new Matrix4f();  // view matrix
-	private int xLoc, zLoc;
 	private float aspect;
 	private int defaultTexture;
 	private String defaultTitle = "default title", title;
 	private int screenSizeX, screenSizeY;
 
 	private ArrayList<TextureImage> textures = new ArrayList<TextureImage>();
+	private ConcurrentHashMap<Integer, TextureImage> texturesByName = new ConcurrentHashMap<Integer, TextureImage>();	// by OpenGL texture name
 	private ArrayList<ObjShape> shapes = new ArrayList<ObjShape>();
+	private volatile boolean shapesLoaded = false;
+	private ConcurrentLinkedQueue<ObjShape> uploadQueue = new ConcurrentLinkedQueue<ObjShape>();
+	private ConcurrentLinkedQueue<ObjShape> updateQueue = new ConcurrentLinkedQueue<ObjShape>();
+	private ArrayList<ObjShape> unfinishedShapes = new ArrayList<ObjShape>();
+	private float uploadBudget = 2.0f;		// milliseconds per frame for loading new shapes
+	private FloatBuffer uploadVals = Buffers.newDirectFloatBuffer(1024);
+	private int uploadsLastFrame;
 	private LinkedHashMap<String, Viewport> viewportList = new LinkedHashMap<String, Viewport>();
 
+	// the parts of the scene copied when the frame is published, so that the next frame can be simulated meanwhile
+	private ArrayList<Viewport> snapshotViewports = new ArrayList<Viewport>();
+	private DrawList physicsList = new DrawList();
+	private ArrayList<GameObject> removedObjects = new ArrayList<GameObject>();
+	private ArrayList<ObjShape> dynamicShapes = new ArrayList<ObjShape>();
+	private int numLights;
+
 	private int canvasWidth, canvasHeight;
 	private boolean isInFullScreenMode = false;
 	GraphicsEnvironment ge;
 	GraphicsDevice gd;
 
-	private int buffer[] = new int[1];
-	private float res[] = new float[1];
 	private boolean vsync = true;
 
 	protected RenderSystem(Engine e)
 	{	engine = e;
+		framePipeline = new FramePipeline(new Runnable()
+		{	public void run() { simulate(); }
+		});
+		if (HeadlessMode.isEnabled())
+		{	screenSizeX = HeadlessMode.getWidth();
+			screenSizeY = HeadlessMode.getHeight();
+			return;
+		}
 
 		ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
 		gd = ge.getDefaultScreenDevice();
@@ -83,8 +137,13 @@ public class RenderSystem extends JFrame implements GLEventListener
 	}
 
 	protected void setUpCanvas()
-	{
+	{	if (HeadlessMode.isEnabled())
+		{	glDrawable = HeadlessMode.createDrawable();
+			glDrawable.addGLEventListener(this);
+			return;
+		}
 		myCanvas = new GLCanvas();
+		glDrawable = myCanvas;
 		myCanvas.addGLEventListener(this);
 		this.getContentPane().add(myCanvas, BorderLayout.CENTER);
 		this.setVisible(true);
@@ -99,9 +158,15 @@ public class RenderSystem extends JFrame implements GLEventListener
 		if (!isInFullScreenMode) setSize(screenSizeX, screenSizeY);
 	}
 
-	/** gets a reference to the current OpenGL canvas used by the engine */
+	/** gets a reference to the current OpenGL canvas used by the engine, or null in headless mode */
 	public GLCanvas getGLCanvas() { return myCanvas; }
 
+	/** returns the width of the canvas, or of the offscreen drawable in headless mode, in pixels */
+	public int getSurfaceWidth() { return (myCanvas != null) ? myCanvas.getWidth() : glDrawable.getSurfaceWidth(); }
+
+	/** returns the height of the canvas, or of the offscreen drawable in headless mode, in pixels */
+	public int getSurfaceHeight() { return (myCanvas != null) ? myCanvas.getHeight() : glDrawable.getSurfaceHeight(); }
+
 	/** sets the title at the top of the window if in windowed mode */
 	public void setTitle(String t) { title = t; }
 
@@ -173,13 +238,13 @@ public class RenderSystem extends JFrame implements GLEventListener
 
 	protected void startGameLoop()
 	{	setTitle(title);
-		Animator animator = new Animator(myCanvas);
-		animator.start();
+		if (HeadlessMode.isEnabled()) HeadlessMode.run(glDrawable, engine);
+		else frameScheduler.start(myCanvas, this);
 	}
 
 	/**
 	* Displays the current frame - for Engine use only.
-	* This method is called automatically by the JOGL Animator, once per frame.
+	* This method is called automatically by the FrameScheduler, once per frame.
 	* It renders every object in the scene, considering all factors such as lights, etc.
 	* The game application should NOT call this function directly.
 	*/
@@ -188,83 +253,288 @@ public class RenderSystem extends JFrame implements GLEventListener
 		gl.glClear(GL_COLOR_BUFFER_BIT);
 		gl.glClear(GL_DEPTH_BUFFER_BIT);
 
-		(engine.getGame()).update();
-		(engine.getSceneGraph()).applyNodeControllers();
-
-		engine.getLightManager().updateSSBO();
-
-		canvasWidth = myCanvas.getWidth();
-		canvasHeight = myCanvas.getHeight();
-
-		for (Viewport vp : viewportList.values())
-		{	vMat = vp.getCamera().getViewMatrix();
+		stateTracker.beginFrame();
+		profiler.beginFrame(gl, stateTracker);
+		profiler.begin(gl, GPUProfiler.FRAME);
+		frameRing.beginFrame();
+		lastTested = framesTested; lastCulled = framesCulled; lastVisible = framesVisible;
+		framesTested = 0; framesCulled = 0; framesVisible = 0;
+
+		// when pipelined, this frame was simulated on the simulation thread while the previous frame was drawn
+		if (framePipeline.isStepInFlight()) framePipeline.awaitStep();
+		else framePipeline.runStep();
+		takeSnapshot();
+		if (pipelined) framePipeline.startStep();
+		else framePipeline.stop();
+
+		canvasWidth = getSurfaceWidth();
+		canvasHeight = getSurfaceHeight();
+
+		// with dynamic resolution, the viewports are laid out over a smaller offscreen framebuffer
+		if (dynamicRes)
+		{	dynamicResolution.begin(gl, canvasWidth, canvasHeight);
+			canvasWidth = dynamicResolution.getWidth();
+			canvasHeight = dynamicResolution.getHeight();
+		}
 
-			aspect = ((float)myCanvas.getWidth() * vp.getRelativeWidth()) / ((float) myCanvas.getHeight() * vp.getRelativeHeight());
-			pMat.setPerspective((float) Math.toRadians(fov), aspect, nearClip, farClip);
+		for (int v = 0; v < snapshotViewports.size(); v++)
+		{	Viewport vp = snapshotViewports.get(v);
+			profiler.beginViewport(gl, vp.getName());
+			vMat.set(vp.getSnapshotView());
+			pMat.set(vp.getSnapshotProjection());
 
 			constructViewport(vp);
+			writeViewBlock(gl);
+			if (clustered) lightClusters.build(gl, stateTracker, (engine.getLightManager()).getLightSSBO());
 
 			if ((engine.getSceneGraph()).isSkyboxEnabled())
-			{	objectRendererSkyBox.render((engine.getSceneGraph()).getSkyBoxObject(), skyboxProgram, pMat, vMat);
+			{	profiler.begin(gl, GPUProfiler.SKYBOX);
+				objectRendererSkyBox.render((engine.getSceneGraph()).getSkyBoxObject(), skyboxProgram, pMat, vMat);
+				profiler.end(gl, GPUProfiler.SKYBOX);
 			}
 
-			(engine.getHUDmanager()).drawHUDs(hudColorProgram);
-
-			rq = new RenderQueue((engine.getSceneGraph()).getRoot());
-			Vector<GameObject> q = rq.createStandardQueue();
+			if (!dynamicRes)
+			{	profiler.begin(gl, GPUProfiler.HUD);
+				stateTracker.bindVertexArray(gl, vao[0]);
+				(engine.getHUDmanager()).drawHUDs(hudColorProgram);
+				profiler.end(gl, GPUProfiler.HUD);
+			}
 
 			// render the graphics objects unless this has been disabled
+			DrawList list = vp.getDrawList();
 			if (engine.willRenderGraphicsObjects())
-			{	for (int i = 0; i < q.size(); i++)
-				{	GameObject go = q.get(i);
-					if ((go.getRenderStates()).renderingEnabled())
-					{	if ((go.getShape()).getPrimitiveType() < 3)
-						{	objectRendererLine.render(go, lineProgram, pMat, vMat);
-						}
-						else if (go.getShape() instanceof AnimatedShape)
-						{	objectRendererAnimation.render(go, skelProgram, pMat, vMat);
-						}
-						else
-						{	objectRendererStandard.render(go, renderingProgram, pMat, vMat);
-							// if hidden faces are rendered, render a second time with opposite winding order
-							if ((go.getRenderStates()).willRenderHiddenFaces()) 
-							{	(go.getShape()).toggleWindingOrder();
-								objectRendererStandard.render(go, renderingProgram, pMat, vMat);
-								(go.getShape()).toggleWindingOrder();
-							}
-						}
-					}
+			{	profiler.begin(gl, GPUProfiler.STANDARD);
+				if (vp.hasDepthPrepass())
+				{	// lay down the depth of the opaque objects, then shade only the pixels that match it
+					gl.glColorMask(false, false, false, false);
+					renderQueue(gl, list, true, false);
+					gl.glColorMask(true, true, true, true);
 				}
+				renderQueue(gl, list, false, vp.hasDepthPrepass());
+				stateTracker.unlockDepth(gl);
+				profiler.end(gl, GPUProfiler.STANDARD);
 			}
 			
 			// render the physics world if this is enabled
-			if (engine.willRenderPhysicsObjects())
-			{	Vector<GameObject> physicsQueue = (engine.getSceneGraph()).getPhysicsRenderables();
+			if (physicsList.size() > 0)
+			{	profiler.begin(gl, GPUProfiler.PHYSICS);
 				gl.glClear(GL_DEPTH_BUFFER_BIT);
-				for (int i = 0; i < physicsQueue.size(); i++)
-				{	GameObject go = physicsQueue.get(i);
-		
-					Matrix4f mat = new Matrix4f();
-					Matrix4f mat2 = new Matrix4f().identity();
-					Matrix4f mat3 = new Matrix4f().identity();
-					AxisAngle4f aa = new AxisAngle4f();
-		
-					// set translation
-					mat.set(toFloatArray(go.getPhysicsObject().getTransform()));
-					mat2.set(3,0,mat.m30()); mat2.set(3,1,mat.m31()); mat2.set(3,2,mat.m32());
-					go.setLocalTranslation(mat2);
-	
-					// set rotation
-					mat.getRotation(aa);
-					mat3.rotation(aa);
-					go.setLocalRotation(mat3);
-			
-					objectRendererStandard.render(go, renderingProgram, pMat, vMat);
+
+				// the physics renderables are listed by shape, so draw each run of objects with the same shape together
+				int i = 0;
+				while (i < physicsList.size())
+				{	int j = i + 1;
+					while ((j < physicsList.size()) && (physicsList.getShape(j) == physicsList.getShape(i))) j++;
+					if (instancing && (j - i >= 2))
+						objectRendererInstanced.render(physicsList, i, j, instancedProgramFor(physicsList.getFeatures(i)));
+					else
+					{	for (int k = i; k < j; k++)
+							objectRendererStandard.render(physicsList, k, standardProgramFor(physicsList.getFeatures(k)));
+					}
+					i = j;
 				}
+				profiler.end(gl, GPUProfiler.PHYSICS);
 			}
+			profiler.endViewport(gl, vp.getName());
 		}
+
+		// upscale to the canvas, then draw the HUDs at full resolution
+		if (dynamicRes)
+		{	dynamicResolution.end(gl, getSurfaceWidth(), getSurfaceHeight());
+			profiler.begin(gl, GPUProfiler.HUD);
+			stateTracker.bindVertexArray(gl, vao[0]);
+			(engine.getHUDmanager()).drawHUDs(hudColorProgram);
+			profiler.end(gl, GPUProfiler.HUD);
+		}
+		profiler.end(gl, GPUProfiler.FRAME);
+		profiler.endFrame();
+		frameRing.endFrame();
+		if (HeadlessMode.isEnabled()) HeadlessMode.endFrame(gl);
+	}
+
+	// One simulation step: the game's update(), then the node controllers.
+	// Runs on the simulation thread when pipelined, and otherwise on the game loop thread.
+	private void simulate()
+	{	if (HeadlessMode.isEnabled()) HeadlessMode.advanceClock();
+		(engine.getGame()).update();
+		(engine.getSceneGraph()).applyNodeControllers();
+	}
+
+	// Publishes the frame: copies everything the drawing reads from the scene, and prepares each viewport's draw list.
+	// Called between simulation steps, so nothing here races with the game's update().
+	private void takeSnapshot()
+	{	uploadShapes();
+		if (engine.willRenderPhysicsObjects()) syncPhysicsRenderables();
+		(engine.getSceneGraph()).updateBoundingVolumes();
+		for (int i = 0; i < removedObjects.size(); i++) objectRendererIndirect.release(removedObjects.get(i));
+		removedObjects.clear();
+		for (int i = 0; i < dynamicShapes.size(); i++) objectRendererIndirect.releaseShape(dynamicShapes.get(i));
+		dynamicShapes.clear();
+
+		engine.getLightManager().updateSSBO();
+		numLights = (engine.getLightManager()).getNumLights();
+		profiler.updateOverlay(engine.getHUDmanager(), getSurfaceWidth(), getSurfaceHeight());
+		(engine.getHUDmanager()).takeSnapshot();
+
+		snapshotViewports.clear();
+		snapshotViewports.addAll(viewportList.values());
+		physicsList.clear();
+		if (engine.willRenderPhysicsObjects())
+		{	// physics renderables share a handful of shapes, so list all of the objects with each shape together
+			Vector<GameObject> physicsQueue = (engine.getSceneGraph()).getPhysicsRenderables();
+			batchShapes.clear();
+			for (int i = 0; i < physicsQueue.size(); i++)
+			{	ObjShape shape = (physicsQueue.get(i)).getShape();
+				if (!shape.isLoaded() || batchShapes.contains(shape)) continue;
+				batchShapes.add(shape);
+				for (int k = i; k < physicsQueue.size(); k++)
+				{	if ((physicsQueue.get(k)).getShape() == shape) physicsList.add(physicsQueue.get(k));
+				}
+			}
+		}
+
+		RenderQueue q = (engine.getSceneGraph()).getRenderQueue();
+		for (int v = 0; v < snapshotViewports.size(); v++)
+		{	Viewport vp = snapshotViewports.get(v);
+			Matrix4f view = vp.getSnapshotView().set(vp.getCamera().getViewMatrix());
+			aspect = ((float)getSurfaceWidth() * vp.getRelativeWidth()) / ((float) getSurfaceHeight() * vp.getRelativeHeight());
+			Matrix4f proj = vp.getSnapshotProjection().setPerspective((float) Math.toRadians(fov), aspect, nearClip, farClip);
+
+			q.sort(proj, view, farClip, v);
+			framesTested += q.getNumTested();
+			framesCulled += q.getNumCulled();
+			framesVisible += q.size();
+			q.fill(vp.getDrawList());
+		}
+	}
+
+	// Moves the physics renderables to the transforms of their physics objects.
+	private void syncPhysicsRenderables()
+	{	Vector<GameObject> physicsQueue = (engine.getSceneGraph()).getPhysicsRenderables();
+		for (int i = 0; i < physicsQueue.size(); i++)
+		{	GameObject go = physicsQueue.get(i);
+
+			Matrix4f mat = new Matrix4f();
+			Matrix4f mat2 = new Matrix4f().identity();
+			Matrix4f mat3 = new Matrix4f().identity();
+			AxisAngle4f aa = new AxisAngle4f();
+
+			// set translation
+			mat.set(toFloatArray(go.getPhysicsObject().getTransform()));
+			mat2.set(3,0,mat.m30()); mat2.set(3,1,mat.m31()); mat2.set(3,2,mat.m32());
+			go.setLocalTranslation(mat2);
+
+			// set rotation
+			mat.getRotation(aa);
+			mat3.rotation(aa);
+			go.setLocalRotation(mat3);
+		}
+	}
+
+	// Writes the view matrices, lighting totals, and cluster grid for the current viewport into the frame ring buffer,
+	// and binds them to uniform block binding 0 (ViewBlock), where every standard shader program reads them.
+	private void writeViewBlock(GL4 gl)
+	{	int off = frameRing.allocate(VIEW_BLOCK_SIZE);
+		float[] amb = Light.getGlobalAmbient();
+		frameRing.putMatrix(off, vMat);
+		frameRing.putMatrix(off + 64, pMat);
+		frameRing.putVec4(off + 128, amb[0], amb[1], amb[2], amb[3]);
+		frameRing.putIVec4(off + 144, numLights,
+			(engine.getLightManager()).getFieldsPerLight(), 0, 0);
+		frameRing.putIVec4(off + 160, LightClusters.GRID_X, LightClusters.GRID_Y, LightClusters.GRID_Z, clustered ? 1 : 0);
+		frameRing.putVec4(off + 176, nearClip, farClip,
+			LightClusters.getSliceScale(nearClip, farClip), LightClusters.getSliceBias(nearClip, farClip));
+		frameRing.putVec4(off + 192, viewportRect[0], viewportRect[1], viewportRect[2], viewportRect[3]);
+		frameRing.bindUniformBlock(gl, 0, off, VIEW_BLOCK_SIZE);
 	}
 	
+	// Draws the objects in the current viewport's draw list.
+	// With depthOnly, this is the depth pre-pass: only the opaque objects are drawn, with the depth-only programs.
+	// Otherwise, if prepassed is true, the opaque objects drawn by the pre-pass are shaded with GL_EQUAL
+	// depth testing and no depth writes, while lines and transparent objects are drawn as usual.
+	private void renderQueue(GL4 gl, DrawList q, boolean depthOnly, boolean prepassed)
+	{	for (int i = 0; i < q.size(); i++)
+		{	// the draw list only contains objects with rendering enabled
+			boolean transparent = q.isTransparent(i);
+			boolean line = q.isLine(i);
+
+			// transparent objects sort after all of the opaque ones, and lines are not part of the pre-pass
+			if (depthOnly && transparent) break;
+			if (depthOnly && line) continue;
+
+			// static objects collected so far are drawn before the first transparent object
+			if (transparent)
+				objectRendererIndirect.render(depthOnly ? depthIndirectProgram : indirectProgram, pMat, vMat);
+
+			if (prepassed)
+			{	if (transparent || line) stateTracker.unlockDepth(gl);
+				else stateTracker.lockDepth(gl, GL_EQUAL, false);
+			}
+
+			if (line)
+			{	profiler.switchTo(gl, GPUProfiler.STANDARD, GPUProfiler.LINE);
+				objectRendererLine.render(q, i, lineProgram, pMat, vMat);
+				profiler.switchTo(gl, GPUProfiler.LINE, GPUProfiler.STANDARD);
+			}
+			else if (q.isAnimated(i))
+			{	profiler.switchTo(gl, GPUProfiler.STANDARD, GPUProfiler.ANIMATED);
+				objectRendererAnimation.render(q, i, depthOnly ? depthSkelProgram : skelProgram, pMat, vMat);
+				profiler.switchTo(gl, GPUProfiler.ANIMATED, GPUProfiler.STANDARD);
+			}
+			else if (terrainLOD && objectRendererTerrain.canRender(q, i))
+			{	int program = depthOnly ? depthTerrainProgram : terrainProgram;
+				objectRendererTerrain.render(q, i, program, pMat, vMat);
+				if (q.willRenderHiddenFaces(i))
+				{	(q.getShape(i)).toggleWindingOrder();
+					objectRendererTerrain.render(q, i, program, pMat, vMat);
+					(q.getShape(i)).toggleWindingOrder();
+				}
+			}
+			else if (indirect && objectRendererIndirect.canRender(q, i))
+			{	objectRendererIndirect.add(q, i);
+			}
+			else
+			{	// objects that follow this one in the sorted queue, and can share its draw call, are drawn instanced
+				int j = i + 1;
+				if (instancing && objectRendererInstanced.isBatchable(q, i))
+				{	while ((j < q.size()) && objectRendererInstanced.isCompatible(q, i, j)) j++;
+				}
+				if (j - i >= 2)
+				{	int program = depthOnly ? depthInstancedProgram : instancedProgramFor(q.getFeatures(i));
+					objectRendererInstanced.render(q, i, j, program);
+					i = j - 1;
+				}
+				else
+				{	int program = depthOnly ? depthProgram : standardProgramFor(q.getFeatures(i));
+					objectRendererStandard.render(q, i, program);
+					// if hidden faces are rendered, render a second time with opposite winding order
+					if (q.willRenderHiddenFaces(i))
+					{	(q.getRenderShape(i)).toggleWindingOrder();
+						objectRendererStandard.render(q, i, program);
+						(q.getRenderShape(i)).toggleWindingOrder();
+					}
+				}
+			}
+		}
+
+		// the remaining static objects are opaque
+		if (prepassed) stateTracker.lockDepth(gl, GL_EQUAL, false);
+		objectRendererIndirect.render(depthOnly ? depthIndirectProgram : indirectProgram, pMat, vMat);
+	}
+
+	// Returns the program for drawing an object with the standard renderer --
+	// the variant for the specified feature mask, unless shader variants are disabled.
+	private int standardProgramFor(int features)
+	{	if (!variants) return renderingProgram;
+		return standardVariants.getProgram(features);
+	}
+
+	// Returns the program for drawing an instanced batch, whose objects all share the specified feature mask.
+	private int instancedProgramFor(int features)
+	{	if (!variants) return instancedProgram;
+		return instancedVariants.getProgram(features);
+	}
+
 	private float[] toFloatArray(double[] arr)
 	{	if (arr == null) return null;
 		int n = arr.length;
@@ -281,8 +551,8 @@ public class RenderSystem extends JFrame implements GLEventListener
 		gl.glEnable(GL_SCISSOR_TEST);
 		gl.glScissor((int)(vp.getRelativeLeft()*canvasWidth),
 			(int)(vp.getRelativeBottom()*canvasHeight),
-			(int)vp.getActualWidth(),
-			(int)vp.getActualHeight());
+			(int)(vp.getRelativeWidth()*canvasWidth),
+			(int)(vp.getRelativeHeight()*canvasHeight));
 		gl.glClear(GL_COLOR_BUFFER_BIT);
 		gl.glClear(GL_DEPTH_BUFFER_BIT);
 
@@ -292,61 +562,77 @@ public class RenderSystem extends JFrame implements GLEventListener
 			gl.glEnable(GL_SCISSOR_TEST);
 			gl.glScissor((int)(vp.getRelativeLeft()*canvasWidth),
 				(int)(vp.getRelativeBottom()*canvasHeight),
-				(int)vp.getActualWidth(),
-				(int)vp.getActualHeight());
+				(int)(vp.getRelativeWidth()*canvasWidth),
+				(int)(vp.getRelativeHeight()*canvasHeight));
 			gl.glClearColor(color[0], color[1], color[2], 1.0f);
 			gl.glClear(GL_COLOR_BUFFER_BIT);
 			gl.glScissor((int)(vp.getRelativeLeft()*canvasWidth)+borderWidth,
 				(int)(vp.getRelativeBottom()*canvasHeight)+borderWidth,
-				(int)vp.getActualWidth()-borderWidth*2,
-				(int)vp.getActualHeight()-borderWidth*2);
+				(int)(vp.getRelativeWidth()*canvasWidth)-borderWidth*2,
+				(int)(vp.getRelativeHeight()*canvasHeight)-borderWidth*2);
 			gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 			gl.glClear(GL_COLOR_BUFFER_BIT);
 			gl.glDisable(GL_SCISSOR_TEST);
 
-			gl.glViewport((int)(vp.getRelativeLeft()*canvasWidth)+borderWidth,
-				(int)(vp.getRelativeBottom()*canvasHeight)+borderWidth,
-				(int)(vp.getRelativeWidth()*canvasWidth)-borderWidth*2,
-				(int)(vp.getRelativeHeight()*canvasHeight)-borderWidth*2);
+			viewportRect[0] = (int)(vp.getRelativeLeft()*canvasWidth)+borderWidth;
+			viewportRect[1] = (int)(vp.getRelativeBottom()*canvasHeight)+borderWidth;
+			viewportRect[2] = (int)(vp.getRelativeWidth()*canvasWidth)-borderWidth*2;
+			viewportRect[3] = (int)(vp.getRelativeHeight()*canvasHeight)-borderWidth*2;
 		}
 		else
-		{	gl.glViewport((int)(vp.getRelativeLeft()*canvasWidth),
-				(int)(vp.getRelativeBottom()*canvasHeight),
-				(int)(vp.getRelativeWidth()*canvasWidth),
-				(int)(vp.getRelativeHeight()*canvasHeight));
+		{	viewportRect[0] = (int)(vp.getRelativeLeft()*canvasWidth);
+			viewportRect[1] = (int)(vp.getRelativeBottom()*canvasHeight);
+			viewportRect[2] = (int)(vp.getRelativeWidth()*canvasWidth);
+			viewportRect[3] = (int)(vp.getRelativeHeight()*canvasHeight);
 		}
+		gl.glViewport(viewportRect[0], viewportRect[1], viewportRect[2], viewportRect[3]);
 	}
 
 	/**
 	* Initializes the elements needed for rendering - for Engine use only.
-	* This method is called one time, automatically, by the JOGL Animator.
+	* This method is called one time, automatically, by JOGL.
 	* The game application should NOT call this function directly.
 	*/
 	public void init(GLAutoDrawable drawable)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 		gl.setSwapInterval(1);
 	
+		// the programs other than the standard one are compiled in the background (or loaded from the program
+		// binary cache) while the standard program is built, and the textures and shapes are loaded
+		BackgroundCompiler compiler = new BackgroundCompiler(drawable);
+		Future<Integer> hudColor = compiler.submit("assets/shaders/HUDcolorVert.glsl", "assets/shaders/HUDcolorFrag.glsl");
+		Future<Integer> skybox = compiler.submit("assets/shaders/skyboxVert.glsl", "assets/shaders/skyboxFrag.glsl");
+		Future<Integer> line = compiler.submit("assets/shaders/LineVert.glsl", "assets/shaders/LineFrag.glsl");
+		Future<Integer> skel = compiler.submit("assets/shaders/skeletalVert.glsl", "assets/shaders/StandardFrag.glsl");
+		Future<Integer> instanced = compiler.submit("assets/shaders/StandardInstancedVert.glsl", "assets/shaders/StandardFrag.glsl");
+		Future<Integer> terrain = compiler.submit("assets/shaders/TerrainVert.glsl", "assets/shaders/StandardFrag.glsl");
+		Future<Integer> indirectProg = compiler.submit("assets/shaders/StandardIndirectVert.glsl", "assets/shaders/StandardFrag.glsl");
+		Future<Integer> depth = compiler.submit("assets/shaders/StandardVert.glsl", "assets/shaders/DepthFrag.glsl");
+		Future<Integer> depthSkel = compiler.submit("assets/shaders/skeletalVert.glsl", "assets/shaders/DepthFrag.glsl");
+		Future<Integer> depthInstanced = compiler.submit("assets/shaders/StandardInstancedVert.glsl", "assets/shaders/DepthFrag.glsl");
+		Future<Integer> depthTerrain = compiler.submit("assets/shaders/TerrainVert.glsl", "assets/shaders/DepthFrag.glsl");
+		Future<Integer> depthIndirect = compiler.submit("assets/shaders/StandardIndirectVert.glsl", "assets/shaders/DepthFrag.glsl");
+
 		renderingProgram = Utils.createShaderProgram("assets/shaders/StandardVert.glsl",
 			"assets/shaders/StandardFrag.glsl");
 
-		hudColorProgram = Utils.createShaderProgram("assets/shaders/HUDcolorVert.glsl",
-			"assets/shaders/HUDcolorFrag.glsl");
-
-		skyboxProgram = Utils.createShaderProgram("assets/shaders/skyboxVert.glsl",
-			"assets/shaders/skyboxFrag.glsl");
+		standardVariants = new ShaderVariants("assets/shaders/StandardVert.glsl", "assets/shaders/StandardFrag.glsl");
+		instancedVariants = new ShaderVariants("assets/shaders/StandardInstancedVert.glsl", "assets/shaders/StandardFrag.glsl");
 
-		lineProgram = Utils.createShaderProgram("assets/shaders/LineVert.glsl",
-			"assets/shaders/LineFrag.glsl");
-
-		skelProgram = Utils.createShaderProgram("assets/shaders/skeletalVert.glsl",
-			"assets/shaders/StandardFrag.glsl");
+		stateTracker.createTilingSamplers();
+		frameRing.init();
+		lightClusters.init();
+		dynamicResolution.init();
 
 		objectRendererStandard = new RenderObjectStandard(engine);
 		objectRendererSkyBox = new RenderObjectSkyBox(engine);
 		objectRendererLine = new RenderObjectLine(engine);
 		objectRendererAnimation = new RenderObjectAnimation(engine);
+		objectRendererInstanced = new RenderObjectInstanced(engine);
+		objectRendererTerrain = new RenderObjectTerrain(engine);
+		objectRendererIndirect = new RenderObjectIndirect(engine);
 
-		aspect = (float) myCanvas.getWidth() / (float) myCanvas.getHeight();
+		aspect = (float) getSurfaceWidth() / (float) getSurfaceHeight();
 		pMat.setPerspective((float) Math.toRadians(fov), aspect, nearClip, farClip);
 
 		System.out.println("loading skyboxes");
@@ -357,20 +643,29 @@ public class RenderSystem extends JFrame implements GLEventListener
 
 
 		loadTexturesIntoOpenGL();
-		(engine.getGame()).loadSkyBoxes();
 
-		// prepare buffer for extracting height from height map
-		heightProgram = Utils.createShaderProgram("assets/shaders/heightCompute.glsl");
-		gl.glGenBuffers(1, buffer, 0);
-		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer[0]);
-		FloatBuffer resBuf = Buffers.newDirectFloatBuffer(res.length);
-		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, resBuf.limit()*4, null, GL_STATIC_READ);
+		hudColorProgram = compiler.get(hudColor);
+		skyboxProgram = compiler.get(skybox);
+		lineProgram = compiler.get(line);
+		skelProgram = compiler.get(skel);
+		instancedProgram = compiler.get(instanced);
+		terrainProgram = compiler.get(terrain);
+		indirectProgram = compiler.get(indirectProg);
+		depthProgram = compiler.get(depth);
+		depthSkelProgram = compiler.get(depthSkel);
+		depthInstancedProgram = compiler.get(depthInstanced);
+		depthTerrainProgram = compiler.get(depthTerrain);
+		depthIndirectProgram = compiler.get(depthIndirect);
+		compiler.dispose();
+
+		(engine.getSceneGraph()).getRenderQueue().setRenderResources(renderingProgram, skelProgram, lineProgram, defaultTexture);
+		(engine.getGame()).loadSkyBoxes();
 
 		(engine.getLightManager()).loadLightsSSBOinitial();
 	}
 
 	public void toggleVsync() {
-		GLAutoDrawable drawable = myCanvas;
+		GLAutoDrawable drawable = glDrawable;
 		drawable.getContext().makeCurrent();
 		GL4 gl = drawable.getGL().getGL4();
 		vsync = !vsync;
@@ -387,61 +682,344 @@ public class RenderSystem extends JFrame implements GLEventListener
 	/** for engine use only. */
 	public int getDefaultTexture() { return defaultTexture; }
 
+	/** enables or disables drawing batches of objects with the same shape and texture as a single instanced draw call */
+	public void setInstancing(boolean i) { instancing = i; }
+
+	/** returns true if objects that share a shape and texture are drawn with instancing */
+	public boolean isInstancing() { return instancing; }
+
+	/** enables or disables drawing height-mapped TerrainPlanes as quadtree chunks with distance-based level of detail */
+	public void setTerrainLOD(boolean t) { terrainLOD = t; }
+
+	/** returns true if height-mapped TerrainPlanes are drawn as quadtree chunks with distance-based level of detail */
+	public boolean isTerrainLOD() { return terrainLOD; }
+
+	/** enables or disables drawing objects whose render states are marked static from a shared geometry buffer, with multi-draw indirect */
+	public void setIndirectDrawing(boolean d) { indirect = d; }
+
+	/** returns true if static objects are drawn from a shared geometry buffer with multi-draw indirect */
+	public boolean isIndirectDrawing() { return indirect; }
+
+	/**
+	* enables or disables clustered lighting, in which each pixel only considers the lights that can reach it.
+	* Worthwhile for scenes with many lights, provided the lights have attenuation factors or a range.
+	*/
+	public void setClusteredLighting(boolean c) { clustered = c; }
+
+	/** returns true if clustered lighting is enabled */
+	public boolean isClusteredLighting() { return clustered; }
+
+	/**
+	* enables or disables drawing standard and instanced objects with shader variants specialized for their render states.
+	* When disabled, one general shader decides each object's features at runtime.
+	*/
+	public void setShaderVariants(boolean v) { variants = v; }
+
+	/** returns true if objects are drawn with shader variants specialized for their render states */
+	public boolean isShaderVariants() { return variants; }
+
+	/**
+	* enables or disables the depth pre-pass in every viewport, and sets the default for viewports added later.
+	* With the pre-pass, opaque objects are first drawn depth-only, and then shaded with GL_EQUAL depth testing,
+	* so that each visible pixel runs the lighting shader once however much overdraw the scene has.
+	* The pre-pass can also be set for an individual viewport with Viewport.setDepthPrepass().
+	*/
+	public void setDepthPrepass(boolean d)
+	{	depthPrepass = d;
+		for (Viewport vp : viewportList.values()) vp.setDepthPrepass(d);
+	}
+
+	/** returns the depth pre-pass setting for new viewports */
+	public boolean isDepthPrepass() { return depthPrepass; }
+
+	/**
+	* enables or disables dynamic resolution, in which the scene is rendered at a reduced resolution when the GPU
+	* can't meet the target frame time, and upscaled to the canvas.  HUDs are still drawn at full resolution.
+	*/
+	public void setDynamicResolution(boolean d) { dynamicRes = d; }
+
+	/** returns true if dynamic resolution is enabled */
+	public boolean isDynamicResolution() { return dynamicRes; }
+
+	/** returns the dynamic resolution controller, for adjusting its target frame time and minimum scale */
+	public DynamicResolution getDynamicResolution() { return dynamicResolution; }
+
+	/** returns the GPU profiler, which times each pass of the frame, and counts draw calls and state changes */
+	public GPUProfiler getProfiler() { return profiler; }
+
+	/** returns the frame scheduler, which sets the frame rate, and reports frame timing */
+	public FrameScheduler getFrameScheduler() { return frameScheduler; }
+
+	/** enables or disables view-frustum culling of game objects */
+	public void setFrustumCulling(boolean c) { (engine.getSceneGraph()).getRenderQueue().setFrustumCulling(c); }
+
+	/** returns true if game objects outside the view frustum are culled */
+	public boolean isFrustumCulling() { return (engine.getSceneGraph()).getRenderQueue().isFrustumCulling(); }
+
+	/** enables or disables selecting a level of detail for objects whose shapes have LOD chains */
+	public void setLevelOfDetail(boolean l) { (engine.getSceneGraph()).getRenderQueue().setLevelOfDetail(l); }
+
+	/** returns true if objects are drawn at the level of detail selected from their screen size */
+	public boolean isLevelOfDetail() { return (engine.getSceneGraph()).getRenderQueue().isLevelOfDetail(); }
+
+	/**
+	* enables or disables preparing the render queue on worker threads.  When enabled, the levels of detail,
+	* sort keys, and model and normal matrices of large scenes are computed on the common fork-join pool.
+	*/
+	public void setParallelPreparation(boolean p) { (engine.getSceneGraph()).getRenderQueue().setParallelPreparation(p); }
+
+	/** returns true if the render queue is prepared on worker threads */
+	public boolean isParallelPreparation() { return (engine.getSceneGraph()).getRenderQueue().isParallelPreparation(); }
+
+	/**
+	* enables or disables pipelining of simulation and rendering.  When enabled, the game's update() and the node
+	* controllers for the next frame run on a simulation thread while the current frame is being drawn.
+	* Each frame is drawn from a snapshot, taken when the frame is published, of everything the drawing needs
+	* from the scene -- the cameras, the sorted and culled objects with their model and normal matrices, levels of detail,
+	* render states, textures, and skeletal poses (see DrawList), the HUDs, and the lights.  This can nearly halve the
+	* frame time when update() and drawing cost about the same, at the cost of one frame of extra latency between input
+	* and the screen.
+	* <p>
+	* While pipelined, update() must not make OpenGL calls (there is no context on the simulation thread),
+	* and must not change shape materials, which are still read while the frame is drawn.  The default is disabled,
+	* which simulates each frame on the game loop thread before drawing it, as before.
+	*/
+	public void setPipelined(boolean p) { pipelined = p; }
+
+	/** returns true if simulation and rendering are pipelined */
+	public boolean isPipelined() { return pipelined; }
+
+	/** gets the frame pipeline, which runs the simulation step of each frame, and reports how long it took */
+	public FramePipeline getFramePipeline() { return framePipeline; }
+
+	/**
+	* sets how long, in milliseconds, each frame may spend loading shapes created after the game loop started.
+	* At least one shape is loaded per frame, however long it takes.  Changes to the vertex data of dynamic shapes
+	* are always uploaded at the next frame, and don't count against the budget.  The default is 2 milliseconds.
+	*/
+	public void setUploadBudget(float millis) { uploadBudget = java.lang.Math.max(millis, 0.0f); }
+
+	/** returns the time each frame may spend loading new shapes, in milliseconds */
+	public float getUploadBudget() { return uploadBudget; }
+
+	/** returns the number of shapes waiting to be loaded */
+	public int getPendingUploadCount() { return uploadQueue.size(); }
+
+	/** returns the number of shapes loaded in the previous frame */
+	public int getUploadCount() { return uploadsLastFrame; }
+
+	/** returns the number of bounding boxes (tree nodes and objects) tested against view frustums in the previous frame, summed over all viewports */
+	public int getCullingTestedCount() { return lastTested; }
+
+	/** returns the number of objects culled in the previous frame, summed over all viewports */
+	public int getCulledCount() { return lastCulled; }
+
+	/** returns the number of objects submitted for rendering in the previous frame, summed over all viewports */
+	public int getVisibleCount() { return lastVisible; }
+
+	// Releases any per-object data the renderers keep for an object removed from the scenegraph.
+	// The removal may happen on the simulation thread while a frame that still draws the object is being drawn,
+	// so the data is released when the next frame is published.
+	protected void objectRemoved(GameObject go)
+	{	if (objectRendererIndirect != null) removedObjects.add(go);
+	}
+
+	// Releases the space a shape that has just been made dynamic may hold in the shared buffers of static objects,
+	// when the next frame is published, for the same reason.
+	protected void shapeMadeDynamic(ObjShape s)
+	{	if (objectRendererIndirect != null) dynamicShapes.add(s);
+	}
+
 	// ----------------------- SHAPES SECTION ----------------------
 
-	protected void addShape(ObjShape s) { shapes.add(s); }
+	// Shapes created before init() are loaded by loadVBOs(), and those created later are queued for uploadShapes().
+	protected void addShape(ObjShape s)
+	{	if (shapesLoaded) uploadQueue.add(s);
+		else shapes.add(s);
+	}
+
+	// Queues a loaded shape whose vertex data has changed, to be uploaded again.
+	protected void shapeChanged(ObjShape s) { updateQueue.add(s); }
 
-	// loads the vertices, tex coords, and normals into three VBOs.
+	// Creates one VAO per shape, over a single interleaved VBO, plus an element buffer for indexed shapes.
+	// Also creates an empty default VAO, for draws that have no vertex attributes (such as the HUD color dot).
 	private void loadVBOs()
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 
 		gl.glGenVertexArrays(vao.length, vao, 0);
-		gl.glBindVertexArray(vao[0]);
 
 		for (ObjShape shape:shapes)
-		{	gl.glGenBuffers(3, vbo, 0);
+		{	loadShape(shape);
+		}
+		shapesLoaded = true;
+		gl.glBindVertexArray(vao[0]);
+		stateTracker.invalidate();
+	}
 
-			gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-			FloatBuffer vertBuf = Buffers.newDirectFloatBuffer(shape.getVertices());
-			gl.glBufferData(GL_ARRAY_BUFFER, vertBuf.limit()*4, vertBuf, GL_STATIC_DRAW);
+	// Uploads shapes created or changed since the game loop started.  Called when the frame is published.
+	// Changed shapes take on their new data here, on the renderer's thread, so the counts drawn always match the buffers.
+	// Changed shapes are all uploaded, so that meshes deformed every frame don't lag behind.  New shapes are loaded
+	// until the upload budget is used up -- at least one per frame -- and the rest wait for later frames.
+	// A shape with no vertices yet is assumed to still be under construction, and is tried again next frame.
+	private void uploadShapes()
+	{	ObjShape shape;
+		while ((shape = updateQueue.poll()) != null) updateShape(shape);
+
+		long deadline = System.nanoTime() + (long) (uploadBudget * 1000000.0f);
+		uploadsLastFrame = 0;
+		while ((uploadsLastFrame == 0) || (System.nanoTime() < deadline))
+		{	shape = uploadQueue.poll();
+			if (shape == null) break;
+			if (shape.getNumVertices() == 0) { unfinishedShapes.add(shape); continue; }
+			loadShape(shape);
+			shapes.add(shape);
+			uploadsLastFrame++;
+		}
+		uploadQueue.addAll(unfinishedShapes);
+		unfinishedShapes.clear();
+		if (uploadsLastFrame > 0) stateTracker.invalidate();
+	}
 
-			gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-			FloatBuffer texBuf = Buffers.newDirectFloatBuffer(shape.getTexCoords());
-			gl.glBufferData(GL_ARRAY_BUFFER, texBuf.limit()*4, texBuf, GL_STATIC_DRAW);
+	// Uploads the current vertex data of a loaded shape, into the buffers it already has.  A buffer that keeps its
+	// size is orphaned and then refilled with glBufferSubData(), so the driver can hand out fresh storage rather than
+	// wait for draws still reading the old contents.  A buffer that changes size is simply re-specified.
+	// If the shape's bounds change, the objects using it are moved in the bounding volume tree.
+	private void updateShape(ObjShape shape)
+	{	boolean indicesChanged = shape.applyPendingUpdate();
+		if (!shape.isLoaded()) return;		// still queued, and will be loaded with its new data
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+
+		FloatBuffer interleaved = interleave(shape);
+		long bytes = interleaved.limit() * 4L;
+		stateTracker.bindVertexArray(gl, shape.getVAO());
+		gl.glBindBuffer(GL_ARRAY_BUFFER, shape.getVertexBuffer());
+		if (bytes == shape.getVertexBufferBytes())
+		{	gl.glBufferData(GL_ARRAY_BUFFER, bytes, null, GL_DYNAMIC_DRAW);
+			gl.glBufferSubData(GL_ARRAY_BUFFER, 0, bytes, interleaved);
+		}
+		else gl.glBufferData(GL_ARRAY_BUFFER, bytes, interleaved, GL_DYNAMIC_DRAW);
+		shape.setVertexBufferBytes(bytes);
+		// the indices are also rewritten if the vertex count moved them across the limit of unsigned shorts,
+		// and a shape that has just become indexed gets its element buffer, recorded in its VAO, bound above
+		boolean shortIndices = (shape.getNumVertices() <= 65536);
+		if (shape.isIndexed() && (shape.getIndexBuffer() == 0))
+		{	gl.glGenBuffers(1, vbo, 0);
+			shape.setIndexBuffer(vbo[0]);
+			indicesChanged = true;
+		}
+		if (shape.isIndexed() && (indicesChanged || (shortIndices != shape.hasShortIndices())))
+			uploadIndices(gl, shape, GL_DYNAMIC_DRAW);
+
+		float[] b = shape.getBounds();
+		float x0 = b[0], y0 = b[1], z0 = b[2], x1 = b[3], y1 = b[4], z1 = b[5];
+		shape.computeBounds();
+		if ((x0 != b[0]) || (y0 != b[1]) || (z0 != b[2]) || (x1 != b[3]) || (y1 != b[4]) || (z1 != b[5]))
+			(engine.getSceneGraph()).shapeBoundsChanged(shape);
+	}
 
-			gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[2]);
-			FloatBuffer norBuf = Buffers.newDirectFloatBuffer(shape.getNormals());
-			gl.glBufferData(GL_ARRAY_BUFFER, norBuf.limit()*4, norBuf, GL_STATIC_DRAW);
+	// Interleaves the vertex attributes of a shape into one VBO, and records the attribute layout in the shape's own VAO.
+	// Each vertex holds position (3), texture coordinate (2), and normal (3), followed by bone weights (3)
+	// and bone indices (3) for animated shapes.  Attributes the shape doesn't have are filled with zeros.
+	// Dynamic shapes get buffers created for frequent updates.
+	private void loadShape(ObjShape shape)
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		boolean animated = (shape instanceof AnimatedShape);
+		int floatsPerVertex = animated ? 14 : 8;
+		int usage = shape.isDynamic() ? GL_DYNAMIC_DRAW : GL_STATIC_DRAW;
+		FloatBuffer interleaved = interleave(shape);
 
-			shape.setVertexBuffer(vbo[0]);
-			shape.setTexCoordBuffer(vbo[1]);
-			shape.setNormalBuffer(vbo[2]);
+		gl.glGenVertexArrays(1, shapeVao, 0);
+		gl.glBindVertexArray(shapeVao[0]);
 
-			if (shape instanceof AnimatedShape)
-			{	gl.glGenBuffers(2, vbo, 0);
+		gl.glGenBuffers(1, vbo, 0);
+		gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
+		gl.glBufferData(GL_ARRAY_BUFFER, interleaved.limit()*4, interleaved, usage);
+		shape.setVertexBufferBytes(interleaved.limit()*4L);
+
+		int stride = floatsPerVertex * 4;
+		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0);
+		gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, stride, 12);
+		gl.glVertexAttribPointer(2, 3, GL_FLOAT, false, stride, 20);
+		gl.glEnableVertexAttribArray(0);
+		gl.glEnableVertexAttribArray(1);
+		gl.glEnableVertexAttribArray(2);
+		if (animated)
+		{	// the skeletal shader reads bone indices at location 3, and bone weights at location 4
+			gl.glVertexAttribPointer(4, 3, GL_FLOAT, false, stride, 32);
+			gl.glVertexAttribPointer(3, 3, GL_FLOAT, false, stride, 44);
+			gl.glEnableVertexAttribArray(3);
+			gl.glEnableVertexAttribArray(4);
+		}
+		shape.setVertexBuffer(vbo[0]);
 
-				gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-				FloatBuffer boneBuf = Buffers.newDirectFloatBuffer(shape.getBoneWeights());
-				gl.glBufferData(GL_ARRAY_BUFFER, boneBuf.limit()*4, boneBuf, GL_STATIC_DRAW);
+		if (shape.isIndexed())
+		{	gl.glGenBuffers(1, vbo, 0);
+			shape.setIndexBuffer(vbo[0]);
+			uploadIndices(gl, shape, usage);
+		}
+		shape.setVAO(shapeVao[0]);
+		shape.computeBounds();
+	}
 
-				gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[1]);
-				FloatBuffer binBuf = Buffers.newDirectFloatBuffer(shape.getBoneIndices());
-				gl.glBufferData(GL_ARRAY_BUFFER, binBuf.limit()*4, binBuf, GL_STATIC_DRAW);
+	// Interleaves the shape's vertex attributes into the staging buffer, which is grown as needed, and returns it.
+	private FloatBuffer interleave(ObjShape shape)
+	{	boolean animated = (shape instanceof AnimatedShape);
+		int floatsPerVertex = animated ? 14 : 8;
+		int n = shape.getNumVertices();
+		if (uploadVals.capacity() < n * floatsPerVertex)
+			uploadVals = Buffers.newDirectFloatBuffer(java.lang.Math.max(n * floatsPerVertex, uploadVals.capacity() * 2));
 
-				shape.setBoneWeightBuffer(vbo[0]);
-				shape.setBoneIndicesBuffer(vbo[1]);
+		FloatBuffer interleaved = uploadVals;
+		interleaved.clear();
+		for (int i = 0; i < n; i++)
+		{	putAttribute(interleaved, shape.getVertices(), i, 3);
+			putAttribute(interleaved, shape.getTexCoords(), i, 2);
+			putAttribute(interleaved, shape.getNormals(), i, 3);
+			if (animated)
+			{	putAttribute(interleaved, shape.getBoneWeights(), i, 3);
+				putAttribute(interleaved, shape.getBoneIndices(), i, 3);
 			}
 		}
+		interleaved.flip();
+		return interleaved;
+	}
 
-		// load skybox into vbo
-		gl.glGenBuffers(1, vbo, 0);
-		GameObject go = (engine.getSceneGraph()).getSkyBoxObject();
-		gl.glBindBuffer(GL_ARRAY_BUFFER, vbo[0]);
-		FloatBuffer vertBuf = Buffers.newDirectFloatBuffer(go.getShape().getVertices());
-		gl.glBufferData(GL_ARRAY_BUFFER, vertBuf.limit()*4, vertBuf, GL_STATIC_DRAW);
-		go.getShape().setVertexBuffer(vbo[0]);
+	// Writes a shape's indices into its index buffer, with the shape's VAO bound, as unsigned shorts if
+	// every vertex can be addressed with them, and otherwise as unsigned ints.  As with the vertex buffer,
+	// an index buffer that keeps its size is orphaned and refilled, and one that changes size is re-specified.
+	private void uploadIndices(GL4 gl, ObjShape shape, int usage)
+	{	int[] indices = shape.getIndices();
+		int n = shape.getNumIndices();
+		boolean shortIndices = (shape.getNumVertices() <= 65536);
+		long bytes = (long) n * (shortIndices ? 2 : 4);
+		gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, shape.getIndexBuffer());
+		Buffer data;
+		if (shortIndices)
+		{	ShortBuffer indBuf = Buffers.newDirectShortBuffer(n);
+			for (int i = 0; i < n; i++) indBuf.put((short) indices[i]);
+			indBuf.flip();
+			data = indBuf;
+		}
+		else data = Buffers.newDirectIntBuffer(indices, 0, n);
+		if (bytes == shape.getIndexBufferBytes())
+		{	gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, bytes, null, usage);
+			gl.glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, 0, bytes, data);
+		}
+		else gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, bytes, data, usage);
+		shape.setIndexBufferBytes(bytes);
+		shape.setShortIndices(shortIndices);
+	}
+
+	private void putAttribute(FloatBuffer dest, float[] src, int vertex, int size)
+	{	for (int c = 0; c < size; c++)
+		{	int i = vertex*size + c;
+			dest.put(((src != null) && (i < src.length)) ? src[i] : 0f);
+		}
 	}
 
+	/** returns the empty VAO that is bound for draws without vertex attributes - for engine use only. */
+	public int getDefaultVAO() { return vao[0]; }
+
 	// ------------------ TEXTURE SECTION ---------------------
 
 	protected void addTexture(TextureImage t) { textures.add(t); }
@@ -452,33 +1030,24 @@ public class RenderSystem extends JFrame implements GLEventListener
 		{	TextureImage t = textures.get(i);
 			thisTexture = Utils.loadTexture(t.getTextureFile());
 			t.setTexture(thisTexture);
+			texturesByName.put(thisTexture, t);
 		}
 		engine.getSceneGraph().setActiveSkyBoxTexture(defaultSkyBox);
 	}
 
-	/** get height map height at the specified texture coordinate (x,z). */
-	public float getHeightAt(int texture, float x, float z)
-	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		gl.glUseProgram(heightProgram);
-		gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, buffer[0]);
-
-		xLoc = gl.glGetUniformLocation(heightProgram, "x");
-		zLoc = gl.glGetUniformLocation(heightProgram, "z");
-		gl.glUniform1f(xLoc, x);
-		gl.glUniform1f(zLoc, z);
-
-		gl.glActiveTexture(GL_TEXTURE0);
-		gl.glBindTexture(GL_TEXTURE_2D, texture);
+	/** returns the tracker that shadows OpenGL state for the object renderers - for engine use only. */
+	public RenderStateTracker getStateTracker() { return stateTracker; }
 
-		gl.glDispatchCompute(1, 1, 1);
-		gl.glFinish();
+	/** returns the ring buffer that holds this frame's uniform blocks - for engine use only. */
+	public FrameRingBuffer getFrameRingBuffer() { return frameRing; }
 
-		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer[0]);
-		FloatBuffer resBuf = Buffers.newDirectFloatBuffer(res.length);
-		gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, resBuf.limit()*4, resBuf);
-		
-		float res = resBuf.get();
-		return res;
+	/**
+	* get height map height at the specified texture coordinate (x,z).
+	* The height is read from the in-memory copy of the height map, so this can be called from any thread.
+	*/
+	public float getHeightAt(int texture, float x, float z)
+	{	TextureImage t = texturesByName.get(texture);
+		return (t == null) ? 0.0f : t.getHeightField().getHeight(x, z);
 	}
 
 	// ---------------------------------------------------------
@@ -487,7 +1056,7 @@ public class RenderSystem extends JFrame implements GLEventListener
 
 	/** for engine use, called by JOGL. */
 	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height)
-	{	aspect = (float) myCanvas.getWidth() / (float) myCanvas.getHeight();
+	{	aspect = (float) getSurfaceWidth() / (float) getSurfaceHeight();
 		pMat.setPerspective((float) Math.toRadians(fov), aspect, nearClip, farClip);
 	}
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import org.joml.*;
 * <li> loadCubeMap()
 * <li> removeGameObject()
 * <li> getNumGameObjects()
+* <li> rayCast() and getObjectsInBox()
 * <li> addPhysicsXXX() - where XXX is the desired physics object shape
 * <li> removePhysicsObject()
 * </ul>
@@ -35,12 +36,23 @@ import org.joml.*;
 * The game application should store that integer to refer to the cubemap if it wishes to swap
 * between multiple cubemaps.  That can be done by calling setActiveSkyBoxTexture() with the integer
 * skybox reference provided as a parameter. All cubemaps should be loaded before starting the game loop.
+* <p>
+* The SceneGraph also maintains a bounding volume tree over the world bounding boxes of its game objects.
+* Objects report themselves as moved whenever their world transform, shape, or orientation correction changes,
+* and only those objects are updated in the tree, once per frame before rendering.
+* The renderer uses the tree for frustum culling, and the game application can use it through
+* rayCast() and getObjectsInBox(), whose cost grows logarithmically rather than linearly with the number of objects.
+* Objects whose shapes do not yet have bounds are kept aside, and are always considered visible.
 * @author Scott Gordon
 */
 
 public class SceneGraph
 {	private static GameObject root;
 	private ArrayList<GameObject> gameObjects = new ArrayList<GameObject>();
+	private RenderQueue renderQueue = new RenderQueue(this);
+	private BoundingVolumeTree bvh = new BoundingVolumeTree();
+	private ArrayList<GameObject> movedObjects = new ArrayList<GameObject>();
+	private ArrayList<GameObject> unboundedObjects = new ArrayList<GameObject>();
 	private ArrayList<NodeController> nodeControllers = new ArrayList<NodeController>();
 	private Vector<GameObject> physicsRenderables = new Vector<GameObject>();
 	private Engine engine;
@@ -69,6 +81,9 @@ public class SceneGraph
 	/** adds the specified Light object to the LightManager for rendering. */
 	public void addLight(Light light) { (engine.getLightManager()).addLight(light); }
 
+	/** removes the specified Light object, so that it no longer illuminates the scene. */
+	public void removeLight(Light light) { (engine.getLightManager()).removeLight(light); }
+
 	// -------------- NODE CONTROLLER SECTION -------------------
 
 	/** adds the specified node controller for use in the game. */
@@ -109,11 +124,125 @@ public class SceneGraph
 			}
 			// then remove the object, also removing the parent reference
 			if (go.getParent() != null) (go.getParent()).removeChild(go);
-			if (gameObjects.contains(go)) gameObjects.remove(go);
+			if (gameObjects.contains(go))
+			{	gameObjects.remove(go);
+				renderQueue.remove(go);
+				if (go.getBVHLeaf() >= 0) { bvh.destroyProxy(go.getBVHLeaf()); go.setBVHLeaf(-1); }
+				else removeUnbounded(go);
+				if (go.getShape() != null) (go.getShape()).removeUser(go);
+				go.setInScene(false);
+				Engine.getEngine().getRenderSystem().objectRemoved(go);
+			}
+		}
+	}
+
+	protected void addGameObject(GameObject g)
+	{	gameObjects.add(g);
+		renderQueue.add(g);
+		// it enters the bounding volume tree at the next update, once its bounds are known
+		addUnbounded(g);
+		if (g.getShape() != null) (g.getShape()).addUser(g);
+		g.setInScene(true);
+		g.boundsChanged();
+	}
+
+	// returns the persistent render queue, which is kept in step with the list of game objects - used by the renderer.
+	protected RenderQueue getRenderQueue() { return renderQueue; }
+
+	//------------- BOUNDING VOLUME SECTION ---------------------
+
+	// Called by a GameObject the first time its bounds change after each update of the tree.
+
+	protected void objectMoved(GameObject go) { movedObjects.add(go); }
+
+	// Called by the renderer when a dynamic shape's bounds change -- each object with that shape has new world bounds.
+	// Only the shape's own users are visited, so a mesh deformed every frame doesn't cost a pass over the whole scene.
+
+	protected void shapeBoundsChanged(ObjShape shape)
+	{	ArrayList<GameObject> users = shape.getUsers();
+		for (int i = 0; i < users.size(); i++) (users.get(i)).boundsChanged();
+	}
+
+	// Brings the bounding volume tree up to date with the objects that moved since the last update.
+	// Called by the renderer once per frame before culling, and by the queries below.
+
+	protected void updateBoundingVolumes()
+	{	for (int i = 0; i < movedObjects.size(); i++)
+		{	GameObject g = movedObjects.get(i);
+			g.clearBoundsMoved();
+			if (!g.isInScene()) continue;
+			int leaf = g.getBVHLeaf();
+			if (g.hasWorldBounds())
+			{	if (leaf >= 0) bvh.moveProxy(leaf, g.getWorldBounds());
+				else
+				{	removeUnbounded(g);
+					g.setBVHLeaf(bvh.createProxy(g, g.getWorldBounds()));
+				}
+			}
+			else if (leaf >= 0)
+			{	bvh.destroyProxy(leaf);
+				g.setBVHLeaf(-1);
+				addUnbounded(g);
+			}
+		}
+		movedObjects.clear();
+
+		// shapes get their bounds when they are loaded, which doesn't move the objects using them
+		for (int i = unboundedObjects.size() - 1; i >= 0; i--)
+		{	GameObject g = unboundedObjects.get(i);
+			if (g.hasWorldBounds())
+			{	removeUnbounded(g);
+				g.setBVHLeaf(bvh.createProxy(g, g.getWorldBounds()));
+			}
 		}
 	}
 
-	protected void addGameObject(GameObject g) { gameObjects.add(g); }
+	// The objects without bounds are kept in no particular order, and each knows its position in the list,
+	// so an object is removed by moving the last one into its place, rather than by searching and shifting.
+
+	private void addUnbounded(GameObject g)
+	{	g.setUnboundedIndex(unboundedObjects.size());
+		unboundedObjects.add(g);
+	}
+
+	private void removeUnbounded(GameObject g)
+	{	int i = g.getUnboundedIndex();
+		if ((i < 0) || (i >= unboundedObjects.size()) || (unboundedObjects.get(i) != g)) return;
+		int last = unboundedObjects.size() - 1;
+		GameObject moved = unboundedObjects.get(last);
+		unboundedObjects.set(i, moved);
+		moved.setUnboundedIndex(i);
+		unboundedObjects.remove(last);
+		g.setUnboundedIndex(-1);
+	}
+
+	// returns the bounding volume tree, and the objects that are not in it because they have no bounds - used by the RenderQueue.
+	protected BoundingVolumeTree getBoundingVolumeTree() { return bvh; }
+	protected ArrayList<GameObject> getUnboundedObjects() { return unboundedObjects; }
+
+	/**
+	* returns the GameObject whose world bounding box is hit first by a ray from the specified origin
+	* in the specified direction, within maxDistance, or null if there is none.
+	* Objects are considered whether or not rendering is enabled for them, but objects without a shape are not.
+	*/
+	public GameObject rayCast(Vector3f origin, Vector3f direction, float maxDistance)
+	{	updateBoundingVolumes();
+		float len = direction.length();
+		if (len == 0f) return null;
+		return bvh.rayCast(origin.x(), origin.y(), origin.z(),
+			direction.x()/len, direction.y()/len, direction.z()/len, maxDistance);
+	}
+
+	/**
+	* returns the GameObjects whose world bounding boxes overlap the specified axis-aligned box.
+	* Objects are considered whether or not rendering is enabled for them, but objects without a shape are not.
+	*/
+	public ArrayList<GameObject> getObjectsInBox(Vector3f min, Vector3f max)
+	{	updateBoundingVolumes();
+		ArrayList<GameObject> result = new ArrayList<GameObject>();
+		bvh.queryBox(min.x(), min.y(), min.z(), max.x(), max.y(), max.z(), result);
+		return result;
+	}
 
 	//------------- SKYBOX SECTION ---------------------
 
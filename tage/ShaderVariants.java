@@ -0,0 +1,72 @@
+package tage;
+
+/**
+* A table of specialized versions (variants) of one vertex and fragment shader pair, one for each combination
+* of the features an object's render states can turn on.
+* <p>
+* The standard fragment shader can decide at runtime whether an object is textured, environment mapped, lit,
+* a solid color, or height mapped -- but then every fragment pays for all of those branches, including
+* estimating terrain normals.  A variant is compiled with the line
+* <br>
+* #define FEATURES n
+* <br>
+* inserted after the #version line, where n is the object's feature bitmask.  The shaders then treat the
+* features as constants, so the compiler removes the branches that can't be taken.
+* <p>
+* Variants are compiled the first time they are requested, and kept in the table from then on.
+* The bits of the feature mask are the same as those of the flags the shaders otherwise receive at runtime.
+* <p>
+* Used by the renderer, should not be needed by the game application.
+* @author Scott Gordon
+*/
+public class ShaderVariants
+{
+	/** feature bit - the object has a texture */
+	public static final int TEXTURE = 1;
+	/** feature bit - the object is environment mapped */
+	public static final int ENV_MAPPED = 2;
+	/** feature bit - the object is lit */
+	public static final int LIGHTING = 4;
+	/** feature bit - the object is drawn in a solid color */
+	public static final int SOLID_COLOR = 8;
+	/** feature bit - the object is height mapped terrain */
+	public static final int HEIGHT_MAPPED = 16;
+	/** number of possible feature combinations */
+	public static final int NUM_VARIANTS = 32;
+
+	private String vertFile, fragFile;
+	private int[] programs = new int[NUM_VARIANTS];
+	private int numCompiled;
+
+	/** for engine use only. */
+	protected ShaderVariants(String vertexShaderFile, String fragmentShaderFile)
+	{	vertFile = vertexShaderFile;
+		fragFile = fragmentShaderFile;
+	}
+
+	/** returns the program specialized for the specified feature bitmask, compiling it if necessary - for engine use only. */
+	public int getProgram(int features)
+	{	int p = programs[features];
+		if (p == 0)
+		{	p = Utils.createShaderVariant(vertFile, fragFile, "#define FEATURES " + features);
+			programs[features] = p;
+			numCompiled++;
+		}
+		return p;
+	}
+
+	/** returns the number of variants compiled so far */
+	public int getNumCompiled() { return numCompiled; }
+
+	/** returns the feature bitmask of the specified object, from its render states - for engine use only. */
+	public static int getFeatures(GameObject go)
+	{	RenderStates rs = go.getRenderStates();
+		int f = 0;
+		if (go.getTextureImage() != null) f |= TEXTURE;
+		if (rs.isEnvironmentMapped()) f |= ENV_MAPPED;
+		if (rs.hasLighting()) f |= LIGHTING;
+		if (rs.hasSolidColor()) f |= SOLID_COLOR;
+		if (go.isTerrain()) f |= HEIGHT_MAPPED;
+		return f;
+	}
+}
@@ -10,6 +10,7 @@ import tage.shapes.*;
 * <ul>
 * <li> a String containing the associated texture file pathname
 * <li> an integer reference to the associated OpenGL texture object
+* <li> if it is used as a height map, a HeightField copy of the image in main memory
 * </ul>
 * <p>
 * Each GameObject typically is associated with one TextureImage.
@@ -22,6 +23,7 @@ public class TextureImage
 {
 	private String textureFile;
 	private int texture;
+	private volatile HeightField heightField;
 
 	public TextureImage()
 	{	
@@ -41,4 +43,19 @@ public class TextureImage
 	public String getTextureFile() { return textureFile; }
 	/** for engine use */
 	public int getTexture() { return texture; }
+
+	/** returns the in-memory copy of this image used for height lookups, reading the image file the first time it is needed. */
+	public HeightField getHeightField()
+	{	HeightField h = heightField;
+		if (h == null) h = loadHeightField();
+		return h;
+	}
+
+	// Reads the image file into a HeightField, if that hasn't already been done.
+	// Called when the image is assigned as a height map, so that the file is not read during the game loop.
+	protected synchronized HeightField loadHeightField()
+	{	if (heightField == null)
+			heightField = new HeightField(Utils.getBufferedImage(textureFile));
+		return heightField;
+	}
 }
\ No newline at end of file
@@ -31,68 +31,55 @@ public class Utils
 {	public Utils() {}
 
 	protected static int createShaderProgram(String vS, String tCS, String tES, String gS, String fS)
-	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		int vShader  = prepareShader(GL_VERTEX_SHADER, vS);
-		int tcShader = prepareShader(GL_TESS_CONTROL_SHADER, tCS);
-		int teShader = prepareShader(GL_TESS_EVALUATION_SHADER, tES);
-		int gShader = prepareShader(GL_GEOMETRY_SHADER, gS);
-		int fShader  = prepareShader(GL_FRAGMENT_SHADER, fS);
-		int vtgfprogram = gl.glCreateProgram();
-		gl.glAttachShader(vtgfprogram, vShader);
-		gl.glAttachShader(vtgfprogram, tcShader);
-		gl.glAttachShader(vtgfprogram, teShader);
-		gl.glAttachShader(vtgfprogram, gShader);
-		gl.glAttachShader(vtgfprogram, fShader);
-		finalizeProgram(vtgfprogram);
-		return vtgfprogram;
+	{	return buildProgram(new int[] { GL_VERTEX_SHADER, GL_TESS_CONTROL_SHADER, GL_TESS_EVALUATION_SHADER,
+			GL_GEOMETRY_SHADER, GL_FRAGMENT_SHADER }, new String[] { vS, tCS, tES, gS, fS }, null);
 	}
 
 	protected static int createShaderProgram(String vS, String tCS, String tES, String fS)
-	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		int vShader  = prepareShader(GL_VERTEX_SHADER, vS);
-		int tcShader = prepareShader(GL_TESS_CONTROL_SHADER, tCS);
-		int teShader = prepareShader(GL_TESS_EVALUATION_SHADER, tES);
-		int fShader  = prepareShader(GL_FRAGMENT_SHADER, fS);
-		int vtfprogram = gl.glCreateProgram();
-		gl.glAttachShader(vtfprogram, vShader);
-		gl.glAttachShader(vtfprogram, tcShader);
-		gl.glAttachShader(vtfprogram, teShader);
-		gl.glAttachShader(vtfprogram, fShader);
-		finalizeProgram(vtfprogram);
-		return vtfprogram;
+	{	return buildProgram(new int[] { GL_VERTEX_SHADER, GL_TESS_CONTROL_SHADER, GL_TESS_EVALUATION_SHADER,
+			GL_FRAGMENT_SHADER }, new String[] { vS, tCS, tES, fS }, null);
 	}
 
 	protected static int createShaderProgram(String vS, String gS, String fS)
-	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		int vShader  = prepareShader(GL_VERTEX_SHADER, vS);
-		int gShader = prepareShader(GL_GEOMETRY_SHADER, gS);
-		int fShader  = prepareShader(GL_FRAGMENT_SHADER, fS);
-		int vgfprogram = gl.glCreateProgram();
-		gl.glAttachShader(vgfprogram, vShader);
-		gl.glAttachShader(vgfprogram, gShader);
-		gl.glAttachShader(vgfprogram, fShader);
-		finalizeProgram(vgfprogram);
-		return vgfprogram;
+	{	return buildProgram(new int[] { GL_VERTEX_SHADER, GL_GEOMETRY_SHADER, GL_FRAGMENT_SHADER },
+			new String[] { vS, gS, fS }, null);
 	}
 
 	protected static int createShaderProgram(String vS, String fS)
-	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		int vShader  = prepareShader(GL_VERTEX_SHADER, vS);
-		int fShader  = prepareShader(GL_FRAGMENT_SHADER, fS);
-		int vfprogram = gl.glCreateProgram();
-		gl.glAttachShader(vfprogram, vShader);
-		gl.glAttachShader(vfprogram, fShader);
-		finalizeProgram(vfprogram);
-		return vfprogram;
+	{	return buildProgram(new int[] { GL_VERTEX_SHADER, GL_FRAGMENT_SHADER }, new String[] { vS, fS }, null);
+	}
+
+	// Builds a vertex and fragment shader program with the specified #define lines inserted into both shaders,
+	// directly after their #version lines.  Used to compile specialized variants of a shader.
+	protected static int createShaderVariant(String vS, String fS, String defines)
+	{	return buildProgram(new int[] { GL_VERTEX_SHADER, GL_FRAGMENT_SHADER }, new String[] { vS, fS }, defines);
 	}
 
 	protected static int createShaderProgram(String cS)
+	{	return buildProgram(new int[] { GL_COMPUTE_SHADER }, new String[] { cS }, null);
+	}
+
+	// Builds a program from the specified shader stages.  If the program binary cache holds a binary built
+	// from the same sources by the same driver, it is loaded instead of compiling the shaders.
+	private static int buildProgram(int[] types, String[] files, String defines)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
-		int cShader  = prepareShader(GL_COMPUTE_SHADER, cS);
-		int cprogram = gl.glCreateProgram();
-		gl.glAttachShader(cprogram, cShader);
-		finalizeProgram(cprogram);
-		return cprogram;
+		String[][] sources = new String[files.length][];
+		for (int i = 0; i < files.length; i++) sources[i] = readShaderSource(files[i], defines);
+
+		String key = ProgramCache.getKey(types, sources);
+		int program = ProgramCache.load(key);
+		if (program != 0)
+		{	ProgramReflection.reflect(program);
+			return program;
+		}
+
+		program = gl.glCreateProgram();
+		for (int i = 0; i < files.length; i++)
+			gl.glAttachShader(program, prepareShader(types[i], sources[i]));
+		if (key != null) ProgramCache.prepare(program);
+		finalizeProgram(program);
+		ProgramCache.store(program, key);
+		return program;
 	}
 
 	protected static int finalizeProgram(int sprogram)
@@ -105,13 +92,20 @@ public class Utils
 		{	System.out.println("linking failed");
 			printProgramLog(sprogram);
 		}
+		else
+		{	// enumerate uniforms, uniform blocks, and SSBOs once, so renderers never query them per draw
+			ProgramReflection.reflect(sprogram);
+		}
 		return sprogram;
 	}
 	
 	protected static int prepareShader(int shaderTYPE, String shader)
+	{	return prepareShader(shaderTYPE, readShaderSource(shader));
+	}
+
+	protected static int prepareShader(int shaderTYPE, String[] shaderSource)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 		int[] shaderCompiled = new int[1];
-		String shaderSource[] = readShaderSource(shader);
 		int shaderRef = gl.glCreateShader(shaderTYPE);
 		gl.glShaderSource(shaderRef, shaderSource.length, shaderSource, null, 0);
 		gl.glCompileShader(shaderRef);
@@ -130,6 +124,18 @@ public class Utils
 		return shaderRef;
 	}
 	
+	// Reads a shader's source, inserting the specified #define lines (if any) directly after the #version line,
+	// which must come first.
+	protected static String[] readShaderSource(String filename, String defines)
+	{	String[] shaderSource = readShaderSource(filename);
+		if ((defines == null) || (shaderSource == null) || (shaderSource.length == 0)) return shaderSource;
+		String[] withDefines = new String[shaderSource.length + 1];
+		withDefines[0] = shaderSource[0];
+		withDefines[1] = defines + "\n";
+		System.arraycopy(shaderSource, 1, withDefines, 2, shaderSource.length - 1);
+		return withDefines;
+	}
+
 	protected static String[] readShaderSource(String filename)
 	{	Vector<String> lines = new Vector<String>();
 		Scanner sc;
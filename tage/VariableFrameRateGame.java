@@ -77,7 +77,7 @@ public abstract class VariableFrameRateGame implements KeyListener, MouseListene
 	public void loadSounds() { }
 
 	/**
-	* Tells the render system to start the OpenGL Animator.
+	* Tells the render system to start the game loop, run by its FrameScheduler.
 	* It should NOT be necessary for the game application to override this function.
 	* Instead, the game application should call it when it is ready to start the game,
 	* if a skybox is desired.
@@ -86,10 +86,12 @@ public abstract class VariableFrameRateGame implements KeyListener, MouseListene
 	{	System.out.println("starting game loop");
 
 		RenderSystem rs = getEngine().getRenderSystem();
-		rs.getGLCanvas().addKeyListener(getEngine().getGame());
-		rs.getGLCanvas().addMouseListener(getEngine().getGame());
-		rs.getGLCanvas().addMouseMotionListener(getEngine().getGame());
-		rs.getGLCanvas().addMouseWheelListener(getEngine().getGame());
+		if (rs.getGLCanvas() != null)
+		{	rs.getGLCanvas().addKeyListener(getEngine().getGame());
+			rs.getGLCanvas().addMouseListener(getEngine().getGame());
+			rs.getGLCanvas().addMouseMotionListener(getEngine().getGame());
+			rs.getGLCanvas().addMouseWheelListener(getEngine().getGame());
+		}
 
 		(eng.getSceneGraph()).updateAllObjectTransforms();
 		(eng.getRenderSystem()).startGameLoop();
@@ -1,7 +1,7 @@
 package tage;
 
 import com.jogamp.opengl.awt.GLCanvas;
-import java.awt.Point;
+import org.joml.*;
 
 /**
 * One viewport covering a portion of the GLCanvas, and an associated camera.
@@ -16,6 +16,7 @@ import java.awt.Point;
 
 public class Viewport
 {	
+	private String name;
 	private Camera camera;
 	private Engine engine;
 
@@ -27,16 +28,27 @@ public class Viewport
 	private boolean hasBorder = false;
 	private int borderWidth = 0;
 	private float borderColor[] = { 1.0f, 0.0f, 0.0f };
+	private boolean depthPrepass = false;
+
+	// what the renderer draws, as of the most recent snapshot of the frame
+	private DrawList drawList = new DrawList();
+	private Matrix4f snapshotView = new Matrix4f();
+	private Matrix4f snapshotProjection = new Matrix4f();
 
 	protected Viewport(String n, Engine e, float left, float bottom, float width, float height)
-	{	relativeLeft = left;
+	{	name = n;
+		relativeLeft = left;
 		relativeBottom = bottom;
 		relativeWidth = width;
 		relativeHeight = height;
 		camera = new Camera();
 		engine = e;
+		depthPrepass = e.getRenderSystem().isDepthPrepass();
 	}
 
+	/** returns the name of this viewport. */
+	public String getName() { return name; }
+
 	/** returns a reference to the camera assigned to this viewport. */
 	public Camera getCamera() { return camera; }
 
@@ -58,9 +70,8 @@ public class Viewport
 	public float getActualLeft()
 	{	RenderSystem rs = engine.getRenderSystem();
 		GLCanvas canvas = rs.getGLCanvas();
-		Point loc = canvas.getLocationOnScreen();
-		float left = (float) loc.getX();
-		float width = canvas.getWidth();
+		float left = (canvas == null) ? 0.0f : (float) canvas.getLocationOnScreen().getX();
+		float width = rs.getSurfaceWidth();
 		return left + width * relativeLeft;
 	}
 
@@ -68,24 +79,20 @@ public class Viewport
 	public float getActualBottom()
 	{	RenderSystem rs = engine.getRenderSystem();
 		GLCanvas canvas = rs.getGLCanvas();
-		Point loc = canvas.getLocationOnScreen();
-		float top = (float) loc.getY();
-		float height = canvas.getHeight();
+		float top = (canvas == null) ? 0.0f : (float) canvas.getLocationOnScreen().getY();
 		return top + getActualHeight();
 	}
 
 	/** returns the actual width of this viewport, in pixels */
 	public float getActualWidth()
 	{	RenderSystem rs = engine.getRenderSystem();
-		GLCanvas canvas = rs.getGLCanvas();
-		return canvas.getWidth() * relativeWidth;
+		return rs.getSurfaceWidth() * relativeWidth;
 	}
 
 	/** returns the actual height of this viewport, in pixels */
 	public float getActualHeight()
 	{	RenderSystem rs = engine.getRenderSystem();
-		GLCanvas canvas = rs.getGLCanvas();
-		return canvas.getHeight() * relativeHeight;
+		return rs.getSurfaceHeight() * relativeHeight;
 	}
 
 	/** returns a boolean that is true if a border has been specified for this viewport */
@@ -109,4 +116,19 @@ public class Viewport
 		borderColor[1] = g;
 		borderColor[2] = b;
 	}
+
+	/**
+	* sets whether the opaque objects in this viewport are first drawn depth-only, so that each visible pixel is only shaded once.
+	* The default is the RenderSystem's setting (see RenderSystem.setDepthPrepass()) when the viewport was created.
+	*/
+	public void setDepthPrepass(boolean d) { depthPrepass = d; }
+
+	/** returns true if the opaque objects in this viewport are first drawn depth-only */
+	public boolean hasDepthPrepass() { return depthPrepass; }
+
+	// The objects to draw in this viewport, and the view and projection matrices to draw them with,
+	// as of the renderer's most recent snapshot of the frame.
+	protected DrawList getDrawList() { return drawList; }
+	protected Matrix4f getSnapshotView() { return snapshotView; }
+	protected Matrix4f getSnapshotProjection() { return snapshotProjection; }
 }
\ No newline at end of file
@@ -14,6 +14,8 @@ import tage.shapes.*;
 * Includes a single method render() for rendering a GameObject with animated shape.
 * It is basically the same as rendering a standard object, except that it
 * also transfers the pose skin matrices needed for the shader to pose the model.
+* The object is drawn from a DrawList, which holds copies of its model matrix, render states,
+* and the skin matrices of its pose when the frame was published.
 * <p>
 * Used by the game engine, should not be used directly by the game application.
 * @author Scott Gordon
@@ -30,54 +32,61 @@ public class RenderObjectAnimation
 	private Matrix4f vMat = new Matrix4f();  // view matrix
 	private Matrix4f mMat = new Matrix4f();  // model matrix
 	private Matrix4f invTrMat = new Matrix4f(); // inverse-transpose
-	private int mLoc, vLoc, pLoc, nLoc, eLoc, tLoc, lLoc, fLoc, sLoc, cLoc;
-	private int globalAmbLoc,mambLoc,mdiffLoc,mspecLoc,mshiLoc;
+	private Vector3f color = new Vector3f();
+	private int mLoc, nLoc, eLoc, tLoc, sLoc, cLoc;
+	private int mambLoc,mdiffLoc,mspecLoc,mshiLoc;
 	private int skinMatLoc, skinMatITLoc;
-	private int hasSolidColor, hasTex, thisTexture, defaultTexture, tiling, tilingOption;
+	private int hasSolidColor, hasTex, thisTexture, defaultTexture;
 	private int isEnvMapped, activeSkyBoxTexture;
+	private int locationsProgram = -1;
+	private RenderStateTracker state;
+
+	// staging buffers for uploading all of the skin matrices with a single call
+	private FloatBuffer skinVals = Buffers.newDirectFloatBuffer(128*16);
+	private FloatBuffer skinValsIT = Buffers.newDirectFloatBuffer(128*9);
+
+	// uniform names used by this renderer -- their locations are looked up from the
+	// program's reflection data, in this order, only when the program changes.
+	private static final String[] UNIFORMS =
+	{	"m_matrix", "norm_matrix", "has_texture", "envMapped", "solidColor", "color",
+		"material.ambient", "material.diffuse", "material.specular", "material.shininess",
+		"skin_matrices", "skin_matrices_IT"
+	};
 
 	/** for engine use only. */
 	public RenderObjectAnimation(Engine e)
 	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
 	}
 
-	/** for engine use only. */
-	public void render(GameObject go, int renderingProgram, Matrix4f pMat, Matrix4f vMat)
+	private void findUniformLocations(int renderingProgram)
+	{	int[] loc = ProgramReflection.getLocations(renderingProgram, UNIFORMS);
+		mLoc = loc[0]; nLoc = loc[1]; tLoc = loc[2]; eLoc = loc[3];
+		sLoc = loc[4]; cLoc = loc[5];
+		mambLoc = loc[6]; mdiffLoc = loc[7]; mspecLoc = loc[8]; mshiLoc = loc[9];
+		skinMatLoc = loc[10]; skinMatITLoc = loc[11];
+		locationsProgram = renderingProgram;
+	}
+
+	/** renders the i-th object in the draw list - for engine use only. */
+	public void render(DrawList list, int i, int renderingProgram, Matrix4f pMat, Matrix4f vMat)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		ObjShape shape = list.getShape(i);
+		mMat.set(list.getTransforms(), list.getTransformOffset(i));
 
-		// ----------- prepare animation transform matrices
-		tage.rml.Matrix4[] skinMats = ((AnimatedShape)go.getShape()).getPoseSkinMatrices();
-		tage.rml.Matrix3[] skinMatsIT = ((AnimatedShape)go.getShape()).getPoseSkinMatricesIT();
-		int boneCount = ((AnimatedShape)go.getShape()).getBoneCount();
-
-		gl.glUseProgram(renderingProgram);
-
-		mLoc = gl.glGetUniformLocation(renderingProgram, "m_matrix");
-		vLoc = gl.glGetUniformLocation(renderingProgram, "v_matrix");
-		pLoc = gl.glGetUniformLocation(renderingProgram, "p_matrix");
-		nLoc = gl.glGetUniformLocation(renderingProgram, "norm_matrix");
-		tLoc = gl.glGetUniformLocation(renderingProgram, "has_texture");
-		eLoc = gl.glGetUniformLocation(renderingProgram, "envMapped");
-		sLoc = gl.glGetUniformLocation(renderingProgram, "solidColor");
-		cLoc = gl.glGetUniformLocation(renderingProgram, "color");
-		lLoc = gl.glGetUniformLocation(renderingProgram, "num_lights");
-		fLoc = gl.glGetUniformLocation(renderingProgram, "fields_per_light");
-		globalAmbLoc = gl.glGetUniformLocation(renderingProgram, "globalAmbient");
-		mambLoc = gl.glGetUniformLocation(renderingProgram, "material.ambient");
-		mdiffLoc = gl.glGetUniformLocation(renderingProgram, "material.diffuse");
-		mspecLoc = gl.glGetUniformLocation(renderingProgram, "material.specular");
-		mshiLoc = gl.glGetUniformLocation(renderingProgram, "material.shininess");
-
-		mMat.identity();
-		mMat.mul(go.getWorldTranslation());
-		mMat.mul(go.getWorldRotation());
-		mMat.mul(go.getRenderStates().getModelOrientationCorrection());
-		mMat.mul(go.getWorldScale());
+		// ----------- the pose's skin matrices, copied when the frame was published
+		float[] skins = list.getSkinMatrices();
+		int skinOffset = list.getSkinOffset(i);
+		int boneCount = list.getBoneCount(i);
+
+		state.useProgram(gl, renderingProgram);
+
+		if (renderingProgram != locationsProgram) findUniformLocations(renderingProgram);
 
 		hasTex = 1;
 		hasSolidColor = 0;
 		
-		gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, (engine.getLightManager()).getLightSSBO());
+		state.bindStorageBufferBase(gl, 0, (engine.getLightManager()).getLightSSBO());
 
 		invTrMat.identity();
 		invTrMat.mul(vMat);
@@ -86,89 +95,58 @@ public class RenderObjectAnimation
 		invTrMat.transpose(invTrMat);
 
 		gl.glUniformMatrix4fv(mLoc, 1, false, mMat.get(vals));
-		gl.glUniformMatrix4fv(vLoc, 1, false, vMat.get(vals));
-		gl.glUniformMatrix4fv(pLoc, 1, false, pMat.get(vals));
 		gl.glUniformMatrix4fv(nLoc, 1, false, invTrMat.get(vals));
 		gl.glUniform1i(tLoc, hasTex);
 		gl.glUniform1i(sLoc, hasSolidColor);
-		gl.glUniform3fv(cLoc, 1, ((go.getRenderStates()).getColor()).get(vals));
-		gl.glUniform1i(lLoc, (engine.getLightManager()).getNumLights());
-		gl.glUniform1i(fLoc, (engine.getLightManager()).getFieldsPerLight());
-		gl.glUniform4fv(globalAmbLoc, 1, Light.getGlobalAmbient(), 0);
-		gl.glUniform4fv(mambLoc, 1, go.getShape().getMatAmb(), 0);
-		gl.glUniform4fv(mdiffLoc, 1, go.getShape().getMatDif(), 0);
-		gl.glUniform4fv(mspecLoc, 1, go.getShape().getMatSpe(), 0);
-		gl.glUniform1f(mshiLoc, go.getShape().getMatShi());
-
-		if ((go.getRenderStates()).isEnvironmentMapped()) isEnvMapped=1; else isEnvMapped=0;
+		gl.glUniform3fv(cLoc, 1, (list.getColor(i, color)).get(vals));
+		gl.glUniform4fv(mambLoc, 1, shape.getMatAmb(), 0);
+		gl.glUniform4fv(mdiffLoc, 1, shape.getMatDif(), 0);
+		gl.glUniform4fv(mspecLoc, 1, shape.getMatSpe(), 0);
+		gl.glUniform1f(mshiLoc, shape.getMatShi());
+
+		if ((list.getFeatures(i) & ShaderVariants.ENV_MAPPED) != 0) isEnvMapped=1; else isEnvMapped=0;
 		gl.glUniform1i(eLoc, isEnvMapped);
 		
-		for (int i=0; i<boneCount; i++)
-		{	skinMatLoc = gl.glGetUniformLocation(renderingProgram, "skin_matrices["+i+"]");
-			skinMatITLoc = gl.glGetUniformLocation(renderingProgram, "skin_matrices_IT["+i+"]");
-			gl.glUniformMatrix4fv(skinMatLoc, 1, false, directFloatBuffer(skinMats[i].toFloatArray()));
-			gl.glUniformMatrix3fv(skinMatITLoc, 1, false, directFloatBuffer(skinMatsIT[i].toFloatArray()));
+		// the skin matrix arrays are uploaded whole, starting at element 0
+		skinVals.clear();
+		skinValsIT.clear();
+		skinVals.put(skins, skinOffset, boneCount*16);
+		skinValsIT.put(skins, skinOffset + boneCount*16, boneCount*9);
+		skinVals.flip();
+		skinValsIT.flip();
+		if (boneCount > 0)
+		{	gl.glUniformMatrix4fv(skinMatLoc, boneCount, false, skinVals);
+			gl.glUniformMatrix3fv(skinMatITLoc, boneCount, false, skinValsIT);
 		}
 
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getVertexBuffer());
-		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(0);
-	
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getTexCoordBuffer());
-		gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(1);
-
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getNormalBuffer());
-		gl.glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(2);
-
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getBoneIndicesBuffer());
-		gl.glVertexAttribPointer(3, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(3);
-
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getBoneWeightBuffer());
-		gl.glVertexAttribPointer(4, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(4);
+		state.bindVertexArray(gl, shape.getVAO());
 
 		if (hasTex==1)
-			thisTexture = go.getTextureImage().getTexture();
+			thisTexture = list.getTexture(i);
 		else
 			thisTexture = engine.getRenderSystem().getDefaultTexture();
-	
-		gl.glActiveTexture(GL_TEXTURE0);
-		gl.glBindTexture(GL_TEXTURE_2D, thisTexture);
-		tiling = (go.getRenderStates()).getTiling();
-		if (tiling != 0)
-		{	if (tiling == 1) { tilingOption = GL_REPEAT; }
-			else if (tiling == 2) { tilingOption = GL_MIRRORED_REPEAT; }
-			else if (tiling == 3) { tilingOption = GL_CLAMP_TO_EDGE; }
-			gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, tilingOption);
-			gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, tilingOption);
-		}
+
+		state.bindTexture2D(gl, 0, thisTexture);
+		state.bindTilingSampler(gl, 0, list.getTiling(i));
 
 		activeSkyBoxTexture = (engine.getSceneGraph()).getActiveSkyBoxTexture();
-		gl.glActiveTexture(GL_TEXTURE1);
-		gl.glBindTexture(GL_TEXTURE_CUBE_MAP, activeSkyBoxTexture);
+		state.bindTextureCubeMap(gl, 1, activeSkyBoxTexture);
 
-		if ((go.getRenderStates()).isWireframe())
-			gl.glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
+		if (list.isWireframe(i))
+			state.polygonMode(gl, GL_LINE);
 		else
-			gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+			state.polygonMode(gl, GL_FILL);
 
-		gl.glFrontFace(GL_CCW);
-		gl.glEnable(GL_DEPTH_TEST);
-		gl.glDepthFunc(GL_LEQUAL);
+		state.frontFace(gl, GL_CCW);
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
 
-		gl.glDrawArrays(GL_TRIANGLES, 0, go.getShape().getNumVertices());
-	}
-	
-	private FloatBuffer directFloatBuffer(float[] values)
-	{	return (FloatBuffer) directFloatBuffer(values.length).put(values).rewind();
-	}
-	private FloatBuffer directFloatBuffer(int capacity)
-	{	return directByteBuffer(capacity * Float.BYTES).asFloatBuffer();
-	}
-	private ByteBuffer directByteBuffer(int capacity)
-	{	return (ByteBuffer) ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		if (shape.isIndexed())
+		{	gl.glDrawElements(GL_TRIANGLES, shape.getNumIndices(),
+				shape.hasShortIndices() ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT, 0);
+		}
+		else
+			gl.glDrawArrays(GL_TRIANGLES, 0, shape.getNumVertices());
+		state.countDraw((shape.isIndexed() ? shape.getNumIndices() : shape.getNumVertices()) / 3);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,485 @@
+package tage.objectRenderers;
+import java.nio.*;
+import java.util.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.*;
+import tage.*;
+import tage.shapes.*;
+
+/**
+* Renders static Game Objects (those whose RenderStates are marked static) with glMultiDrawElementsIndirect.
+* <p>
+* The geometry of every shape drawn by a static object is copied, once, into a single shared vertex buffer
+* and index buffer, and each shape remembers its offsets in them.  A shape that is later made dynamic releases
+* its space there, which is reused for shapes copied in afterwards.  Each static object has a record in an SSBO
+* (binding 1) holding its model matrix, normal matrix, color, and material.  A record is only rewritten when
+* the object's transforms, render states, or material change, so for objects that don't move, nothing is
+* uploaded after the first frame except the draw commands.
+* <p>
+* During the frame, the engine adds each visible static object with add(), as a draw in a DrawList, which holds
+* the object's model and normal matrices, render states, and render version when the frame was published -- records
+* are rewritten from those, rather than from the live object.  render() then sorts them by the
+* remaining per-draw state (texture, tiling, winding, wireframe, and the lighting / color / environment map flags),
+* writes one indirect draw command per object, and issues one multi-draw call per group of objects with the same state.
+* Each group's commands are written to that group's own indirect buffer.
+* Each command's base instance is the index of the object's record, which reaches the vertex shader through
+* an instanced vertex attribute (location 3) holding 0, 1, 2, ..., since gl_DrawID requires OpenGL 4.6.
+* <p>
+* Only indexed triangle shapes that are not animated or dynamic are drawn this way, and not terrain, transparent objects,
+* or objects that render hidden faces.  Other static objects are drawn by the usual renderers.
+* <p>
+* Used by the engine, should not be used directly by the game application.
+* @author Scott Gordon
+*/
+public class RenderObjectIndirect
+{	private Engine engine;
+	private RenderStateTracker state;
+
+	// floats per object record -- model matrix, normal matrix, color, material ambient, diffuse, specular, shininess (std430 layout)
+	private static final int OBJECT_FLOATS = 16 + 16 + 4 + 4 + 4 + 4 + 4;
+	private static final int VERTEX_FLOATS = 8;
+	private static final int COMMAND_INTS = 5;
+
+	// the sort key holds the state key in the high bits and the object's position in the pending list in the low bits
+	private static final int INDEX_BITS = 20;
+	private static final int MAX_PENDING = 1 << INDEX_BITS;
+
+	// shared geometry
+	private int[] vao = new int[1];
+	private int[] vertexBuffer = new int[1], indexBuffer = new int[1], drawIndexBuffer = new int[1];
+	private int vertexCount, vertexCapacity, indexCount, indexCapacity, drawIndexCapacity;
+	private IdentityHashMap<ObjShape, int[]> ranges = new IdentityHashMap<ObjShape, int[]>();  // first index, index count, base vertex, vertex count
+	private ArrayList<int[]> freeVertices = new ArrayList<int[]>(), freeIndices = new ArrayList<int[]>();  // released ranges: start, count
+
+	// object records
+	private int[] objectBuffer = new int[1];
+	private int objectCapacity;
+	private FloatBuffer objectVals = Buffers.newDirectFloatBuffer(64 * OBJECT_FLOATS);
+	private IdentityHashMap<GameObject, Record> records = new IdentityHashMap<GameObject, Record>();
+	private int numRecords;
+	private int[] freeRecords = new int[16];
+	private int numFree;
+	private int dirtyMin = Integer.MAX_VALUE, dirtyMax = -1;
+
+	// per-frame draw commands -- the pending objects are draws in one draw list
+	private DrawList pendingList;
+	private int[] pendingDraws = new int[64];
+	private int numPending;
+	private long[] keys = new long[64];
+	private IntBuffer commands = Buffers.newDirectIntBuffer(64 * COMMAND_INTS);
+	private int[] commandBuffers = new int[8];
+	private long[] commandBufferSizes = new long[8];
+	private int numGroups;
+
+	private Matrix4f mMat = new Matrix4f();
+	private Matrix4f invTrMat = new Matrix4f();
+	private Vector3f color = new Vector3f();
+	private FloatBuffer vals = Buffers.newDirectFloatBuffer(16);
+	private int tLoc, eLoc, sLoc, hLoc, oLoc, tfLoc;
+	private int locationsProgram = -1;
+
+	// uniform names used by this renderer -- their locations are looked up from the
+	// program's reflection data, in this order, only when the program changes.
+	private static final String[] UNIFORMS =
+	{	"has_texture", "envMapped", "hasLighting", "solidColor", "heightMapped", "tileCount"
+	};
+
+	// the cached state of one object's record
+	private static class Record
+	{	int index;
+		int version;
+		float[] material = new float[13];
+	}
+
+	/** for engine use only. */
+	public RenderObjectIndirect(Engine e)
+	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		gl.glGenBuffers(1, vertexBuffer, 0);
+		gl.glGenBuffers(1, indexBuffer, 0);
+		gl.glGenBuffers(1, drawIndexBuffer, 0);
+		gl.glGenBuffers(1, objectBuffer, 0);
+		gl.glGenBuffers(commandBuffers.length, commandBuffers, 0);
+		gl.glGenVertexArrays(1, vao, 0);
+	}
+
+	private void findUniformLocations(int renderingProgram)
+	{	int[] loc = ProgramReflection.getLocations(renderingProgram, UNIFORMS);
+		tLoc = loc[0]; eLoc = loc[1]; oLoc = loc[2]; sLoc = loc[3];
+		hLoc = loc[4]; tfLoc = loc[5];
+		locationsProgram = renderingProgram;
+	}
+
+	/** returns true if the i-th draw in the list is static and can be drawn from the shared geometry buffer - for engine use only. */
+	public boolean canRender(DrawList list, int i)
+	{	if (!list.isStatic(i) || list.isTransparent(i) || list.willRenderHiddenFaces(i)) return false;
+		if (list.isTerrain(i)) return false;
+		ObjShape shape = list.getRenderShape(i);
+		return (shape.getPrimitiveType() == 3) && shape.isIndexed() && !(shape instanceof AnimatedShape)
+			&& !shape.isDynamic() && (numPending < MAX_PENDING);
+	}
+
+	/**
+	* adds the i-th draw in the list, a visible static object, to the objects drawn by the next call to render().
+	* Every draw added before the same call to render() must be from the same list - for engine use only.
+	*/
+	public void add(DrawList list, int i)
+	{	if (numPending == pendingDraws.length) pendingDraws = Arrays.copyOf(pendingDraws, numPending * 2);
+		pendingDraws[numPending++] = i;
+		pendingList = list;
+	}
+
+	/** releases the record of an object that has been removed from the scene - for engine use only. */
+	public void release(GameObject go)
+	{	Record r = records.remove(go);
+		if (r == null) return;
+		if (numFree == freeRecords.length) freeRecords = Arrays.copyOf(freeRecords, numFree * 2);
+		freeRecords[numFree++] = r.index;
+	}
+
+	/**
+	* releases the space a shape holds in the shared buffers, such as when it has been made dynamic, so that it can be
+	* reused by other shapes.  If the shape is drawn by this renderer again, it is copied in again - for engine use only.
+	*/
+	public void releaseShape(ObjShape shape)
+	{	int[] range = ranges.remove(shape);
+		if (range == null) return;
+		freeIndices.add(new int[] { range[0], range[1] });
+		freeVertices.add(new int[] { range[2], range[3] });
+	}
+
+	/** draws the static objects added since the previous call, with one multi-draw call per group of objects sharing state - for engine use only. */
+	public void render(int renderingProgram, Matrix4f pMat, Matrix4f vMat)
+	{	int count = numPending;
+		if (count == 0) return;
+		DrawList list = pendingList;
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+
+		// ----------- make sure each object's geometry and record are in place, and sort by state
+		if (keys.length < count) keys = new long[java.lang.Math.max(count, keys.length * 2)];
+		for (int i = 0; i < count; i++)
+		{	int d = pendingDraws[i];
+			addShape(gl, list.getRenderShape(d));
+			updateRecord(list, d);
+			keys[i] = (stateKey(list, d) << INDEX_BITS) | i;
+		}
+		Arrays.sort(keys, 0, count);
+		uploadRecords(gl);
+
+		// ----------- one draw command per object, grouped by state
+		if (commands.capacity() < count * COMMAND_INTS)
+			commands = Buffers.newDirectIntBuffer(java.lang.Math.max(count, commands.capacity()/COMMAND_INTS*2) * COMMAND_INTS);
+		commands.clear();
+		for (int i = 0; i < count; i++)
+		{	int d = pendingDraws[(int) (keys[i] & (MAX_PENDING - 1))];
+			int[] range = ranges.get(list.getRenderShape(d));
+			commands.put(range[1]);		// index count
+			commands.put(1);			// instance count
+			commands.put(range[0]);		// first index
+			commands.put(range[2]);		// base vertex
+			commands.put(records.get(list.get(d)).index);	// base instance
+		}
+		commands.flip();
+
+		// ----------- uniforms shared by all groups (the view matrices and light counts are in the view block)
+		state.useProgram(gl, renderingProgram);
+		if (renderingProgram != locationsProgram) findUniformLocations(renderingProgram);
+
+		gl.glUniform1i(hLoc, 0);
+
+		state.bindVertexArray(gl, vao[0]);
+		state.bindStorageBufferBase(gl, 0, (engine.getLightManager()).getLightSSBO());
+		state.bindStorageBufferBase(gl, 1, objectBuffer[0]);
+		state.bindTextureCubeMap(gl, 1, (engine.getSceneGraph()).getActiveSkyBoxTexture());
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
+
+		// ----------- one multi-draw call per run of objects with the same state
+		numGroups = 0;
+		int start = 0;
+		while (start < count)
+		{	int first = pendingDraws[(int) (keys[start] & (MAX_PENDING - 1))];
+			int end = start + 1;
+			while ((end < count) && sameState(list, first, pendingDraws[(int) (keys[end] & (MAX_PENDING - 1))])) end++;
+
+			applyState(gl, list, first);
+			uploadCommands(gl, numGroups, start, end);
+			gl.glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, null, end - start, 0);
+			long indices = 0;
+			for (int k = start; k < end; k++) indices += commands.get(k * COMMAND_INTS);
+			state.countDraw(indices / 3);
+			numGroups++;
+			start = end;
+		}
+		numPending = 0;
+		pendingList = null;
+	}
+
+	// Copies the commands of one group into that group's indirect buffer, and leaves it bound.
+	// JOGL only offers glMultiDrawElementsIndirect() with a Buffer argument, which can't express an offset into
+	// the bound indirect buffer, so each group has its own buffer and its commands start at offset 0.
+	// Each buffer is re-specified every time, so the driver can orphan the previous contents.
+	private void uploadCommands(GL4 gl, int group, int start, int end)
+	{	if (group == commandBuffers.length)
+		{	int old = commandBuffers.length;
+			commandBuffers = Arrays.copyOf(commandBuffers, old * 2);
+			commandBufferSizes = Arrays.copyOf(commandBufferSizes, old * 2);
+			gl.glGenBuffers(old, commandBuffers, old);
+		}
+		long bytes = (long) (end - start) * COMMAND_INTS * 4;
+		gl.glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffers[group]);
+		if (bytes > commandBufferSizes[group]) commandBufferSizes[group] = java.lang.Math.max(bytes, commandBufferSizes[group] * 2);
+		gl.glBufferData(GL_DRAW_INDIRECT_BUFFER, commandBufferSizes[group], null, GL_STREAM_DRAW);
+		commands.limit(end * COMMAND_INTS);
+		commands.position(start * COMMAND_INTS);
+		gl.glBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, bytes, commands);
+	}
+
+	/** returns the number of multi-draw calls issued by the most recent call to render() - for engine use only. */
+	public int getNumGroups() { return numGroups; }
+
+	// Sets the uniforms and OpenGL state that vary between groups, from the first draw in the group.
+	private void applyState(GL4 gl, DrawList list, int first)
+	{	int features = list.getFeatures(first);
+		int hasTex = ((features & ShaderVariants.TEXTURE) != 0) ? 1 : 0;
+		gl.glUniform1i(tLoc, hasTex);
+		gl.glUniform1i(eLoc, ((features & ShaderVariants.ENV_MAPPED) != 0) ? 1 : 0);
+		gl.glUniform1i(oLoc, ((features & ShaderVariants.LIGHTING) != 0) ? 1 : 0);
+		gl.glUniform1i(sLoc, ((features & ShaderVariants.SOLID_COLOR) != 0) ? 1 : 0);
+		gl.glUniform1i(tfLoc, list.getTileFactor(first));
+
+		if (hasTex == 1)
+			state.bindTexture2D(gl, 0, list.getTexture(first));
+		else
+			state.bindTexture2D(gl, 0, engine.getRenderSystem().getDefaultTexture());
+		state.bindTilingSampler(gl, 0, list.getTiling(first));
+
+		if (list.getRenderShape(first).isWindingOrderCCW())
+			state.frontFace(gl, GL_CCW);
+		else
+			state.frontFace(gl, GL_CW);
+
+		if (list.isWireframe(first))
+			state.polygonMode(gl, GL_LINE);
+		else
+			state.polygonMode(gl, GL_FILL);
+	}
+
+	// Returns true if two draws can be part of the same multi-draw call.
+	private boolean sameState(DrawList list, int a, int b)
+	{	return (list.getFeatures(a) == list.getFeatures(b))
+			&& (list.getTexture(a) == list.getTexture(b))
+			&& (list.getRenderShape(a).isWindingOrderCCW() == list.getRenderShape(b).isWindingOrderCCW())
+			&& (list.isWireframe(a) == list.isWireframe(b))
+			&& (list.getTiling(a) == list.getTiling(b))
+			&& (list.getTileFactor(a) == list.getTileFactor(b));
+	}
+
+	// Packs the state compared by sameState() into 44 bits, so that draws with the same state sort together.
+	// Draws with different state may share a key (such as very large tile factors), in which case they are
+	// split into separate groups when the groups are formed.
+	private long stateKey(DrawList list, int d)
+	{	long tex = list.getTexture(d);
+		long flags = (list.getFeatures(d) & 0xF) | (list.isWireframe(d) ? 16 : 0) | (list.getRenderShape(d).isWindingOrderCCW() ? 32 : 0);
+		return ((tex & 0xFFFFF) << 24) | ((list.getTileFactor(d) & 0xFFFFL) << 8) | ((list.getTiling(d) & 0x3) << 6) | flags;
+	}
+
+	// ------------------ OBJECT RECORDS ---------------------
+
+	// Rewrites the record of the object of the d-th draw if it has no record yet, or if anything in it may have changed.
+	private void updateRecord(DrawList list, int d)
+	{	GameObject go = list.get(d);
+		Record r = records.get(go);
+		int version = list.getVersion(d);
+		ObjShape shape = list.getShape(d);
+		float[] amb = shape.getMatAmb(), dif = shape.getMatDif(), spe = shape.getMatSpe();
+		float shi = shape.getMatShi();
+		if (r == null)
+		{	r = new Record();
+			r.index = (numFree > 0) ? freeRecords[--numFree] : numRecords++;
+			records.put(go, r);
+		}
+		else if ((r.version == version) && sameMaterial(r.material, amb, dif, spe, shi)) return;
+
+		r.version = version;
+		System.arraycopy(amb, 0, r.material, 0, 4);
+		System.arraycopy(dif, 0, r.material, 4, 4);
+		System.arraycopy(spe, 0, r.material, 8, 4);
+		r.material[12] = shi;
+
+		if (objectVals.capacity() < numRecords * OBJECT_FLOATS)
+		{	FloatBuffer larger = Buffers.newDirectFloatBuffer(java.lang.Math.max(numRecords, objectVals.capacity()/OBJECT_FLOATS*2) * OBJECT_FLOATS);
+			objectVals.clear();
+			larger.put(objectVals);
+			objectVals = larger;
+		}
+
+		mMat.set(list.getTransforms(), list.getTransformOffset(d));
+		invTrMat.set(list.getTransforms(), list.getTransformOffset(d) + 16);
+
+		int base = r.index * OBJECT_FLOATS;
+		mMat.get(base, objectVals);
+		invTrMat.get(base + 16, objectVals);
+		Vector3f c = list.getColor(d, color);
+		objectVals.put(base + 32, c.x());
+		objectVals.put(base + 33, c.y());
+		objectVals.put(base + 34, c.z());
+		objectVals.put(base + 35, 1.0f);
+		for (int k = 0; k < 13; k++) objectVals.put(base + 36 + k, r.material[k]);
+
+		dirtyMin = java.lang.Math.min(dirtyMin, r.index);
+		dirtyMax = java.lang.Math.max(dirtyMax, r.index);
+	}
+
+	private boolean sameMaterial(float[] m, float[] amb, float[] dif, float[] spe, float shi)
+	{	for (int k = 0; k < 4; k++)
+		{	if ((m[k] != amb[k]) || (m[4+k] != dif[k]) || (m[8+k] != spe[k])) return false;
+		}
+		return m[12] == shi;
+	}
+
+	// Uploads the range of records that changed this frame, as one call.
+	// If the SSBO or the draw index attribute buffer is too small, they are reallocated and filled completely.
+	private void uploadRecords(GL4 gl)
+	{	if (numRecords > objectCapacity)
+		{	objectCapacity = java.lang.Math.max(numRecords, objectCapacity * 2);
+			gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, objectBuffer[0]);
+			gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (long) objectCapacity * OBJECT_FLOATS * 4, null, GL_DYNAMIC_DRAW);
+			dirtyMin = 0;
+			dirtyMax = numRecords - 1;
+		}
+		if (objectCapacity > drawIndexCapacity)
+		{	drawIndexCapacity = objectCapacity;
+			IntBuffer ids = Buffers.newDirectIntBuffer(drawIndexCapacity);
+			for (int i = 0; i < drawIndexCapacity; i++) ids.put(i);
+			ids.flip();
+			state.bindArrayBuffer(gl, drawIndexBuffer[0]);
+			gl.glBufferData(GL_ARRAY_BUFFER, (long) drawIndexCapacity * 4, ids, GL_STATIC_DRAW);
+			setupVAO(gl);
+		}
+		if (dirtyMax >= dirtyMin)
+		{	objectVals.position(dirtyMin * OBJECT_FLOATS);
+			objectVals.limit((dirtyMax + 1) * OBJECT_FLOATS);
+			gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, objectBuffer[0]);
+			gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, (long) dirtyMin * OBJECT_FLOATS * 4,
+				(long) (dirtyMax + 1 - dirtyMin) * OBJECT_FLOATS * 4, objectVals);
+			objectVals.clear();
+			dirtyMin = Integer.MAX_VALUE;
+			dirtyMax = -1;
+		}
+	}
+
+	// ------------------ SHARED GEOMETRY ---------------------
+
+	// Copies the shape's vertices and indices into the shared buffers, the first time the shape is drawn.
+	// Space released by other shapes is reused if a released range is large enough, and otherwise they are appended.
+	// The layout matches the shape's own VBO: position (3), texture coordinate (2), and normal (3).
+	private void addShape(GL4 gl, ObjShape shape)
+	{	if (ranges.containsKey(shape)) return;
+		int n = shape.getNumVertices();
+		int[] indices = shape.getIndices();
+		int firstVertex = takeFree(freeVertices, n);
+		int firstIndex = takeFree(freeIndices, indices.length);
+		if ((firstVertex < 0) || (firstIndex < 0))
+		{	reserve(gl, vertexCount + ((firstVertex < 0) ? n : 0), indexCount + ((firstIndex < 0) ? indices.length : 0));
+			if (firstVertex < 0) { firstVertex = vertexCount; vertexCount += n; }
+			if (firstIndex < 0) { firstIndex = indexCount; indexCount += indices.length; }
+		}
+
+		float[] v = shape.getVertices(), t = shape.getTexCoords(), nm = shape.getNormals();
+		FloatBuffer interleaved = Buffers.newDirectFloatBuffer(n * VERTEX_FLOATS);
+		for (int i = 0; i < n; i++)
+		{	putAttribute(interleaved, v, i, 3);
+			putAttribute(interleaved, t, i, 2);
+			putAttribute(interleaved, nm, i, 3);
+		}
+		interleaved.flip();
+		IntBuffer indBuf = Buffers.newDirectIntBuffer(indices);
+
+		// uploads go through the copy targets, so the element buffer binding of whatever VAO is bound is left alone
+		gl.glBindBuffer(GL_COPY_WRITE_BUFFER, vertexBuffer[0]);
+		gl.glBufferSubData(GL_COPY_WRITE_BUFFER, (long) firstVertex * VERTEX_FLOATS * 4, (long) n * VERTEX_FLOATS * 4, interleaved);
+		gl.glBindBuffer(GL_COPY_WRITE_BUFFER, indexBuffer[0]);
+		gl.glBufferSubData(GL_COPY_WRITE_BUFFER, (long) firstIndex * 4, (long) indices.length * 4, indBuf);
+
+		ranges.put(shape, new int[] { firstIndex, indices.length, firstVertex, n });
+	}
+
+	// Takes count elements from the first released range that is large enough, and returns where they start,
+	// or -1 if there is none.  What is left of the range stays free.
+	private int takeFree(ArrayList<int[]> free, int count)
+	{	for (int i = 0; i < free.size(); i++)
+		{	int[] r = free.get(i);
+			if (r[1] < count) continue;
+			int start = r[0];
+			r[0] += count;
+			r[1] -= count;
+			if (r[1] == 0) free.remove(i);
+			return start;
+		}
+		return -1;
+	}
+
+	private void putAttribute(FloatBuffer dest, float[] src, int vertex, int size)
+	{	for (int c = 0; c < size; c++)
+		{	int i = vertex*size + c;
+			dest.put(((src != null) && (i < src.length)) ? src[i] : 0f);
+		}
+	}
+
+	// Makes room for the specified numbers of vertices and indices, growing the shared buffers geometrically.
+	// Existing contents are copied into the new buffers on the GPU.
+	private void reserve(GL4 gl, int vertices, int indices)
+	{	boolean grown = false;
+		if (vertices > vertexCapacity)
+		{	int cap = java.lang.Math.max(vertices, java.lang.Math.max(vertexCapacity * 2, 4096));
+			vertexBuffer[0] = grow(gl, vertexBuffer[0], (long) vertexCount * VERTEX_FLOATS * 4, (long) cap * VERTEX_FLOATS * 4);
+			vertexCapacity = cap;
+			grown = true;
+		}
+		if (indices > indexCapacity)
+		{	int cap = java.lang.Math.max(indices, java.lang.Math.max(indexCapacity * 2, 16384));
+			indexBuffer[0] = grow(gl, indexBuffer[0], (long) indexCount * 4, (long) cap * 4);
+			indexCapacity = cap;
+			grown = true;
+		}
+		if (grown) setupVAO(gl);
+	}
+
+	private int grow(GL4 gl, int oldBuffer, long usedBytes, long newBytes)
+	{	int[] b = new int[1];
+		gl.glGenBuffers(1, b, 0);
+		gl.glBindBuffer(GL_COPY_WRITE_BUFFER, b[0]);
+		gl.glBufferData(GL_COPY_WRITE_BUFFER, newBytes, null, GL_STATIC_DRAW);
+		if (usedBytes > 0)
+		{	gl.glBindBuffer(GL_COPY_READ_BUFFER, oldBuffer);
+			gl.glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, usedBytes);
+		}
+		gl.glDeleteBuffers(1, new int[] { oldBuffer }, 0);
+		return b[0];
+	}
+
+	// Records the attribute layout over the shared buffers in this renderer's VAO.
+	private void setupVAO(GL4 gl)
+	{	state.bindVertexArray(gl, vao[0]);
+		state.bindArrayBuffer(gl, vertexBuffer[0]);
+		int stride = VERTEX_FLOATS * 4;
+		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0);
+		gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, stride, 12);
+		gl.glVertexAttribPointer(2, 3, GL_FLOAT, false, stride, 20);
+		gl.glEnableVertexAttribArray(0);
+		gl.glEnableVertexAttribArray(1);
+		gl.glEnableVertexAttribArray(2);
+
+		// the record index, advanced once per instance, starting from each command's base instance
+		state.bindArrayBuffer(gl, drawIndexBuffer[0]);
+		gl.glVertexAttribIPointer(3, 1, GL_UNSIGNED_INT, 4, 0);
+		gl.glVertexAttribDivisor(3, 1);
+		gl.glEnableVertexAttribArray(3);
+
+		state.bindElementBuffer(gl, indexBuffer[0]);
+	}
+}
@@ -0,0 +1,174 @@
+package tage.objectRenderers;
+import java.nio.*;
+import java.util.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.*;
+import tage.*;
+
+/**
+* Includes a single method render() for rendering a batch of Game Objects with one instanced draw call.
+* The batch is a run of consecutive draws in a DrawList, whose objects all share the same ObjShape (at the same level of detail)
+* and texture, and have compatible render states, as determined by isCompatible().  Their model matrices, normal matrices,
+* and colors are written into an instance SSBO (binding 1), which StandardInstancedVert.glsl indexes by gl_InstanceID.
+* The remaining uniforms are taken from the first draw in the batch.
+* <p>
+* Used by the engine, should not be used directly by the game application.
+* @author Scott Gordon
+*/
+public class RenderObjectInstanced
+{	private Engine engine;
+
+	// floats per instance -- model matrix, normal matrix, and color (std430 layout)
+	private static final int INSTANCE_FLOATS = 16 + 16 + 4;
+
+	// allocate variables for display() function
+	private FloatBuffer vals = Buffers.newDirectFloatBuffer(16);
+	private FloatBuffer instanceVals = Buffers.newDirectFloatBuffer(64 * INSTANCE_FLOATS);
+	private Matrix4f mMat = new Matrix4f();  // model matrix
+	private Matrix4f invTrMat = new Matrix4f(); // inverse-transpose
+	private Vector3f color = new Vector3f();
+	private int tLoc, eLoc, sLoc, hLoc, oLoc, tfLoc;
+	private int mambLoc,mdiffLoc,mspecLoc,mshiLoc;
+	private int hasTex, thisTexture;
+	private int locationsProgram = -1;
+	private int[] instanceBuffer = new int[1];
+	private long instanceBufferSize = 0;
+	private RenderStateTracker state;
+
+	// uniform names used by this renderer -- their locations are looked up from the
+	// program's reflection data, in this order, only when the program changes.
+	private static final String[] UNIFORMS =
+	{	"has_texture", "envMapped", "hasLighting", "solidColor", "heightMapped", "tileCount",
+		"material.ambient", "material.diffuse", "material.specular", "material.shininess"
+	};
+
+	/** for engine use only. */
+	public RenderObjectInstanced(Engine e)
+	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
+		GL4 gl = (GL4) GLContext.getCurrentGL();
+		gl.glGenBuffers(1, instanceBuffer, 0);
+	}
+
+	private void findUniformLocations(int renderingProgram)
+	{	int[] loc = ProgramReflection.getLocations(renderingProgram, UNIFORMS);
+		tLoc = loc[0]; eLoc = loc[1]; oLoc = loc[2]; sLoc = loc[3];
+		hLoc = loc[4]; tfLoc = loc[5];
+		mambLoc = loc[6]; mdiffLoc = loc[7]; mspecLoc = loc[8]; mshiLoc = loc[9];
+		locationsProgram = renderingProgram;
+	}
+
+	/**
+	* Returns true if the i-th draw in the list can be drawn in the same instanced batch as the first one.
+	* Transparent objects, and objects that render hidden faces, are never batched.
+	* For engine use only.
+	*/
+	public boolean isCompatible(DrawList list, int first, int i)
+	{	if (!isBatchable(list, i)) return false;
+		return (list.getShape(i) == list.getShape(first))
+			&& (list.getRenderShape(i) == list.getRenderShape(first))
+			&& (list.getFeatures(i) == list.getFeatures(first))
+			&& (list.getTexture(i) == list.getTexture(first))
+			&& (list.getHeightMap(i) == list.getHeightMap(first))
+			&& (list.isWireframe(i) == list.isWireframe(first))
+			&& (list.getTiling(i) == list.getTiling(first))
+			&& (list.getTileFactor(i) == list.getTileFactor(first));
+	}
+
+	/** returns true if the i-th draw in the list could be part of an instanced batch at all - for engine use only. */
+	public boolean isBatchable(DrawList list, int i)
+	{	return (!list.isTransparent(i)) && (!list.willRenderHiddenFaces(i));
+	}
+
+	/** renders draws [from..to) of the list as one batch - for engine use only. */
+	public void render(DrawList list, int from, int to, int renderingProgram)
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		int count = to - from;
+
+		state.useProgram(gl, renderingProgram);
+
+		if (renderingProgram != locationsProgram) findUniformLocations(renderingProgram);
+
+		// ----------- gather per-instance model matrix, normal matrix, and color
+		if (instanceVals.capacity() < count * INSTANCE_FLOATS)
+			instanceVals = Buffers.newDirectFloatBuffer(java.lang.Math.max(count, instanceVals.capacity()/INSTANCE_FLOATS*2) * INSTANCE_FLOATS);
+		instanceVals.clear();
+		float[] transforms = list.getTransforms();
+		for (int i = 0; i < count; i++)
+		{	int offset = list.getTransformOffset(from + i);
+			mMat.set(transforms, offset);
+			invTrMat.set(transforms, offset + 16);
+
+			int base = i * INSTANCE_FLOATS;
+			mMat.get(base, instanceVals);
+			invTrMat.get(base + 16, instanceVals);
+			list.getColor(from + i, color);
+			instanceVals.put(base + 32, color.x());
+			instanceVals.put(base + 33, color.y());
+			instanceVals.put(base + 34, color.z());
+			instanceVals.put(base + 35, 1.0f);
+		}
+		instanceVals.limit(count * INSTANCE_FLOATS);
+
+		// the instance buffer is re-specified for every batch, so the driver can orphan the previous contents
+		long bytes = (long) count * INSTANCE_FLOATS * 4;
+		gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, instanceBuffer[0]);
+		if (bytes > instanceBufferSize) instanceBufferSize = java.lang.Math.max(bytes, instanceBufferSize * 2);
+		gl.glBufferData(GL_SHADER_STORAGE_BUFFER, instanceBufferSize, null, GL_STREAM_DRAW);
+		gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, bytes, instanceVals);
+		state.bindStorageBufferBase(gl, 1, instanceBuffer[0]);
+		state.bindStorageBufferBase(gl, 0, (engine.getLightManager()).getLightSSBO());
+
+		// ----------- uniforms shared by the whole batch, taken from the first draw
+		int features = list.getFeatures(from);
+		ObjShape shape = list.getRenderShape(from);
+		ObjShape baseShape = list.getShape(from);		// holds the material
+		hasTex = ((features & ShaderVariants.TEXTURE) != 0) ? 1 : 0;
+
+		gl.glUniform1i(tLoc, hasTex);
+		gl.glUniform1i(eLoc, ((features & ShaderVariants.ENV_MAPPED) != 0) ? 1 : 0);
+		gl.glUniform1i(oLoc, ((features & ShaderVariants.LIGHTING) != 0) ? 1 : 0);
+		gl.glUniform1i(sLoc, ((features & ShaderVariants.SOLID_COLOR) != 0) ? 1 : 0);
+		gl.glUniform1i(hLoc, ((features & ShaderVariants.HEIGHT_MAPPED) != 0) ? 1 : 0);
+		gl.glUniform1i(tfLoc, list.getTileFactor(from));
+		gl.glProgramUniform4fv(renderingProgram, mambLoc, 1, baseShape.getMatAmb(), 0);
+		gl.glProgramUniform4fv(renderingProgram, mdiffLoc, 1, baseShape.getMatDif(), 0);
+		gl.glProgramUniform4fv(renderingProgram, mspecLoc, 1, baseShape.getMatSpe(), 0);
+		gl.glProgramUniform1f(renderingProgram, mshiLoc, baseShape.getMatShi());
+
+		state.bindVertexArray(gl, shape.getVAO());
+
+		if (hasTex==1)
+			thisTexture = list.getTexture(from);
+		else
+			thisTexture = engine.getRenderSystem().getDefaultTexture();
+
+		state.bindTexture2D(gl, 0, thisTexture);
+		state.bindTilingSampler(gl, 0, list.getTiling(from));
+		state.bindTextureCubeMap(gl, 1, (engine.getSceneGraph()).getActiveSkyBoxTexture());
+		state.bindTexture2D(gl, 2, list.getHeightMap(from));
+
+		if (shape.isWindingOrderCCW())
+			state.frontFace(gl, GL_CCW);
+		else
+			state.frontFace(gl, GL_CW);
+
+		if (list.isWireframe(from))
+			state.polygonMode(gl, GL_LINE);
+		else
+			state.polygonMode(gl, GL_FILL);
+
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
+
+		if (shape.isIndexed())
+		{	gl.glDrawElementsInstanced(GL_TRIANGLES, shape.getNumIndices(),
+				shape.hasShortIndices() ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT, 0, count);
+		}
+		else
+			gl.glDrawArraysInstanced(GL_TRIANGLES, 0, shape.getNumVertices(), count);
+		state.countDraw((long) (shape.isIndexed() ? shape.getNumIndices() : shape.getNumVertices()) / 3 * count);
+	}
+}
@@ -9,6 +9,7 @@ import tage.*;
 
 /**
 * Includes a single method render() for rendering a Line.
+* The line is drawn from a DrawList, with the model matrix and color copied into it when the frame was published.
 * <p>
 * Used by the game engine, should not be used directly by the game application.
 * @author Scott Gordon
@@ -22,41 +23,47 @@ public class RenderObjectLine
 	private Matrix4f pMat = new Matrix4f();  // perspective matrix
 	private Matrix4f vMat = new Matrix4f();  // view matrix
 	private Matrix4f mMat = new Matrix4f();  // model matrix
+	private Vector3f color = new Vector3f();
 	private int mLoc, vLoc, pLoc, cLoc;
+	private int locationsProgram = -1;
+	private RenderStateTracker state;
+
+	// uniform names used by this renderer, in the order their locations are returned
+	private static final String[] UNIFORMS = { "m_matrix", "v_matrix", "p_matrix", "lineColor" };
 
 	/** for engine use only. */
 	public RenderObjectLine(Engine e)
 	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
 	}
 
-	/** for engine use only. */
-	public void render(GameObject go, int lineProgram, Matrix4f pMat, Matrix4f vMat)
+	private void findUniformLocations(int lineProgram)
+	{	int[] loc = ProgramReflection.getLocations(lineProgram, UNIFORMS);
+		mLoc = loc[0]; vLoc = loc[1]; pLoc = loc[2]; cLoc = loc[3];
+		locationsProgram = lineProgram;
+	}
+
+	/** renders the i-th object in the draw list - for engine use only. */
+	public void render(DrawList list, int i, int lineProgram, Matrix4f pMat, Matrix4f vMat)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 
-		gl.glUseProgram(lineProgram);
+		state.useProgram(gl, lineProgram);
 
-		mLoc = gl.glGetUniformLocation(lineProgram, "m_matrix");
-		vLoc = gl.glGetUniformLocation(lineProgram, "v_matrix");
-		pLoc = gl.glGetUniformLocation(lineProgram, "p_matrix");
-		cLoc = gl.glGetUniformLocation(lineProgram, "lineColor");
+		if (lineProgram != locationsProgram) findUniformLocations(lineProgram);
 		
-		mMat.identity();
-		mMat.mul(go.getWorldTranslation());
-		mMat.mul(go.getWorldRotation());
-		mMat.mul(go.getWorldScale());
+		mMat.set(list.getTransforms(), list.getTransformOffset(i));
 		
 		gl.glUniformMatrix4fv(mLoc, 1, false, mMat.get(vals));
 		gl.glUniformMatrix4fv(vLoc, 1, false, vMat.get(vals));
 		gl.glUniformMatrix4fv(pLoc, 1, false, pMat.get(vals));
-		gl.glUniform3fv(cLoc, 1, ((go.getRenderStates()).getColor()).get(vals));
+		gl.glUniform3fv(cLoc, 1, (list.getColor(i, color)).get(vals));
 
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getVertexBuffer());
-		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(0);
+		state.bindVertexArray(gl, list.getShape(i).getVAO());
 	
-		gl.glEnable(GL_DEPTH_TEST);
-		gl.glDepthFunc(GL_LEQUAL);
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
 
-		gl.glDrawArrays(GL_LINES, 0, go.getShape().getNumVertices());
+		gl.glDrawArrays(GL_LINES, 0, list.getShape(i).getNumVertices());
+		state.countDraw(0);
 	}
 }
\ No newline at end of file
@@ -31,37 +31,47 @@ public class RenderObjectSkyBox
 	private Matrix4f mMat = new Matrix4f();  // model matrix
 	private int mLoc, vLoc, pLoc;
 	private int activeSkyBoxTexture;
+	private int locationsProgram = -1;
+	private RenderStateTracker state;
+
+	// uniform names used by this renderer, in the order their locations are returned
+	private static final String[] UNIFORMS = { "v_matrix", "p_matrix" };
 
 	/** for engine use only. */
 	public RenderObjectSkyBox(Engine e)
 	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
+	}
+
+	private void findUniformLocations(int skyboxProgram)
+	{	int[] loc = ProgramReflection.getLocations(skyboxProgram, UNIFORMS);
+		vLoc = loc[0]; pLoc = loc[1];
+		locationsProgram = skyboxProgram;
 	}
 
 	/** for engine use only. */
 	public void render(GameObject go, int skyboxProgram, Matrix4f pMat, Matrix4f vMat)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 
-		gl.glUseProgram(skyboxProgram);
+		state.useProgram(gl, skyboxProgram);
 
-		vLoc = gl.glGetUniformLocation(skyboxProgram, "v_matrix");
-		pLoc = gl.glGetUniformLocation(skyboxProgram, "p_matrix");
+		if (skyboxProgram != locationsProgram) findUniformLocations(skyboxProgram);
 		gl.glUniformMatrix4fv(vLoc, 1, false, vMat.get(vals));
 		gl.glUniformMatrix4fv(pLoc, 1, false, pMat.get(vals));
 
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getVertexBuffer());
-		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(0);
+		state.bindVertexArray(gl, go.getShape().getVAO());
 
 		activeSkyBoxTexture = (engine.getSceneGraph()).getActiveSkyBoxTexture();
-		gl.glActiveTexture(GL_TEXTURE0);
-		gl.glBindTexture(GL_TEXTURE_CUBE_MAP, activeSkyBoxTexture);
+		state.bindTextureCubeMap(gl, 0, activeSkyBoxTexture);
+		state.bindSampler(gl, 0, 0);  // the cubemap's own (clamped) parameters, not a tiling sampler
 
 		gl.glEnable(GL_TEXTURE_CUBE_MAP_SEAMLESS);	
-		gl.glEnable(GL_CULL_FACE);
-		gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
-		gl.glFrontFace(GL_CCW);	     // cube is CW, but we are viewing the inside
-		gl.glDisable(GL_DEPTH_TEST);
+		state.cullFace(gl, true);
+		state.polygonMode(gl, GL_FILL);
+		state.frontFace(gl, GL_CCW);	     // cube is CW, but we are viewing the inside
+		state.depthTest(gl, false);
 		gl.glDrawArrays(GL_TRIANGLES, 0, 36);
-		gl.glEnable(GL_DEPTH_TEST);
+		state.countDraw(12);
+		state.depthTest(gl, true);
 	}
 }
\ No newline at end of file
@@ -11,7 +11,14 @@ import tage.*;
 /**
 * Includes a single method render() for rendering a Game Object.
 * Considers the various render states that have been set.
-* Boolean flags are sent to the shaders at integers.
+* Boolean flags are sent to the shaders as bits of an integer.
+* The program passed to render() may be a shader variant specialized for the object's flags (see ShaderVariants).
+* <p>
+* The object's matrices, color, material, and flags are written to a block in the frame ring buffer,
+* which is bound to uniform block binding 1 (ObjectBlock) for the draw.
+* The view matrices and lighting totals are in the view block, written once per viewport by the renderer.
+* Each object is drawn from a DrawList, with the matrices, level of detail, and render states copied into it
+* when the frame was published, so nothing is read from the live GameObject.
 * <p>
 * Follows closely the method described in Chapters 4, 5, 7, 9, and 10.
 * of Computer Graphics Programming in OpenGL with Java.
@@ -24,151 +31,98 @@ public class RenderObjectStandard
 	private Engine engine;
 
 	// allocate variables for display() function
-	private FloatBuffer vals = Buffers.newDirectFloatBuffer(16);
 	private Matrix4f pMat = new Matrix4f();  // perspective matrix
 	private Matrix4f vMat = new Matrix4f();  // view matrix
 	private Matrix4f mMat = new Matrix4f();  // model matrix
 	private Matrix4f invTrMat = new Matrix4f(); // inverse-transpose
-	private int mLoc, vLoc, pLoc, nLoc, tLoc, lLoc, eLoc, fLoc, sLoc, cLoc, hLoc, oLoc, tfLoc;
-	private int globalAmbLoc,mambLoc,mdiffLoc,mspecLoc,mshiLoc;
-	private int hasSolidColor, hasTex, thisTexture, defaultTexture, tiling, tilingOption, tileFactor, heightMapped;
-	private int isEnvMapped, hasLighting, activeSkyBoxTexture, heightMapTexture;
+	private Vector3f color = new Vector3f();
+	private int hasTex, thisTexture, defaultTexture, tileFactor;
+	private int activeSkyBoxTexture, heightMapTexture;
+	private RenderStateTracker state;
+
+	// std140 layout of the ObjectBlock declared in StandardVert.glsl
+	private static final int OBJECT_BLOCK_SIZE = 224;
+	private static final int M_OFFSET = 0, NORM_OFFSET = 64, COLOR_OFFSET = 128;
+	private static final int AMB_OFFSET = 144, DIF_OFFSET = 160, SPE_OFFSET = 176, SHI_OFFSET = 192;
+	private static final int FLAGS_OFFSET = 208;
 
 	/** for engine use only. */
 	public RenderObjectStandard(Engine e)
 	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
 	}
 
-	/** for engine use only. */
-	public void render(GameObject go, int renderingProgram, Matrix4f pMat, Matrix4f vMat)
+	/** renders the i-th object in the draw list - for engine use only. */
+	public void render(DrawList list, int i, int renderingProgram)
 	{	GL4 gl = (GL4) GLContext.getCurrentGL();
 
-		gl.glUseProgram(renderingProgram);
-
-		mLoc = gl.glGetUniformLocation(renderingProgram, "m_matrix");
-		vLoc = gl.glGetUniformLocation(renderingProgram, "v_matrix");
-		pLoc = gl.glGetUniformLocation(renderingProgram, "p_matrix");
-		nLoc = gl.glGetUniformLocation(renderingProgram, "norm_matrix");
-		tLoc = gl.glGetUniformLocation(renderingProgram, "has_texture");
-		eLoc = gl.glGetUniformLocation(renderingProgram, "envMapped");
-		oLoc = gl.glGetUniformLocation(renderingProgram, "hasLighting");
-		sLoc = gl.glGetUniformLocation(renderingProgram, "solidColor");
-		cLoc = gl.glGetUniformLocation(renderingProgram, "color");
-		hLoc = gl.glGetUniformLocation(renderingProgram, "heightMapped");
-		lLoc = gl.glGetUniformLocation(renderingProgram, "num_lights");
-		fLoc = gl.glGetUniformLocation(renderingProgram, "fields_per_light");
-		tfLoc = gl.glGetUniformLocation(renderingProgram, "tileCount");
-		globalAmbLoc = gl.glGetUniformLocation(renderingProgram, "globalAmbient");
-		mambLoc = gl.glGetUniformLocation(renderingProgram, "material.ambient");
-		mdiffLoc = gl.glGetUniformLocation(renderingProgram, "material.diffuse");
-		mspecLoc = gl.glGetUniformLocation(renderingProgram, "material.specular");
-		mshiLoc = gl.glGetUniformLocation(renderingProgram, "material.shininess");
-		
-		mMat.identity();
-		mMat.mul(go.getWorldTranslation());
-		mMat.mul(go.getWorldRotation());
-		mMat.mul(go.getRenderStates().getModelOrientationCorrection());
-		mMat.mul(go.getWorldScale());
-
-		if ((go.getRenderStates()).hasSolidColor())
-		{	hasSolidColor = 1;
-			hasTex = 0;
-		}
-		else
-		{	hasSolidColor = 0;
-			hasTex = 1;
-		}
-
-		if ((go.getRenderStates()).isEnvironmentMapped())
-			isEnvMapped=1;
-		else
-			isEnvMapped=0;
-
-		if (go.isTerrain())
-			heightMapped = 1;
-		else
-			heightMapped = 0;
-		
-		if (go.getRenderStates().hasLighting())
-			hasLighting = 1;
-		else
-			hasLighting = 0;
-		
-		gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, (engine.getLightManager()).getLightSSBO());
-
-		mMat.invert(invTrMat);
-		invTrMat.transpose(invTrMat);
-
-		gl.glUniformMatrix4fv(mLoc, 1, false, mMat.get(vals));
-		gl.glUniformMatrix4fv(vLoc, 1, false, vMat.get(vals));
-		gl.glUniformMatrix4fv(pLoc, 1, false, pMat.get(vals));
-		gl.glUniformMatrix4fv(nLoc, 1, false, invTrMat.get(vals));
-		if (go.getTextureImage() != null) hasTex=1; else hasTex=0;
-		gl.glUniform1i(tLoc, hasTex);
-		gl.glUniform1i(eLoc, isEnvMapped);
-		gl.glUniform1i(oLoc, hasLighting);
-		gl.glUniform1i(sLoc, hasSolidColor);
-		gl.glUniform3fv(cLoc, 1, ((go.getRenderStates()).getColor()).get(vals));
-		gl.glUniform1i(hLoc, heightMapped);
-		tileFactor = (go.getRenderStates()).getTileFactor();
-		gl.glUniform1i(tfLoc, tileFactor);
-		gl.glUniform1i(lLoc, (engine.getLightManager()).getNumLights());
-		gl.glUniform1i(fLoc, (engine.getLightManager()).getFieldsPerLight());
-		gl.glProgramUniform4fv(renderingProgram, globalAmbLoc, 1, Light.getGlobalAmbient(), 0);
-		gl.glProgramUniform4fv(renderingProgram, mambLoc, 1, go.getShape().getMatAmb(), 0);
-		gl.glProgramUniform4fv(renderingProgram, mdiffLoc, 1, go.getShape().getMatDif(), 0);
-		gl.glProgramUniform4fv(renderingProgram, mspecLoc, 1, go.getShape().getMatSpe(), 0);
-		gl.glProgramUniform1f(renderingProgram, mshiLoc, go.getShape().getMatShi());
-
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getVertexBuffer());
-		gl.glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(0);
-	
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getTexCoordBuffer());
-		gl.glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(1);
-
-		gl.glBindBuffer(GL_ARRAY_BUFFER, go.getShape().getNormalBuffer());
-		gl.glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
-		gl.glEnableVertexAttribArray(2);
+		state.useProgram(gl, renderingProgram);
+
+		// the level of detail selected for this viewport, and the full shape, which holds the material
+		ObjShape shape = list.getRenderShape(i);
+		ObjShape baseShape = list.getShape(i);
+
+		state.bindStorageBufferBase(gl, 0, (engine.getLightManager()).getLightSSBO());
+
+		int flags = list.getFeatures(i);	// the same bits select the shader variant, if one is in use
+		if ((flags & ShaderVariants.TEXTURE) != 0) hasTex=1; else hasTex=0;
+		tileFactor = list.getTileFactor(i);
+
+		// write this object's block into the frame ring buffer, then bind it
+		FrameRingBuffer ring = engine.getRenderSystem().getFrameRingBuffer();
+		int off = ring.allocate(OBJECT_BLOCK_SIZE);
+		mMat.set(list.getTransforms(), list.getTransformOffset(i));
+		invTrMat.set(list.getTransforms(), list.getTransformOffset(i) + 16);
+		list.getColor(i, color);
+		float[] amb = baseShape.getMatAmb();
+		float[] dif = baseShape.getMatDif();
+		float[] spe = baseShape.getMatSpe();
+		ring.putMatrix(off + M_OFFSET, mMat);
+		ring.putMatrix(off + NORM_OFFSET, invTrMat);
+		ring.putVec4(off + COLOR_OFFSET, color.x(), color.y(), color.z(), 1.0f);
+		ring.putVec4(off + AMB_OFFSET, amb[0], amb[1], amb[2], amb[3]);
+		ring.putVec4(off + DIF_OFFSET, dif[0], dif[1], dif[2], dif[3]);
+		ring.putVec4(off + SPE_OFFSET, spe[0], spe[1], spe[2], spe[3]);
+		ring.putVec4(off + SHI_OFFSET, baseShape.getMatShi(), 0.0f, 0.0f, 0.0f);
+		ring.putIVec4(off + FLAGS_OFFSET, flags, tileFactor, 0, 0);
+		ring.bindUniformBlock(gl, 1, off, OBJECT_BLOCK_SIZE);
+
+		state.bindVertexArray(gl, shape.getVAO());
 
 		if (hasTex==1)
-			thisTexture = go.getTextureImage().getTexture();
+			thisTexture = list.getTexture(i);
 		else
 			thisTexture = engine.getRenderSystem().getDefaultTexture();
-	
-		gl.glActiveTexture(GL_TEXTURE0);
-		gl.glBindTexture(GL_TEXTURE_2D, thisTexture);
-		tiling = (go.getRenderStates()).getTiling();
-		if (tiling != 0)
-		{	if (tiling == 1) { tilingOption = GL_REPEAT; }
-			else if (tiling == 2) { tilingOption = GL_MIRRORED_REPEAT; }
-			else if (tiling == 3) { tilingOption = GL_CLAMP_TO_EDGE; }
-			gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, tilingOption);
-			gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, tilingOption);
-		}
+
+		// tiling is applied with a sampler object rather than by changing the texture's parameters
+		state.bindTexture2D(gl, 0, thisTexture);
+		state.bindTilingSampler(gl, 0, list.getTiling(i));
 
 		activeSkyBoxTexture = (engine.getSceneGraph()).getActiveSkyBoxTexture();
-		gl.glActiveTexture(GL_TEXTURE1);
-		gl.glBindTexture(GL_TEXTURE_CUBE_MAP, activeSkyBoxTexture);
+		state.bindTextureCubeMap(gl, 1, activeSkyBoxTexture);
 
-		heightMapTexture = go.getHeightMap().getTexture();
-		gl.glActiveTexture(GL_TEXTURE2);
-		gl.glBindTexture(GL_TEXTURE_2D, heightMapTexture);
+		heightMapTexture = list.getHeightMap(i);
+		state.bindTexture2D(gl, 2, heightMapTexture);
 
-		if (go.getShape().isWindingOrderCCW())
-			gl.glFrontFace(GL_CCW);
+		if (shape.isWindingOrderCCW())
+			state.frontFace(gl, GL_CCW);
 		else
-			gl.glFrontFace(GL_CW);
+			state.frontFace(gl, GL_CW);
 
-		if ((go.getRenderStates()).isWireframe())
-			gl.glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
+		if (list.isWireframe(i))
+			state.polygonMode(gl, GL_LINE);
 		else
-			gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+			state.polygonMode(gl, GL_FILL);
 
-		gl.glEnable(GL_DEPTH_TEST);
-		gl.glDepthFunc(GL_LEQUAL);
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
 
-		gl.glDrawArrays(GL_TRIANGLES, 0, go.getShape().getNumVertices());
+		if (shape.isIndexed())
+		{	gl.glDrawElements(GL_TRIANGLES, shape.getNumIndices(),
+				shape.hasShortIndices() ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT, 0);
+		}
+		else
+			gl.glDrawArrays(GL_TRIANGLES, 0, shape.getNumVertices());
+		state.countDraw((shape.isIndexed() ? shape.getNumIndices() : shape.getNumVertices()) / 3);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+package tage.objectRenderers;
+import java.nio.*;
+import static com.jogamp.opengl.GL4.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.Buffers;
+import org.joml.*;
+import tage.*;
+import tage.shapes.*;
+
+/**
+* Includes a method render() for rendering a height-mapped TerrainPlane as a quadtree of chunks,
+* using continuous distance-dependent level of detail (CDLOD).
+* <p>
+* Every chunk is drawn with the same small grid patch (GRID x GRID quads), so no vertex data depends on the
+* size of the terrain.  The quadtree covers the terrain plane; each level of the tree has a distance range,
+* doubling from one level to the next.  Chunks within the range of the finest level are drawn at the finest
+* level, which matches the precision of the TerrainPlane, and chunks farther away are drawn at coarser levels.
+* Near the end of its range, each vertex is morphed toward the coarser grid in TerrainVert.glsl,
+* so neighboring chunks at different levels meet without cracks or popping.
+* <p>
+* Each chunk's world-space bounding box is tested against the view frustum, and subtrees outside it are skipped.
+* The boxes span the full height range of the height map, since the height map is only sampled on the GPU.
+* <p>
+* The height map texture, tiling, tile factor, and the rest of the render states are applied as for the standard renderer,
+* from the copies in the DrawList, and the fragment stage is StandardFrag.glsl.
+* <p>
+* Used by the engine, should not be used directly by the game application.
+* @author Scott Gordon
+*/
+public class RenderObjectTerrain
+{	private Engine engine;
+
+	private static final int GRID = 32;               // quads along each side of the shared patch
+	private static final float RANGE_FACTOR = 2.5f;   // finest level's range, in finest chunk widths
+	private static final float MORPH_START = 0.66f;   // fraction of a level's range band before morphing starts
+	private static final int MAX_DEPTH = 10;
+
+	private int[] patchVao = new int[1];
+	private int[] patchBuffers = new int[2];
+	private int patchIndexCount;
+
+	private FloatBuffer vals = Buffers.newDirectFloatBuffer(16);
+	private Matrix4f mMat = new Matrix4f();
+	private Matrix4f invTrMat = new Matrix4f();
+	private Vector3f color = new Vector3f();
+	private Matrix4f invVMat = new Matrix4f();
+	private Matrix4f pvMat = new Matrix4f();
+	private FrustumIntersection frustum = new FrustumIntersection();
+	private Vector3f camPos = new Vector3f();
+	private Vector3f boxMin = new Vector3f(), boxMax = new Vector3f();
+	private float[] ranges = new float[MAX_DEPTH + 1];
+	private float[] chunks = new float[64 * 4];   // x, z, size, level of each selected chunk
+	private int numChunks;
+
+	private int mLoc, nLoc, tLoc, eLoc, sLoc, cLoc, hLoc, oLoc, tfLoc;
+	private int mambLoc, mdiffLoc, mspecLoc, mshiLoc;
+	private int offsetLoc, sizeLoc, morphLoc, camLoc, gridLoc;
+	private int locationsProgram = -1;
+	private RenderStateTracker state;
+
+	// uniform names used by this renderer -- their locations are looked up from the
+	// program's reflection data, in this order, only when the program changes.
+	private static final String[] UNIFORMS =
+	{	"m_matrix", "norm_matrix", "has_texture", "envMapped", "hasLighting", "solidColor",
+		"color", "heightMapped", "tileCount", "material.ambient", "material.diffuse",
+		"material.specular", "material.shininess",
+		"nodeOffset", "nodeSize", "morphRange", "cameraPos", "gridDim"
+	};
+
+	/** for engine use only. */
+	public RenderObjectTerrain(Engine e)
+	{	engine = e;
+		state = e.getRenderSystem().getStateTracker();
+		buildPatch();
+	}
+
+	// Builds the shared grid patch: (GRID+1)^2 vertices over [0..1] x [0..1], with the same
+	// vertex order and triangle winding as TerrainPlane.
+	private void buildPatch()
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		int n = GRID + 1;
+		FloatBuffer verts = Buffers.newDirectFloatBuffer(n * n * 2);
+		for (int i = 0; i < n; i++)
+		{	for (int j = 0; j < n; j++)
+			{	verts.put((float) i / GRID);
+				verts.put((float) j / GRID);
+		}	}
+		verts.flip();
+		patchIndexCount = GRID * GRID * 6;
+		ShortBuffer ind = Buffers.newDirectShortBuffer(patchIndexCount);
+		for (int i = 0; i < GRID; i++)
+		{	for (int j = 0; j < GRID; j++)
+			{	ind.put((short) (i*n+j)); ind.put((short) (i*n+j+1)); ind.put((short) ((i+1)*n+j));
+				ind.put((short) (i*n+j+1)); ind.put((short) ((i+1)*n+j+1)); ind.put((short) ((i+1)*n+j));
+		}	}
+		ind.flip();
+
+		gl.glGenVertexArrays(1, patchVao, 0);
+		gl.glBindVertexArray(patchVao[0]);
+		gl.glGenBuffers(2, patchBuffers, 0);
+		gl.glBindBuffer(GL_ARRAY_BUFFER, patchBuffers[0]);
+		gl.glBufferData(GL_ARRAY_BUFFER, verts.limit()*4, verts, GL_STATIC_DRAW);
+		gl.glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
+		gl.glEnableVertexAttribArray(0);
+		gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, patchBuffers[1]);
+		gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, ind.limit()*2, ind, GL_STATIC_DRAW);
+		gl.glBindVertexArray(0);
+		state.invalidate();
+	}
+
+	private void findUniformLocations(int program)
+	{	int[] loc = ProgramReflection.getLocations(program, UNIFORMS);
+		mLoc = loc[0]; nLoc = loc[1]; tLoc = loc[2]; eLoc = loc[3];
+		oLoc = loc[4]; sLoc = loc[5]; cLoc = loc[6]; hLoc = loc[7]; tfLoc = loc[8];
+		mambLoc = loc[9]; mdiffLoc = loc[10]; mspecLoc = loc[11]; mshiLoc = loc[12];
+		offsetLoc = loc[13]; sizeLoc = loc[14]; morphLoc = loc[15]; camLoc = loc[16]; gridLoc = loc[17];
+		locationsProgram = program;
+	}
+
+	/** returns true if the i-th draw in the list is terrain that this renderer can draw - for engine use only. */
+	public boolean canRender(DrawList list, int i)
+	{	return list.isTerrain(i) && (list.getShape(i) instanceof TerrainPlane) && (list.getShape(i).getPrimitiveType() == 3);
+	}
+
+	/** returns the number of chunks drawn by the most recent call to render() */
+	public int getNumChunks() { return numChunks; }
+
+	/** renders the i-th object in the draw list - for engine use only. */
+	public void render(DrawList list, int i, int program, Matrix4f pMat, Matrix4f vMat)
+	{	GL4 gl = (GL4) GLContext.getCurrentGL();
+		TerrainPlane shape = (TerrainPlane) list.getShape(i);
+		mMat.set(list.getTransforms(), list.getTransformOffset(i));
+		invTrMat.set(list.getTransforms(), list.getTransformOffset(i) + 16);
+
+		vMat.invertAffine(invVMat).getTranslation(camPos);
+		frustum.set(pMat.mul(vMat, pvMat));
+
+		// choose the tree depth so that the finest level matches the TerrainPlane's precision,
+		// and the ranges from the width of a finest-level chunk in world space
+		int depth = 0;
+		while ((depth < MAX_DEPTH) && ((GRID << depth) < shape.getPrecision() - 1)) depth++;
+		mMat.transformAab(-1f, 0f, -1f, 1f, 1f, 1f, boxMin, boxMax);
+		float leafSize = java.lang.Math.max(boxMax.x - boxMin.x, boxMax.z - boxMin.z) / (1 << depth);
+		for (int l = 0; l <= depth; l++) ranges[l] = RANGE_FACTOR * leafSize * (1 << l);
+
+		numChunks = 0;
+		if (!select(-1f, -1f, 2f, depth)) addChunk(-1f, -1f, 2f, depth);
+		if (numChunks == 0) return;
+
+		// ----------- per-object state, as for the standard renderer
+		state.useProgram(gl, program);
+		if (program != locationsProgram) findUniformLocations(program);
+		state.bindStorageBufferBase(gl, 0, (engine.getLightManager()).getLightSSBO());
+
+		int features = list.getFeatures(i);
+		int hasTex = ((features & ShaderVariants.TEXTURE) != 0) ? 1 : 0;
+		gl.glUniformMatrix4fv(mLoc, 1, false, mMat.get(vals));
+		gl.glUniformMatrix4fv(nLoc, 1, false, invTrMat.get(vals));
+		gl.glUniform1i(tLoc, hasTex);
+		gl.glUniform1i(eLoc, ((features & ShaderVariants.ENV_MAPPED) != 0) ? 1 : 0);
+		gl.glUniform1i(oLoc, ((features & ShaderVariants.LIGHTING) != 0) ? 1 : 0);
+		gl.glUniform1i(sLoc, ((features & ShaderVariants.SOLID_COLOR) != 0) ? 1 : 0);
+		gl.glUniform3fv(cLoc, 1, (list.getColor(i, color)).get(vals));
+		gl.glUniform1i(hLoc, 1);
+		gl.glUniform1i(tfLoc, list.getTileFactor(i));
+		gl.glProgramUniform4fv(program, mambLoc, 1, shape.getMatAmb(), 0);
+		gl.glProgramUniform4fv(program, mdiffLoc, 1, shape.getMatDif(), 0);
+		gl.glProgramUniform4fv(program, mspecLoc, 1, shape.getMatSpe(), 0);
+		gl.glProgramUniform1f(program, mshiLoc, shape.getMatShi());
+		gl.glUniform3f(camLoc, camPos.x, camPos.y, camPos.z);
+		gl.glUniform1f(gridLoc, (float) GRID);
+
+		state.bindVertexArray(gl, patchVao[0]);
+
+		int texture = (hasTex == 1) ? list.getTexture(i) : engine.getRenderSystem().getDefaultTexture();
+		state.bindTexture2D(gl, 0, texture);
+		state.bindTilingSampler(gl, 0, list.getTiling(i));
+		state.bindTextureCubeMap(gl, 1, (engine.getSceneGraph()).getActiveSkyBoxTexture());
+		state.bindTexture2D(gl, 2, list.getHeightMap(i));
+
+		state.frontFace(gl, shape.isWindingOrderCCW() ? GL_CCW : GL_CW);
+		state.polygonMode(gl, list.isWireframe(i) ? GL_LINE : GL_FILL);
+		state.depthTest(gl, true);
+		state.depthFunc(gl, GL_LEQUAL);
+
+		// ----------- one draw of the shared patch per chunk
+		for (int c = 0; c < numChunks; c++)
+		{	int level = (int) chunks[c*4+3];
+			float prev = (level == 0) ? 0f : ranges[level-1];
+			gl.glUniform2f(offsetLoc, chunks[c*4], chunks[c*4+1]);
+			gl.glUniform1f(sizeLoc, chunks[c*4+2]);
+			gl.glUniform2f(morphLoc, prev + (ranges[level] - prev) * MORPH_START, ranges[level]);
+			gl.glDrawElements(GL_TRIANGLES, patchIndexCount, GL_UNSIGNED_SHORT, 0);
+			state.countDraw(patchIndexCount / 3);
+		}
+	}
+
+	// Selects the chunks for the node at model-space (x,z) with the given width, at the given level.
+	// Returns false if the node is beyond its level's range, in which case the caller draws its area at the caller's level.
+	// Nodes outside the frustum return true, since nothing needs to be drawn for them.
+	private boolean select(float x, float z, float size, int level)
+	{	mMat.transformAab(x, 0f, z, x+size, 1f, z+size, boxMin, boxMax);
+		if (!frustum.testAab(boxMin, boxMax)) return true;
+		if (!withinRange(ranges[level])) return false;
+		if ((level == 0) || !withinRange(ranges[level-1]))
+		{	addChunk(x, z, size, level);
+			return true;
+		}
+		float half = size * 0.5f;
+		for (int c = 0; c < 4; c++)
+		{	float cx = x + (c & 1) * half, cz = z + (c >> 1) * half;
+			if (!select(cx, cz, half, level-1)) addChunk(cx, cz, half, level);
+		}
+		return true;
+	}
+
+	// true if the sphere around the camera with radius r intersects the current box
+	private boolean withinRange(float r)
+	{	float dx = java.lang.Math.max(java.lang.Math.max(boxMin.x - camPos.x, 0f), camPos.x - boxMax.x);
+		float dy = java.lang.Math.max(java.lang.Math.max(boxMin.y - camPos.y, 0f), camPos.y - boxMax.y);
+		float dz = java.lang.Math.max(java.lang.Math.max(boxMin.z - camPos.z, 0f), camPos.z - boxMax.z);
+		return (dx*dx + dy*dy + dz*dz) <= r*r;
+	}
+
+	private void addChunk(float x, float z, float size, int level)
+	{	if ((numChunks+1) * 4 > chunks.length) chunks = java.util.Arrays.copyOf(chunks, chunks.length * 2);
+		chunks[numChunks*4] = x;
+		chunks[numChunks*4+1] = z;
+		chunks[numChunks*4+2] = size;
+		chunks[numChunks*4+3] = level;
+		numChunks++;
+	}
+}
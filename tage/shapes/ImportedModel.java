@@ -6,6 +6,7 @@ import java.io.InputStreamReader;
 import java.io.FileInputStream;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import org.joml.*;
 import tage.*;
 
@@ -24,6 +25,9 @@ import tage.*;
 * <li> associated material file is ignored (use the material accessor functions instead)
 * </ul>
 * <p>
+* Each distinct v/vt/vn combination in the face list becomes one unique vertex, and the
+* faces are stored as indices into those vertices, so shared vertices are only stored once.
+* <p>
 * If you have a model that fails one of the above restrictions, you may need to load it into
 * a tool such as Blender, and export it as an OBJ file that meets all of the above.
 * <p>
@@ -35,6 +39,7 @@ public class ImportedModel extends ObjShape
 	private Vector3f[] verticesV;
 	private Vector2f[] texCoordsV;
 	private Vector3f[] normalsV;
+	private int[] indices;
 	private int numVerts;
 	
 	/** Use this constructor to read in an OBJ file with the specified file name, from the models folder. */
@@ -59,6 +64,7 @@ public class ImportedModel extends ObjShape
 			float[] verts = modelImporter.getVertices();
 			float[] tcs   = modelImporter.getTextureCoordinates();
 			float[] norm  = modelImporter.getNormals();
+			indices       = modelImporter.getIndices();
 
 			verticesV  = new Vector3f[numVerts];
 			texCoordsV = new Vector2f[numVerts];
@@ -75,10 +81,10 @@ public class ImportedModel extends ObjShape
 		} catch (IOException e)
 		{ e.printStackTrace();
 		}
-		setNumVertices(this.getNumVertices());
-		setVertices(this.getVerticesVector());
-		setTexCoords(this.getTexCoordsVector());
-		setNormals(this.getNormalsVector());
+		if (indices == null) return;
+		setVerticesIndexed(indices, this.getVerticesVector());
+		setTexCoordsIndexed(indices, this.getTexCoordsVector());
+		setNormalsIndexed(indices, this.getNormalsVector());
 		setWindingOrderCCW(true);
 	}
 
@@ -98,6 +104,10 @@ public class ImportedModel extends ObjShape
 		private ArrayList<Float> normals = new ArrayList<Float>();
 		private ArrayList<Float> normVals = new ArrayList<Float>();
 
+		// each distinct "v/vt/vn" face entry maps to one unique vertex
+		private HashMap<String, Integer> uniqueVerts = new HashMap<String, Integer>();
+		private ArrayList<Integer> faceIndices = new ArrayList<Integer>();
+
 		protected void parseOBJ(String filename) throws IOException
 		{	InputStream input = new FileInputStream(new File(filename));
 			BufferedReader br = new BufferedReader(new InputStreamReader(input));
@@ -117,7 +127,15 @@ public class ImportedModel extends ObjShape
 				}	}
 				else if(line.startsWith("f"))			// triangle faces ("f" case)
 				{	for(String s : (line.substring(2)).split(" "))
-					{	String v = s.split("/")[0];
+					{	Integer existing = uniqueVerts.get(s);
+						if (existing != null)
+						{	faceIndices.add(existing);
+							continue;
+						}
+						uniqueVerts.put(s, getNumVertices());
+						faceIndices.add(getNumVertices());
+
+						String v = s.split("/")[0];
 						String vt = s.split("/")[1];
 						String vn = s.split("/")[2];
 	
@@ -141,6 +159,14 @@ public class ImportedModel extends ObjShape
 
 		protected int getNumVertices() { return (triangleVerts.size()/3); }
 
+		protected int[] getIndices()
+		{	int[] ind = new int[faceIndices.size()];
+			for(int i = 0; i < faceIndices.size(); i++)
+			{	ind[i] = faceIndices.get(i);
+			}
+			return ind;
+		}
+
 		protected float[] getVertices()
 		{	float[] p = new float[triangleVerts.size()];
 			for(int i = 0; i < triangleVerts.size(); i++)
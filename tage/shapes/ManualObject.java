@@ -48,21 +48,24 @@ public abstract class ManualObject extends ObjShape
 	// ------------- PUBLIC SETTERS FOR INDEXED MODELS -----------------
 
 	/** Loads vertex data for indexed models, where data is provided in an array of Vector3f.
-	* Data is then converted and stored as non-indexed.
+	* The data stays indexed if the vertices, texture coordinates, and normals all use the same index array,
+	* otherwise it is converted and stored as non-indexed.
 	*/
 	public void setVerticesIndexed(int indices[], Vector3f[] v)
 	{	super.setVerticesIndexed(indices, v);
 	}
 
 	/** Loads texture coordinates for indexed models, where data is provided in an array of Vector3f.
-	* Data is then converted and stored as non-indexed.
+	* The data stays indexed if the vertices, texture coordinates, and normals all use the same index array,
+	* otherwise it is converted and stored as non-indexed.
 	*/
 	public void setTexCoordsIndexed(int indices[], Vector2f[] t)
 	{	super.setTexCoordsIndexed(indices, t);
 	}
 
 	/** Loads normal vectors for indexed models, where data is provided in an array of Vector3f.
-	* Data is then converted and stored as non-indexed.
+	* The data stays indexed if the vertices, texture coordinates, and normals all use the same index array,
+	* otherwise it is converted and stored as non-indexed.
 	*/
 	public void setNormalsIndexed(int indices[], Vector3f[] n)
 	{	super.setNormalsIndexed(indices, n);
@@ -0,0 +1,221 @@
+package tage.shapes;
+import java.util.*;
+
+/**
+* Reduces the number of triangles in an indexed triangle mesh, using quadric error metric edge collapse
+* (Garland and Heckbert).  It is used to build the level-of-detail chain of an ObjShape.
+* <p>
+* Each vertex accumulates a quadric -- the sum of the squared distances to the planes of the triangles
+* around it, weighted by their area.  An edge is collapsed by moving one endpoint onto the other
+* ("half-edge" collapse), and the cost of a collapse is the combined quadric of the two endpoints
+* evaluated at the surviving vertex.  Because vertices are only ever merged into existing vertices,
+* the surviving vertices keep their own texture coordinates and normals, and no new attributes are invented.
+* <p>
+* Collapses are performed in passes.  Each pass sorts the candidate collapses by cost and performs the
+* cheapest ones, each vertex taking part in at most one collapse per pass, until the target triangle
+* count is reached or no collapse is possible.  A collapse is rejected if it would flip a remaining triangle.
+* <p>
+* Vertices on an open border, and vertices on an attribute seam (where vertices share a position but have
+* different texture coordinates or normals), never move.  This keeps the outline of open meshes and keeps
+* texture seams from tearing, at the cost of limiting how far heavily seamed meshes can be reduced.
+* <p>
+* The result is a new index array into the original vertices; unused vertices are not removed.
+* @author Scott Gordon
+*/
+public class MeshSimplifier
+{
+	private MeshSimplifier() { }
+
+	/**
+	* Returns a new index array describing the mesh reduced to at most targetTriangles triangles, if possible.
+	* The vertices array holds x,y,z for each vertex, and indices holds three vertex indices per triangle.
+	*/
+	public static int[] simplify(float[] vertices, int[] indices, int targetTriangles)
+	{	int numVerts = vertices.length / 3;
+		int numTris = indices.length / 3;
+		int[] tris = Arrays.copyOf(indices, numTris * 3);
+		if (numTris <= targetTriangles) return tris;
+
+		boolean[] locked = findLockedVertices(vertices, tris, numVerts);
+		double[] q = computeQuadrics(vertices, tris, numVerts);
+
+		int[] remap = new int[numVerts];
+		for (int i = 0; i < numVerts; i++) remap[i] = i;
+		boolean[] touched = new boolean[numVerts];
+		int liveTris = numTris;
+
+		for (int pass = 0; (pass < 64) && (liveTris > targetTriangles); pass++)
+		{	// vertex to triangle adjacency, over the triangles that remain
+			int[] adjStart = new int[numVerts + 1];
+			for (int i = 0; i < liveTris * 3; i++) adjStart[tris[i] + 1]++;
+			for (int v = 0; v < numVerts; v++) adjStart[v + 1] += adjStart[v];
+			int[] adj = new int[liveTris * 3];
+			int[] fill = Arrays.copyOf(adjStart, numVerts);
+			for (int i = 0; i < liveTris * 3; i++) adj[fill[tris[i]]++] = i / 3;
+
+			// candidate collapses from -> to, sorted by cost
+			int[] from = new int[liveTris * 6], to = new int[liveTris * 6];
+			long[] sorted = new long[liveTris * 6];
+			int numCandidates = 0;
+			for (int t = 0; t < liveTris; t++)
+			{	for (int e = 0; e < 3; e++)
+				{	int a = tris[t*3 + e], b = tris[t*3 + (e+1)%3];
+					if (!locked[a]) { from[numCandidates] = a; to[numCandidates] = b; numCandidates++; }
+					if (!locked[b]) { from[numCandidates] = b; to[numCandidates] = a; numCandidates++; }
+				}
+			}
+			for (int c = 0; c < numCandidates; c++)
+			{	float cost = (float) java.lang.Math.max(0.0, collapseCost(q, from[c], to[c], vertices));
+				// non-negative float bits sort in the same order as the floats themselves
+				sorted[c] = ((long) Float.floatToIntBits(cost) << 32) | c;
+			}
+			Arrays.sort(sorted, 0, numCandidates);
+
+			Arrays.fill(touched, false);
+			int collapses = 0;
+			for (int s = 0; (s < numCandidates) && (liveTris > targetTriangles); s++)
+			{	int c = (int) (sorted[s] & 0xFFFFFFFFL);
+				int a = from[c], b = to[c];
+				if (touched[a] || touched[b]) continue;
+				int removed = checkCollapse(a, b, tris, adj, adjStart, remap, vertices);
+				if (removed < 0) continue;
+
+				remap[a] = b;
+				for (int k = 0; k < 10; k++) q[b*10 + k] += q[a*10 + k];
+				touched[a] = true;
+				touched[b] = true;
+				liveTris -= removed;
+				collapses++;
+			}
+			if (collapses == 0) break;
+
+			// apply the collapses, and drop the triangles that became degenerate
+			liveTris = compact(tris, remap);
+		}
+		return Arrays.copyOf(tris, liveTris * 3);
+	}
+
+	// Follows the chain of collapses from vertex v to the vertex that replaced it.
+	private static int resolve(int[] remap, int v)
+	{	while (remap[v] != v) v = remap[v];
+		return v;
+	}
+
+	// Rewrites the triangles in place through the remap table, removing degenerate ones.
+	// Returns the number of triangles remaining.
+	private static int compact(int[] tris, int[] remap)
+	{	int n = 0;
+		for (int t = 0; t*3 + 2 < tris.length; t++)
+		{	if (tris[t*3] < 0) break;
+			int i0 = resolve(remap, tris[t*3]), i1 = resolve(remap, tris[t*3+1]), i2 = resolve(remap, tris[t*3+2]);
+			if ((i0 == i1) || (i1 == i2) || (i2 == i0)) continue;
+			tris[n*3] = i0; tris[n*3+1] = i1; tris[n*3+2] = i2;
+			n++;
+		}
+		for (int i = n*3; i < tris.length; i++) tris[i] = -1;
+		return n;
+	}
+
+	// Checks whether vertex a can be collapsed onto vertex b.  Returns the number of triangles the
+	// collapse removes, or -1 if it would flip one of the triangles around a.
+	private static int checkCollapse(int a, int b, int[] tris, int[] adj, int[] adjStart, int[] remap, float[] v)
+	{	int removed = 0;
+		for (int k = adjStart[a]; k < adjStart[a+1]; k++)
+		{	int t = adj[k];
+			if (tris[t*3] < 0) continue;
+			int i0 = resolve(remap, tris[t*3]), i1 = resolve(remap, tris[t*3+1]), i2 = resolve(remap, tris[t*3+2]);
+			if ((i0 == i1) || (i1 == i2) || (i2 == i0)) continue;   // already removed by an earlier collapse
+			if ((i0 != a) && (i1 != a) && (i2 != a)) continue;
+			if ((i0 == b) || (i1 == b) || (i2 == b)) { removed++; continue; }
+
+			// normal before and after moving a onto b
+			float[] n0 = normal(v, i0, i1, i2);
+			float[] n1 = normal(v, (i0 == a) ? b : i0, (i1 == a) ? b : i1, (i2 == a) ? b : i2);
+			if (n0[0]*n1[0] + n0[1]*n1[1] + n0[2]*n1[2] <= 0f) return -1;
+		}
+		return removed;
+	}
+
+	private static float[] normal(float[] v, int i0, int i1, int i2)
+	{	float ux = v[i1*3] - v[i0*3], uy = v[i1*3+1] - v[i0*3+1], uz = v[i1*3+2] - v[i0*3+2];
+		float wx = v[i2*3] - v[i0*3], wy = v[i2*3+1] - v[i0*3+1], wz = v[i2*3+2] - v[i0*3+2];
+		return new float[] { uy*wz - uz*wy, uz*wx - ux*wz, ux*wy - uy*wx };
+	}
+
+	// Evaluates the combined quadric of a and b at the position of b.
+	private static double collapseCost(double[] q, int a, int b, float[] v)
+	{	double x = v[b*3], y = v[b*3+1], z = v[b*3+2];
+		int qa = a*10, qb = b*10;
+		double q0 = q[qa]+q[qb], q1 = q[qa+1]+q[qb+1], q2 = q[qa+2]+q[qb+2], q3 = q[qa+3]+q[qb+3];
+		double q4 = q[qa+4]+q[qb+4], q5 = q[qa+5]+q[qb+5], q6 = q[qa+6]+q[qb+6];
+		double q7 = q[qa+7]+q[qb+7], q8 = q[qa+8]+q[qb+8], q9 = q[qa+9]+q[qb+9];
+		return q0*x*x + 2*q1*x*y + 2*q2*x*z + 2*q3*x
+			+ q4*y*y + 2*q5*y*z + 2*q6*y
+			+ q7*z*z + 2*q8*z
+			+ q9;
+	}
+
+	// Accumulates the area-weighted plane quadric of each triangle into its three vertices.
+	// Each quadric is stored as the 10 unique entries of the symmetric 4x4 matrix.
+	private static double[] computeQuadrics(float[] v, int[] tris, int numVerts)
+	{	double[] q = new double[numVerts * 10];
+		for (int t = 0; t*3 + 2 < tris.length; t++)
+		{	int i0 = tris[t*3], i1 = tris[t*3+1], i2 = tris[t*3+2];
+			float[] n = normal(v, i0, i1, i2);
+			double len = java.lang.Math.sqrt(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+			if (len == 0.0) continue;
+			double a = n[0]/len, b = n[1]/len, c = n[2]/len;
+			double d = -(a*v[i0*3] + b*v[i0*3+1] + c*v[i0*3+2]);
+			double w = len * 0.5;  // triangle area
+			double[] plane = { a*a, a*b, a*c, a*d, b*b, b*c, b*d, c*c, c*d, d*d };
+			for (int k = 0; k < 10; k++)
+			{	q[i0*10 + k] += w * plane[k];
+				q[i1*10 + k] += w * plane[k];
+				q[i2*10 + k] += w * plane[k];
+			}
+		}
+		return q;
+	}
+
+	// Marks the vertices that must not move: those on an attribute seam (sharing their position with
+	// another vertex), and those on an open border (on an edge used by only one triangle).
+	private static boolean[] findLockedVertices(float[] v, int[] tris, int numVerts)
+	{	boolean[] locked = new boolean[numVerts];
+
+		// group vertices by exact position
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		int[] group = new int[numVerts];
+		int[] groupSize = new int[numVerts];
+		for (int i = 0; i < numVerts; i++)
+		{	String key = Float.floatToIntBits(v[i*3]) + "," + Float.floatToIntBits(v[i*3+1]) + "," + Float.floatToIntBits(v[i*3+2]);
+			Integer g = positions.get(key);
+			if (g == null) { g = positions.size(); positions.put(key, g); }
+			group[i] = g;
+			groupSize[g]++;
+		}
+		for (int i = 0; i < numVerts; i++) if (groupSize[group[i]] > 1) locked[i] = true;
+
+		// count the uses of each edge between positions -- seams are not borders
+		HashMap<Long, Integer> edges = new HashMap<Long, Integer>();
+		for (int t = 0; t*3 + 2 < tris.length; t++)
+		{	for (int e = 0; e < 3; e++)
+			{	long key = edgeKey(group[tris[t*3 + e]], group[tris[t*3 + (e+1)%3]]);
+				edges.merge(key, 1, Integer::sum);
+			}
+		}
+		boolean[] borderGroup = new boolean[positions.size()];
+		for (Map.Entry<Long, Integer> e : edges.entrySet())
+		{	if (e.getValue() == 1)
+			{	borderGroup[(int) (e.getKey() >>> 32)] = true;
+				borderGroup[(int) (e.getKey() & 0xFFFFFFFFL)] = true;
+			}
+		}
+		for (int i = 0; i < numVerts; i++) if (borderGroup[group[i]]) locked[i] = true;
+		return locked;
+	}
+
+	private static long edgeKey(int a, int b)
+	{	int lo = java.lang.Math.min(a, b), hi = java.lang.Math.max(a, b);
+		return ((long) lo << 32) | hi;
+	}
+}
@@ -0,0 +1,54 @@
+package tage.shapes;
+import org.joml.*;
+import tage.*;
+
+/**
+* A reduced version of another ObjShape, used as one of its levels of detail.
+* It is built from the source shape's vertex attributes and a reduced index array (such as produced
+* by MeshSimplifier), keeping only the vertices that the reduced triangles still use.
+* The material and winding order are copied from the source shape.
+* <p>
+* These are normally created by ObjShape.generateLODs(), rather than by the game application.
+* @author Scott Gordon
+*/
+public class SimplifiedShape extends ObjShape
+{
+	/** builds a shape from the vertices of the source shape that are used by the specified triangle indices */
+	public SimplifiedShape(ObjShape source, int[] sourceIndices)
+	{	super();
+		float[] v = source.getVertices();
+		float[] t = source.getTexCoords();
+		float[] n = source.getNormals();
+
+		// renumber the vertices that are still used, in order of first use
+		int[] newIndex = new int[v.length / 3];
+		java.util.Arrays.fill(newIndex, -1);
+		int[] indices = new int[sourceIndices.length];
+		int count = 0;
+		for (int i = 0; i < sourceIndices.length; i++)
+		{	int s = sourceIndices[i];
+			if (newIndex[s] < 0) newIndex[s] = count++;
+			indices[i] = newIndex[s];
+		}
+
+		Vector3f[] verts = new Vector3f[count];
+		Vector2f[] tcs = new Vector2f[count];
+		Vector3f[] norms = new Vector3f[count];
+		for (int s = 0; s < newIndex.length; s++)
+		{	int d = newIndex[s];
+			if (d < 0) continue;
+			verts[d] = new Vector3f(v[s*3], v[s*3+1], v[s*3+2]);
+			tcs[d] = (t == null) ? new Vector2f() : new Vector2f(t[s*2], t[s*2+1]);
+			norms[d] = (n == null) ? new Vector3f() : new Vector3f(n[s*3], n[s*3+1], n[s*3+2]);
+		}
+		setVerticesIndexed(indices, verts);
+		setTexCoordsIndexed(indices, tcs);
+		setNormalsIndexed(indices, norms);
+
+		setMatAmb(source.getMatAmb());
+		setMatDif(source.getMatDif());
+		setMatSpe(source.getMatSpe());
+		setMatShi(source.getMatShi());
+		setWindingOrderCCW(source.isWindingOrderCCW());
+	}
+}
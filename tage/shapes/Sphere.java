@@ -91,15 +91,13 @@ public class Sphere extends ObjShape
 	}	}	}
 
 	private void loadVertexArrays()
-	{	setNumVertices(this.getNumIndices());
-		setVerticesIndexed(this.getIndices(), this.getVerticesVector());
-		setTexCoordsIndexed(this.getIndices(), this.getTexCoordsVector());
-		setNormalsIndexed(this.getIndices(), this.getNormalsVector());
+	{	// stored indexed - the unique vertices plus the triangle indices
+		setVerticesIndexed(indices, this.getVerticesVector());
+		setTexCoordsIndexed(indices, this.getTexCoordsVector());
+		setNormalsIndexed(indices, this.getNormalsVector());
 		setWindingOrderCCW(true);
 	}
 
-	protected int getNumIndices() { return numIndices; }
-	protected int[] getIndices() { return indices; }
 	protected Vector3f[] getVerticesVector() { return vertices; }
 	protected Vector2f[] getTexCoordsVector() { return texCoords; }
 	protected Vector3f[] getNormalsVector() { return normals; }
@@ -14,6 +14,10 @@ import static java.lang.Math.*;
 * The higher the precision, the better the terrain quality, but also more overhead if the
 * number of vertices is large.
 * <p>
+* When the engine's quadtree terrain rendering is enabled (the default), a height-mapped TerrainPlane is not
+* drawn from these vertices.  Instead it is drawn as chunks of a shared grid patch, with the full precision
+* near the camera and coarser levels farther away -- see RenderObjectTerrain.
+* <p>
 * If a flat plane is desired, use Plane instead.
 * The winding order is CCW.
 * @author Scott Gordon
@@ -78,15 +82,16 @@ public class TerrainPlane extends ObjShape
 	}	}	}
 
 	private void loadVertexArrays()
-	{	setNumVertices(this.getNumIndices());
-		setVerticesIndexed(this.getIndices(), this.getVerticesVector());
-		setTexCoordsIndexed(this.getIndices(), this.getTexCoordsVector());
-		setNormalsIndexed(this.getIndices(), this.getNormalsVector());
+	{	// stored indexed - the unique vertices plus the triangle indices
+		setVerticesIndexed(indices, this.getVerticesVector());
+		setTexCoordsIndexed(indices, this.getTexCoordsVector());
+		setNormalsIndexed(indices, this.getNormalsVector());
 		setWindingOrderCCW(true);
 	}
 
-	protected int getNumIndices() { return numIndices; }
-	protected int[] getIndices() { return indices; }
+	/** returns the number of vertices along each axis */
+	public int getPrecision() { return prec; }
+
 	protected Vector3f[] getVerticesVector() { return vertices; }
 	protected Vector2f[] getTexCoordsVector() { return texCoords; }
 	protected Vector3f[] getNormalsVector() { return normals; }